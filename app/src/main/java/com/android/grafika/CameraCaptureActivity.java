@@ -17,6 +17,7 @@
 package com.android.grafika;
 
 import android.opengl.EGL14;
+import android.opengl.EGLContext;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
 import android.os.Bundle;
@@ -35,6 +36,7 @@ import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
 
 import com.android.grafika.gles.FullFrameRect;
+import com.android.grafika.gles.ProgramCache;
 import com.android.grafika.gles.Texture2dProgram;
 
 import java.io.File;
@@ -454,6 +456,8 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
     private int mCurrentFilter;
     private int mNewFilter;
 
+    // Context we registered with ProgramCache, so we can unregister it.
+    private EGLContext mRegisteredContext;
 
     /**
      * Constructs CameraSurfaceRenderer.
@@ -497,6 +501,11 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
             mFullScreen.release(false);     // assume the GLSurfaceView EGL context is about
             mFullScreen = null;             //  to be destroyed
         }
+        if (mRegisteredContext != null) {
+            // Same assumption; don't let the cache hold programs for a dead context.
+            ProgramCache.getInstance().unregisterContext(mRegisteredContext);
+            mRegisteredContext = null;
+        }
         mIncomingWidth = mIncomingHeight = -1;
     }
 
@@ -571,6 +580,7 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
         // too -- compiling a program could be expensive.)
         if (programType != mFullScreen.getProgram().getProgramType()) {
             mFullScreen.changeProgram(new Texture2dProgram(programType));
+            Log.d(TAG, "Program cache: " + ProgramCache.getInstance().getStats());
             // If we created a new program, we need to initialize the texture width/height.
             mIncomingSizeUpdated = true;
         }
@@ -611,6 +621,15 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
             mRecordingStatus = RECORDING_OFF;
         }
 
+        // GLSurfaceView doesn't tell us when it destroys a context, but a new one always
+        // comes through here.  Registering it lets filter changes reuse programs.  If we
+        // didn't get a chance to unregister the old one in notifyPausing(), do it now.
+        if (mRegisteredContext != null) {
+            ProgramCache.getInstance().unregisterContext(mRegisteredContext);
+        }
+        mRegisteredContext = EGL14.eglGetCurrentContext();
+        ProgramCache.getInstance().registerContext(mRegisteredContext);
+
         // Set up the texture blitter that will be used for on-screen display.  This
         // is *not* applied to the recording, because that uses a separate shader.
         mFullScreen = new FullFrameRect(
@@ -19,10 +19,12 @@ package com.android.grafika;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
+import android.os.Build;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Surface;
 
@@ -30,6 +32,7 @@ import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 
 /**
  * Encodes video in a fixed-size circular buffer.
@@ -45,8 +48,11 @@ import java.nio.ByteBuffer;
  * the head of the list and the next sync frame, or have the file save function know that
  * it needs to scan forward for a sync frame before it can start saving data.
  * <p>
- * When we're told to save a snapshot, we create a MediaMuxer, write all the frames out,
- * and then go back to what we were doing.
+ * When we're told to save a snapshot, we freeze the range of packets currently in the
+ * buffer and hand it to a separate thread, which creates a muxer and writes the frames
+ * out.  The encoder thread goes right back to draining the encoder, so the save doesn't
+ * cause the encoder to stall.  Several saves, of different time ranges and to different
+ * files, can be in progress at once.
  */
 public class CircularEncoder {
     private static final String TAG = MainActivity.TAG;
@@ -58,18 +64,29 @@ public class CircularEncoder {
     private EncoderThread mEncoderThread;
     private Surface mInputSurface;
     private MediaCodec mEncoder;
+    private volatile MovieMuxer.Factory mMuxerFactory = MediaMuxerWrapper.FACTORY;
 
     /**
      * Callback function definitions.  CircularEncoder caller must provide one.
      */
     public interface Callback {
+        /**
+         * Called periodically while a file is being written.  Called on the save thread.
+         *
+         * @param outputFile The file passed to saveVideo().
+         * @param packetsWritten Number of video packets written so far.
+         * @param packetCount Total number of video packets that will be written.
+         */
+        void fileSaveProgress(File outputFile, int packetsWritten, int packetCount);
+
         /**
          * Called some time after saveVideo(), when all data has been written to the
-         * output file.
+         * output file.  May be called on the encoder thread or a save thread.
          *
+         * @param outputFile The file passed to saveVideo().
          * @param status Zero means success, nonzero indicates failure.
          */
-        void fileSaveComplete(int status);
+        void fileSaveComplete(File outputFile, int status);
 
         /**
          * Called occasionally.
@@ -90,6 +107,19 @@ public class CircularEncoder {
      */
     public CircularEncoder(int width, int height, int bitRate, int frameRate, int desiredSpanSec,
             Callback cb) throws IOException {
+        this(width, height, bitRate, frameRate, desiredSpanSec, null, 0, cb);
+    }
+
+    /**
+     * Configures encoder, and prepares the input Surface.  In addition to the in-memory
+     * buffer, older video is kept in a memory-mapped spill file.
+     *
+     * @param desiredSpanSec How many seconds of video we want to have in memory.
+     * @param spillFile File to hold older video, or null for none.  Deleted on shutdown.
+     * @param spillSpanSec How many seconds of additional video we want in the spill file.
+     */
+    public CircularEncoder(int width, int height, int bitRate, int frameRate, int desiredSpanSec,
+            File spillFile, int spillSpanSec, Callback cb) throws IOException {
         // The goal is to size the buffer so that we can accumulate N seconds worth of video,
         // where N is passed in as "desiredSpanSec".  If the codec generates data at roughly
         // the requested bit rate, we can compute it as time * bitRate / bitsPerByte.
@@ -103,8 +133,15 @@ public class CircularEncoder {
             throw new RuntimeException("Requested time span is too short: " + desiredSpanSec +
                     " vs. " + (IFRAME_INTERVAL * 2));
         }
-        CircularEncoderBuffer encBuffer = new CircularEncoderBuffer(bitRate, frameRate,
-                desiredSpanSec);
+        // Keep the encoded data off the managed heap.  It can be tens of megabytes, and
+        // we want the GC to leave it alone.
+        CircularEncoderBuffer encBuffer;
+        if (spillFile != null) {
+            encBuffer = new CircularEncoderBuffer(bitRate, frameRate, desiredSpanSec, true,
+                    spillFile, spillSpanSec);
+        } else {
+            encBuffer = new CircularEncoderBuffer(bitRate, frameRate, desiredSpanSec, true);
+        }
 
         MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
 
@@ -186,14 +223,67 @@ public class CircularEncoder {
      * data will be written as a .mp4 file.  The call returns immediately.  When the file
      * save completes, the callback will be notified.
      * <p>
-     * The file generation is performed on the encoder thread, which means we won't be
-     * draining the output buffers while this runs.  It would be wise to stop submitting
-     * frames during this time.
+     * The file generation is performed on a separate thread, so the encoder keeps running
+     * while this happens.  Frames submitted after the call are not included in the file.
+     * Saves to different files may overlap; each one holds on to the buffered frames it
+     * still needs to write until it's done with them.
      */
     public void saveVideo(File outputFile) {
+        saveVideo(new SaveRequest(outputFile, Long.MIN_VALUE, Long.MAX_VALUE, -1,
+                mMuxerFactory));
+    }
+
+    /**
+     * Initiates saving the most recent spanUsec of buffered video.  The file will start
+     * at the sync frame at or before the start of the span.  Otherwise the same as
+     * {@link #saveVideo(File)}.
+     */
+    public void saveRecentVideo(File outputFile, long spanUsec) {
+        saveVideo(new SaveRequest(outputFile, Long.MIN_VALUE, Long.MAX_VALUE, spanUsec,
+                mMuxerFactory));
+    }
+
+    /**
+     * Initiates saving the buffered frames with presentation times between startPtsUsec and
+     * endPtsUsec, inclusive.  The file will start at the sync frame at or before
+     * startPtsUsec.  Otherwise the same as {@link #saveVideo(File)}.
+     */
+    public void saveVideo(File outputFile, long startPtsUsec, long endPtsUsec) {
+        saveVideo(new SaveRequest(outputFile, startPtsUsec, endPtsUsec, -1,
+                mMuxerFactory));
+    }
+
+    /**
+     * Sets the muxer used for subsequent saves.  The default is MediaMuxer.
+     */
+    public void setMuxerFactory(MovieMuxer.Factory muxerFactory) {
+        mMuxerFactory = muxerFactory;
+    }
+
+    private void saveVideo(SaveRequest request) {
         Handler handler = mEncoderThread.getHandler();
         handler.sendMessage(handler.obtainMessage(
-                EncoderThread.EncoderHandler.MSG_SAVE_VIDEO, outputFile));
+                EncoderThread.EncoderHandler.MSG_SAVE_VIDEO, request));
+    }
+
+    /**
+     * Parameters for a file save, passed from the caller to the encoder thread.
+     */
+    private static class SaveRequest {
+        public final File outputFile;
+        public final long startPtsUsec;
+        public final long endPtsUsec;
+        public final long spanUsec;         // if >= 0, save this much recent video instead
+        public final MovieMuxer.Factory muxerFactory;
+
+        public SaveRequest(File outputFile, long startPtsUsec, long endPtsUsec, long spanUsec,
+                MovieMuxer.Factory muxerFactory) {
+            this.outputFile = outputFile;
+            this.startPtsUsec = startPtsUsec;
+            this.endPtsUsec = endPtsUsec;
+            this.spanUsec = spanUsec;
+            this.muxerFactory = muxerFactory;
+        }
     }
 
     /**
@@ -203,9 +293,11 @@ public class CircularEncoder {
      * arrives at the encoder, because the other thread is sending frames directly to the
      * input surface.  We will see data appear at the decoder output, so we can either use
      * an infinite timeout on dequeueOutputBuffer() or wait() on an object and require the
-     * calling app wake us.  It's very useful to have all of the buffer management local to
-     * this thread -- avoids synchronization -- so we want to do the file muxing in here.
-     * So, it's best to sleep on an object and do something appropriate when awakened.
+     * calling app wake us.  It's best to sleep on an object and do something appropriate
+     * when awakened.
+     * <p>
+     * File muxing happens on a SaveThread, reading from a snapshot of the circular buffer.
+     * If muxing happened here, we wouldn't drain the encoder while the file was written.
      * <p>
      * This class does not manage the MediaCodec encoder startup/shutdown.  The encoder
      * should be fully started before the thread is created, and not shut down until this
@@ -215,11 +307,16 @@ public class CircularEncoder {
         private MediaCodec mEncoder;
         private MediaFormat mEncodedFormat;
         private MediaCodec.BufferInfo mBufferInfo;
+        private ByteBuffer[] mEncoderOutputBuffers;
 
         private EncoderHandler mHandler;
         private CircularEncoderBuffer mEncBuffer;
         private CircularEncoder.Callback mCallback;
         private int mFrameNum;
+        private boolean mSyncFrameRequested;
+
+        // Saves that are still running.  Only touched on the encoder thread.
+        private ArrayList<SaveThread> mSaveThreads = new ArrayList<SaveThread>();
 
         private final Object mLock = new Object();
         private volatile boolean mReady = false;
@@ -231,6 +328,7 @@ public class CircularEncoder {
             mCallback = callback;
 
             mBufferInfo = new MediaCodec.BufferInfo();
+            mEncoderOutputBuffers = mEncoder.getOutputBuffers();
         }
 
         /**
@@ -291,7 +389,6 @@ public class CircularEncoder {
         public void drainEncoder() {
             final int TIMEOUT_USEC = 0;     // no timeout -- check for buffers, bail if none
 
-            ByteBuffer[] encoderOutputBuffers = mEncoder.getOutputBuffers();
             while (true) {
                 int encoderStatus = mEncoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
                 if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
@@ -299,7 +396,7 @@ public class CircularEncoder {
                     break;
                 } else if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
                     // not expected for an encoder
-                    encoderOutputBuffers = mEncoder.getOutputBuffers();
+                    mEncoderOutputBuffers = mEncoder.getOutputBuffers();
                 } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
                     // Should happen before receiving buffers, and should only happen once.
                     // The MediaFormat contains the csd-0 and csd-1 keys, which we'll need
@@ -313,7 +410,7 @@ public class CircularEncoder {
                             encoderStatus);
                     // let's ignore it
                 } else {
-                    ByteBuffer encodedData = encoderOutputBuffers[encoderStatus];
+                    ByteBuffer encodedData = mEncoderOutputBuffers[encoderStatus];
                     if (encodedData == null) {
                         throw new RuntimeException("encoderOutputBuffer " + encoderStatus +
                                 " was null");
@@ -333,8 +430,17 @@ public class CircularEncoder {
                         encodedData.position(mBufferInfo.offset);
                         encodedData.limit(mBufferInfo.offset + mBufferInfo.size);
 
-                        mEncBuffer.add(encodedData, mBufferInfo.flags,
-                                mBufferInfo.presentationTimeUs);
+                        if (!mEncBuffer.add(encodedData, mBufferInfo.flags,
+                                mBufferInfo.presentationTimeUs)) {
+                            // A save is holding on to the space we need.  The buffer will
+                            // discard everything up to the next sync frame, so ask for one
+                            // now rather than waiting for the next I-frame interval.
+                            if (!mSyncFrameRequested) {
+                                requestSyncFrame();
+                            }
+                        } else if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+                            mSyncFrameRequested = false;
+                        }
 
                         if (VERBOSE) {
                             Log.d(TAG, "sent " + mBufferInfo.size + " bytes to muxer, ts=" +
@@ -352,15 +458,40 @@ public class CircularEncoder {
             }
         }
 
+        /**
+         * Asks the encoder to generate a sync frame as soon as possible.  Not available
+         * before API 19, in which case we just wait for the next one.
+         */
+        private void requestSyncFrame() {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                Bundle params = new Bundle();
+                params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+                mEncoder.setParameters(params);
+            }
+            mSyncFrameRequested = true;
+        }
+
         /**
          * Drains the encoder output.
          * <p>
          * See notes for {@link CircularEncoder#frameAvailableSoon()}.
+         *
+         * @param stallMsec How long the request sat in the message queue before we got to
+         *     it.  Reported to any saves in progress.
          */
-        void frameAvailableSoon() {
+        void frameAvailableSoon(long stallMsec) {
             if (VERBOSE) Log.d(TAG, "frameAvailableSoon");
             drainEncoder();
 
+            for (int i = mSaveThreads.size() - 1; i >= 0; i--) {
+                SaveThread saveThread = mSaveThreads.get(i);
+                if (saveThread.isAlive()) {
+                    saveThread.recordDrainStall(stallMsec);
+                } else {
+                    mSaveThreads.remove(i);
+                }
+            }
+
             mFrameNum++;
             if ((mFrameNum % 10) == 0) {        // TODO: should base off frame rate or clock?
                 mCallback.bufferStatus(mEncBuffer.computeTimeSpanUsec());
@@ -375,58 +506,49 @@ public class CircularEncoder {
          * mean we miss the last couple of submitted frames if they're still working their
          * way through.
          * <p>
-         * We may want to reset the buffer after this -- if they hit "capture" again right
-         * away they'll end up saving video with a gap where we paused to write the file.
+         * The actual muxing is done by a SaveThread.  We just take the snapshot.
          */
-        void saveVideo(File outputFile) {
+        void saveVideo(SaveRequest request) {
+            File outputFile = request.outputFile;
             if (VERBOSE) Log.d(TAG, "saveVideo " + outputFile);
 
-            int index = mEncBuffer.getFirstIndex();
-            if (index < 0) {
+            drainEncoder();
+            CircularEncoderBuffer.Snapshot snapshot = null;
+            if (mEncodedFormat != null) {
+                if (request.spanUsec >= 0) {
+                    snapshot = mEncBuffer.createRecentSnapshot(request.spanUsec);
+                } else {
+                    snapshot = mEncBuffer.createSnapshot(request.startPtsUsec,
+                            request.endPtsUsec);
+                }
+            }
+            if (snapshot == null) {
                 Log.w(TAG, "Unable to get first index");
-                mCallback.fileSaveComplete(1);
+                mCallback.fileSaveComplete(outputFile, 1);
                 return;
             }
 
-            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-            MediaMuxer muxer = null;
-            int result = -1;
-            try {
-                muxer = new MediaMuxer(outputFile.getPath(),
-                        MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
-                int videoTrack = muxer.addTrack(mEncodedFormat);
-                muxer.start();
-
-                do {
-                    ByteBuffer buf = mEncBuffer.getChunk(index, info);
-                    if (VERBOSE) {
-                        Log.d(TAG, "SAVE " + index + " flags=0x" + Integer.toHexString(info.flags));
-                    }
-                    muxer.writeSampleData(videoTrack, buf, info);
-                    index = mEncBuffer.getNextIndex(index);
-                } while (index >= 0);
-                result = 0;
-            } catch (IOException ioe) {
-                Log.w(TAG, "muxer failed", ioe);
-                result = 2;
-            } finally {
-                if (muxer != null) {
-                    muxer.stop();
-                    muxer.release();
-                }
-            }
-
-            if (VERBOSE) {
-                Log.d(TAG, "muxer stopped, result=" + result);
-            }
-            mCallback.fileSaveComplete(result);
+            SaveThread saveThread = new SaveThread(snapshot, mEncodedFormat, outputFile,
+                    request.muxerFactory, mCallback);
+            mSaveThreads.add(saveThread);
+            saveThread.start();
         }
 
         /**
-         * Tells the Looper to quit.
+         * Waits for any saves in progress to finish, releases the buffer, and tells the
+         * Looper to quit.
          */
         void shutdown() {
             if (VERBOSE) Log.d(TAG, "shutdown");
+            for (SaveThread saveThread : mSaveThreads) {
+                try {
+                    saveThread.join();
+                } catch (InterruptedException ie) {
+                    Log.w(TAG, "Save thread join() was interrupted", ie);
+                }
+            }
+            mSaveThreads.clear();
+            mEncBuffer.release();
             Looper.myLooper().quit();
         }
 
@@ -467,10 +589,11 @@ public class CircularEncoder {
 
                 switch (what) {
                     case MSG_FRAME_AVAILABLE_SOON:
-                        encoderThread.frameAvailableSoon();
+                        encoderThread.frameAvailableSoon(
+                                SystemClock.uptimeMillis() - msg.getWhen());
                         break;
                     case MSG_SAVE_VIDEO:
-                        encoderThread.saveVideo((File) msg.obj);
+                        encoderThread.saveVideo((SaveRequest) msg.obj);
                         break;
                     case MSG_SHUTDOWN:
                         encoderThread.shutdown();
@@ -481,4 +604,120 @@ public class CircularEncoder {
             }
         }
     }
+
+    /**
+     * Writes a snapshot of the circular buffer to a .mp4 file.
+     * <p>
+     * Progress is reported every 10% or so.  While we run, the encoder thread reports how
+     * long each "frame available" request waited in its queue.  If the save were getting in
+     * the way of the encoder, it would show up here.
+     */
+    private static class SaveThread extends Thread {
+        private CircularEncoderBuffer.Snapshot mSnapshot;
+        private MediaFormat mEncodedFormat;
+        private File mOutputFile;
+        private MovieMuxer.Factory mMuxerFactory;
+        private CircularEncoder.Callback mCallback;
+
+        private long mMaxDrainStallMsec;
+        private long mTotalDrainStallMsec;
+        private int mDrainCount;
+
+        public SaveThread(CircularEncoderBuffer.Snapshot snapshot, MediaFormat encodedFormat,
+                File outputFile, MovieMuxer.Factory muxerFactory,
+                CircularEncoder.Callback callback) {
+            super("CircularEncoder save " + outputFile.getName());
+            mSnapshot = snapshot;
+            mEncodedFormat = encodedFormat;
+            mOutputFile = outputFile;
+            mMuxerFactory = muxerFactory;
+            mCallback = callback;
+        }
+
+        /**
+         * Records the queueing delay of one encoder drain.  Called from the encoder thread.
+         */
+        public synchronized void recordDrainStall(long stallMsec) {
+            if (stallMsec > mMaxDrainStallMsec) {
+                mMaxDrainStallMsec = stallMsec;
+            }
+            mTotalDrainStallMsec += stallMsec;
+            mDrainCount++;
+        }
+
+        @Override
+        public void run() {
+            long startNsec = System.nanoTime();
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            MovieMuxer muxer = null;
+            boolean muxerStarted = false;
+            final int totalCount = mSnapshot.getPacketCount();
+            int packetCount = 0;
+            int progressTenths = 0;
+            int result = -1;
+            try {
+                muxer = mMuxerFactory.create(mOutputFile);
+                int videoTrack = muxer.addTrack(mEncodedFormat);
+                muxer.start();
+                muxerStarted = true;
+
+                ByteBuffer buf;
+                while ((buf = mSnapshot.getNextChunk(info)) != null) {
+                    if (VERBOSE) {
+                        Log.d(TAG, "SAVE flags=0x" + Integer.toHexString(info.flags) +
+                                " pts=" + info.presentationTimeUs);
+                    }
+                    muxer.writeSampleData(videoTrack, buf, info);
+                    packetCount++;
+
+                    int tenths = packetCount * 10 / totalCount;
+                    if (tenths != progressTenths) {
+                        progressTenths = tenths;
+                        mCallback.fileSaveProgress(mOutputFile, packetCount, totalCount);
+                    }
+                }
+                result = 0;
+            } catch (IOException ioe) {
+                Log.w(TAG, "muxer failed", ioe);
+                result = 2;
+            } catch (RuntimeException re) {
+                // MediaMuxer reports most failures this way, and FragmentedMp4Muxer wraps
+                // its I/O errors.
+                Log.w(TAG, "muxer failed", re);
+                result = 2;
+            } finally {
+                try {
+                    mSnapshot.release();
+                    if (muxer != null) {
+                        // stop() throws if start() didn't happen or the muxer is in a bad
+                        // state; either way we're done with it.
+                        if (muxerStarted) {
+                            try {
+                                muxer.stop();
+                            } catch (RuntimeException re) {
+                                Log.w(TAG, "muxer stop failed", re);
+                                if (result == 0) {
+                                    result = 2;
+                                }
+                            }
+                        }
+                        muxer.release();
+                    }
+                } finally {
+                    logResult(startNsec, packetCount, result);
+                    mCallback.fileSaveComplete(mOutputFile, result);
+                }
+            }
+        }
+
+        private synchronized void logResult(long startNsec, int packetCount, int result) {
+            Log.d(TAG, "saved " + packetCount + " packets (pts " +
+                    mSnapshot.getStartPtsUsec() + " to " + mSnapshot.getEndPtsUsec() +
+                    ") to " + mOutputFile + " in " +
+                    (System.nanoTime() - startNsec) / 1000000 + "ms, result=" + result +
+                    "; encoder drain stall max=" + mMaxDrainStallMsec + "ms avg=" +
+                    (mDrainCount == 0 ? 0 : mTotalDrainStallMsec / mDrainCount) +
+                    "ms over " + mDrainCount + " drains");
+        }
+    }
 }
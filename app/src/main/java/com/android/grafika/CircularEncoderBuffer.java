@@ -19,7 +19,11 @@ package com.android.grafika;
 import android.media.MediaCodec;
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * Holds encoded video data in a circular buffer.
@@ -27,7 +31,18 @@ import java.nio.ByteBuffer;
  * This is actually a pair of circular buffers, one for the raw data and one for the meta-data
  * (flags and PTS).
  * <p>
- * Not thread-safe.
+ * Optionally, there's a third: a memory-mapped file that older data "spills" into.  The
+ * most recent packets are held in memory, and when they need to make room they're copied
+ * out to the spill file instead of being discarded.  The meta-data covers both, with the
+ * spilled packets at the tail end, so iteration works the same either way.  This allows a
+ * much longer history than we could reasonably keep in memory.
+ * <p>
+ * Packets are added by the encoder thread.  File saves take a {@link Snapshot}, which can
+ * be read from a different thread while new packets continue to arrive.  Any number of
+ * snapshots may be active at once.  Each pins the packet it's currently reading, by
+ * incrementing a per-packet reference count, and packets are never evicted from the oldest
+ * pinned one onward; if there's no room for a new packet, the new packet is dropped
+ * instead.  All access to the meta-data is synchronized on the buffer object.
  */
 public class CircularEncoderBuffer {
     private static final String TAG = MainActivity.TAG;
@@ -41,12 +56,30 @@ public class CircularEncoderBuffer {
     // JNI functions to access the backing byte[] (which, in the current VM, is done without
     // copying the data).
     //
-    // It's much more convenient to work with a byte[], so we just wrap it with a ByteBuffer
-    // as needed.  This is a bit awkward when we hit the edge of the buffer, but for that
-    // we can just do an allocation and data copy (we know it happens at most once per file
-    // save operation).
-    private ByteBuffer mDataBufferWrapper;
-    private byte[] mDataBuffer;
+    // By default we allocate a byte[] and wrap it.  For large buffers (say, 30 seconds of
+    // 20Mbps video) it's better to keep the data off the managed heap entirely, so the
+    // caller can ask for a direct buffer instead.  Either way we only ever access the data
+    // through the ByteBuffer, using bulk get/put, so the rest of the code doesn't care.
+    private ByteBuffer mDataBuffer;
+
+    // When a packet wraps around the end of the data buffer we can't hand out a single
+    // region of mDataBuffer, so we copy the two halves into this.  It's allocated the first
+    // time we need it and grown as needed, so in the steady state a file save doesn't
+    // allocate anything.  Contents are only valid until the next getChunk() call.
+    private ByteBuffer mScratchBuffer;
+
+    // Scratch buffer handed back by the last released snapshot, for the next one to use.
+    // Without this every save would allocate a new one the first time it hit a wrapped
+    // packet.
+    private ByteBuffer mSpareSnapshotScratch;
+
+    // Spill file, if any.  Packets from mMetaTail up to (but not including) mRamTail are
+    // held here; packets from mRamTail to mMetaHead are in mDataBuffer.  Without a spill
+    // file, mRamTail is always equal to mMetaTail.
+    private File mSpillFilePath;
+    private RandomAccessFile mSpillFile;
+    private ByteBuffer mSpillBuffer;
+    private int mRamTail;
 
     // Meta-data held here.  We're using a collection of arrays, rather than an array of
     // objects with multiple fields, to minimize allocations and heap footprint.
@@ -54,37 +87,125 @@ public class CircularEncoderBuffer {
     private long[] mPacketPtsUsec;
     private int[] mPacketStart;
     private int[] mPacketLength;
+    private int[] mPacketPinCount;
+    private boolean[] mPacketSpilled;
 
     // Data is added at head and removed from tail.  Head points to an empty node, so if
     // head==tail the list is empty.
     private int mMetaHead;
     private int mMetaTail;
 
+    // Meta-data indices of the sync frames in the buffer, oldest first.  This is another
+    // circular buffer, kept in step with the meta-data: sync frames are added at the head
+    // as they arrive, and removed from the tail when the packet they refer to is removed.
+    // It lets us find a starting point for a save without walking the packet list.
+    private int[] mSyncIndex;
+    private int mSyncHead;
+    private int mSyncTail;
+
+    // Set when we had to drop a packet because the space it needed was pinned.  Everything
+    // up to the next sync frame depends on the dropped data, so we drop that too.
+    private boolean mDropUntilSync;
+
     /**
-     * Allocates the circular buffers we use for encoded data and meta-data.
+     * Allocates the circular buffers we use for encoded data and meta-data.  The encoded
+     * data is held in a byte[] on the managed heap.
      */
     public CircularEncoderBuffer(int bitRate, int frameRate, int desiredSpanSec) {
+        this(bitRate, frameRate, desiredSpanSec, false);
+    }
+
+    /**
+     * Allocates the circular buffers we use for encoded data and meta-data.
+     *
+     * @param direct If set, the encoded data is held in a direct ByteBuffer rather than
+     *     a byte[] on the managed heap.
+     */
+    public CircularEncoderBuffer(int bitRate, int frameRate, int desiredSpanSec,
+            boolean direct) {
+        this(bitRate, frameRate, desiredSpanSec, direct, 0);
+    }
+
+    /**
+     * Allocates the circular buffers, plus a spill file for older data.
+     * <p>
+     * The most recent desiredSpanSec of video is held in memory.  As packets age out of
+     * that they're moved to a memory-mapped file big enough for another spillSpanSec of
+     * video, so the total span is the sum of the two.  The file is created (or truncated)
+     * here, and deleted by {@link #release()}.  It must be at least as large as the
+     * in-memory buffer.
+     */
+    public CircularEncoderBuffer(int bitRate, int frameRate, int desiredSpanSec,
+            boolean direct, File spillFile, int spillSpanSec) throws IOException {
+        this(bitRate, frameRate, desiredSpanSec, direct, spillSpanSec);
+
+        // Mapped buffers are indexed with an int, so that's as big as we can go.
+        long spillSize = (long) bitRate * spillSpanSec / 8;
+        if (spillSize < mDataBuffer.capacity() || spillSize > Integer.MAX_VALUE) {
+            throw new RuntimeException("Bad spill size " + spillSize + " (memory buffer is " +
+                    mDataBuffer.capacity() + ")");
+        }
+        mSpillFilePath = spillFile;
+        mSpillFile = new RandomAccessFile(spillFile, "rw");
+        try {
+            mSpillFile.setLength(spillSize);
+            mSpillBuffer = mSpillFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    spillSize);
+        } catch (IOException ioe) {
+            mSpillFile.close();
+            mSpillFile = null;
+            throw ioe;
+        }
+        if (VERBOSE) Log.d(TAG, "CBE: spilling to " + spillFile + ", size=" + spillSize);
+    }
+
+    private CircularEncoderBuffer(int bitRate, int frameRate, int desiredSpanSec,
+            boolean direct, int spillSpanSec) {
         // For the encoded data, we assume the encoded bit rate is close to what we request.
         //
         // There would be a minor performance advantage to using a power of two here, because
         // not all ARM CPUs support integer modulus.
         int dataBufferSize = bitRate * desiredSpanSec / 8;
-        mDataBuffer = new byte[dataBufferSize];
-        mDataBufferWrapper = ByteBuffer.wrap(mDataBuffer);
+        if (direct) {
+            mDataBuffer = ByteBuffer.allocateDirect(dataBufferSize);
+        } else {
+            mDataBuffer = ByteBuffer.wrap(new byte[dataBufferSize]);
+        }
 
         // Meta-data is smaller than encoded data for non-trivial frames, so we over-allocate
         // a bit.  This should ensure that we drop packets because we ran out of (expensive)
         // data storage rather than (inexpensive) metadata storage.
-        int metaBufferCount = frameRate * desiredSpanSec * 2;
+        int metaBufferCount = frameRate * (desiredSpanSec + spillSpanSec) * 2;
         mPacketFlags = new int[metaBufferCount];
         mPacketPtsUsec = new long[metaBufferCount];
         mPacketStart = new int[metaBufferCount];
         mPacketLength = new int[metaBufferCount];
+        mPacketPinCount = new int[metaBufferCount];
+        mPacketSpilled = new boolean[metaBufferCount];
+        mSyncIndex = new int[metaBufferCount];
 
         if (VERBOSE) {
             Log.d(TAG, "CBE: bitRate=" + bitRate + " frameRate=" + frameRate +
                     " desiredSpan=" + desiredSpanSec + ": dataBufferSize=" + dataBufferSize +
-                " metaBufferCount=" + metaBufferCount);
+                " metaBufferCount=" + metaBufferCount + " direct=" + direct);
+        }
+    }
+
+    /**
+     * Closes and deletes the spill file, if any.  Call when done with the buffer, after all
+     * snapshots have been released.
+     */
+    public synchronized void release() {
+        if (mSpillFile != null) {
+            try {
+                mSpillFile.close();
+            } catch (IOException ioe) {
+                Log.w(TAG, "failed closing spill file", ioe);
+            }
+            mSpillFile = null;
+            if (!mSpillFilePath.delete()) {
+                Log.w(TAG, "unable to delete " + mSpillFilePath);
+            }
         }
     }
 
@@ -92,7 +213,7 @@ public class CircularEncoderBuffer {
      * Computes the amount of time spanned by the buffered data, based on the presentation
      * time stamps.
      */
-    public long computeTimeSpanUsec() {
+    public synchronized long computeTimeSpanUsec() {
         final int metaLen = mPacketStart.length;
 
         if (mMetaHead == mMetaTail) {
@@ -107,41 +228,65 @@ public class CircularEncoderBuffer {
 
     /**
      * Adds a new encoded data packet to the buffer.
+     * <p>
+     * Old packets are spilled to disk or discarded to make room.  If that isn't possible
+     * because a snapshot still needs them, the new packet is dropped, as is everything that
+     * follows it up to the next sync frame.
      *
      * @param buf The data.  Set position() to the start offset and limit() to position+size.
      *     The position and limit may be altered by this method.
-     * @param size Number of bytes in the packet.
      * @param flags MediaCodec.BufferInfo flags.
      * @param ptsUsec Presentation time stamp, in microseconds.
+     * @return False if the packet was dropped.
      */
-    public void add(ByteBuffer buf, int flags, long ptsUsec) {
+    public synchronized boolean add(ByteBuffer buf, int flags, long ptsUsec) {
         int size = buf.limit() - buf.position();
         if (VERBOSE) {
             Log.d(TAG, "add size=" + size + " flags=0x" + Integer.toHexString(flags) +
                     " pts=" + ptsUsec);
         }
-        while (!canAdd(size)) {
-            removeTail();
+        if (mDropUntilSync) {
+            if ((flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) == 0) {
+                if (VERBOSE) Log.v(TAG, "dropping packet, waiting for sync frame");
+                return false;
+            }
+            mDropUntilSync = false;
+        }
+        if (!makeRoom(size)) {
+            Log.w(TAG, "no room for " + size + "-byte packet, dropping until next sync");
+            mDropUntilSync = true;
+            return false;
         }
 
-        final int dataLen = mDataBuffer.length;
+        final int dataLen = mDataBuffer.capacity();
         final int metaLen = mPacketStart.length;
         int packetStart = getHeadStart();
         mPacketFlags[mMetaHead] = flags;
         mPacketPtsUsec[mMetaHead] = ptsUsec;
         mPacketStart[mMetaHead] = packetStart;
         mPacketLength[mMetaHead] = size;
+        mPacketSpilled[mMetaHead] = false;
+        if ((flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+            mSyncIndex[mSyncHead] = mMetaHead;
+            mSyncHead = (mSyncHead + 1) % metaLen;
+        }
 
         // Copy the data in.  Take care if it gets split in half.
+        mDataBuffer.clear();
+        mDataBuffer.position(packetStart);
         if (packetStart + size < dataLen) {
             // one chunk
-            buf.get(mDataBuffer, packetStart, size);
+            mDataBuffer.put(buf);
         } else {
             // two chunks
             int firstSize = dataLen - packetStart;
             if (VERBOSE) { Log.v(TAG, "split, firstsize=" + firstSize + " size=" + size); }
-            buf.get(mDataBuffer, packetStart, firstSize);
-            buf.get(mDataBuffer, 0, size - firstSize);
+            int bufLimit = buf.limit();
+            buf.limit(buf.position() + firstSize);
+            mDataBuffer.put(buf);
+            buf.limit(bufLimit);
+            mDataBuffer.position(0);
+            mDataBuffer.put(buf);
         }
 
         mMetaHead = (mMetaHead + 1) % metaLen;
@@ -153,6 +298,7 @@ public class CircularEncoderBuffer {
             mPacketStart[mMetaHead] = -100000;
             mPacketLength[mMetaHead] = Integer.MAX_VALUE;
         }
+        return true;
     }
 
     /**
@@ -160,28 +306,52 @@ public class CircularEncoderBuffer {
      * <p>
      * When sending output to a MediaMuxer, start here.
      */
-    public int getFirstIndex() {
+    public synchronized int getFirstIndex() {
+        if (mSyncHead == mSyncTail) {
+            Log.w(TAG, "HEY: could not find sync frame in buffer");
+            return -1;
+        }
+        return mSyncIndex[mSyncTail];
+    }
+
+    /**
+     * Returns the index of the newest sync frame with a presentation time at or before
+     * ptsUsec.  If all sync frames are later than that, returns the oldest one.  Valid until
+     * the next add().
+     * <p>
+     * This is a binary search of the sync frame index, so it's cheap even for long buffers.
+     *
+     * @return The packet index, or -1 if there are no sync frames in the buffer.
+     */
+    public synchronized int getSyncIndexForPts(long ptsUsec) {
         final int metaLen = mPacketStart.length;
+        int count = (mSyncHead + metaLen - mSyncTail) % metaLen;
+        if (count == 0) {
+            return -1;
+        }
 
-        int index = mMetaTail;
-        while (index != mMetaHead) {
-            if ((mPacketFlags[index] & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
-                break;
+        // Find the first sync frame with a PTS after the target, then back up one.
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int index = mSyncIndex[(mSyncTail + mid) % metaLen];
+            if (mPacketPtsUsec[index] <= ptsUsec) {
+                low = mid + 1;
+            } else {
+                high = mid;
             }
-            index = (index + 1) % metaLen;
         }
-
-        if (index == mMetaHead) {
-            Log.w(TAG, "HEY: could not find sync frame in buffer");
-            index = -1;
+        if (low > 0) {
+            low--;
         }
-        return index;
+        return mSyncIndex[(mSyncTail + low) % metaLen];
     }
 
     /**
      * Returns the index of the next packet, or -1 if we've reached the end.
      */
-    public int getNextIndex(int index) {
+    public synchronized int getNextIndex(int index) {
         final int metaLen = mPacketStart.length;
         int next = (index + 1) % metaLen;
         if (next == mMetaHead) {
@@ -191,14 +361,16 @@ public class CircularEncoderBuffer {
     }
 
     /**
-     * Returns a reference to a "direct" ByteBuffer with the data, and fills in the
-     * BufferInfo.
+     * Returns a reference to a ByteBuffer with the data, and fills in the BufferInfo.
      * <p>
      * The caller must not modify the contents of the returned ByteBuffer.  Altering
-     * the position and limit is allowed.
+     * the position and limit is allowed.  If the packet wrapped around the end of the
+     * circular buffer, the data is copied into a scratch buffer that will be reused by the
+     * next call, so the result is only valid until then.
      */
-    public ByteBuffer getChunk(int index, MediaCodec.BufferInfo info) {
-        final int dataLen = mDataBuffer.length;
+    public synchronized ByteBuffer getChunk(int index, MediaCodec.BufferInfo info) {
+        ByteBuffer data = mPacketSpilled[index] ? mSpillBuffer : mDataBuffer;
+        final int dataLen = data.capacity();
         int packetStart = mPacketStart[index];
         int length = mPacketLength[index];
 
@@ -209,30 +381,138 @@ public class CircularEncoderBuffer {
 
         if (packetStart + length <= dataLen) {
             // one chunk; return full buffer to avoid copying data
-            return mDataBufferWrapper;
+            return data;
         } else {
             // two chunks
-            ByteBuffer tempBuf = ByteBuffer.allocateDirect(length);
-            int firstSize = dataLen - packetStart;
-            tempBuf.put(mDataBuffer, mPacketStart[index], firstSize);
-            tempBuf.put(mDataBuffer, 0, length - firstSize);
+            mScratchBuffer = copyWrapped(data, packetStart, length, mScratchBuffer);
             info.offset = 0;
-            return tempBuf;
+            return mScratchBuffer;
         }
     }
 
+    /**
+     * Takes a snapshot of the buffer contents, from the oldest sync frame to the most
+     * recently added packet.  Packets added after this call are not part of the snapshot.
+     * <p>
+     * The caller must release() the snapshot when done with it.
+     *
+     * @return The snapshot, or null if the buffer doesn't hold a sync frame.
+     */
+    public synchronized Snapshot createSnapshot() {
+        return createSnapshot(Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Takes a snapshot of the most recent spanUsec of video.  The snapshot starts at the
+     * sync frame at or before the start of the span, so it may be a bit longer than asked.
+     *
+     * @return The snapshot, or null if the buffer doesn't hold a sync frame.
+     */
+    public synchronized Snapshot createRecentSnapshot(long spanUsec) {
+        if (mMetaHead == mMetaTail) {
+            return null;
+        }
+        final int metaLen = mPacketStart.length;
+        int beforeHead = (mMetaHead + metaLen - 1) % metaLen;
+        return createSnapshot(mPacketPtsUsec[beforeHead] - spanUsec, Long.MAX_VALUE);
+    }
+
+    /**
+     * Takes a snapshot of the packets with presentation times in the specified range.  The
+     * snapshot starts at the sync frame at or before startPtsUsec, and ends with the last
+     * packet at or before endPtsUsec.
+     * <p>
+     * The end of the range is found with a binary search of the packet list, which assumes
+     * that timestamps increase in decode order.  That's true for the encoders we configure,
+     * which don't generate B-frames.
+     *
+     * @return The snapshot, or null if the range doesn't include any sync frames.
+     */
+    public synchronized Snapshot createSnapshot(long startPtsUsec, long endPtsUsec) {
+        int firstIndex = getSyncIndexForPts(startPtsUsec);
+        if (firstIndex < 0 || mPacketPtsUsec[firstIndex] > endPtsUsec) {
+            return null;
+        }
+
+        int endIndex = mMetaHead;
+        if (endPtsUsec != Long.MAX_VALUE) {
+            final int metaLen = mPacketStart.length;
+            int low = (firstIndex + metaLen - mMetaTail) % metaLen;
+            int high = (mMetaHead + metaLen - mMetaTail) % metaLen;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (mPacketPtsUsec[(mMetaTail + mid) % metaLen] <= endPtsUsec) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            endIndex = (mMetaTail + low) % metaLen;
+        }
+        return new Snapshot(firstIndex, endIndex);
+    }
+
+    /**
+     * Copies a packet that wraps around the end of the circular buffer into a contiguous
+     * scratch buffer.  If the scratch buffer is null or too small, a new one is allocated.
+     *
+     * @return The scratch buffer, with position zero and limit set to the packet length.
+     */
+    private static ByteBuffer copyWrapped(ByteBuffer data, int packetStart, int length,
+            ByteBuffer scratch) {
+        if (scratch == null || scratch.capacity() < length) {
+            if (VERBOSE) Log.d(TAG, "allocating scratch buffer, length=" + length);
+            scratch = ByteBuffer.allocateDirect(length);
+        }
+        int firstSize = data.capacity() - packetStart;
+        scratch.clear();
+        data.clear();
+        data.position(packetStart);
+        scratch.put(data);
+        data.position(0);
+        data.limit(length - firstSize);
+        scratch.put(data);
+        scratch.flip();
+        data.clear();
+        return scratch;
+    }
+
+    /**
+     * Copies data from one circular buffer to another.  Either side may wrap.
+     */
+    private static void copyRing(ByteBuffer src, int srcStart, ByteBuffer dst, int dstStart,
+            int length) {
+        while (length > 0) {
+            int chunk = Math.min(length,
+                    Math.min(src.capacity() - srcStart, dst.capacity() - dstStart));
+            src.clear();
+            src.position(srcStart);
+            src.limit(srcStart + chunk);
+            dst.clear();
+            dst.position(dstStart);
+            dst.put(src);
+
+            length -= chunk;
+            srcStart = (srcStart + chunk) % src.capacity();
+            dstStart = (dstStart + chunk) % dst.capacity();
+        }
+        src.clear();
+        dst.clear();
+    }
+
     /**
      * Computes the data buffer offset for the next place to store data.
      * <p>
-     * Equal to the start of the previous packet's data plus the previous packet's length.
+     * Equal to the start of the previous packet's data plus the previous packet's length,
+     * plus one.  The gap byte means head==tail always indicates an empty buffer.
      */
     private int getHeadStart() {
-        if (mMetaHead == mMetaTail) {
-            // list is empty
+        if (mMetaHead == mRamTail) {
+            // nothing in memory
             return 0;
         }
 
-        final int dataLen = mDataBuffer.length;
+        final int dataLen = mDataBuffer.capacity();
         final int metaLen = mPacketStart.length;
 
         int beforeHead = (mMetaHead + metaLen - 1) % metaLen;
@@ -240,62 +520,270 @@ public class CircularEncoderBuffer {
     }
 
     /**
-     * Determines whether this is enough space to fit "size" bytes in the data buffer, and
-     * one more packet in the meta-data buffer.
+     * Computes the number of bytes we can store in the data buffer without removing
+     * anything.  A packet needs its length plus the gap byte.
+     */
+    private int getFreeSpace() {
+        final int dataLen = mDataBuffer.capacity();
+        if (mMetaHead == mRamTail) {
+            return dataLen;
+        }
+
+        // Need the byte offset of the start of the "tail" packet, and the byte offset where
+        // "head" will store its data.
+        int headStart = getHeadStart();
+        int tailStart = mPacketStart[mRamTail];
+        return (tailStart + dataLen - headStart) % dataLen;
+    }
+
+    /**
+     * Computes the spill buffer offset for the next packet to be spilled.
+     */
+    private int getSpillHeadStart() {
+        if (mRamTail == mMetaTail) {
+            // nothing spilled
+            return 0;
+        }
+
+        final int spillLen = mSpillBuffer.capacity();
+        final int metaLen = mPacketStart.length;
+
+        int beforeRamTail = (mRamTail + metaLen - 1) % metaLen;
+        return (mPacketStart[beforeRamTail] + mPacketLength[beforeRamTail] + 1) % spillLen;
+    }
+
+    /**
+     * Computes the number of bytes we can store in the spill buffer without removing
+     * anything.
+     */
+    private int getSpillFreeSpace() {
+        final int spillLen = mSpillBuffer.capacity();
+        if (mRamTail == mMetaTail) {
+            return spillLen;
+        }
+        return (mPacketStart[mMetaTail] + spillLen - getSpillHeadStart()) % spillLen;
+    }
+
+    /**
+     * Ensures there's enough space to fit "size" bytes in the data buffer, and one more
+     * packet in the meta-data buffer.  Older packets are moved to the spill file if we have
+     * one, and discarded if we don't (or if the spill file is also full).
      *
-     * @return True if there is enough space to add without removing anything.
+     * @return False if we couldn't make room because the packets were pinned.
      */
-    private boolean canAdd(int size) {
-        final int dataLen = mDataBuffer.length;
+    private boolean makeRoom(int size) {
+        final int dataLen = mDataBuffer.capacity();
         final int metaLen = mPacketStart.length;
 
-        if (size > dataLen) {
+        if (size >= dataLen) {
             throw new RuntimeException("Enormous packet: " + size + " vs. buffer " +
                     dataLen);
         }
-        if (mMetaHead == mMetaTail) {
-            // empty list
-            return true;
-        }
 
         // Make sure we can advance head without stepping on the tail.
-        int nextHead = (mMetaHead + 1) % metaLen;
-        if (nextHead == mMetaTail) {
+        if ((mMetaHead + 1) % metaLen == mMetaTail) {
             if (VERBOSE) {
                 Log.v(TAG, "ran out of metadata (head=" + mMetaHead + " tail=" + mMetaTail +")");
             }
-            return false;
+            if (!removeTail()) {
+                return false;
+            }
         }
 
-        // Need the byte offset of the start of the "tail" packet, and the byte offset where
-        // "head" will store its data.
-        int headStart = getHeadStart();
-        int tailStart = mPacketStart[mMetaTail];
-        int freeSpace = (tailStart + dataLen - headStart) % dataLen;
-        if (size > freeSpace) {
+        while (size >= getFreeSpace()) {
             if (VERBOSE) {
-                Log.v(TAG, "ran out of data (tailStart=" + tailStart + " headStart=" + headStart +
-                    " req=" + size + " free=" + freeSpace + ")");
+                Log.v(TAG, "ran out of data (req=" + size + " free=" + getFreeSpace() + ")");
+            }
+            if (mSpillBuffer != null) {
+                if (!spillRamTail()) {
+                    return false;
+                }
+            } else {
+                if (!removeTail()) {
+                    return false;
+                }
             }
-            return false;
         }
 
         if (VERBOSE) {
-            Log.v(TAG, "OK: size=" + size + " free=" + freeSpace + " metaFree=" +
+            Log.v(TAG, "OK: size=" + size + " free=" + getFreeSpace() + " metaFree=" +
                     ((mMetaTail + metaLen - mMetaHead) % metaLen - 1));
         }
+        return true;
+    }
+
+    /**
+     * Moves the oldest packet in memory to the spill file, discarding the oldest spilled
+     * packets if necessary.
+     *
+     * @return False if the packet, or a spilled packet we'd need to discard, is pinned.
+     */
+    private boolean spillRamTail() {
+        final int metaLen = mPacketStart.length;
+        int index = mRamTail;
 
+        // If the packet is pinned, a snapshot may be reading it from memory right now.
+        if (mPacketPinCount[index] != 0) {
+            return false;
+        }
+        int length = mPacketLength[index];
+        while (length >= getSpillFreeSpace()) {
+            // The spill buffer is at least as big as the data buffer, so emptying it will
+            // always make enough room.
+            if (!removeTail()) {
+                return false;
+            }
+        }
+
+        int spillStart = getSpillHeadStart();
+        copyRing(mDataBuffer, mPacketStart[index], mSpillBuffer, spillStart, length);
+        mPacketStart[index] = spillStart;
+        mPacketSpilled[index] = true;
+        mRamTail = (index + 1) % metaLen;
         return true;
     }
 
     /**
      * Removes the tail packet.
+     *
+     * @return False if the tail packet is pinned by a snapshot and can't be removed.
      */
-    private void removeTail() {
+    private boolean removeTail() {
         if (mMetaHead == mMetaTail) {
             throw new RuntimeException("Can't removeTail() in empty buffer");
         }
+        if (mPacketPinCount[mMetaTail] != 0) {
+            return false;
+        }
         final int metaLen = mPacketStart.length;
+        if (mSyncHead != mSyncTail && mSyncIndex[mSyncTail] == mMetaTail) {
+            mSyncTail = (mSyncTail + 1) % metaLen;
+        }
+        if (mRamTail == mMetaTail) {
+            mRamTail = (mRamTail + 1) % metaLen;
+        }
         mMetaTail = (mMetaTail + 1) % metaLen;
+        return true;
+    }
+
+    /**
+     * A frozen range of packets, starting with a sync frame.  The range is fixed when the
+     * snapshot is taken; packets added later are not included.
+     * <p>
+     * Intended to be read from a single thread other than the one adding packets.  The
+     * snapshot has its own view of the data and its own scratch buffer, so reading it
+     * doesn't interfere with the encoder thread or with other snapshots.
+     */
+    public class Snapshot {
+        private final ByteBuffer mDataView;
+        private final ByteBuffer mSpillView;
+        private ByteBuffer mScratch;
+        private final int mEndIndex;        // one past the last packet
+        private final int mPacketCount;
+        private final long mStartPtsUsec;
+        private final long mEndPtsUsec;
+        private int mIndex;                 // packet currently pinned, or -1 when done
+        private boolean mIndexReturned;     // has the pinned packet been handed out yet?
+
+        private Snapshot(int firstIndex, int endIndex) {
+            final int metaLen = mPacketStart.length;
+            mDataView = mDataBuffer.duplicate();
+            mSpillView = (mSpillBuffer != null) ? mSpillBuffer.duplicate() : null;
+            mEndIndex = endIndex;
+            mPacketCount = (endIndex + metaLen - firstIndex) % metaLen;
+            mStartPtsUsec = mPacketPtsUsec[firstIndex];
+            mEndPtsUsec = mPacketPtsUsec[(endIndex + metaLen - 1) % metaLen];
+            mIndex = firstIndex;
+            mPacketPinCount[firstIndex]++;
+            mScratch = mSpareSnapshotScratch;
+            mSpareSnapshotScratch = null;
+        }
+
+        /**
+         * Returns the number of packets in the snapshot.
+         */
+        public int getPacketCount() {
+            return mPacketCount;
+        }
+
+        /**
+         * Returns the presentation time of the first packet in the snapshot.
+         */
+        public long getStartPtsUsec() {
+            return mStartPtsUsec;
+        }
+
+        /**
+         * Returns the presentation time of the last packet in the snapshot.
+         */
+        public long getEndPtsUsec() {
+            return mEndPtsUsec;
+        }
+
+        /**
+         * Returns the data for the next packet in the snapshot, and fills in the BufferInfo.
+         * <p>
+         * The data remains valid until the next call.  The caller must not modify the
+         * contents of the returned ByteBuffer, but may alter the position and limit.
+         *
+         * @return The data, or null if all packets have been read.
+         */
+        public ByteBuffer getNextChunk(MediaCodec.BufferInfo info) {
+            int packetStart, length;
+            ByteBuffer data;
+            synchronized (CircularEncoderBuffer.this) {
+                if (mIndex >= 0 && mIndexReturned) {
+                    // Move the pin forward.  Once it's gone, the encoder thread is free to
+                    // overwrite the previous packet.
+                    mPacketPinCount[mIndex]--;
+                    int next = (mIndex + 1) % mPacketStart.length;
+                    if (next == mEndIndex) {
+                        mIndex = -1;
+                    } else {
+                        mIndex = next;
+                        mPacketPinCount[next]++;
+                    }
+                }
+                if (mIndex < 0) {
+                    return null;
+                }
+                mIndexReturned = true;
+
+                data = mPacketSpilled[mIndex] ? mSpillView : mDataView;
+                packetStart = mPacketStart[mIndex];
+                length = mPacketLength[mIndex];
+                info.flags = mPacketFlags[mIndex];
+                info.presentationTimeUs = mPacketPtsUsec[mIndex];
+                info.size = length;
+            }
+
+            // The packet is pinned, so we can get at the data without holding the lock.
+            if (packetStart + length <= data.capacity()) {
+                info.offset = packetStart;
+                return data;
+            } else {
+                mScratch = copyWrapped(data, packetStart, length, mScratch);
+                info.offset = 0;
+                return mScratch;
+            }
+        }
+
+        /**
+         * Releases the pin on the buffer.  Call when done with the snapshot, whether or not
+         * all packets were read.  The snapshot's scratch buffer is kept for the next one.
+         */
+        public void release() {
+            synchronized (CircularEncoderBuffer.this) {
+                if (mIndex >= 0) {
+                    mPacketPinCount[mIndex]--;
+                    mIndex = -1;
+                }
+                if (mScratch != null && (mSpareSnapshotScratch == null ||
+                        mSpareSnapshotScratch.capacity() < mScratch.capacity())) {
+                    mSpareSnapshotScratch = mScratch;
+                }
+                mScratch = null;
+            }
+        }
     }
 }
@@ -68,6 +68,9 @@ public class CodecOpenActivity extends Activity {
         format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, IFRAME_INTERVAL);
         Log.d(TAG, "format: " + format);
 
+        // Don't count decoders we're keeping around for video playback.
+        DecoderPool.getInstance().trim();
+
         MediaCodec[] codecs = new MediaCodec[MAX_OPEN];
         int i;
         for (i = 0; i < MAX_OPEN; i++) {
@@ -90,6 +90,7 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
         public static final int MSG_FRAME_AVAILABLE = 1;
         public static final int MSG_FILE_SAVE_COMPLETE = 2;
         public static final int MSG_BUFFER_STATUS = 3;
+        public static final int MSG_FILE_SAVE_PROGRESS = 4;
 
         private WeakReference<ContinuousCaptureActivity> mWeakActivity;
 
@@ -97,10 +98,17 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
             mWeakActivity = new WeakReference<ContinuousCaptureActivity>(activity);
         }
 
-        // CircularEncoder.Callback, called on encoder thread
+        // CircularEncoder.Callback, called on save thread
+        @Override
+        public void fileSaveProgress(File outputFile, int packetsWritten, int packetCount) {
+            sendMessage(obtainMessage(MSG_FILE_SAVE_PROGRESS, packetsWritten, packetCount,
+                    outputFile));
+        }
+
+        // CircularEncoder.Callback, called on encoder or save thread
         @Override
-        public void fileSaveComplete(int status) {
-            sendMessage(obtainMessage(MSG_FILE_SAVE_COMPLETE, status, 0, null));
+        public void fileSaveComplete(File outputFile, int status) {
+            sendMessage(obtainMessage(MSG_FILE_SAVE_COMPLETE, status, 0, outputFile));
         }
 
         // CircularEncoder.Callback, called on encoder thread
@@ -141,6 +149,10 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
                     activity.drawFrame();
                     break;
                 }
+                case MSG_FILE_SAVE_PROGRESS: {
+                    activity.updateFileSaveProgress(msg.arg1, msg.arg2);
+                    break;
+                }
                 case MSG_FILE_SAVE_COMPLETE: {
                     activity.fileSaveComplete(msg.arg1);
                     break;
@@ -314,6 +326,18 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
         mCircEncoder.saveVideo(mOutputFile);
     }
 
+    /**
+     * Updates the "saving" text with the progress of the file save.
+     */
+    private void updateFileSaveProgress(int packetsWritten, int packetCount) {
+        if (!mFileSaveInProgress) {
+            return;
+        }
+        TextView tv = (TextView) findViewById(R.id.recording_text);
+        String str = getString(R.string.nowSavingProgress, packetsWritten * 100 / packetCount);
+        tv.setText(str);
+    }
+
     /**
      * The file save has completed.  We can resume recording.
      */
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+/**
+ * Keeps video decoders around after use, so the next stream doesn't pay for creating one.
+ * <p>
+ * Creating a MediaCodec allocates a codec component in mediaserver, which can take tens of
+ * milliseconds.  A stopped codec goes back to the uninitialized state and can be
+ * configured again, for a different Surface if need be, which is much cheaper.  Decoders are
+ * pooled by MIME type and video size, since some devices pick a different component
+ * depending on the resolution.
+ * <p>
+ * Codec instances are a limited resource (CodecOpenActivity shows what happens when you
+ * run out), and an idle decoder in our pool is one that nobody else can have.  So we cap the
+ * total number of instances we'll create, and the number we'll keep idle.  When we hit
+ * either limit, the least-recently-used idle decoder is released.  If creating a decoder
+ * fails, we release all idle decoders and try once more.
+ * <p>
+ * Thread-safe.
+ */
+public class DecoderPool {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    private static final int DEFAULT_MAX_INSTANCES = 8;
+    private static final int DEFAULT_MAX_IDLE = 4;
+
+    private static final Object sLock = new Object();
+    private static DecoderPool sInstance = null;
+
+    private final int mMaxInstances;
+    private final int mMaxIdle;
+
+    // Idle decoders, least recently used first.
+    private final ArrayList<Entry> mIdle = new ArrayList<Entry>();
+    // Decoders handed out by acquire(), mapped to their pool key.
+    private final IdentityHashMap<MediaCodec, String> mInUse =
+            new IdentityHashMap<MediaCodec, String>();
+
+    private int mCreateCount;
+    private int mReuseCount;
+    private int mEvictCount;
+
+    private static class Entry {
+        final String key;
+        final MediaCodec decoder;
+
+        Entry(String key, MediaCodec decoder) {
+            this.key = key;
+            this.decoder = decoder;
+        }
+    }
+
+    /**
+     * Returns the shared pool.  It's sized for a couple of players; something that runs many
+     * streams at once should create a pool of its own, with room for all of them.
+     */
+    public static DecoderPool getInstance() {
+        synchronized (sLock) {
+            if (sInstance == null) {
+                sInstance = new DecoderPool(DEFAULT_MAX_INSTANCES, DEFAULT_MAX_IDLE);
+            }
+            return sInstance;
+        }
+    }
+
+    /**
+     * Creates a pool.
+     *
+     * @param maxInstances Maximum number of decoders, idle and in use, that we'll create.
+     * @param maxIdle Maximum number of idle decoders we'll keep.
+     */
+    public DecoderPool(int maxInstances, int maxIdle) {
+        mMaxInstances = maxInstances;
+        mMaxIdle = maxIdle;
+    }
+
+    /**
+     * Returns an unconfigured decoder for the format, creating one if there isn't one in the
+     * pool.  The caller configures and starts it, and hands it back with recycle().
+     *
+     * @throws IOException if the decoder can't be created.
+     */
+    public synchronized MediaCodec acquire(MediaFormat format) throws IOException {
+        String key = getKey(format);
+        for (int i = mIdle.size() - 1; i >= 0; i--) {
+            Entry entry = mIdle.get(i);
+            if (entry.key.equals(key)) {
+                mIdle.remove(i);
+                mInUse.put(entry.decoder, key);
+                mReuseCount++;
+                if (VERBOSE) Log.d(TAG, "DecoderPool: reusing decoder for " + key);
+                return entry.decoder;
+            }
+        }
+
+        // Make room for a new one.
+        while (mInUse.size() + mIdle.size() >= mMaxInstances && !mIdle.isEmpty()) {
+            evictOldest();
+        }
+        if (mInUse.size() >= mMaxInstances) {
+            throw new RuntimeException("DecoderPool: all " + mMaxInstances +
+                    " decoders are in use");
+        }
+
+        MediaCodec decoder = null;
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        if (!mIdle.isEmpty()) {
+            try {
+                decoder = MediaCodec.createDecoderByType(mime);
+            } catch (Exception ex) {
+                // Probably out of codec instances.  Give back what we're holding and retry.
+                Log.w(TAG, "DecoderPool: decoder creation failed, releasing idle decoders", ex);
+                trim();
+            }
+        }
+        if (decoder == null) {
+            decoder = MediaCodec.createDecoderByType(mime);
+        }
+        mInUse.put(decoder, key);
+        mCreateCount++;
+        if (VERBOSE) Log.d(TAG, "DecoderPool: created decoder for " + key);
+        return decoder;
+    }
+
+    /**
+     * Returns a decoder obtained from acquire() to the pool.  If it's running, it's stopped.
+     */
+    public synchronized void recycle(MediaCodec decoder) {
+        String key = mInUse.remove(decoder);
+        if (key == null) {
+            throw new IllegalArgumentException("decoder not from this pool");
+        }
+        try {
+            decoder.stop();
+        } catch (IllegalStateException ise) {
+            // Never configured, or in an error state.  If the latter, we don't want it.
+            Log.w(TAG, "DecoderPool: unable to stop decoder, releasing it", ise);
+            decoder.release();
+            return;
+        }
+        mIdle.add(new Entry(key, decoder));
+        while (mIdle.size() > mMaxIdle) {
+            evictOldest();
+        }
+    }
+
+    /**
+     * Releases all idle decoders.  Decoders in use are not affected.
+     */
+    public synchronized void trim() {
+        while (!mIdle.isEmpty()) {
+            evictOldest();
+        }
+    }
+
+    /**
+     * Returns the number of idle decoders in the pool.
+     */
+    public synchronized int getIdleCount() {
+        return mIdle.size();
+    }
+
+    /**
+     * Returns the number of decoders handed out and not yet returned.
+     */
+    public synchronized int getInUseCount() {
+        return mInUse.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DecoderPool[idle=" + mIdle.size() + " inUse=" + mInUse.size() +
+                " created=" + mCreateCount + " reused=" + mReuseCount +
+                " evicted=" + mEvictCount + "]";
+    }
+
+    private void evictOldest() {
+        Entry entry = mIdle.remove(0);
+        entry.decoder.release();
+        mEvictCount++;
+        if (VERBOSE) Log.d(TAG, "DecoderPool: evicted decoder for " + entry.key);
+    }
+
+    private static String getKey(MediaFormat format) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        if (!format.containsKey(MediaFormat.KEY_WIDTH)) {
+            return mime;
+        }
+        return mime + " " + format.getInteger(MediaFormat.KEY_WIDTH) + "x" +
+                format.getInteger(MediaFormat.KEY_HEIGHT);
+    }
+}
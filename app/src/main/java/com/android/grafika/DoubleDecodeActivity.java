@@ -22,9 +22,9 @@ import android.graphics.SurfaceTexture;
 import android.util.Log;
 import android.view.Surface;
 import android.view.TextureView;
+import android.view.View;
 
 import java.io.File;
-import java.io.IOException;
 
 /**
  * Decodes two video streams simultaneously to two TextureViews.
@@ -34,6 +34,10 @@ import java.io.IOException;
  * the Activity is pausing because it's "finished" (indicating that we're leaving the Activity
  * for a nontrivial amount of time), the video decoders are shut down.
  * <p>
+ * The streams run on a MultiStreamDecoder, which can handle many more than two.  Tapping a
+ * video gives it focus: the other one drops to keyframes only.  Tap it again to go back to
+ * full rate on both.
+ * <p>
  * TODO: consider shutting down when the screen is turned off, to preserve battery.
  */
 public class DoubleDecodeActivity extends Activity {
@@ -44,6 +48,9 @@ public class DoubleDecodeActivity extends Activity {
     // Must be static storage so they'll survive Activity restart.
     private static boolean sVideoRunning = false;
     private static VideoBlob[] sBlob = new VideoBlob[VIDEO_COUNT];
+    private static MultiStreamDecoder sDecoder;
+    private static DecoderPool sDecoderPool;
+    private static int sFocused = -1;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -51,6 +58,12 @@ public class DoubleDecodeActivity extends Activity {
         setContentView(R.layout.activity_double_decode);
 
         if (!sVideoRunning) {
+            int workers = Math.min(VIDEO_COUNT, Runtime.getRuntime().availableProcessors());
+            sDecoder = new MultiStreamDecoder(workers);
+            // One decoder per stream.  The shared pool's cap is meant for a couple of
+            // players, and a wall of streams would run into it.
+            sDecoderPool = new DecoderPool(VIDEO_COUNT, VIDEO_COUNT);
+            sFocused = -1;
             sBlob[0] = new VideoBlob((TextureView) findViewById(R.id.double1_texture_view),
                     ContentManager.MOVIE_SLIDERS, 0);
             sBlob[1] = new VideoBlob((TextureView) findViewById(R.id.double2_texture_view),
@@ -60,6 +73,27 @@ public class DoubleDecodeActivity extends Activity {
             sBlob[0].recreateView((TextureView) findViewById(R.id.double1_texture_view));
             sBlob[1].recreateView((TextureView) findViewById(R.id.double2_texture_view));
         }
+        for (int i = 0; i < VIDEO_COUNT; i++) {
+            final int index = i;
+            sBlob[i].mTextureView.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View v) {
+                    toggleFocus(index);
+                }
+            });
+        }
+    }
+
+    /**
+     * Gives the video focus, or takes it away if it already has it.
+     */
+    private void toggleFocus(int index) {
+        sFocused = (sFocused == index) ? -1 : index;
+        Log.d(TAG, "focused video: " + sFocused);
+        for (int i = 0; i < VIDEO_COUNT; i++) {
+            sBlob[i].setPriority(sFocused < 0 || sFocused == i ?
+                    MultiStreamDecoder.PRIORITY_FOCUSED : MultiStreamDecoder.PRIORITY_BACKGROUND);
+        }
     }
 
     @Override
@@ -74,6 +108,17 @@ public class DoubleDecodeActivity extends Activity {
                 sBlob[i] = null;
             }
         }
+        if (finishing) {
+            MultiStreamDecoder.Stats stats = new MultiStreamDecoder.Stats();
+            sDecoder.getStats(stats, false);
+            Log.d(TAG, "decode stats: " + stats);
+            // Waits for the streams to be released, so the Surfaces are gone before the
+            // TextureViews are.
+            sDecoder.shutdown();
+            sDecoder = null;
+            sDecoderPool.trim();
+            sDecoderPool = null;
+        }
         sVideoRunning = !finishing;
         Log.d(TAG, "onPause complete");
     }
@@ -99,8 +144,8 @@ public class DoubleDecodeActivity extends Activity {
         private int mMovieTag;
 
         private SurfaceTexture mSavedSurfaceTexture;
-        private PlayMovieThread mPlayThread;
-        private SpeedControlCallback mCallback;
+        private MediaCodecDecodeStream mStream;
+        private int mPriority = MultiStreamDecoder.PRIORITY_FOCUSED;
 
         /**
          * Constructs the VideoBlob.
@@ -114,8 +159,6 @@ public class DoubleDecodeActivity extends Activity {
             Log.d(LTAG, "VideoBlob: tag=" + movieTag + " view=" + view);
             mMovieTag = movieTag;
 
-            mCallback = new SpeedControlCallback();
-
             recreateView(view);
         }
 
@@ -138,9 +181,9 @@ public class DoubleDecodeActivity extends Activity {
          */
         public void stopPlayback() {
             Log.d(LTAG, "stopPlayback");
-            mPlayThread.requestStop();
-            // TODO: wait for the playback thread to stop so we don't kill the Surface
-            //       before the video stops
+            if (mStream != null) {
+                sDecoder.removeStream(mStream);
+            }
 
             // We don't need this any more, so null it out.  This also serves as a signal
             // to let onSurfaceTextureDestroyed() know that it can tell TextureView to
@@ -148,6 +191,16 @@ public class DoubleDecodeActivity extends Activity {
             mSavedSurfaceTexture = null;
         }
 
+        /**
+         * Sets the stream's decode priority.
+         */
+        public void setPriority(int priority) {
+            mPriority = priority;
+            if (mStream != null) {
+                sDecoder.setPriority(mStream, priority);
+            }
+        }
+
         @Override
         public void onSurfaceTextureAvailable(SurfaceTexture st, int width, int height) {
             Log.d(LTAG, "onSurfaceTextureAvailable size=" + width + "x" + height + ", st=" + st);
@@ -160,7 +213,8 @@ public class DoubleDecodeActivity extends Activity {
                 mSavedSurfaceTexture = st;
 
                 File sliders = ContentManager.getInstance().getPath(mMovieTag);
-                mPlayThread = new PlayMovieThread(sliders, new Surface(st), mCallback);
+                mStream = new MediaCodecDecodeStream(sliders, new Surface(st), sDecoderPool);
+                sDecoder.addStream(mStream, mPriority);
             } else {
                 // Can't do it here in Android <= 4.4.  The TextureView doesn't add a
                 // listener on the new SurfaceTexture, so it never sees any updates.
@@ -191,53 +245,4 @@ public class DoubleDecodeActivity extends Activity {
             //Log.d(TAG, "onSurfaceTextureUpdated st=" + st);
         }
     }
-
-    /**
-     * Thread object that plays a movie from a file to a surface.
-     * <p>
-     * Currently loops until told to stop.
-     */
-    private static class PlayMovieThread extends Thread {
-        private final File mFile;
-        private final Surface mSurface;
-        private final SpeedControlCallback mCallback;
-        private MoviePlayer mMoviePlayer;
-
-        /**
-         * Creates thread and starts execution.
-         * <p>
-         * The object takes ownership of the Surface, and will access it from the new thread.
-         * When playback completes, the Surface will be released.
-         */
-        public PlayMovieThread(File file, Surface surface, SpeedControlCallback callback) {
-            mFile = file;
-            mSurface = surface;
-            mCallback = callback;
-
-            start();
-        }
-
-        /**
-         * Asks MoviePlayer to halt playback.  Returns without waiting for playback to halt.
-         * <p>
-         * Call from UI thread.
-         */
-        public void requestStop() {
-            mMoviePlayer.requestStop();
-        }
-
-        @Override
-        public void run() {
-            try {
-                mMoviePlayer = new MoviePlayer(mFile, mSurface, mCallback);
-                mMoviePlayer.setLoopMode(true);
-                mMoviePlayer.play();
-            } catch (IOException ioe) {
-                Log.e(TAG, "movie playback failed", ioe);
-            } finally {
-                mSurface.release();
-                Log.d(TAG, "PlayMovieThread stopping");
-            }
-        }
-    }
 }
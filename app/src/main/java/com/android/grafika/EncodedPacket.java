@@ -0,0 +1,125 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A chunk of encoder output, copied out of the codec so the codec's buffer can be released
+ * right away.  Also used to pass along a change in output format.
+ * <p>
+ * Packets come from an EncodedPacketPool, and go back to it when recycle() is called.  Each
+ * packet keeps its direct buffer, growing it when a bigger packet comes along, so after the
+ * first few key frames nothing is allocated.
+ * <p>
+ * A packet belongs to one thread at a time.  It's safe to fill it on one thread and hand it
+ * to another through a synchronized queue.
+ */
+public class EncodedPacket {
+    private final EncodedPacketPool mPool;
+    private ByteBuffer mData;
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+    private MediaFormat mFormat;
+
+    EncodedPacket(EncodedPacketPool pool, int initialCapacity) {
+        mPool = pool;
+        mData = ByteBuffer.allocateDirect(initialCapacity);
+    }
+
+    /**
+     * Copies encoded data into the packet.  The data runs from info.offset for info.size
+     * bytes.  The source buffer's position and limit are changed.
+     */
+    public void set(ByteBuffer encodedData, MediaCodec.BufferInfo info) {
+        int size = info.size;
+        if (mData.capacity() < size) {
+            int capacity = Math.max(mData.capacity(), 1024);
+            while (capacity < size) {
+                capacity *= 2;
+            }
+            mData = ByteBuffer.allocateDirect(capacity);
+            mPool.onPacketGrown();
+        }
+        mData.clear();
+        if (size != 0) {
+            encodedData.limit(info.offset + size);
+            encodedData.position(info.offset);
+            mData.put(encodedData);
+        }
+        mData.flip();
+        setInfo(size, info.presentationTimeUs, info.flags);
+        mFormat = null;
+    }
+
+    /**
+     * Turns the packet into a format change notification.
+     */
+    public void setFormat(MediaFormat format) {
+        mData.clear();
+        mData.limit(0);
+        setInfo(0, 0, 0);
+        mFormat = format;
+    }
+
+    /**
+     * Fills in the BufferInfo.  Done field by field rather than with BufferInfo.set(), so
+     * the packet also works in JVM unit tests, where framework methods are stubs.
+     */
+    private void setInfo(int size, long ptsUsec, int flags) {
+        mInfo.offset = 0;
+        mInfo.size = size;
+        mInfo.presentationTimeUs = ptsUsec;
+        mInfo.flags = flags;
+    }
+
+    /**
+     * Returns the packet data, from position zero to the limit.  Anything that moves the
+     * position should reset it before passing the packet along.
+     */
+    public ByteBuffer getData() {
+        return mData;
+    }
+
+    /**
+     * Returns the BufferInfo for the data.  The offset is always zero.
+     */
+    public MediaCodec.BufferInfo getInfo() {
+        return mInfo;
+    }
+
+    /**
+     * Returns the new output format, or null if this is a data packet.
+     */
+    public MediaFormat getFormat() {
+        return mFormat;
+    }
+
+    public boolean isEndOfStream() {
+        return (mInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+    }
+
+    /**
+     * Returns the packet to its pool.  Don't touch it afterward.
+     */
+    public void recycle() {
+        mFormat = null;
+        mPool.recycle(this);
+    }
+}
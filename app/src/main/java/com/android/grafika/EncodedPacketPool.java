@@ -0,0 +1,104 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import java.util.ArrayDeque;
+
+/**
+ * Fixed-size pool of EncodedPackets.
+ * <p>
+ * The packets are all created up front.  When they're all in use, obtain() waits for one to
+ * be recycled, which puts a bound on how much encoded data can pile up between the codec
+ * and whatever is consuming it.
+ */
+public class EncodedPacketPool {
+    private final ArrayDeque<EncodedPacket> mFree;
+    private final int mPacketCount;
+    private boolean mAborted;
+    private int mGrowCount;
+
+    /**
+     * @param packetCount Number of packets in the pool.
+     * @param initialCapacity Starting size of each packet's buffer.  Packets grow as needed,
+     *     so this just saves some reallocation during warm-up.
+     */
+    public EncodedPacketPool(int packetCount, int initialCapacity) {
+        mPacketCount = packetCount;
+        mFree = new ArrayDeque<EncodedPacket>(packetCount);
+        for (int i = 0; i < packetCount; i++) {
+            mFree.add(new EncodedPacket(this, initialCapacity));
+        }
+    }
+
+    /**
+     * Returns a free packet, waiting for one to be recycled if necessary.  Returns null if
+     * the pool has been aborted.
+     */
+    public synchronized EncodedPacket obtain() {
+        while (mFree.isEmpty() && !mAborted) {
+            try {
+                wait();
+            } catch (InterruptedException ie) {
+                // ignore
+            }
+        }
+        return mAborted ? null : mFree.poll();
+    }
+
+    /**
+     * Returns a packet to the pool.  Called by EncodedPacket.recycle().
+     */
+    synchronized void recycle(EncodedPacket packet) {
+        mFree.add(packet);
+        notifyAll();
+    }
+
+    /**
+     * Wakes up anything waiting in obtain(), and makes all future calls return null.  Used
+     * when shutting down.
+     */
+    public synchronized void abort() {
+        mAborted = true;
+        notifyAll();
+    }
+
+    /**
+     * Returns the number of packets that aren't in use.
+     */
+    public synchronized int getFreeCount() {
+        return mFree.size();
+    }
+
+    /**
+     * Returns the number of packets in the pool.
+     */
+    public int getPacketCount() {
+        return mPacketCount;
+    }
+
+    /**
+     * Returns the number of times a packet had to grow its buffer.  Should stop changing
+     * once the encoder has warmed up.
+     */
+    public synchronized int getGrowCount() {
+        return mGrowCount;
+    }
+
+    synchronized void onPacketGrown() {
+        mGrowCount++;
+    }
+}
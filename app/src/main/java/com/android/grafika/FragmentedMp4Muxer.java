@@ -0,0 +1,122 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * MovieMuxer that writes a fragmented MP4 file with FragmentedMp4Writer.
+ * <p>
+ * Samples are on disk once the fragment that holds them has been written, so a crash
+ * loses at most the current group of pictures.  Supports H.264 video and AAC audio.
+ */
+public class FragmentedMp4Muxer implements MovieMuxer {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    public static final Factory FACTORY = new Factory() {
+        @Override
+        public MovieMuxer create(File outputFile) throws IOException {
+            return new FragmentedMp4Muxer(outputFile);
+        }
+    };
+
+    private static final String VIDEO_MIME_TYPE = "video/avc";
+    private static final String AUDIO_MIME_TYPE = "audio/mp4a-latm";
+
+    private FragmentedMp4Writer mWriter;
+    private boolean mStarted;
+
+    public FragmentedMp4Muxer(File outputFile) throws IOException {
+        mWriter = new FragmentedMp4Writer(outputFile);
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        if (VERBOSE) Log.d(TAG, "addTrack " + format);
+        if (VIDEO_MIME_TYPE.equals(mime)) {
+            return mWriter.addVideoTrack(format.getInteger(MediaFormat.KEY_WIDTH),
+                    format.getInteger(MediaFormat.KEY_HEIGHT),
+                    format.getByteBuffer("csd-0"), format.getByteBuffer("csd-1"));
+        } else if (AUDIO_MIME_TYPE.equals(mime)) {
+            return mWriter.addAudioTrack(format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                    format.getInteger(MediaFormat.KEY_CHANNEL_COUNT),
+                    format.getByteBuffer("csd-0"));
+        } else {
+            throw new IllegalArgumentException("unsupported format " + mime);
+        }
+    }
+
+    @Override
+    public void start() {
+        try {
+            mWriter.start();
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+        mStarted = true;
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer byteBuf,
+            MediaCodec.BufferInfo info) {
+        if (!mStarted) {
+            throw new IllegalStateException("muxer hasn't started");
+        }
+        int position = byteBuf.position();
+        int limit = byteBuf.limit();
+        byteBuf.limit(info.offset + info.size);
+        byteBuf.position(info.offset);
+        try {
+            mWriter.writeSample(trackIndex, byteBuf, info.presentationTimeUs,
+                    (info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0);
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        } finally {
+            byteBuf.limit(limit);
+            byteBuf.position(position);
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (!mStarted) {
+            throw new IllegalStateException("muxer hasn't started");
+        }
+        mStarted = false;
+        try {
+            mWriter.stop();
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+    }
+
+    @Override
+    public void release() {
+        if (mWriter != null) {
+            mWriter.release();
+            mWriter = null;
+        }
+    }
+}
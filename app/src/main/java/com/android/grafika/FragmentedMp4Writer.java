@@ -0,0 +1,805 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * Writes fragmented MP4 files.
+ * <p>
+ * MediaMuxer writes the "moov" box, which indexes every sample in the file, when it's
+ * stopped.  If the app dies before then, the file can't be played.  A fragmented MP4 puts
+ * a "moov" with no samples at the front, and then writes the samples in fragments, each of
+ * which is a "moof" box (the index for that fragment) followed by an "mdat" box (the data).
+ * Everything up to the last complete fragment survives a crash, and the file can be read
+ * while it's being written.
+ * <p>
+ * We start a new fragment at each video sync frame, or every couple of seconds if there's
+ * no video.  Sample data is copied into a per-track buffer until the fragment is complete,
+ * and then the fragment header and all of the track buffers go out in a single gathering
+ * write.  The buffers are reused, so there are no allocations in the steady state.
+ * <p>
+ * Handles H.264 video and AAC audio.  Samples must arrive in decode order, and decode order
+ * must match presentation order (i.e. no B-frames), because we don't write composition
+ * time offsets.  H.264 data may be in Annex B format (start codes), as MediaCodec produces
+ * it, or already length-prefixed; the format is fixed per track when the track is added.
+ * <p>
+ * This uses nothing from the Android framework, so it can be exercised on a desktop JVM.
+ * Not thread-safe.
+ */
+public class FragmentedMp4Writer {
+    private static final int MOVIE_TIMESCALE = 1000;
+    private static final int VIDEO_TIMESCALE = 90000;
+    private static final long MAX_FRAGMENT_DURATION_USEC = 2000000;
+    private static final int MAX_FRAGMENT_BYTES = 8 * 1024 * 1024;
+
+    // Sample flags for the "trun" box (ISO/IEC 14496-12 8.8.3.1).
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;         // depends on nothing
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;     // depends on others
+
+    private static final int[] IDENTITY_MATRIX = {
+            0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000
+    };
+
+    private FileOutputStream mOutputStream;
+    private FileChannel mChannel;
+    private ArrayList<Track> mTracks = new ArrayList<Track>();
+    private int mVideoTrack = -1;
+    private boolean mStarted;
+
+    private boolean mHaveStartPts;
+    private long mStartPtsUsec;             // PTS that maps to time zero in the file
+    private long mFragmentStartUsec;
+    private int mFragmentBytes;
+    private int mSequenceNumber;
+
+    private ByteBuffer mHeader;
+    private ByteBuffer[] mGather;
+
+    /**
+     * Per-track state, plus the samples for the fragment in progress.
+     */
+    private static class Track {
+        public int trackId;
+        public boolean isVideo;
+        public int timescale;
+
+        public int width;
+        public int height;
+        public byte[] sps;
+        public byte[] pps;
+        public boolean annexB;          // samples use start codes, not lengths
+
+        public int sampleRate;
+        public int channelCount;
+        public byte[] audioConfig;
+
+        public ByteBuffer payload = ByteBuffer.allocateDirect(64 * 1024);
+        public int sampleCount;
+        public long[] samplePtsUsec = new long[64];
+        public int[] sampleSize = new int[64];
+        public boolean[] sampleSync = new boolean[64];
+        public long lastDuration;
+    }
+
+    /**
+     * Creates the output file.  Add tracks, then call start().
+     */
+    public FragmentedMp4Writer(File outputFile) throws IOException {
+        mOutputStream = new FileOutputStream(outputFile);
+        mChannel = mOutputStream.getChannel();
+    }
+
+    /**
+     * Adds an H.264 video track.  The samples are taken to be in the same format as the SPS:
+     * Annex B if it starts with a start code, as MediaCodec's "csd-0" does, and
+     * length-prefixed if it doesn't.
+     *
+     * @param sps Sequence parameter set (MediaFormat "csd-0").  May include a start code.
+     * @param pps Picture parameter set (MediaFormat "csd-1").  May include a start code.
+     * @return The track index.
+     */
+    public int addVideoTrack(int width, int height, ByteBuffer sps, ByteBuffer pps) {
+        return addVideoTrack(width, height, sps, pps, startsWithStartCode(sps));
+    }
+
+    /**
+     * Adds an H.264 video track.
+     *
+     * @param sps Sequence parameter set.  May include a start code.
+     * @param pps Picture parameter set.  May include a start code.
+     * @param annexB True if samples will be in Annex B format, with start codes.  If false,
+     *     each NAL unit must be preceded by a 4-byte length, and samples are copied as-is.
+     * @return The track index.
+     */
+    public int addVideoTrack(int width, int height, ByteBuffer sps, ByteBuffer pps,
+            boolean annexB) {
+        if (mStarted) {
+            throw new IllegalStateException("already started");
+        }
+        if (mVideoTrack >= 0) {
+            throw new IllegalStateException("only one video track is supported");
+        }
+        Track track = new Track();
+        track.isVideo = true;
+        track.timescale = VIDEO_TIMESCALE;
+        track.width = width;
+        track.height = height;
+        track.sps = stripStartCode(sps);
+        track.pps = stripStartCode(pps);
+        track.annexB = annexB;
+        if (track.sps.length < 4) {
+            throw new IllegalArgumentException("SPS too short");
+        }
+        mVideoTrack = addTrack(track);
+        return mVideoTrack;
+    }
+
+    /**
+     * Adds an AAC audio track.
+     *
+     * @param audioConfig AudioSpecificConfig (MediaFormat "csd-0").
+     * @return The track index.
+     */
+    public int addAudioTrack(int sampleRate, int channelCount, ByteBuffer audioConfig) {
+        if (mStarted) {
+            throw new IllegalStateException("already started");
+        }
+        Track track = new Track();
+        track.isVideo = false;
+        track.timescale = sampleRate;
+        track.sampleRate = sampleRate;
+        track.channelCount = channelCount;
+        track.audioConfig = toArray(audioConfig);
+        return addTrack(track);
+    }
+
+    private int addTrack(Track track) {
+        track.trackId = mTracks.size() + 1;
+        mTracks.add(track);
+        return mTracks.size() - 1;
+    }
+
+    /**
+     * Writes the file header.  Call after all tracks have been added.
+     */
+    public void start() throws IOException {
+        if (mStarted) {
+            throw new IllegalStateException("already started");
+        }
+        if (mTracks.isEmpty()) {
+            throw new IllegalStateException("no tracks");
+        }
+        mStarted = true;
+
+        int size = 1024;
+        for (Track track : mTracks) {
+            size += 1024;
+            if (track.isVideo) {
+                size += track.sps.length + track.pps.length;
+            } else {
+                size += track.audioConfig.length;
+            }
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        writeFtyp(buf);
+        writeMoov(buf);
+        buf.flip();
+        writeFully(buf);
+
+        mGather = new ByteBuffer[mTracks.size() + 1];
+    }
+
+    /**
+     * Adds a sample to the file.  The data is copied, so the buffer may be reused as soon as
+     * this returns.  Its position and limit are not changed.
+     *
+     * @param data Sample data, from position() to limit().
+     * @param ptsUsec Presentation time stamp, in microseconds.
+     * @param isSync True if this is a sync frame.  Always true for AAC.
+     */
+    public void writeSample(int trackIndex, ByteBuffer data, long ptsUsec, boolean isSync)
+            throws IOException {
+        if (!mStarted) {
+            throw new IllegalStateException("not started");
+        }
+        Track track = mTracks.get(trackIndex);
+        int size = data.remaining();
+
+        if (!mHaveStartPts) {
+            mStartPtsUsec = ptsUsec;
+            mHaveStartPts = true;
+        }
+
+        // Decide if this sample starts a new fragment.
+        if (mFragmentBytes > 0) {
+            boolean newFragment;
+            if (mVideoTrack >= 0) {
+                newFragment = trackIndex == mVideoTrack && isSync;
+            } else {
+                newFragment = ptsUsec - mFragmentStartUsec >= MAX_FRAGMENT_DURATION_USEC;
+            }
+            if (newFragment || mFragmentBytes + size > MAX_FRAGMENT_BYTES) {
+                writeFragment(trackIndex, ptsUsec);
+            }
+        }
+        if (mFragmentBytes == 0) {
+            mFragmentStartUsec = ptsUsec;
+        }
+
+        // Make room for the sample.  Converting 3-byte start codes to 4-byte lengths can
+        // make it bigger, but by no more than a third.
+        int maxSize = track.annexB ? size + size / 3 + 4 : size;
+        ensurePayloadCapacity(track, maxSize);
+        if (track.sampleCount == track.sampleSize.length) {
+            growSampleArrays(track);
+        }
+
+        int startPosition = track.payload.position();
+        if (track.annexB) {
+            copyNalUnits(data, track.payload);
+        } else {
+            int position = data.position();
+            track.payload.put(data);
+            data.position(position);
+        }
+        int sampleSize = track.payload.position() - startPosition;
+
+        int index = track.sampleCount++;
+        track.samplePtsUsec[index] = ptsUsec;
+        track.sampleSize[index] = sampleSize;
+        track.sampleSync[index] = isSync;
+        mFragmentBytes += sampleSize;
+    }
+
+    /**
+     * Writes any pending samples and closes the file.
+     */
+    public void stop() throws IOException {
+        if (!mStarted) {
+            throw new IllegalStateException("not started");
+        }
+        if (mFragmentBytes > 0) {
+            writeFragment(-1, 0);
+        }
+        mStarted = false;
+        release();
+    }
+
+    /**
+     * Closes the file without writing pending samples.  Safe to call more than once.
+     */
+    public void release() {
+        if (mOutputStream != null) {
+            try {
+                mOutputStream.close();
+            } catch (IOException ioe) {
+                // nothing useful to do
+            }
+            mOutputStream = null;
+            mChannel = null;
+        }
+    }
+
+    /**
+     * Writes the pending samples as a moof/mdat pair.
+     *
+     * @param nextTrack Track of the sample that caused us to end the fragment, or -1.
+     * @param nextPtsUsec PTS of that sample, which lets us compute the duration of the
+     *     last sample in the fragment for that track.
+     */
+    private void writeFragment(int nextTrack, long nextPtsUsec) throws IOException {
+        // moof + mfhd + mdat header, plus traf + tfhd + tfdt + trun for each track.
+        int headerSize = 8 + 16 + 8;
+        for (Track track : mTracks) {
+            if (track.sampleCount > 0) {
+                headerSize += 8 + 16 + 20 + 20 + 12 * track.sampleCount;
+            }
+        }
+        if (mHeader == null || mHeader.capacity() < headerSize) {
+            mHeader = ByteBuffer.allocate(headerSize * 2);
+        }
+        ByteBuffer buf = mHeader;
+        buf.clear();
+
+        int moofStart = beginBox(buf, "moof");
+        int mfhdStart = beginFullBox(buf, "mfhd", 0, 0);
+        buf.putInt(++mSequenceNumber);
+        endBox(buf, mfhdStart);
+
+        for (int i = 0; i < mTracks.size(); i++) {
+            Track track = mTracks.get(i);
+            if (track.sampleCount == 0) {
+                continue;
+            }
+            int trafStart = beginBox(buf, "traf");
+
+            int tfhdStart = beginFullBox(buf, "tfhd", 0, 0x020000);   // default-base-is-moof
+            buf.putInt(track.trackId);
+            endBox(buf, tfhdStart);
+
+            int tfdtStart = beginFullBox(buf, "tfdt", 1, 0);
+            buf.putLong(toTimescale(track, track.samplePtsUsec[0]));
+            endBox(buf, tfdtStart);
+
+            // data-offset, sample-duration, sample-size, sample-flags present
+            int trunStart = beginFullBox(buf, "trun", 0, 0x000701);
+            buf.putInt(track.sampleCount);
+            buf.putInt(0);      // data offset, filled in below
+            for (int j = 0; j < track.sampleCount; j++) {
+                long duration;
+                if (j + 1 < track.sampleCount) {
+                    duration = toTimescale(track, track.samplePtsUsec[j + 1]) -
+                            toTimescale(track, track.samplePtsUsec[j]);
+                } else if (i == nextTrack) {
+                    duration = toTimescale(track, nextPtsUsec) -
+                            toTimescale(track, track.samplePtsUsec[j]);
+                } else if (track.lastDuration > 0) {
+                    duration = track.lastDuration;
+                } else {
+                    // Nothing to go on.  Guess 30fps video, or one AAC frame.
+                    duration = track.isVideo ? VIDEO_TIMESCALE / 30 : 1024;
+                }
+                if (duration < 0) {
+                    duration = 0;
+                }
+                track.lastDuration = duration;
+                buf.putInt((int) duration);
+                buf.putInt(track.sampleSize[j]);
+                buf.putInt(track.sampleSync[j] ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+            }
+            endBox(buf, trunStart);
+            endBox(buf, trafStart);
+        }
+        endBox(buf, moofStart);
+        int moofSize = buf.position() - moofStart;
+
+        buf.putInt(8 + mFragmentBytes);
+        putFourCC(buf, "mdat");
+
+        // Now that we know how big the moof is, fill in the data offsets, which are
+        // relative to the start of the moof.  Each track's data follows the previous one.
+        int dataOffset = moofSize + 8;
+        int gatherCount = 1;
+        int trunPosition = moofStart + 8 + 16;
+        for (Track track : mTracks) {
+            if (track.sampleCount == 0) {
+                continue;
+            }
+            // traf header, tfhd, tfdt, then trun header (12) and sample count (4)
+            buf.putInt(trunPosition + 8 + 16 + 20 + 12 + 4, dataOffset);
+            trunPosition += 8 + 16 + 20 + 20 + 12 * track.sampleCount;
+
+            track.payload.flip();
+            dataOffset += track.payload.remaining();
+            mGather[gatherCount++] = track.payload;
+        }
+        buf.flip();
+        mGather[0] = buf;
+
+        long remaining = 0;
+        for (int i = 0; i < gatherCount; i++) {
+            remaining += mGather[i].remaining();
+        }
+        while (remaining > 0) {
+            remaining -= mChannel.write(mGather, 0, gatherCount);
+        }
+
+        for (Track track : mTracks) {
+            track.payload.clear();
+            track.sampleCount = 0;
+        }
+        for (int i = 0; i < gatherCount; i++) {
+            mGather[i] = null;
+        }
+        mFragmentBytes = 0;
+    }
+
+    private void writeFtyp(ByteBuffer buf) {
+        int start = beginBox(buf, "ftyp");
+        putFourCC(buf, "iso5");         // major brand
+        buf.putInt(512);                // minor version
+        putFourCC(buf, "iso5");         // compatible brands
+        putFourCC(buf, "iso6");
+        putFourCC(buf, "mp41");
+        endBox(buf, start);
+    }
+
+    private void writeMoov(ByteBuffer buf) {
+        int moovStart = beginBox(buf, "moov");
+
+        int mvhdStart = beginFullBox(buf, "mvhd", 0, 0);
+        buf.putInt(0);                  // creation time
+        buf.putInt(0);                  // modification time
+        buf.putInt(MOVIE_TIMESCALE);
+        buf.putInt(0);                  // duration; unknown, it's in the fragments
+        buf.putInt(0x00010000);         // rate 1.0
+        buf.putShort((short) 0x0100);   // volume 1.0
+        buf.putShort((short) 0);
+        buf.putLong(0);
+        putMatrix(buf);
+        for (int i = 0; i < 6; i++) {
+            buf.putInt(0);              // pre_defined
+        }
+        buf.putInt(mTracks.size() + 1); // next track ID
+        endBox(buf, mvhdStart);
+
+        for (Track track : mTracks) {
+            writeTrak(buf, track);
+        }
+
+        int mvexStart = beginBox(buf, "mvex");
+        for (Track track : mTracks) {
+            int trexStart = beginFullBox(buf, "trex", 0, 0);
+            buf.putInt(track.trackId);
+            buf.putInt(1);              // default sample description index
+            buf.putInt(0);              // default sample duration
+            buf.putInt(0);              // default sample size
+            buf.putInt(0);              // default sample flags
+            endBox(buf, trexStart);
+        }
+        endBox(buf, mvexStart);
+
+        endBox(buf, moovStart);
+    }
+
+    private void writeTrak(ByteBuffer buf, Track track) {
+        int trakStart = beginBox(buf, "trak");
+
+        int tkhdStart = beginFullBox(buf, "tkhd", 0, 0x000003);     // enabled, in movie
+        buf.putInt(0);                  // creation time
+        buf.putInt(0);                  // modification time
+        buf.putInt(track.trackId);
+        buf.putInt(0);
+        buf.putInt(0);                  // duration
+        buf.putLong(0);
+        buf.putShort((short) 0);        // layer
+        buf.putShort((short) 0);        // alternate group
+        buf.putShort((short) (track.isVideo ? 0 : 0x0100));   // volume
+        buf.putShort((short) 0);
+        putMatrix(buf);
+        buf.putInt(track.width << 16);
+        buf.putInt(track.height << 16);
+        endBox(buf, tkhdStart);
+
+        int mdiaStart = beginBox(buf, "mdia");
+
+        int mdhdStart = beginFullBox(buf, "mdhd", 0, 0);
+        buf.putInt(0);                  // creation time
+        buf.putInt(0);                  // modification time
+        buf.putInt(track.timescale);
+        buf.putInt(0);                  // duration
+        buf.putShort((short) 0x55c4);   // language "und"
+        buf.putShort((short) 0);
+        endBox(buf, mdhdStart);
+
+        int hdlrStart = beginFullBox(buf, "hdlr", 0, 0);
+        buf.putInt(0);
+        putFourCC(buf, track.isVideo ? "vide" : "soun");
+        buf.putInt(0);
+        buf.putInt(0);
+        buf.putInt(0);
+        putCString(buf, track.isVideo ? "VideoHandler" : "SoundHandler");
+        endBox(buf, hdlrStart);
+
+        int minfStart = beginBox(buf, "minf");
+        if (track.isVideo) {
+            int vmhdStart = beginFullBox(buf, "vmhd", 0, 1);
+            buf.putLong(0);             // graphics mode, opcolor
+            endBox(buf, vmhdStart);
+        } else {
+            int smhdStart = beginFullBox(buf, "smhd", 0, 0);
+            buf.putInt(0);              // balance
+            endBox(buf, smhdStart);
+        }
+
+        int dinfStart = beginBox(buf, "dinf");
+        int drefStart = beginFullBox(buf, "dref", 0, 0);
+        buf.putInt(1);
+        int urlStart = beginFullBox(buf, "url ", 0, 1);             // data is in this file
+        endBox(buf, urlStart);
+        endBox(buf, drefStart);
+        endBox(buf, dinfStart);
+
+        int stblStart = beginBox(buf, "stbl");
+        int stsdStart = beginFullBox(buf, "stsd", 0, 0);
+        buf.putInt(1);
+        if (track.isVideo) {
+            writeAvc1(buf, track);
+        } else {
+            writeMp4a(buf, track);
+        }
+        endBox(buf, stsdStart);
+
+        // The sample tables are empty.  The samples are described by the fragments.
+        int sttsStart = beginFullBox(buf, "stts", 0, 0);
+        buf.putInt(0);
+        endBox(buf, sttsStart);
+        int stscStart = beginFullBox(buf, "stsc", 0, 0);
+        buf.putInt(0);
+        endBox(buf, stscStart);
+        int stszStart = beginFullBox(buf, "stsz", 0, 0);
+        buf.putInt(0);
+        buf.putInt(0);
+        endBox(buf, stszStart);
+        int stcoStart = beginFullBox(buf, "stco", 0, 0);
+        buf.putInt(0);
+        endBox(buf, stcoStart);
+        endBox(buf, stblStart);
+
+        endBox(buf, minfStart);
+        endBox(buf, mdiaStart);
+        endBox(buf, trakStart);
+    }
+
+    private void writeAvc1(ByteBuffer buf, Track track) {
+        int avc1Start = beginBox(buf, "avc1");
+        buf.putInt(0);                  // reserved (6 bytes)
+        buf.putShort((short) 0);
+        buf.putShort((short) 1);        // data reference index
+        buf.putLong(0);                 // pre_defined, reserved
+        buf.putLong(0);
+        buf.putShort((short) track.width);
+        buf.putShort((short) track.height);
+        buf.putInt(0x00480000);         // 72 dpi
+        buf.putInt(0x00480000);
+        buf.putInt(0);
+        buf.putShort((short) 1);        // frame count
+        for (int i = 0; i < 32; i++) {
+            buf.put((byte) 0);          // compressor name
+        }
+        buf.putShort((short) 0x0018);   // depth
+        buf.putShort((short) -1);
+
+        int avcCStart = beginBox(buf, "avcC");
+        buf.put((byte) 1);              // configuration version
+        buf.put(track.sps[1]);          // profile
+        buf.put(track.sps[2]);          // profile compatibility
+        buf.put(track.sps[3]);          // level
+        buf.put((byte) 0xff);           // 4-byte NAL unit lengths
+        buf.put((byte) 0xe1);           // one SPS
+        buf.putShort((short) track.sps.length);
+        buf.put(track.sps);
+        buf.put((byte) 1);              // one PPS
+        buf.putShort((short) track.pps.length);
+        buf.put(track.pps);
+        endBox(buf, avcCStart);
+
+        endBox(buf, avc1Start);
+    }
+
+    private void writeMp4a(ByteBuffer buf, Track track) {
+        int mp4aStart = beginBox(buf, "mp4a");
+        buf.putInt(0);                  // reserved (6 bytes)
+        buf.putShort((short) 0);
+        buf.putShort((short) 1);        // data reference index
+        buf.putLong(0);
+        buf.putShort((short) track.channelCount);
+        buf.putShort((short) 16);       // sample size
+        buf.putInt(0);
+        buf.putInt(track.sampleRate << 16);
+
+        // Elementary stream descriptor (ISO/IEC 14496-1).  The descriptor lengths are
+        // small enough to fit in a single byte.
+        int configLen = track.audioConfig.length;
+        int esdsStart = beginFullBox(buf, "esds", 0, 0);
+        buf.put((byte) 0x03);           // ES_Descriptor
+        buf.put((byte) (3 + 2 + 13 + 2 + configLen + 3));
+        buf.putShort((short) 0);        // ES_ID
+        buf.put((byte) 0);              // flags
+        buf.put((byte) 0x04);           // DecoderConfigDescriptor
+        buf.put((byte) (13 + 2 + configLen));
+        buf.put((byte) 0x40);           // MPEG-4 audio
+        buf.put((byte) 0x15);           // audio stream
+        buf.put((byte) 0);              // buffer size (3 bytes)
+        buf.putShort((short) 0);
+        buf.putInt(0);                  // max bit rate
+        buf.putInt(0);                  // average bit rate
+        buf.put((byte) 0x05);           // DecoderSpecificInfo
+        buf.put((byte) configLen);
+        buf.put(track.audioConfig);
+        buf.put((byte) 0x06);           // SLConfigDescriptor
+        buf.put((byte) 1);
+        buf.put((byte) 0x02);
+        endBox(buf, esdsStart);
+
+        endBox(buf, mp4aStart);
+    }
+
+    /**
+     * Copies Annex B H.264 data, converting start codes to 4-byte lengths.
+     * <p>
+     * We don't try to guess the format from the data: a length-prefixed NAL unit of
+     * 256-511 bytes starts with 00 00 01, which looks just like a start code.
+     */
+    private static void copyNalUnits(ByteBuffer src, ByteBuffer dst) {
+        final int start = src.position();
+        final int end = src.limit();
+
+        int nalStart = findStartCode(src, start, end);
+        if (nalStart != start) {
+            throw new IllegalArgumentException("Annex B sample doesn't start with a " +
+                    "start code");
+        }
+
+        while (nalStart < end) {
+            // skip the 00 00 01
+            int dataStart = skipStartCode(src, nalStart);
+            int next = findStartCode(src, dataStart, end);
+            int dataEnd = next;
+            while (dataEnd > dataStart && src.get(dataEnd - 1) == 0) {
+                dataEnd--;      // trailing zero bytes, or the 4th byte of the next start code
+            }
+
+            dst.putInt(dataEnd - dataStart);
+            src.limit(dataEnd);
+            src.position(dataStart);
+            dst.put(src);
+            src.limit(end);
+
+            nalStart = next;
+        }
+        src.position(start);
+    }
+
+    /**
+     * Returns the offset of the next 00 00 01 at or after "from", or "end" if there isn't
+     * one.  If a start code is preceded by zeroes they're included, so a 4-byte start code
+     * at the beginning of the data is found at offset zero.
+     */
+    private static int findStartCode(ByteBuffer buf, int from, int end) {
+        for (int i = from; i + 2 < end; i++) {
+            if (buf.get(i + 2) > 1) {
+                i += 2;         // can't be part of a start code; skip ahead
+            } else if (buf.get(i) == 0 && buf.get(i + 1) == 0 && buf.get(i + 2) == 1) {
+                int codeStart = i;
+                while (codeStart > from && buf.get(codeStart - 1) == 0) {
+                    codeStart--;
+                }
+                return codeStart;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Returns the offset of the first byte after the start code at "offset".
+     */
+    private static int skipStartCode(ByteBuffer buf, int offset) {
+        while (buf.get(offset) == 0) {
+            offset++;
+        }
+        return offset + 1;
+    }
+
+    private long toTimescale(Track track, long ptsUsec) {
+        long relative = ptsUsec - mStartPtsUsec;
+        if (relative < 0) {
+            relative = 0;
+        }
+        return relative * track.timescale / 1000000;
+    }
+
+    private void ensurePayloadCapacity(Track track, int size) {
+        if (track.payload.remaining() >= size) {
+            return;
+        }
+        int capacity = track.payload.capacity();
+        while (capacity - track.payload.position() < size) {
+            capacity *= 2;
+        }
+        ByteBuffer newPayload = ByteBuffer.allocateDirect(capacity);
+        track.payload.flip();
+        newPayload.put(track.payload);
+        track.payload = newPayload;
+    }
+
+    private static void growSampleArrays(Track track) {
+        int count = track.sampleCount * 2;
+        long[] pts = new long[count];
+        int[] size = new int[count];
+        boolean[] sync = new boolean[count];
+        System.arraycopy(track.samplePtsUsec, 0, pts, 0, track.sampleCount);
+        System.arraycopy(track.sampleSize, 0, size, 0, track.sampleCount);
+        System.arraycopy(track.sampleSync, 0, sync, 0, track.sampleCount);
+        track.samplePtsUsec = pts;
+        track.sampleSize = size;
+        track.sampleSync = sync;
+    }
+
+    private void writeFully(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            mChannel.write(buf);
+        }
+    }
+
+    /**
+     * Returns true if the data from position() on begins with 00 00 01 or 00 00 00 01.
+     */
+    private static boolean startsWithStartCode(ByteBuffer buf) {
+        int offset = buf.position();
+        int end = buf.limit();
+        while (offset < end && offset - buf.position() < 3 && buf.get(offset) == 0) {
+            offset++;
+        }
+        return offset - buf.position() >= 2 && offset < end && buf.get(offset) == 1;
+    }
+
+    private static byte[] stripStartCode(ByteBuffer buf) {
+        byte[] data = toArray(buf);
+        int offset = 0;
+        while (offset < data.length && data[offset] == 0) {
+            offset++;
+        }
+        if (offset >= 2 && offset < data.length && data[offset] == 1) {
+            offset++;
+        } else {
+            offset = 0;
+        }
+        byte[] result = new byte[data.length - offset];
+        System.arraycopy(data, offset, result, 0, result.length);
+        return result;
+    }
+
+    private static byte[] toArray(ByteBuffer buf) {
+        ByteBuffer dup = buf.duplicate();
+        byte[] data = new byte[dup.remaining()];
+        dup.get(data);
+        return data;
+    }
+
+    private static int beginBox(ByteBuffer buf, String type) {
+        int start = buf.position();
+        buf.putInt(0);      // size, filled in by endBox()
+        putFourCC(buf, type);
+        return start;
+    }
+
+    private static int beginFullBox(ByteBuffer buf, String type, int version, int flags) {
+        int start = beginBox(buf, type);
+        buf.putInt((version << 24) | flags);
+        return start;
+    }
+
+    private static void endBox(ByteBuffer buf, int start) {
+        buf.putInt(start, buf.position() - start);
+    }
+
+    private static void putFourCC(ByteBuffer buf, String type) {
+        for (int i = 0; i < 4; i++) {
+            buf.put((byte) type.charAt(i));
+        }
+    }
+
+    private static void putCString(ByteBuffer buf, String str) {
+        for (int i = 0; i < str.length(); i++) {
+            buf.put((byte) str.charAt(i));
+        }
+        buf.put((byte) 0);
+    }
+
+    private static void putMatrix(ByteBuffer buf) {
+        for (int value : IDENTITY_MATRIX) {
+            buf.putInt(value);
+        }
+    }
+}
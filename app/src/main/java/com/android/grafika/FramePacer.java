@@ -0,0 +1,316 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import java.util.Arrays;
+
+/**
+ * Releases frames at the pace set by their presentation time stamps.
+ * <p>
+ * The first frame is released immediately, and establishes the mapping from presentation
+ * time to clock time.  For each later frame, waitForFrame() blocks until the frame's time
+ * arrives.  Sleeps tend to overshoot, and the amount varies from device to device, so we
+ * keep a running estimate of the overshoot and wake up early by that much.  The last
+ * fraction of a millisecond is spent spinning on the clock.
+ * <p>
+ * If a frame shows up after its time has already passed (because the decoder fell
+ * behind), it's dropped, so we catch up rather than playing everything late.  We don't drop
+ * more than a few in a row, so the display keeps moving even if the decoder just can't keep
+ * up.  If we're very far behind (maybe the device went to sleep), we give up on the old
+ * schedule and start a new one from the current frame.
+ * <p>
+ * The difference between the target time and the time we actually released each frame is
+ * recorded, so the caller can report jitter percentiles.
+ * <p>
+ * The clock is pluggable, and nothing here depends on the Android framework, so timing
+ * behavior can be exercised deterministically on a desktop JVM.  Not thread-safe.
+ */
+public class FramePacer {
+    private static final long ONE_MILLION = 1000000L;
+
+    // Spin instead of sleeping when we're this close to the target.
+    private static final long SPIN_THRESHOLD_NSEC = 500000;
+    // Don't let a single sleep run longer than this, so a stop request isn't held up.
+    private static final long MAX_SLEEP_NSEC = 500 * ONE_MILLION;
+    // Weight of the newest sample in the sleep overshoot estimate, as 1/N.
+    private static final int OVERSHOOT_WEIGHT = 8;
+
+    private static final long DEFAULT_DROP_THRESHOLD_USEC = 20000;  // a bit over a 60fps frame
+    private static final long DEFAULT_RESYNC_THRESHOLD_USEC = 500000;
+    private static final int DEFAULT_MAX_CONSECUTIVE_DROPS = 4;
+    private static final int JITTER_SAMPLE_COUNT = 512;
+
+    /**
+     * Time source.  The default uses System.nanoTime() and Thread.sleep().
+     */
+    public interface Clock {
+        /** Returns the current time, in nanoseconds, from an arbitrary monotonic base. */
+        long nanoTime();
+
+        /** Sleeps for approximately the specified number of nanoseconds. */
+        void sleep(long nanos) throws InterruptedException;
+    }
+
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public void sleep(long nanos) throws InterruptedException {
+            Thread.sleep(nanos / ONE_MILLION, (int) (nanos % ONE_MILLION));
+        }
+    };
+
+    private final Clock mClock;
+
+    private long mFixedFrameDurationUsec;
+    private long mDropThresholdUsec = DEFAULT_DROP_THRESHOLD_USEC;
+    private long mResyncThresholdUsec = DEFAULT_RESYNC_THRESHOLD_USEC;
+    private int mMaxConsecutiveDrops = DEFAULT_MAX_CONSECUTIVE_DROPS;
+
+    // Schedule.  mPrevTargetNsec is when the previous frame was supposed to go out.
+    private boolean mStarted;
+    private long mPrevPresentUsec;
+    private long mPrevTargetNsec;
+    private int mConsecutiveDrops;
+
+    // Running estimate of how far past the requested time a sleep() returns.
+    private long mSleepOvershootNsec;
+
+    // Statistics.
+    private int mFrameCount;
+    private int mDropCount;
+    private int mResyncCount;
+    private int mTimestampAnomalyCount;
+    private final long[] mJitterUsec = new long[JITTER_SAMPLE_COUNT];
+    private final long[] mSortedJitter = new long[JITTER_SAMPLE_COUNT];
+    private int mJitterHead;
+    private int mJitterCount;
+    private boolean mSortedValid;
+
+    public FramePacer() {
+        this(SYSTEM_CLOCK);
+    }
+
+    public FramePacer(Clock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * Sets a fixed playback rate.  If set, the presentation time stamps are ignored.
+     */
+    public void setFixedPlaybackRate(int fps) {
+        mFixedFrameDurationUsec = ONE_MILLION / fps;
+    }
+
+    /**
+     * Sets how late a frame can be before it's dropped.
+     */
+    public void setDropThresholdUsec(long thresholdUsec) {
+        mDropThresholdUsec = thresholdUsec;
+    }
+
+    /**
+     * Sets the number of frames that can be dropped in a row.  Zero disables dropping.
+     */
+    public void setMaxConsecutiveDrops(int count) {
+        mMaxConsecutiveDrops = count;
+    }
+
+    /**
+     * Sets how far behind we can get before starting a new schedule.
+     */
+    public void setResyncThresholdUsec(long thresholdUsec) {
+        mResyncThresholdUsec = thresholdUsec;
+    }
+
+    /**
+     * Waits until it's time to show the frame with the specified presentation time.
+     *
+     * @return True if the frame should be rendered, false if it's too late and should be
+     *     dropped.
+     */
+    public boolean waitForFrame(long presentationTimeUsec) {
+        long nowNsec = mClock.nanoTime();
+        if (!mStarted) {
+            // Latch current values, then return immediately.
+            mStarted = true;
+            mPrevTargetNsec = nowNsec;
+            mPrevPresentUsec = presentationTimeUsec;
+            mFrameCount++;
+            addJitterSample(0);
+            return true;
+        }
+
+        long frameDeltaUsec = computeFrameDelta(presentationTimeUsec);
+        long targetNsec = mPrevTargetNsec + frameDeltaUsec * 1000;
+
+        // Advance the schedule using the computed values, not the clock, to avoid drift.
+        mPrevTargetNsec = targetNsec;
+        mPrevPresentUsec += frameDeltaUsec;
+
+        long lateUsec = (nowNsec - targetNsec) / 1000;
+        if (lateUsec > mResyncThresholdUsec) {
+            // Way behind.  Start over, treating this frame as the first.
+            mResyncCount++;
+            mPrevTargetNsec = nowNsec;
+            mPrevPresentUsec = presentationTimeUsec;
+            mConsecutiveDrops = 0;
+            mFrameCount++;
+            addJitterSample(0);
+            return true;
+        }
+        if (lateUsec > mDropThresholdUsec && mConsecutiveDrops < mMaxConsecutiveDrops) {
+            mConsecutiveDrops++;
+            mDropCount++;
+            return false;
+        }
+        mConsecutiveDrops = 0;
+
+        nowNsec = sleepUntil(targetNsec, nowNsec);
+        mFrameCount++;
+        addJitterSample((nowNsec - targetNsec) / 1000);
+        return true;
+    }
+
+    /**
+     * Starts a new schedule.  The next frame is released immediately, as if it were the
+     * first.  Use after playback has been paused.
+     */
+    public void restart() {
+        mStarted = false;
+        mConsecutiveDrops = 0;
+    }
+
+    /**
+     * Returns the time delta between the previous frame and this one.
+     */
+    private long computeFrameDelta(long presentationTimeUsec) {
+        long frameDelta;
+        if (mFixedFrameDurationUsec != 0) {
+            // Caller requested a fixed frame rate.  Ignore PTS.
+            frameDelta = mFixedFrameDurationUsec;
+        } else {
+            frameDelta = presentationTimeUsec - mPrevPresentUsec;
+        }
+        if (frameDelta <= 0) {
+            // Times went backward, or two frames have the same time stamp.
+            mTimestampAnomalyCount++;
+            frameDelta = 0;
+        } else if (frameDelta > 10 * ONE_MILLION) {
+            // Inter-frame times could be arbitrarily long, but this probably means the
+            // time stamps are broken (maybe nsec rather than usec).  Cap it.
+            mTimestampAnomalyCount++;
+            frameDelta = 5 * ONE_MILLION;
+        }
+        return frameDelta;
+    }
+
+    /**
+     * Sleeps, then spins, until the clock reaches targetNsec.  Returns the time at which
+     * we stopped.
+     */
+    private long sleepUntil(long targetNsec, long nowNsec) {
+        while (targetNsec - nowNsec > SPIN_THRESHOLD_NSEC + mSleepOvershootNsec) {
+            long sleepNsec = targetNsec - nowNsec - SPIN_THRESHOLD_NSEC - mSleepOvershootNsec;
+            if (sleepNsec > MAX_SLEEP_NSEC) {
+                sleepNsec = MAX_SLEEP_NSEC;
+            }
+            try {
+                mClock.sleep(sleepNsec);
+            } catch (InterruptedException ie) {
+                // ignore
+            }
+            long afterNsec = mClock.nanoTime();
+            long overshootNsec = (afterNsec - nowNsec) - sleepNsec;
+            if (overshootNsec < 0) {
+                overshootNsec = 0;
+            }
+            mSleepOvershootNsec += (overshootNsec - mSleepOvershootNsec) / OVERSHOOT_WEIGHT;
+            nowNsec = afterNsec;
+        }
+        while (nowNsec < targetNsec) {
+            nowNsec = mClock.nanoTime();
+        }
+        return nowNsec;
+    }
+
+    private void addJitterSample(long jitterUsec) {
+        mJitterUsec[mJitterHead] = jitterUsec;
+        mJitterHead = (mJitterHead + 1) % JITTER_SAMPLE_COUNT;
+        if (mJitterCount < JITTER_SAMPLE_COUNT) {
+            mJitterCount++;
+        }
+        mSortedValid = false;
+    }
+
+    /**
+     * Returns the specified percentile of the difference between when recent frames were
+     * supposed to be released and when they actually were, in microseconds.  Covers the
+     * most recent JITTER_SAMPLE_COUNT rendered frames.
+     *
+     * @param percentile 0 to 100.
+     */
+    public long getJitterPercentileUsec(int percentile) {
+        if (mJitterCount == 0) {
+            return 0;
+        }
+        if (!mSortedValid) {
+            System.arraycopy(mJitterUsec, 0, mSortedJitter, 0, mJitterCount);
+            Arrays.sort(mSortedJitter, 0, mJitterCount);
+            mSortedValid = true;
+        }
+        int index = (mJitterCount - 1) * percentile / 100;
+        return mSortedJitter[index];
+    }
+
+    /** Returns the current estimate of sleep overshoot, in microseconds. */
+    public long getSleepOvershootUsec() {
+        return mSleepOvershootNsec / 1000;
+    }
+
+    /** Returns the number of frames released for rendering. */
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /** Returns the number of frames dropped because they were late. */
+    public int getDropCount() {
+        return mDropCount;
+    }
+
+    /** Returns the number of times we fell far enough behind to start a new schedule. */
+    public int getResyncCount() {
+        return mResyncCount;
+    }
+
+    /** Returns the number of frames with time stamps that went backward or jumped ahead. */
+    public int getTimestampAnomalyCount() {
+        return mTimestampAnomalyCount;
+    }
+
+    /**
+     * Clears the statistics.  Doesn't affect the schedule.
+     */
+    public void resetStats() {
+        mFrameCount = mDropCount = mResyncCount = mTimestampAnomalyCount = 0;
+        mJitterHead = mJitterCount = 0;
+        mSortedValid = false;
+    }
+}
@@ -19,7 +19,6 @@ package com.android.grafika;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
 import android.util.Log;
 import android.view.Surface;
 
@@ -46,7 +45,7 @@ public abstract class GeneratedMovie implements Content {
     // "live" state during recording
     private MediaCodec.BufferInfo mBufferInfo;
     private MediaCodec mEncoder;
-    private MediaMuxer mMuxer;
+    private MovieMuxer mMuxer;
     private EglCore mEglCore;
     private WindowSurface mInputSurface;
     private int mTrackIndex;
@@ -66,6 +65,14 @@ public abstract class GeneratedMovie implements Content {
         return ("OMX.google.h264.encoder".equals(codecName));
     }
 
+    /**
+     * Returns the factory for the muxer that writes the movie.  Sub-classes may override
+     * this to use something other than MediaMuxer.
+     */
+    protected MovieMuxer.Factory getMuxerFactory() {
+        return MediaMuxerWrapper.FACTORY;
+    }
+
     /**
      * Prepares the video encoder, muxer, and an EGL input surface.
      */
@@ -109,15 +116,14 @@ public abstract class GeneratedMovie implements Content {
         mInputSurface.makeCurrent();
         mEncoder.start();
 
-        // Create a MediaMuxer.  We can't add the video track and start() the muxer here,
+        // Create a muxer.  We can't add the video track and start() the muxer here,
         // because our MediaFormat doesn't have the Magic Goodies.  These can only be
         // obtained from the encoder after it has started processing data.
         //
         // We're not actually interested in multiplexing audio.  We just want to convert
         // the raw H.264 elementary stream we get from MediaCodec into a .mp4 file.
         if (VERBOSE) Log.d(TAG, "output will go to " + outputFile);
-        mMuxer = new MediaMuxer(outputFile.toString(),
-                MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        mMuxer = getMuxerFactory().create(outputFile);
 
         mTrackIndex = -1;
         mMuxerStarted = false;
@@ -0,0 +1,431 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Compresses frames to image files on a pool of worker threads.
+ * <p>
+ * JPEG-compressing a full-size frame takes tens of milliseconds, and writing it out can
+ * take longer.  Doing that on the thread that produced the frame (often the GL thread)
+ * stalls it.  Instead, the producer gets a Frame from obtainFrame(), fills in the pixels,
+ * and hands it to submit(), which returns right away.  The workers compress frames in
+ * parallel and put them back in the pool.
+ * <p>
+ * The pool holds a fixed number of frames, which bounds both memory use and the queue.
+ * When the producer gets ahead of the workers and the pool runs dry, obtainFrame() either
+ * waits for a frame to come free (OVERFLOW_BLOCK), or takes back the oldest frame that
+ * hasn't started encoding yet (OVERFLOW_DROP_OLDEST).  The latter never blocks, which is
+ * what you want on the UI or GL thread; if every frame is being encoded it returns null,
+ * and the new frame is dropped instead.
+ * <p>
+ * Thread-safe.
+ */
+public class ImageEncodePipeline {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    /** When out of frames, wait for one. */
+    public static final int OVERFLOW_BLOCK = 0;
+    /** When out of frames, discard the oldest one that's waiting to be encoded. */
+    public static final int OVERFLOW_DROP_OLDEST = 1;
+
+    /**
+     * A frame to be encoded.  Fill in either the Bitmap or the pixel buffer.
+     */
+    public static class Frame {
+        private int mWidth;
+        private int mHeight;
+        private Bitmap mBitmap;
+        private ByteBuffer mPixels;
+        private boolean mUsePixels;
+        private File mFile;
+        private long mSubmitNsec;
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+
+        /**
+         * Returns an ARGB_8888 Bitmap of the frame's size.
+         */
+        public Bitmap getBitmap() {
+            if (mBitmap == null) {
+                mBitmap = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
+            }
+            return mBitmap;
+        }
+
+        /**
+         * Returns a direct buffer, rewound, big enough for the frame's RGBA pixels, e.g. from
+         * glReadPixels().  If this is called, the buffer contents are copied into the Bitmap
+         * on the worker thread, before compression.
+         */
+        public ByteBuffer getPixels() {
+            if (mPixels == null) {
+                mPixels = ByteBuffer.allocateDirect(mWidth * mHeight * 4);
+                mPixels.order(ByteOrder.LITTLE_ENDIAN);
+            }
+            mUsePixels = true;
+            mPixels.rewind();
+            return mPixels;
+        }
+
+        private void setSize(int width, int height) {
+            if (width != mWidth || height != mHeight) {
+                release();
+                mWidth = width;
+                mHeight = height;
+            }
+            mUsePixels = false;
+            mFile = null;
+        }
+
+        private void release() {
+            if (mBitmap != null) {
+                mBitmap.recycle();
+                mBitmap = null;
+            }
+            mPixels = null;
+        }
+    }
+
+    /**
+     * Aggregate statistics.  Allocate one and reuse it.
+     */
+    public static class Stats {
+        public int workerCount;
+        public long framesSubmitted;
+        public long framesEncoded;
+        public long framesDropped;
+        public long errorCount;
+        public long bytesWritten;
+        public long elapsedNsec;
+        public int maxQueueDepth;
+        /** Frames waiting for a worker, sampled at each submit. */
+        public final PlaybackMetrics.Percentiles queueDepth =
+                new PlaybackMetrics.Percentiles();
+        /** Time from submit to the start of encoding. */
+        public final PlaybackMetrics.Percentiles queueWaitUsec =
+                new PlaybackMetrics.Percentiles();
+        /** Time to compress and write one frame. */
+        public final PlaybackMetrics.Percentiles encodeUsec =
+                new PlaybackMetrics.Percentiles();
+
+        /** Frames written per second. */
+        public double getFramesPerSecond() {
+            return elapsedNsec == 0 ? 0 : framesEncoded * 1000000000.0 / elapsedNsec;
+        }
+
+        @Override
+        public String toString() {
+            return "workers=" + workerCount + " submitted=" + framesSubmitted +
+                    " encoded=" + framesEncoded + " dropped=" + framesDropped +
+                    " errors=" + errorCount + " bytes=" + bytesWritten +
+                    " fps=" + String.format("%.1f", getFramesPerSecond()) +
+                    " maxQueue=" + maxQueueDepth + " queue: " + queueDepth +
+                    " waitUs: " + queueWaitUsec + " encodeUs: " + encodeUsec;
+        }
+    }
+
+    private final Bitmap.CompressFormat mFormat;
+    private final int mQuality;
+    private final int mOverflowPolicy;
+
+    private final Object mLock = new Object();
+    private final ArrayList<Frame> mFree = new ArrayList<Frame>();
+    private final ArrayDeque<Frame> mQueue = new ArrayDeque<Frame>();
+    private final Thread[] mWorkers;
+    private boolean mShutdown;
+    private boolean mDiscardQueued;
+
+    // Statistics.  Guarded by mLock.
+    private final LogHistogram mQueueDepth = new LogHistogram();
+    private final LogHistogram mQueueWait = new LogHistogram();
+    private final LogHistogram mEncodeTime = new LogHistogram();
+    private long mStatsStartNsec;
+    private long mFramesSubmitted;
+    private long mFramesEncoded;
+    private long mFramesDropped;
+    private long mErrorCount;
+    private long mBytesWritten;
+    private int mMaxQueueDepth;
+
+    /**
+     * Creates the pipeline and starts the worker threads.
+     *
+     * @param workerCount Number of frames to encode in parallel.
+     * @param frameCount Number of frames in the pool.  Should be more than workerCount, or
+     *        the producer will have nothing to fill while the workers are busy.
+     * @param overflowPolicy OVERFLOW_BLOCK or OVERFLOW_DROP_OLDEST.
+     * @param format Image format to write.
+     * @param quality Compression quality, 0-100.
+     */
+    public ImageEncodePipeline(int workerCount, int frameCount, int overflowPolicy,
+            Bitmap.CompressFormat format, int quality) {
+        if (workerCount < 1 || frameCount < 1) {
+            throw new IllegalArgumentException("need at least one worker and one frame");
+        }
+        if (overflowPolicy != OVERFLOW_BLOCK && overflowPolicy != OVERFLOW_DROP_OLDEST) {
+            throw new IllegalArgumentException("unknown overflow policy " + overflowPolicy);
+        }
+        mOverflowPolicy = overflowPolicy;
+        mFormat = format;
+        mQuality = quality;
+        for (int i = 0; i < frameCount; i++) {
+            mFree.add(new Frame());
+        }
+
+        mStatsStartNsec = System.nanoTime();
+        mWorkers = new Thread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            mWorkers[i] = new Thread("EncodeWorker" + i) {
+                @Override
+                public void run() {
+                    workerLoop();
+                }
+            };
+            mWorkers[i].start();
+        }
+    }
+
+    /**
+     * Gets a frame to fill.  Pass it to submit() or recycle() when done.
+     *
+     * @return The frame, or null if the pool is empty and the overflow policy is
+     *         OVERFLOW_DROP_OLDEST with nothing to drop.
+     */
+    public Frame obtainFrame(int width, int height) {
+        Frame frame = null;
+        synchronized (mLock) {
+            while (mFree.isEmpty()) {
+                if (mShutdown) {
+                    throw new IllegalStateException("pipeline has been shut down");
+                }
+                if (mOverflowPolicy == OVERFLOW_DROP_OLDEST) {
+                    mFramesDropped++;
+                    frame = mQueue.pollFirst();
+                    if (frame == null) {
+                        if (VERBOSE) Log.d(TAG, "ImageEncodePipeline: no frame, dropping");
+                        return null;
+                    }
+                    if (VERBOSE) Log.d(TAG, "ImageEncodePipeline: dropped " + frame.mFile);
+                    break;
+                }
+                try {
+                    mLock.wait();
+                } catch (InterruptedException ie) {
+                    // ignore
+                }
+            }
+            if (frame == null) {
+                frame = mFree.remove(mFree.size() - 1);
+            }
+        }
+        // Allocation happens outside the lock; the frame is ours now.
+        frame.setSize(width, height);
+        return frame;
+    }
+
+    /**
+     * Queues a frame from obtainFrame() to be written to the file.
+     */
+    public void submit(Frame frame, File file) {
+        frame.mFile = file;
+        frame.mSubmitNsec = System.nanoTime();
+        synchronized (mLock) {
+            if (mShutdown) {
+                throw new IllegalStateException("pipeline has been shut down");
+            }
+            mQueue.addLast(frame);
+            mFramesSubmitted++;
+            int depth = mQueue.size();
+            mQueueDepth.record(depth);
+            if (depth > mMaxQueueDepth) {
+                mMaxQueueDepth = depth;
+            }
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Returns a frame from obtainFrame() to the pool without encoding it.
+     */
+    public void recycle(Frame frame) {
+        synchronized (mLock) {
+            mFree.add(frame);
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Returns the number of frames waiting for a worker.
+     */
+    public int getQueueDepth() {
+        synchronized (mLock) {
+            return mQueue.size();
+        }
+    }
+
+    /**
+     * Copies the statistics gathered since the pipeline started, or since the last reset.
+     */
+    public void getStats(Stats stats, boolean reset) {
+        synchronized (mLock) {
+            long nowNsec = System.nanoTime();
+            stats.workerCount = mWorkers.length;
+            stats.framesSubmitted = mFramesSubmitted;
+            stats.framesEncoded = mFramesEncoded;
+            stats.framesDropped = mFramesDropped;
+            stats.errorCount = mErrorCount;
+            stats.bytesWritten = mBytesWritten;
+            stats.elapsedNsec = nowNsec - mStatsStartNsec;
+            stats.maxQueueDepth = mMaxQueueDepth;
+            stats.queueDepth.set(mQueueDepth);
+            stats.queueWaitUsec.set(mQueueWait);
+            stats.encodeUsec.set(mEncodeTime);
+            if (reset) {
+                mStatsStartNsec = nowNsec;
+                mFramesSubmitted = mFramesEncoded = mFramesDropped = mErrorCount = 0;
+                mBytesWritten = 0;
+                mMaxQueueDepth = 0;
+                mQueueDepth.reset();
+                mQueueWait.reset();
+                mEncodeTime.reset();
+            }
+        }
+    }
+
+    /**
+     * Stops the workers and releases the frames.  Waits for frames being encoded to finish.
+     *
+     * @param drain If set, frames still in the queue are encoded first; otherwise they're
+     *        discarded.
+     */
+    public void shutdown(boolean drain) {
+        synchronized (mLock) {
+            mShutdown = true;
+            mDiscardQueued = !drain;
+            mLock.notifyAll();
+        }
+        for (Thread worker : mWorkers) {
+            while (true) {
+                try {
+                    worker.join();
+                    break;
+                } catch (InterruptedException ie) {
+                    // ignore
+                }
+            }
+        }
+        // Frames the producer still holds are its problem; they'll be GCed.
+        synchronized (mLock) {
+            mFramesDropped += mQueue.size();
+            while (!mQueue.isEmpty()) {
+                mQueue.pollFirst().release();
+            }
+            for (int i = 0; i < mFree.size(); i++) {
+                mFree.get(i).release();
+            }
+            mFree.clear();
+        }
+    }
+
+    private void workerLoop() {
+        while (true) {
+            Frame frame;
+            synchronized (mLock) {
+                while (mQueue.isEmpty() || (mShutdown && mDiscardQueued)) {
+                    if (mShutdown) {
+                        return;
+                    }
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException ie) {
+                        // ignore
+                    }
+                }
+                frame = mQueue.pollFirst();
+            }
+
+            long startNsec = System.nanoTime();
+            long size = -1;
+            try {
+                size = encode(frame);
+            } catch (IOException ioe) {
+                Log.w(TAG, "ImageEncodePipeline: failed writing " + frame.mFile, ioe);
+            } catch (RuntimeException re) {
+                // e.g. a recycled Bitmap, or a pixel buffer of the wrong size.  Count it and
+                // keep going; the frame still goes back to the free list below.
+                Log.w(TAG, "ImageEncodePipeline: failed encoding " + frame.mFile, re);
+            }
+            long endNsec = System.nanoTime();
+
+            synchronized (mLock) {
+                mQueueWait.record((startNsec - frame.mSubmitNsec) / 1000);
+                if (size < 0) {
+                    mErrorCount++;
+                } else {
+                    mEncodeTime.record((endNsec - startNsec) / 1000);
+                    mFramesEncoded++;
+                    mBytesWritten += size;
+                }
+                mFree.add(frame);
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Compresses the frame to its file.
+     *
+     * @return the file size.
+     */
+    private long encode(Frame frame) throws IOException {
+        Bitmap bmp = frame.getBitmap();
+        if (frame.mUsePixels) {
+            frame.mPixels.rewind();
+            bmp.copyPixelsFromBuffer(frame.mPixels);
+        }
+        if (VERBOSE) Log.d(TAG, "ImageEncodePipeline: writing " + frame.mFile);
+        BufferedOutputStream bos = null;
+        try {
+            bos = new BufferedOutputStream(new FileOutputStream(frame.mFile));
+            if (!bmp.compress(mFormat, mQuality, bos)) {
+                throw new IOException("compress failed");
+            }
+        } finally {
+            if (bos != null) bos.close();
+        }
+        return frame.mFile.length();
+    }
+}
@@ -33,9 +33,7 @@ import android.widget.FrameLayout;
 import android.widget.TextView;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * More or less straight out of TextureView's doc.
@@ -49,12 +47,8 @@ public class LiveCameraActivity extends Activity implements TextureView.SurfaceT
     private TextureView mTextureView;
     File mOutputDir;
 
-    Bitmap mBitmap;
-    long mBitmapTimestamp;
-
-    Object mSignaler= new Object();
-    AtomicBoolean _busy= new AtomicBoolean(false);
-    Thread mWorkerThread;
+    int mFrameWidth, mFrameHeight;
+    ImageEncodePipeline mEncodePipeline;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -64,24 +58,6 @@ public class LiveCameraActivity extends Activity implements TextureView.SurfaceT
         mOutputDir= getExternalCacheDir();
         Log.d(TAG, "output dir " + mOutputDir);
 
-        mWorkerThread= new Thread("worker") {
-            @Override
-            public void run() {
-                while (!isFinishing()) {
-                    try {
-                        synchronized (mSignaler) {
-                            mSignaler.wait();
-                            _busy.set(true);
-                            saveBitmap(mBitmap, mBitmapTimestamp);
-                            _busy.set(false);
-                        }
-                    } catch (InterruptedException e) {
-                    }
-                }
-                Log.d(TAG, "worker thread shutdown");
-            }
-        };
-
         mTextureView = new TextureView(this);
         mTextureView.setSurfaceTextureListener(this);
 
@@ -154,13 +130,16 @@ public class LiveCameraActivity extends Activity implements TextureView.SurfaceT
             height = scaledHeight;
         }
 
-        mBitmap= Bitmap.createBitmap(previewSize.width, previewSize.height, Bitmap.Config.ARGB_8888);
+        mFrameWidth= previewSize.width;
+        mFrameHeight= previewSize.height;
         mTextureView.setLayoutParams(new FrameLayout.LayoutParams(width, height, Gravity.CENTER));
 
         try {
             mCamera.setPreviewTexture(surface);
             mCamera.startPreview();
-            mWorkerThread.start();
+            // We're on the UI thread, so never wait for the encoder; drop frames instead.
+            mEncodePipeline= new ImageEncodePipeline(2, 3,
+                    ImageEncodePipeline.OVERFLOW_DROP_OLDEST, Bitmap.CompressFormat.JPEG, 100);
         } catch (IOException ioe) {
             // Something bad happened
         }
@@ -175,39 +154,28 @@ public class LiveCameraActivity extends Activity implements TextureView.SurfaceT
     public boolean onSurfaceTextureDestroyed(SurfaceTexture surface) {
         mCamera.stopPreview();
         mCamera.release();
+        if (mEncodePipeline != null) {
+            mEncodePipeline.shutdown(false);
+            ImageEncodePipeline.Stats stats= new ImageEncodePipeline.Stats();
+            mEncodePipeline.getStats(stats, false);
+            Log.d(TAG, "encode stats: " + stats);
+            mEncodePipeline= null;
+        }
         return true;
     }
 
     @Override
     public void onSurfaceTextureUpdated(SurfaceTexture surface) {
-        if (!_busy.get()) {
-            synchronized (mSignaler) {
-                mSignaler.notifyAll();
-                mTextureView.getBitmap(mBitmap);
-                mBitmapTimestamp = surface.getTimestamp();
-            }
-        } else {
-            Log.d(TAG, "dropping frame");
+        if (mEncodePipeline == null) {
+            return;
         }
-    }
-
-    protected void saveBitmap(Bitmap bmp, long timestamp) {
-        FileOutputStream out = null;
-        try {
-            File outputFile= new File(mOutputDir, Long.toString(timestamp) + ".jpg");
-            Log.d(TAG, "output " + outputFile);
-            out = new FileOutputStream(outputFile);
-            bmp.compress(Bitmap.CompressFormat.JPEG, 100, out);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        } finally {
-            try {
-                if (out != null) {
-                    out.close();
-                }
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
+        ImageEncodePipeline.Frame frame= mEncodePipeline.obtainFrame(mFrameWidth, mFrameHeight);
+        if (frame == null) {
+            Log.d(TAG, "dropping frame");
+            return;
         }
+        mTextureView.getBitmap(frame.getBitmap());
+        File outputFile= new File(mOutputDir, Long.toString(surface.getTimestamp()) + ".jpg");
+        mEncodePipeline.submit(frame, outputFile);
     }
 }
@@ -26,7 +26,6 @@ import android.media.AudioRecord;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
 import android.media.MediaRecorder;
 import android.opengl.EGL14;
 import android.opengl.EGLContext;
@@ -52,12 +51,9 @@ import android.widget.TextView;
 
 import com.android.grafika.gles.GlUtil;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 
 import javax.microedition.khronos.egl.EGLConfig;
@@ -79,7 +75,6 @@ public class LiveCameraActivity3 extends Activity implements SurfaceTexture.OnFr
 
     private AudioRunner mAudioRunner;
 
-    private static final int SIZEOF_INT = Integer.SIZE/8;
     private static final int SIZEOF_FLOAT = Float.SIZE/8;
 
 
@@ -307,7 +302,7 @@ public class LiveCameraActivity3 extends Activity implements SurfaceTexture.OnFr
 
         protected EGLSurface _eglSurface;
 
-        ByteBuffer mFrame;
+        ImageEncodePipeline mEncodePipeline;
         int _frameCount;
         protected int _width, _height;
 
@@ -392,8 +387,10 @@ public class LiveCameraActivity3 extends Activity implements SurfaceTexture.OnFr
                 throw new RuntimeException("eglMakeCurrent failed " + Integer.toHexString(EGL14.eglGetError()));
             }
 
-            mFrame= ByteBuffer.allocateDirect(_width * _height * SIZEOF_INT);
-            mFrame.order(ByteOrder.LITTLE_ENDIAN);
+            // Compression and file I/O happen off this thread.  If the workers fall behind,
+            // drop the oldest waiting frame rather than stalling the preview.
+            mEncodePipeline= new ImageEncodePipeline(2, 4,
+                    ImageEncodePipeline.OVERFLOW_DROP_OLDEST, Bitmap.CompressFormat.JPEG, 100);
 
             _preview= new GLPreview(GLPreview.FlipDirection.BOTH, textureHandle);
         }
@@ -410,6 +407,13 @@ public class LiveCameraActivity3 extends Activity implements SurfaceTexture.OnFr
 
         protected void onStop() {
             Log.d(TAG, "onStop");
+            if (mEncodePipeline != null) {
+                mEncodePipeline.shutdown(true);
+                ImageEncodePipeline.Stats stats= new ImageEncodePipeline.Stats();
+                mEncodePipeline.getStats(stats, false);
+                Log.d(TAG, "encode stats: " + stats);
+                mEncodePipeline= null;
+            }
             Looper.myLooper().quit();
         }
 
@@ -431,36 +435,22 @@ public class LiveCameraActivity3 extends Activity implements SurfaceTexture.OnFr
             if (!ok) Log.d(TAG, "eglSwapBuffers fail: " + Integer.toHexString(EGL14.eglGetError()));
 
             _frameCount++;
-            pullFrame();
-            try {
-                saveFrame(mFrame, new File(_outputFile, "IMG_" + _frameCount + ".jpg"));
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+            ImageEncodePipeline.Frame frame= mEncodePipeline.obtainFrame(_width, _height);
+            if (frame == null) {
+                Log.d(TAG, "dropping frame " + _frameCount);
+                return;
             }
+            pullFrame(frame.getPixels());
+            mEncodePipeline.submit(frame, new File(_outputFile, "IMG_" + _frameCount + ".jpg"));
         }
 
-        protected void pullFrame() {
+        protected void pullFrame(ByteBuffer dst) {
             Log.d(TAG, "pullFrame");
 
-            mFrame.rewind();
             GLES20.glReadPixels(0, 0, _width, _height,
-                    GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, mFrame);
+                    GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, dst);
             GlUtil.checkGlError("glReadPixels");
-            mFrame.rewind();
-        }
-
-        protected void saveFrame(ByteBuffer frame, File file) throws IOException {
-            Log.d(TAG, "saveFrame " + file);
-            BufferedOutputStream bos = null;
-            try {
-                bos = new BufferedOutputStream(new FileOutputStream(file));
-                Bitmap bmp = Bitmap.createBitmap(_width, _height, Bitmap.Config.ARGB_8888);
-                bmp.copyPixelsFromBuffer(frame);
-                bmp.compress(Bitmap.CompressFormat.JPEG, 100, bos);
-                bmp.recycle();
-            } finally {
-                if (bos != null) bos.close();
-            }
+            dst.rewind();
         }
 
         private android.opengl.EGLConfig getConfig() {
@@ -490,6 +480,8 @@ public class LiveCameraActivity3 extends Activity implements SurfaceTexture.OnFr
             public MediaFormat format;
             public String mimeType;
             public int trackIndex= -1;
+            public MediaCodec.BufferInfo bufferInfo= new MediaCodec.BufferInfo();
+            public ByteBuffer[] outputBuffers;
 
             public MediaCodecWrapper(MediaCodec codec, MediaFormat format) {
                 this.codec= codec;
@@ -497,6 +489,11 @@ public class LiveCameraActivity3 extends Activity implements SurfaceTexture.OnFr
                 this.mimeType= format.getString(MediaFormat.KEY_MIME);
             }
 
+            public void start() {
+                codec.start();
+                outputBuffers= codec.getOutputBuffers();
+            }
+
             public void release() {
                 codec.release();
                 codec= null;
@@ -507,7 +504,7 @@ public class LiveCameraActivity3 extends Activity implements SurfaceTexture.OnFr
         protected HandlerThread _worker;
         protected Handler _handler;
 
-        protected MediaMuxer _muxer;
+        protected MovieMuxer _muxer;
         protected boolean _muxerStarted;
         protected File _outputFile;
 
@@ -542,9 +539,13 @@ public class LiveCameraActivity3 extends Activity implements SurfaceTexture.OnFr
         private static final int EGL_RECORDABLE_ANDROID = 0x3142;
 
         public AVEncoder(File outputFile, GLPreview.FlipDirection flipDirection) throws IOException {
+            this(outputFile, flipDirection, MediaMuxerWrapper.FACTORY);
+        }
+
+        public AVEncoder(File outputFile, GLPreview.FlipDirection flipDirection, MovieMuxer.Factory muxerFactory) throws IOException {
             _outputFile= outputFile;
             _flipDirection= flipDirection;
-            _muxer = new MediaMuxer(_outputFile.toString(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            _muxer = muxerFactory.create(_outputFile);
         }
 
         public boolean isRunning() { return _worker != null; }
@@ -668,8 +669,7 @@ public class LiveCameraActivity3 extends Activity implements SurfaceTexture.OnFr
         }
 
         protected void flushCodec(MediaCodecWrapper codecWrapper, boolean drain) {
-            MediaCodec.BufferInfo bufferInfo= new MediaCodec.BufferInfo();
-            ByteBuffer[] encoderOutputBuffers = codecWrapper.codec.getOutputBuffers();
+            MediaCodec.BufferInfo bufferInfo= codecWrapper.bufferInfo;
 
             boolean moreData= true;
             while (moreData) {
@@ -680,6 +680,9 @@ public class LiveCameraActivity3 extends Activity implements SurfaceTexture.OnFr
                             // if we're not draining, then stop
                             moreData= drain;
                             break;
+                        case MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED:
+                            codecWrapper.outputBuffers= codecWrapper.codec.getOutputBuffers();
+                            break;
                         case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
                             codecWrapper.trackIndex = _muxer.addTrack(codecWrapper.codec.getOutputFormat());
                             if (canStartMuxer()) {
@@ -694,7 +697,7 @@ public class LiveCameraActivity3 extends Activity implements SurfaceTexture.OnFr
                     }
                 } else {
                     try {
-                        ByteBuffer encodedData = encoderOutputBuffers[encoderStatus];
+                        ByteBuffer encodedData = codecWrapper.outputBuffers[encoderStatus];
                         if (_muxerStarted && bufferInfo.size > 0 && (bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
                             // adjust the ByteBuffer values to match BufferInfo (not needed?)
                             encodedData.position(bufferInfo.offset);
@@ -724,12 +727,12 @@ public class LiveCameraActivity3 extends Activity implements SurfaceTexture.OnFr
 
                 // create audio codec
                 _audioCodec = createAudioCodec(_sampleRate);
-                _audioCodec.codec.start();
+                _audioCodec.start();
 
                 // create a video codec
                 _videoCodec = createVideoCodec(_width, _height);
                 Surface codecSurface = _videoCodec.codec.createInputSurface();
-                _videoCodec.codec.start();
+                _videoCodec.start();
 
                 // create an EGLContext from the input context
                 _eglDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
@@ -26,6 +26,9 @@ import android.view.View;
 import android.widget.ListView;
 import android.widget.SimpleAdapter;
 
+import com.android.grafika.gles.ProgramCache;
+
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -103,6 +106,9 @@ public class MainActivity extends ListActivity {
         { "{bench} glTexImage2D speed test",
             "Tests glTexImage2D() performance on 512x512 image",
             "TextureUploadActivity" },
+        { "{bench} Sprite batching speed test",
+            "Compares per-sprite draws with SpriteBatch at 60fps",
+            "SpriteBatchActivity" },
         { "{util} Color bars",
             "Shows RGB color bars",
             "ColorBarActivity" },
@@ -142,6 +148,9 @@ public class MainActivity extends ListActivity {
         // One-time singleton initialization; requires activity context to get file location.
         ContentManager.initialize(this);
 
+        // Compiled shader programs are saved here, so later runs can skip compiling.
+        ProgramCache.getInstance().setBinaryDirectory(new File(getCacheDir(), "programs"));
+
         setListAdapter(new SimpleAdapter(this, createActivityList(),
                 android.R.layout.two_line_list_item, new String[] { TITLE, DESCRIPTION },
                 new int[] { android.R.id.text1, android.R.id.text2 } ));
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Stream for MultiStreamDecoder that plays the video track from a movie file to a Surface,
+ * looping forever.
+ * <p>
+ * This is MoviePlayer's decode loop cut into non-blocking steps.  Each step feeds the
+ * decoder as much input as it will take, and checks for output.  A decoded frame is held
+ * until its presentation time arrives, then released to the Surface (or dropped, if we got
+ * to it too late).
+ * <p>
+ * In keyframes-only mode we skip over the other samples in the extractor, so the decoder
+ * never sees them.  When we switch back to full rate, we keep skipping until the next
+ * keyframe, since the frames in between depend on ones we didn't decode.
+ */
+public class MediaCodecDecodeStream extends MultiStreamDecoder.Stream {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    // How often to check on the decoder when we're not waiting for a particular frame.
+    private static final long POLL_INTERVAL_NSEC = 4000000L;
+    private static final long DROP_THRESHOLD_NSEC = 20000000L;
+    private static final long RESYNC_THRESHOLD_NSEC = 500000000L;
+    // Most input buffers to submit in one step.
+    private static final int INPUT_BURST = 4;
+
+    private final File mFile;
+    private final Surface mSurface;
+    private final DecoderPool mDecoderPool;
+
+    private MediaExtractor mExtractor;
+    private MediaCodec mDecoder;
+    private ByteBuffer[] mInputBuffers;
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+    private boolean mInputDone;
+    private boolean mNeedSync;
+
+    // Decoded frame waiting for its presentation time, or -1.
+    private int mHeldIndex = -1;
+    private long mHeldPtsUsec;
+
+    // Maps presentation time to System.nanoTime().
+    private boolean mHaveTimeBase;
+    private long mBasePtsUsec;
+    private long mBaseNsec;
+
+    /**
+     * Creates the stream.  The file is opened on the first step.
+     * <p>
+     * The object takes ownership of the Surface, and releases it in release().
+     *
+     * @param decoderPool Where to get the decoder; may be null.
+     */
+    public MediaCodecDecodeStream(File file, Surface surface, DecoderPool decoderPool) {
+        mFile = file;
+        mSurface = surface;
+        mDecoderPool = decoderPool;
+    }
+
+    @Override
+    protected long step(long nowNsec, boolean keyframesOnly) {
+        if (mDecoder == null) {
+            try {
+                open();
+            } catch (IOException ioe) {
+                throw new RuntimeException("Unable to open " + mFile, ioe);
+            }
+            return nowNsec;
+        }
+
+        feedInput(keyframesOnly);
+
+        if (mHeldIndex < 0) {
+            int decoderStatus = mDecoder.dequeueOutputBuffer(mBufferInfo, 0);
+            if (decoderStatus >= 0) {
+                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    mDecoder.releaseOutputBuffer(decoderStatus, false);
+                    if (VERBOSE) Log.d(TAG, "EOS on " + mFile + ", looping");
+                    restart();
+                    return nowNsec;
+                } else if (mBufferInfo.size == 0) {
+                    mDecoder.releaseOutputBuffer(decoderStatus, false);
+                } else {
+                    mHeldIndex = decoderStatus;
+                    mHeldPtsUsec = mBufferInfo.presentationTimeUs;
+                }
+            }
+            // INFO_* results don't matter to us, since we're using a Surface
+        }
+
+        if (mHeldIndex >= 0) {
+            if (!mHaveTimeBase) {
+                mHaveTimeBase = true;
+                mBasePtsUsec = mHeldPtsUsec;
+                mBaseNsec = nowNsec;
+            }
+            long dueNsec = mBaseNsec + (mHeldPtsUsec - mBasePtsUsec) * 1000;
+            long lateNsec = nowNsec - dueNsec;
+            if (lateNsec < 0) {
+                // Come back when it's due, or sooner if the decoder might want input.
+                return Math.min(dueNsec, nowNsec + POLL_INTERVAL_NSEC);
+            }
+            boolean render = true;
+            if (lateNsec > RESYNC_THRESHOLD_NSEC) {
+                mBasePtsUsec = mHeldPtsUsec;
+                mBaseNsec = nowNsec;
+            } else if (lateNsec > DROP_THRESHOLD_NSEC) {
+                render = false;
+            }
+            mDecoder.releaseOutputBuffer(mHeldIndex, render);
+            mHeldIndex = -1;
+            if (render) {
+                frameRendered();
+            } else {
+                frameDropped();
+            }
+            // There may be another frame ready.
+            return nowNsec;
+        }
+        return nowNsec + POLL_INTERVAL_NSEC;
+    }
+
+    /**
+     * Submits input to the decoder, until it stops taking it or we've done INPUT_BURST.
+     */
+    private void feedInput(boolean keyframesOnly) {
+        for (int i = 0; i < INPUT_BURST && !mInputDone; i++) {
+            // Skip samples we don't want to decode.
+            while (keyframesOnly || mNeedSync) {
+                if (mExtractor.getSampleTime() < 0 ||
+                        (mExtractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0) {
+                    break;
+                }
+                mExtractor.advance();
+                mNeedSync = true;
+            }
+
+            int inputBufIndex = mDecoder.dequeueInputBuffer(0);
+            if (inputBufIndex < 0) {
+                break;
+            }
+            int chunkSize = mExtractor.readSampleData(mInputBuffers[inputBufIndex], 0);
+            if (chunkSize < 0) {
+                mDecoder.queueInputBuffer(inputBufIndex, 0, 0, 0L,
+                        MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                mInputDone = true;
+                break;
+            }
+            if ((mExtractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0) {
+                mNeedSync = false;
+            }
+            mDecoder.queueInputBuffer(inputBufIndex, 0, chunkSize,
+                    mExtractor.getSampleTime(), 0 /*flags*/);
+            mExtractor.advance();
+        }
+    }
+
+    private void open() throws IOException {
+        mExtractor = new MediaExtractor();
+        mExtractor.setDataSource(mFile.toString());
+        int trackIndex = MoviePlayer.selectTrack(mExtractor);
+        if (trackIndex < 0) {
+            throw new RuntimeException("No video track found in " + mFile);
+        }
+        mExtractor.selectTrack(trackIndex);
+        MediaFormat format = mExtractor.getTrackFormat(trackIndex);
+
+        if (mDecoderPool != null) {
+            mDecoder = mDecoderPool.acquire(format);
+        } else {
+            mDecoder = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+        }
+        mDecoder.configure(format, mSurface, null, 0);
+        mDecoder.start();
+        mInputBuffers = mDecoder.getInputBuffers();
+    }
+
+    /**
+     * Rewinds to the start of the movie.
+     */
+    private void restart() {
+        mDecoder.flush();
+        mExtractor.seekTo(0, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+        mInputDone = false;
+        mNeedSync = false;
+        mHaveTimeBase = false;
+    }
+
+    @Override
+    protected void release() {
+        if (mDecoder != null) {
+            if (mDecoderPool != null) {
+                mDecoderPool.recycle(mDecoder);
+            } else {
+                mDecoder.stop();
+                mDecoder.release();
+            }
+            mDecoder = null;
+        }
+        if (mExtractor != null) {
+            mExtractor.release();
+            mExtractor = null;
+        }
+        mSurface.release();
+    }
+}
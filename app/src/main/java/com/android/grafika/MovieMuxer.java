@@ -0,0 +1,68 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Turns encoded elementary streams into a movie file.
+ * <p>
+ * This has the same shape as MediaMuxer, so code that used MediaMuxer can switch to this
+ * without restructuring.  Use MediaMuxerWrapper for the framework muxer, or
+ * FragmentedMp4Muxer for output that survives a crash.
+ */
+public interface MovieMuxer {
+    /**
+     * Creates muxers.  Lets the code that drives the encoder leave the choice of muxer
+     * to its caller.
+     */
+    interface Factory {
+        MovieMuxer create(File outputFile) throws IOException;
+    }
+
+    /**
+     * Adds a track with the specified format.  Must be called before start().
+     *
+     * @return The track index, for writeSampleData().
+     */
+    int addTrack(MediaFormat format);
+
+    /**
+     * Starts the muxer.  Call after all tracks have been added.
+     */
+    void start();
+
+    /**
+     * Writes an encoded sample.  The sample data runs from info.offset for info.size bytes.
+     */
+    void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo info);
+
+    /**
+     * Stops the muxer, finishing the output file.
+     */
+    void stop();
+
+    /**
+     * Releases resources.  May be called after partial / failed initialization.
+     */
+    void release();
+}
@@ -33,24 +33,87 @@ import java.nio.ByteBuffer;
 /**
  * Plays the video track from a movie file to a Surface.
  * <p>
- * TODO: needs more advanced shuttle controls (pause/resume, skip)
+ * Playback speed can be changed on the fly, from 0.25x to 8x.  The presentation time stamps
+ * are scaled before they're handed to the FrameCallback, so the callback paces output
+ * without knowing about the speed.  At high speeds, decoding every frame is wasted effort,
+ * so there's a keyframe-only mode that skips ahead in the extractor and sends only sync
+ * frames to the decoder.
+ * <p>
+ * Playback can be paused, and stepped forward one frame at a time while paused.
+ * <p>
+ * A list of files can be played back to back, and looped.  The next file is opened in the
+ * background while the current one plays.  If its video format matches, we just keep
+ * feeding the same decoder, so there's no gap between files (or between loops of a single
+ * file).  The time stamps from each file are offset to follow on from the previous one.  If
+ * the format doesn't match, we have to drain the decoder and switch to a new one, but the
+ * new one is created ahead of time.  (It can't be configured ahead of time, because the
+ * output Surface can only be connected to one decoder at a time.)
+ * <p>
+ * TODO: needs more advanced shuttle controls (skip)
  */
 public class MoviePlayer {
     private static final String TAG = MainActivity.TAG;
     private static final boolean VERBOSE = false;
 
+    public static final float MIN_SPEED = 0.25f;
+    public static final float MAX_SPEED = 8.0f;
+
+    // In keyframe-only mode, aim to show a frame about this often (in media time, at 1x).
+    private static final long TRICK_FRAME_INTERVAL_USEC = 1000000 / 15;
+
+    /** Pre-roll count that fills every input buffer the decoder will take. */
+    public static final int PRE_ROLL_ALL = Integer.MAX_VALUE;
+
+    private static final int TIMEOUT_USEC = 10000;
+    // Give up on pre-roll if the decoder won't take any input for this long.
+    private static final long PRE_ROLL_MAX_WAIT_NSEC = 100000000L;
+    // Inputs to try to queue on the loop after an output timeout, in adaptive mode.
+    private static final int ADAPTIVE_INPUT_BURST = 4;
+
+    // Results from feedDecoder().
+    private static final int INPUT_UNAVAILABLE = 0;
+    private static final int INPUT_QUEUED = 1;
+    private static final int INPUT_END_OF_STREAM = 2;
+
     // Declare this here to reduce allocations.
     private MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
 
     // May be set/read by different threads.
     private volatile boolean mIsStopRequested;
+    private volatile float mSpeed = 1.0f;
+    private volatile boolean mKeyframesOnly;
 
-    private File mSourceFile;
+    // Pause state.  Guarded by mPauseLock.
+    private final Object mPauseLock = new Object();
+    private boolean mPaused;
+    private int mStepFrames;
+
+    // Presentation times as seen by the FrameCallback, scaled for speed.  Decode thread only.
+    private long mPrevPtsUsec = -1;
+    private long mPacingPtsUsec;
+
+    private File[] mSourceFiles;
     private Surface mOutputSurface;
     FrameCallback mFrameCallback;
     private boolean mLoop;
     private int mVideoWidth;
     private int mVideoHeight;
+    private int mPreRollCount;
+    private boolean mAdaptiveInput;
+    private PlayTask mPlayTask;
+    private DecoderPool mDecoderPool;
+    private final PlaybackMetrics mMetrics = new PlaybackMetrics();
+
+    // Decode thread only.
+    private int mInputChunk;
+    private long mPlayStartNsec;
+    private MediaCodec mDecoder;
+    private Source mSource;             // playlist entry feeding the decoder
+    private Source mPendingSource;      // next entry, waiting for the decoder to drain
+    private SourcePreparer mPreparer;   // opening the entry after mSource
+    private long mLastInputPtsUsec;     // latest time stamp sent to the decoder
+    private long mPrevOutputPtsUsec;
+    private long mFrameDurationUsec;    // most recent interval between output frames
 
 
     /**
@@ -60,6 +123,14 @@ public class MoviePlayer {
      */
     public interface PlayerFeedback {
         void playbackStopped();
+
+        /**
+         * Called when the first frame has been released to the output Surface.
+         *
+         * @param startupUsec Time from the start of playback, including opening the file
+         *     and creating the decoder, in microseconds.
+         */
+        void firstFrameRendered(long startupUsec);
     }
 
 
@@ -71,8 +142,9 @@ public class MoviePlayer {
         /**
          * Called immediately before the frame is rendered.
          * @param presentationTimeUsec The desired presentation time, in microseconds.
+         * @return False if the frame is too late and should be dropped.
          */
-        void preRender(long presentationTimeUsec);
+        boolean preRender(long presentationTimeUsec);
 
         /**
          * Called immediately after the frame render call returns.  The frame may not have
@@ -82,10 +154,11 @@ public class MoviePlayer {
         void postRender();
 
         /**
-         * Called after the last frame of a looped movie has been rendered.  This allows the
-         * callback to adjust its expectations of the next presentation time stamp.
+         * Called before the first frame is rendered after playback has been paused, whether
+         * it's resuming or stepping.  The frame should be shown right away, and pacing
+         * should start over from there.
          */
-        void loopReset();
+        void playbackResumed();
     }
 
 
@@ -99,39 +172,42 @@ public class MoviePlayer {
      */
     public MoviePlayer(File sourceFile, Surface outputSurface, FrameCallback frameCallback)
             throws IOException {
-        mSourceFile = sourceFile;
+        this(new File[] { sourceFile }, outputSurface, frameCallback);
+    }
+
+    /**
+     * Constructs a MoviePlayer that plays several files in sequence.
+     *
+     * @param sourceFiles The video files to play, in order.
+     * @param outputSurface The Surface where frames will be sent.
+     * @param frameCallback Callback object, used to pace output.
+     * @throws IOException
+     */
+    public MoviePlayer(File[] sourceFiles, Surface outputSurface, FrameCallback frameCallback)
+            throws IOException {
+        if (sourceFiles.length == 0) {
+            throw new IllegalArgumentException("empty playlist");
+        }
+        mSourceFiles = sourceFiles.clone();
         mOutputSurface = outputSurface;
         mFrameCallback = frameCallback;
 
-        // Pop the file open and pull out the video characteristics.
-        // TODO: consider leaving the extractor open.  Should be able to just seek back to
-        //       the start after each iteration of play.  Need to rearrange the API a bit --
-        //       currently play() is taking an all-in-one open+work+release approach.
-        MediaExtractor extractor = null;
+        // Pop the first file open and pull out the video characteristics.
+        Source source = Source.open(0, mSourceFiles[0]);
         try {
-            extractor = new MediaExtractor();
-            extractor.setDataSource(sourceFile.toString());
-            int trackIndex = selectTrack(extractor);
-            if (trackIndex < 0) {
-                throw new RuntimeException("No video track found in " + mSourceFile);
-            }
-            extractor.selectTrack(trackIndex);
-
-            MediaFormat format = extractor.getTrackFormat(trackIndex);
-            mVideoWidth = format.getInteger(MediaFormat.KEY_WIDTH);
-            mVideoHeight = format.getInteger(MediaFormat.KEY_HEIGHT);
+            mVideoWidth = source.format.getInteger(MediaFormat.KEY_WIDTH);
+            mVideoHeight = source.format.getInteger(MediaFormat.KEY_HEIGHT);
             if (VERBOSE) {
                 Log.d(TAG, "Video size is " + mVideoWidth + "x" + mVideoHeight);
             }
         } finally {
-            if (extractor != null) {
-                extractor.release();
-            }
+            source.release();
         }
     }
 
     /**
-     * Returns the width, in pixels, of the video.
+     * Returns the width, in pixels, of the video.  For a playlist, this is the size of the
+     * first file.
      */
     public int getVideoWidth() {
         return mVideoWidth;
@@ -145,12 +221,43 @@ public class MoviePlayer {
     }
 
     /**
-     * Sets the loop mode.  If true, playback will loop forever.
+     * Sets the loop mode.  If true, playback will loop forever.  For a playlist, the whole
+     * list is repeated.
      */
     public void setLoopMode(boolean loopMode) {
         mLoop = loopMode;
     }
 
+    /**
+     * Sets the number of input buffers to submit to the decoder before we start looking
+     * for output.  Decoders generally need several frames before they produce anything, so
+     * feeding them as quickly as possible up front shortens the time to the first frame.
+     * Zero disables pre-roll.  PRE_ROLL_ALL fills every input buffer the decoder will accept.
+     * Must be called before play().
+     */
+    public void setPreRoll(int count) {
+        mPreRollCount = count;
+    }
+
+    /**
+     * Enables adaptive input.  Normally we submit one input buffer per trip through the
+     * loop.  In adaptive mode, if the decoder had no output for us last time, we try to
+     * submit several, since running out of output suggests the decoder is short of input.
+     * Must be called before play().
+     */
+    public void setAdaptiveInput(boolean adaptive) {
+        mAdaptiveInput = adaptive;
+    }
+
+    /**
+     * Sets a pool to get decoders from.  They're returned to the pool when playback stops,
+     * rather than being released, so the next player that wants one doesn't have to wait
+     * for it to be created.  Must be called before play().
+     */
+    public void setDecoderPool(DecoderPool pool) {
+        mDecoderPool = pool;
+    }
+
     /**
      * Asks the player to stop.  Returns without waiting for playback to halt.
      * <p>
@@ -158,6 +265,88 @@ public class MoviePlayer {
      */
     public void requestStop() {
         mIsStopRequested = true;
+        synchronized (mPauseLock) {
+            mPauseLock.notifyAll();
+        }
+    }
+
+    /**
+     * Sets the playback speed, from MIN_SPEED to MAX_SPEED.  1.0 is normal speed.  Takes
+     * effect with the next frame.
+     * <p>
+     * Called from arbitrary thread.
+     */
+    public void setSpeed(float speed) {
+        if (speed < MIN_SPEED || speed > MAX_SPEED) {
+            throw new IllegalArgumentException("speed out of range: " + speed);
+        }
+        mSpeed = speed;
+    }
+
+    /**
+     * Returns the current playback speed.
+     */
+    public float getSpeed() {
+        return mSpeed;
+    }
+
+    /**
+     * Returns the playback metrics.  These are updated continuously during playback, and
+     * reset when play() is called.  Use PlaybackMetrics#getSnapshot() to read them from
+     * another thread.
+     */
+    public PlaybackMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Sets keyframe-only mode.  If true, only sync frames are decoded.  The extractor skips
+     * ahead far enough to show a frame every TRICK_FRAME_INTERVAL_USEC or so (scaled by the
+     * speed), or to the next sync frame if they're further apart than that.  Meant for
+     * fast-forward.
+     * <p>
+     * Called from arbitrary thread.
+     */
+    public void setKeyframesOnly(boolean keyframesOnly) {
+        mKeyframesOnly = keyframesOnly;
+    }
+
+    /**
+     * Pauses or resumes playback.  While paused, the player holds on to the next decoded
+     * frame until it's resumed or stepped.
+     * <p>
+     * Called from arbitrary thread.
+     */
+    public void setPaused(boolean paused) {
+        synchronized (mPauseLock) {
+            mPaused = paused;
+            mStepFrames = 0;
+            mPauseLock.notifyAll();
+        }
+    }
+
+    /**
+     * Returns true if playback is paused.
+     */
+    public boolean isPaused() {
+        synchronized (mPauseLock) {
+            return mPaused;
+        }
+    }
+
+    /**
+     * Pauses playback if it isn't already paused, and shows the next frame.  Frames are
+     * shown in presentation order, with none skipped (unless keyframe-only mode is enabled).
+     * Steps requested in quick succession are queued up.
+     * <p>
+     * Called from arbitrary thread.
+     */
+    public void stepFrame() {
+        synchronized (mPauseLock) {
+            mPaused = true;
+            mStepFrames++;
+            mPauseLock.notifyAll();
+        }
     }
 
     /**
@@ -167,45 +356,53 @@ public class MoviePlayer {
      * frameCallback.
      */
     public void play() throws IOException {
-        MediaExtractor extractor = null;
-        MediaCodec decoder = null;
+        mPlayStartNsec = System.nanoTime();
+        mMetrics.onPlayStart(mPlayStartNsec);
 
         // The MediaExtractor error messages aren't very useful.  Check to see if the input
-        // file exists so we can throw a better one if it's not there.
-        if (!mSourceFile.canRead()) {
-            throw new FileNotFoundException("Unable to read " + mSourceFile);
+        // files exist so we can throw a better one if one's not there.
+        for (File file : mSourceFiles) {
+            if (!file.canRead()) {
+                throw new FileNotFoundException("Unable to read " + file);
+            }
         }
 
         try {
-            extractor = new MediaExtractor();
-            extractor.setDataSource(mSourceFile.toString());
-            int trackIndex = selectTrack(extractor);
-            if (trackIndex < 0) {
-                throw new RuntimeException("No video track found in " + mSourceFile);
-            }
-            extractor.selectTrack(trackIndex);
-
-            MediaFormat format = extractor.getTrackFormat(trackIndex);
+            mSource = Source.open(0, mSourceFiles[0]);
+            mLastInputPtsUsec = -1;
+            mPrevOutputPtsUsec = -1;
+            mFrameDurationUsec = 0;
 
             // Create a MediaCodec decoder, and configure it with the MediaFormat from the
             // extractor.  It's very important to use the format from the extractor because
             // it contains a copy of the CSD-0/CSD-1 codec-specific data chunks.
-            String mime = format.getString(MediaFormat.KEY_MIME);
-            decoder = MediaCodec.createDecoderByType(mime);
-            decoder.configure(format, mOutputSurface, null, 0);
-            decoder.start();
+            mDecoder = createDecoder(mSource.format);
+            mDecoder.configure(mSource.format, mOutputSurface, null, 0);
+            mDecoder.start();
+            prepareNextSource();
 
-            doExtract(extractor, trackIndex, decoder, mFrameCallback);
+            doExtract(mFrameCallback);
+
+            PlaybackMetrics.Snapshot snapshot = new PlaybackMetrics.Snapshot();
+            mMetrics.getSnapshot(snapshot);
+            Log.d(TAG, "playback metrics: " + snapshot);
         } finally {
             // release everything we grabbed
-            if (decoder != null) {
-                decoder.stop();
-                decoder.release();
-                decoder = null;
+            if (mPreparer != null) {
+                mPreparer.cancel();
+                mPreparer = null;
             }
-            if (extractor != null) {
-                extractor.release();
-                extractor = null;
+            if (mPendingSource != null) {
+                releaseSource(mPendingSource);
+                mPendingSource = null;
+            }
+            if (mDecoder != null) {
+                releaseDecoder(mDecoder, true);
+                mDecoder = null;
+            }
+            if (mSource != null) {
+                releaseSource(mSource);
+                mSource = null;
             }
         }
     }
@@ -215,7 +412,7 @@ public class MoviePlayer {
      *
      * @return the track index, or -1 if no video track is found.
      */
-    private static int selectTrack(MediaExtractor extractor) {
+    static int selectTrack(MediaExtractor extractor) {
         // Select the first video track we find, ignore the rest.
         int numTracks = extractor.getTrackCount();
         for (int i = 0; i < numTracks; i++) {
@@ -235,8 +432,7 @@ public class MoviePlayer {
     /**
      * Work loop.  We execute here until we run out of video or are told to stop.
      */
-    private void doExtract(MediaExtractor extractor, int trackIndex, MediaCodec decoder,
-            FrameCallback frameCallback) {
+    private void doExtract(FrameCallback frameCallback) {
         // We need to strike a balance between providing input and reading output that
         // operates efficiently without delays on the output side.
         //
@@ -269,7 +465,8 @@ public class MoviePlayer {
         // If you have tight startup latency requirements, it would probably be best to
         // "prime the pump" with a sequence of frames that aren't actually shown (e.g.
         // grab the first 10 NAL units and shove them through, then rewind to the start of
-        // the first key frame).
+        // the first key frame).  setPreRoll() does something simpler: it fills the decoder's
+        // input buffers with the start of the movie before we look for any output.
         //
         // The actual latency seems to depend on strongly on the nature of the video (e.g.
         // resolution).
@@ -290,18 +487,21 @@ public class MoviePlayer {
         // The code below takes a very simple-minded approach that works, but carries a risk
         // of occasionally running out of output.  A more sophisticated approach might
         // detect an output timeout and use that as a signal to try to enqueue several input
-        // buffers on the next iteration.
+        // buffers on the next iteration.  That's what setAdaptiveInput() enables.
         //
         // If you want to experiment, set the VERBOSE flag to true and watch the behavior
         // in logcat.  Use "logcat -v threadtime" to see sub-second timing.
 
-        final int TIMEOUT_USEC = 10000;
+        MediaCodec decoder = mDecoder;
         ByteBuffer[] decoderInputBuffers = decoder.getInputBuffers();
-        int inputChunk = 0;
-        long firstInputTimeNsec = -1;
+        mInputChunk = 0;
+        boolean firstOutputLogged = false;
+        boolean firstFrameReported = false;
 
         boolean outputDone = false;
-        boolean inputDone = false;
+        boolean outputTimedOut = false;
+        boolean inputDone = preRoll(decoder, decoderInputBuffers);
+
         while (!outputDone) {
             if (VERBOSE) Log.d(TAG, "loop");
             if (mIsStopRequested) {
@@ -309,48 +509,28 @@ public class MoviePlayer {
                 return;
             }
 
-            // Feed more data to the decoder.
-            if (!inputDone) {
-                int inputBufIndex = decoder.dequeueInputBuffer(TIMEOUT_USEC);
-                if (inputBufIndex >= 0) {
-                    if (firstInputTimeNsec == -1) {
-                        firstInputTimeNsec = System.nanoTime();
-                    }
-                    ByteBuffer inputBuf = decoderInputBuffers[inputBufIndex];
-                    // Read the sample data into the ByteBuffer.  This neither respects nor
-                    // updates inputBuf's position, limit, etc.
-                    int chunkSize = extractor.readSampleData(inputBuf, 0);
-                    if (chunkSize < 0) {
-                        // End of stream -- send empty frame with EOS flag set.
-                        decoder.queueInputBuffer(inputBufIndex, 0, 0, 0L,
-                                MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                        inputDone = true;
-                        if (VERBOSE) Log.d(TAG, "sent input EOS");
-                    } else {
-                        if (extractor.getSampleTrackIndex() != trackIndex) {
-                            Log.w(TAG, "WEIRD: got sample from track " +
-                                    extractor.getSampleTrackIndex() + ", expected " + trackIndex);
-                        }
-                        long presentationTimeUs = extractor.getSampleTime();
-                        decoder.queueInputBuffer(inputBufIndex, 0, chunkSize,
-                                presentationTimeUs, 0 /*flags*/);
-                        if (VERBOSE) {
-                            Log.d(TAG, "submitted frame " + inputChunk + " to dec, size=" +
-                                    chunkSize);
-                        }
-                        inputChunk++;
-                        extractor.advance();
-                    }
-                } else {
+            // Feed more data to the decoder.  If we didn't get any output last time, and
+            // adaptive input is enabled, try to feed it several buffers.
+            int inputBurst = (mAdaptiveInput && outputTimedOut) ? ADAPTIVE_INPUT_BURST : 1;
+            for (int i = 0; i < inputBurst && !inputDone; i++) {
+                int result = feedDecoder(decoder, decoderInputBuffers,
+                        i == 0 ? TIMEOUT_USEC : 0);
+                if (result == INPUT_UNAVAILABLE) {
                     if (VERBOSE) Log.d(TAG, "input buffer not available");
+                    break;
+                }
+                if (result == INPUT_END_OF_STREAM) {
+                    inputDone = true;
                 }
             }
+            outputTimedOut = false;
 
             if (!outputDone) {
                 int decoderStatus = decoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
                 if (decoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
                     // no output available yet
                     if (VERBOSE) Log.d(TAG, "no output from decoder available");
+                    outputTimedOut = true;
                 } else if (decoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
                     // not important for us, since we're using Surface
                     if (VERBOSE) Log.d(TAG, "decoder output buffers changed");
@@ -362,20 +542,27 @@ public class MoviePlayer {
                             "unexpected result from decoder.dequeueOutputBuffer: " +
                                     decoderStatus);
                 } else { // decoderStatus >= 0
-                    if (firstInputTimeNsec != 0) {
+                    if (mBufferInfo.size != 0) {
+                        long ptsUsec = mBufferInfo.presentationTimeUs;
+                        mMetrics.onOutput(ptsUsec, System.nanoTime());
+                        if (mPrevOutputPtsUsec >= 0 && ptsUsec > mPrevOutputPtsUsec) {
+                            mFrameDurationUsec = ptsUsec - mPrevOutputPtsUsec;
+                        }
+                        mPrevOutputPtsUsec = ptsUsec;
+                    }
+                    if (!firstOutputLogged) {
                         // Log the delay from the first buffer of input to the first buffer
                         // of output.
-                        long nowNsec = System.nanoTime();
-                        Log.d(TAG, "startup lag " + ((nowNsec-firstInputTimeNsec) / 1000000.0) + " ms");
-                        firstInputTimeNsec = 0;
+                        Log.d(TAG, "startup lag " + mMetrics.getStartupLagUsec() / 1000.0 + " ms");
+                        firstOutputLogged = true;
                     }
-                    boolean doLoop = false;
+                    boolean doSwitch = false;
                     if (VERBOSE) Log.d(TAG, "surface decoder given buffer " + decoderStatus +
                             " (size=" + mBufferInfo.size + ")");
                     if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
                         if (VERBOSE) Log.d(TAG, "output EOS");
-                        if (mLoop) {
-                            doLoop = true;
+                        if (mPendingSource != null) {
+                            doSwitch = true;
                         } else {
                             outputDone = true;
                         }
@@ -383,30 +570,445 @@ public class MoviePlayer {
 
                     boolean doRender = (mBufferInfo.size != 0);
 
+                    if (doRender && waitWhilePaused()) {
+                        if (mIsStopRequested) {
+                            decoder.releaseOutputBuffer(decoderStatus, false);
+                            Log.d(TAG, "Stop requested while paused");
+                            return;
+                        }
+                        if (frameCallback != null) {
+                            frameCallback.playbackResumed();
+                        }
+                        mMetrics.onTimelineReset();
+                    }
+
                     // As soon as we call releaseOutputBuffer, the buffer will be forwarded
                     // to SurfaceTexture to convert to a texture.  We can't control when it
                     // appears on-screen, but we can manage the pace at which we release
                     // the buffers.
+                    long pacingTimeUsec = 0;
+                    if (doRender) {
+                        pacingTimeUsec = toPacingTime(mBufferInfo.presentationTimeUs);
+                    }
                     if (doRender && frameCallback != null) {
-                        frameCallback.preRender(mBufferInfo.presentationTimeUs);
+                        doRender = frameCallback.preRender(pacingTimeUsec);
+                        if (!doRender) {
+                            mMetrics.onFrameDropped();
+                        }
                     }
                     decoder.releaseOutputBuffer(decoderStatus, doRender);
+                    if (doRender) {
+                        mMetrics.onFrameRendered(pacingTimeUsec, System.nanoTime());
+                    }
+                    if (doRender && !firstFrameReported) {
+                        long startupUsec = mMetrics.getTimeToFirstFrameUsec();
+                        Log.d(TAG, "time to first frame " + startupUsec / 1000.0 + " ms");
+                        if (mPlayTask != null) {
+                            mPlayTask.reportFirstFrame(startupUsec);
+                        }
+                        firstFrameReported = true;
+                    }
                     if (doRender && frameCallback != null) {
                         frameCallback.postRender();
                     }
 
-                    if (doLoop) {
-                        Log.d(TAG, "Reached EOS, looping");
-                        extractor.seekTo(0, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
-                        inputDone = false;
-                        decoder.flush();    // reset decoder state
-                        frameCallback.loopReset();
+                    if (doSwitch) {
+                        Log.d(TAG, "Reached EOS, switching decoder for " +
+                                mSourceFiles[mPendingSource.index]);
+                        decoder = switchDecoder();
+                        decoderInputBuffers = decoder.getInputBuffers();
+                        mMetrics.onDecoderFlushed();
+                        inputDone = preRoll(decoder, decoderInputBuffers);
                     }
                 }
             }
         }
     }
 
+    /**
+     * Fills the decoder's input with the start of the movie, if pre-roll is enabled.
+     *
+     * @return True if the end of stream was submitted.
+     */
+    private boolean preRoll(MediaCodec decoder, ByteBuffer[] decoderInputBuffers) {
+        if (mPreRollCount <= 0) {
+            return false;
+        }
+        // The decoder may not accept anything until it has finished starting up, so keep
+        // trying for a little while, but once it has taken some input and then stops, it's
+        // full.
+        long startNsec = System.nanoTime();
+        int queued = 0;
+        boolean inputDone = false;
+        while (queued < mPreRollCount && !inputDone) {
+            int result = feedDecoder(decoder, decoderInputBuffers,
+                    queued == 0 ? TIMEOUT_USEC : 0);
+            if (result == INPUT_QUEUED) {
+                queued++;
+            } else if (result == INPUT_END_OF_STREAM) {
+                inputDone = true;
+            } else if (queued > 0 ||
+                    System.nanoTime() - startNsec > PRE_ROLL_MAX_WAIT_NSEC) {
+                break;
+            }
+        }
+        Log.d(TAG, "pre-roll queued " + queued + " buffers in " +
+                (System.nanoTime() - startNsec) / 1000 + "us");
+        return inputDone;
+    }
+
+    /**
+     * Submits the next chunk of input to the decoder, if it has an input buffer available.
+     * <p>
+     * When the current file runs out, we move on to the next one in the playlist.  If it
+     * can go through the same decoder, we carry straight on; otherwise we send end of stream,
+     * and the decoder is switched when that comes out the other side.
+     *
+     * @return INPUT_QUEUED if a chunk was submitted, INPUT_END_OF_STREAM if the end of
+     *     stream was submitted, or INPUT_UNAVAILABLE if no buffer was available.
+     */
+    private int feedDecoder(MediaCodec decoder, ByteBuffer[] decoderInputBuffers,
+            long timeoutUsec) {
+        int inputBufIndex = decoder.dequeueInputBuffer(timeoutUsec);
+        if (inputBufIndex < 0) {
+            return INPUT_UNAVAILABLE;
+        }
+        ByteBuffer inputBuf = decoderInputBuffers[inputBufIndex];
+        // Read the sample data into the ByteBuffer.  This neither respects nor
+        // updates inputBuf's position, limit, etc.
+        int chunkSize = mSource.extractor.readSampleData(inputBuf, 0);
+        if (chunkSize < 0 && mPreparer != null) {
+            Source next = mPreparer.await();
+            mPreparer = null;
+            if (next.decoder == null) {
+                if (VERBOSE) Log.d(TAG, "continuing with " + mSourceFiles[next.index]);
+                switchSource(next);
+                chunkSize = mSource.extractor.readSampleData(inputBuf, 0);
+            } else {
+                mPendingSource = next;
+            }
+        }
+        MediaExtractor extractor = mSource.extractor;
+        if (chunkSize < 0) {
+            // End of stream -- send empty frame with EOS flag set.
+            decoder.queueInputBuffer(inputBufIndex, 0, 0, 0L,
+                    MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            if (VERBOSE) Log.d(TAG, "sent input EOS");
+            return INPUT_END_OF_STREAM;
+        }
+
+        if (extractor.getSampleTrackIndex() != mSource.trackIndex) {
+            Log.w(TAG, "WEIRD: got sample from track " +
+                    extractor.getSampleTrackIndex() + ", expected " + mSource.trackIndex);
+        }
+        long presentationTimeUs = extractor.getSampleTime();
+        long inputPtsUsec = presentationTimeUs + mSource.ptsOffsetUsec;
+        decoder.queueInputBuffer(inputBufIndex, 0, chunkSize,
+                inputPtsUsec, 0 /*flags*/);
+        mMetrics.onInputQueued(inputPtsUsec, System.nanoTime());
+        if (inputPtsUsec > mLastInputPtsUsec) {
+            mLastInputPtsUsec = inputPtsUsec;
+        }
+        if (VERBOSE) {
+            Log.d(TAG, "submitted frame " + mInputChunk + " to dec, size=" + chunkSize);
+        }
+        mInputChunk++;
+        if (mKeyframesOnly &&
+                (extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0) {
+            skipToNextSyncFrame(extractor, presentationTimeUs);
+        } else {
+            extractor.advance();
+        }
+        return INPUT_QUEUED;
+    }
+
+    /**
+     * Makes "next" the current playlist entry, and starts opening the one after it.  Its
+     * time stamps are offset to start one frame after the last one we sent to the decoder.
+     */
+    private void switchSource(Source next) {
+        long frameDurationUsec = mFrameDurationUsec > 0 ? mFrameDurationUsec : 1000000 / 30;
+        long firstSampleUsec = next.extractor.getSampleTime();
+        if (firstSampleUsec < 0) {
+            firstSampleUsec = 0;
+        }
+        next.ptsOffsetUsec = mLastInputPtsUsec + frameDurationUsec - firstSampleUsec;
+        releaseSource(mSource);
+        mSource = next;
+        prepareNextSource();
+    }
+
+    /**
+     * Replaces the drained decoder with the one created for mPendingSource.
+     */
+    private MediaCodec switchDecoder() {
+        releaseDecoder(mDecoder, true);
+        mDecoder = null;
+
+        Source next = mPendingSource;
+        mPendingSource = null;
+        mDecoder = next.decoder;
+        next.decoder = null;
+        mDecoder.configure(next.format, mOutputSurface, null, 0);
+        mDecoder.start();
+        switchSource(next);
+        return mDecoder;
+    }
+
+    /**
+     * Creates an unconfigured decoder for the format, or gets one from the pool.
+     */
+    private MediaCodec createDecoder(MediaFormat format) throws IOException {
+        if (mDecoderPool != null) {
+            return mDecoderPool.acquire(format);
+        }
+        return MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+    }
+
+    /**
+     * Releases a decoder from createDecoder(), or returns it to the pool.
+     */
+    private void releaseDecoder(MediaCodec decoder, boolean configured) {
+        if (mDecoderPool != null) {
+            mDecoderPool.recycle(decoder);
+            return;
+        }
+        if (configured) {
+            decoder.stop();
+        }
+        decoder.release();
+    }
+
+    /**
+     * Releases a playlist entry, including its decoder if it has one.
+     */
+    private void releaseSource(Source source) {
+        if (source.decoder != null) {
+            releaseDecoder(source.decoder, false);
+            source.decoder = null;
+        }
+        source.release();
+    }
+
+    /**
+     * Starts opening the playlist entry that follows mSource, if there is one.
+     */
+    private void prepareNextSource() {
+        int nextIndex = mSource.index + 1;
+        if (nextIndex == mSourceFiles.length) {
+            if (!mLoop) {
+                return;
+            }
+            nextIndex = 0;
+        }
+        mPreparer = new SourcePreparer(nextIndex, mSource.format);
+        mPreparer.start();
+    }
+
+    /**
+     * Returns true if a stream with format "next" can be sent to a decoder configured for
+     * "current" without reconfiguring it.  We require the same codec, size, and codec-specific
+     * data.
+     */
+    private static boolean isSameFormat(MediaFormat current, MediaFormat next) {
+        return current.getString(MediaFormat.KEY_MIME).equals(
+                        next.getString(MediaFormat.KEY_MIME)) &&
+                current.getInteger(MediaFormat.KEY_WIDTH) ==
+                        next.getInteger(MediaFormat.KEY_WIDTH) &&
+                current.getInteger(MediaFormat.KEY_HEIGHT) ==
+                        next.getInteger(MediaFormat.KEY_HEIGHT) &&
+                isSameBuffer(current, next, "csd-0") &&
+                isSameBuffer(current, next, "csd-1");
+    }
+
+    private static boolean isSameBuffer(MediaFormat current, MediaFormat next, String key) {
+        ByteBuffer a = current.containsKey(key) ? current.getByteBuffer(key) : null;
+        ByteBuffer b = next.containsKey(key) ? next.getByteBuffer(key) : null;
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * Moves the extractor from the sync frame at sampleTimeUsec to a later sync frame.
+     * <p>
+     * We seek to the sync frame at or before the point we'd like to show next.  If the sync
+     * frames are far apart that's just the one we're on, so we take the next one instead.
+     */
+    private void skipToNextSyncFrame(MediaExtractor extractor, long sampleTimeUsec) {
+        long stepUsec = (long) (TRICK_FRAME_INTERVAL_USEC * mSpeed);
+        extractor.seekTo(sampleTimeUsec + stepUsec, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        long newTimeUsec = extractor.getSampleTime();
+        if (newTimeUsec >= 0 && newTimeUsec <= sampleTimeUsec) {
+            extractor.seekTo(sampleTimeUsec + 1, MediaExtractor.SEEK_TO_NEXT_SYNC);
+            newTimeUsec = extractor.getSampleTime();
+            if (newTimeUsec >= 0 && newTimeUsec <= sampleTimeUsec) {
+                // Extractor won't move forward by sync frame.  Fall back to the next frame,
+                // which is at least decodable since we just sent the previous sync frame.
+                extractor.seekTo(sampleTimeUsec, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+                extractor.advance();
+            }
+        }
+        if (VERBOSE) Log.d(TAG, "keyframe skip " + sampleTimeUsec + " -> " + newTimeUsec);
+    }
+
+    /**
+     * Converts a presentation time stamp from the movie to the time stamp we give the
+     * FrameCallback.  The intervals between frames are divided by the playback speed, so
+     * a speed change takes effect smoothly.
+     */
+    private long toPacingTime(long presentationTimeUsec) {
+        if (mPrevPtsUsec < 0) {
+            // first frame
+            mPacingPtsUsec = presentationTimeUsec;
+        } else {
+            long delta = presentationTimeUsec - mPrevPtsUsec;
+            if (delta > 0) {
+                delta = (long) (delta / mSpeed);
+            }
+            mPacingPtsUsec += delta;
+        }
+        mPrevPtsUsec = presentationTimeUsec;
+        return mPacingPtsUsec;
+    }
+
+    /**
+     * Blocks while playback is paused, until we're resumed, a step is requested, or we're
+     * asked to stop.
+     *
+     * @return True if playback was paused.
+     */
+    private boolean waitWhilePaused() {
+        synchronized (mPauseLock) {
+            if (!mPaused) {
+                return false;
+            }
+            while (mPaused && mStepFrames == 0 && !mIsStopRequested) {
+                try {
+                    mPauseLock.wait();
+                } catch (InterruptedException ie) {
+                    // ignore
+                }
+            }
+            if (mPaused && mStepFrames > 0) {
+                mStepFrames--;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A playlist entry, opened and positioned at the first video sample.
+     */
+    private static class Source {
+        final int index;
+        final MediaExtractor extractor;
+        final int trackIndex;
+        final MediaFormat format;
+        long ptsOffsetUsec;     // added to sample times, so they follow on from the last file
+        MediaCodec decoder;     // created in advance if the format needs a new decoder
+
+        private Source(int index, MediaExtractor extractor, int trackIndex) {
+            this.index = index;
+            this.extractor = extractor;
+            this.trackIndex = trackIndex;
+            this.format = extractor.getTrackFormat(trackIndex);
+        }
+
+        static Source open(int index, File file) throws IOException {
+            MediaExtractor extractor = new MediaExtractor();
+            try {
+                extractor.setDataSource(file.toString());
+                int trackIndex = selectTrack(extractor);
+                if (trackIndex < 0) {
+                    throw new RuntimeException("No video track found in " + file);
+                }
+                extractor.selectTrack(trackIndex);
+                Source source = new Source(index, extractor, trackIndex);
+                extractor = null;
+                return source;
+            } finally {
+                if (extractor != null) {
+                    extractor.release();
+                }
+            }
+        }
+
+        /**
+         * Releases the extractor.  The decoder, if any, is the caller's responsibility.
+         */
+        void release() {
+            extractor.release();
+        }
+    }
+
+    /**
+     * Opens a playlist entry on a background thread, so the decode thread doesn't stall when
+     * it gets to the end of the current one.  If the entry can't go through the current
+     * decoder, a new decoder is created as well.
+     */
+    private class SourcePreparer extends Thread {
+        private final int mIndex;
+        private final MediaFormat mCurrentFormat;
+        private Source mResult;
+        private Exception mError;
+
+        SourcePreparer(int index, MediaFormat currentFormat) {
+            super("SourcePreparer");
+            mIndex = index;
+            mCurrentFormat = currentFormat;
+        }
+
+        @Override
+        public void run() {
+            Source source = null;
+            try {
+                source = Source.open(mIndex, mSourceFiles[mIndex]);
+                if (!isSameFormat(mCurrentFormat, source.format)) {
+                    Log.d(TAG, "format changes at " + mSourceFiles[mIndex]);
+                    source.decoder = createDecoder(source.format);
+                }
+                mResult = source;
+            } catch (Exception ex) {
+                if (source != null) {
+                    releaseSource(source);
+                }
+                mError = ex;
+            }
+        }
+
+        /**
+         * Waits for the entry to be opened, and returns it.
+         */
+        Source await() {
+            joinUninterruptibly();
+            if (mError != null) {
+                throw new RuntimeException("Unable to open " + mSourceFiles[mIndex], mError);
+            }
+            return mResult;
+        }
+
+        /**
+         * Waits for the thread to finish, and discards the result.
+         */
+        void cancel() {
+            joinUninterruptibly();
+            if (mResult != null) {
+                releaseSource(mResult);
+                mResult = null;
+            }
+        }
+
+        private void joinUninterruptibly() {
+            while (true) {
+                try {
+                    join();
+                    return;
+                } catch (InterruptedException ie) {
+                    // ignore
+                }
+            }
+        }
+    }
+
     /**
      * Thread helper for video playback.
      * <p>
@@ -415,6 +1017,7 @@ public class MoviePlayer {
      */
     public static class PlayTask implements Runnable {
         private static final int MSG_PLAY_STOPPED = 0;
+        private static final int MSG_FIRST_FRAME = 1;
 
         private MoviePlayer mPlayer;
         private PlayerFeedback mFeedback;
@@ -434,6 +1037,7 @@ public class MoviePlayer {
         public PlayTask(MoviePlayer player, PlayerFeedback feedback) {
             mPlayer = player;
             mFeedback = feedback;
+            mPlayer.mPlayTask = this;
 
             mLocalHandler = new LocalHandler();
         }
@@ -480,6 +1084,16 @@ public class MoviePlayer {
             }
         }
 
+        /**
+         * Forwards the time-to-first-frame measurement to the feedback object.  Called on
+         * the player thread.
+         */
+        void reportFirstFrame(long startupUsec) {
+            // An int holds over half an hour of microseconds.
+            mLocalHandler.sendMessage(mLocalHandler.obtainMessage(MSG_FIRST_FRAME,
+                    (int) startupUsec, 0, mFeedback));
+        }
+
         @Override
         public void run() {
             try {
@@ -509,6 +1123,9 @@ public class MoviePlayer {
                         PlayerFeedback fb = (PlayerFeedback) msg.obj;
                         fb.playbackStopped();
                         break;
+                    case MSG_FIRST_FRAME:
+                        ((PlayerFeedback) msg.obj).firstFrameRendered(msg.arg1);
+                        break;
                     default:
                         throw new RuntimeException("Unknown msg " + what);
                 }
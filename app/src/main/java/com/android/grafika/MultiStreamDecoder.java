@@ -0,0 +1,519 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Runs many video streams on a fixed number of worker threads.
+ * <p>
+ * A thread per stream (as in the original DoubleDecodeActivity) is fine for two streams, but
+ * with a wall of 16 it's mostly threads sleeping until their next frame is due.  Here,
+ * each stream does its work in short, non-blocking steps: feed the decoder what it'll take,
+ * collect output, release any frame that's due.  The step says when it next wants to run,
+ * and the stream goes back in a queue ordered by that time.  Workers take whatever is due.
+ * <p>
+ * One stream can have focus.  It's scheduled ahead of the others, and decodes every frame.
+ * The rest decode only keyframes, which are cheap to decode on their own and keep the tiles
+ * moving at a much lower cost.
+ * <p>
+ * Nothing here depends on the Android framework.  The streams do the actual decoding;
+ * MediaCodecDecodeStream uses MediaCodec.  The clock is pluggable, and an engine created
+ * without worker threads is driven by calls to runDueSteps(), so the scheduling can be
+ * tested deterministically on a desktop JVM with streams that just pretend to decode.
+ */
+public class MultiStreamDecoder {
+    /** Returned from Stream#step() when the stream has finished. */
+    public static final long STREAM_DONE = -1;
+
+    /** Focused stream: decodes every frame, and runs first. */
+    public static final int PRIORITY_FOCUSED = 0;
+    /** Everything else: keyframes only. */
+    public static final int PRIORITY_BACKGROUND = 1;
+
+    /**
+     * Time source.  The default uses System.nanoTime().
+     */
+    public interface Clock {
+        /** Returns the current time, in nanoseconds, from an arbitrary monotonic base. */
+        long nanoTime();
+    }
+
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    /**
+     * A video stream.  Subclasses do the decoding.
+     * <p>
+     * The engine guarantees that only one worker at a time calls into a given stream, but
+     * it may not be the same worker each time.
+     */
+    public abstract static class Stream {
+        // Engine state.  Guarded by the engine's lock.
+        private int mPriority = PRIORITY_BACKGROUND;
+        private long mDueNsec;
+        private boolean mQueued;
+        private boolean mRemoveRequested;
+        private long mTotalRendered;
+        private Throwable mError;
+
+        // Counts since the last step, updated by the worker running the stream.
+        private int mRendered;
+        private int mDropped;
+
+        /**
+         * Does a slice of work.  This must not block for long, since other streams are
+         * waiting for the worker.
+         *
+         * @param nowNsec The current time, from the engine's clock.
+         * @param keyframesOnly If set, skip anything that isn't a keyframe.  Changes take
+         *     effect at the next keyframe.
+         * @return When the stream next wants to run, in the engine's clock terms, or
+         *     STREAM_DONE.
+         */
+        protected abstract long step(long nowNsec, boolean keyframesOnly);
+
+        /**
+         * Releases resources.  Called on a worker thread after the last step.
+         */
+        protected abstract void release();
+
+        /** Call from step() when a frame has been sent to the display. */
+        protected final void frameRendered() {
+            mRendered++;
+        }
+
+        /** Call from step() when a decoded frame was discarded because it was late. */
+        protected final void frameDropped() {
+            mDropped++;
+        }
+    }
+
+    /**
+     * Aggregate statistics.  Allocate one and reuse it.
+     */
+    public static class Stats {
+        public int workerCount;
+        public int streamCount;
+        public long framesRendered;
+        public long framesDropped;
+        public long stepCount;
+        public long errorCount;
+        public long elapsedNsec;
+        public long busyNsec;
+        /** How long after their due time streams got to run. */
+        public final PlaybackMetrics.Percentiles scheduleLatenessUsec =
+                new PlaybackMetrics.Percentiles();
+
+        /** Frames rendered per second, across all streams. */
+        public double getFramesPerSecond() {
+            return elapsedNsec == 0 ? 0 : framesRendered * 1000000000.0 / elapsedNsec;
+        }
+
+        /** Fraction of the worker threads' time spent in steps, from 0 to 1. */
+        public double getUtilization() {
+            return elapsedNsec == 0 ? 0 : (double) busyNsec / (elapsedNsec * workerCount);
+        }
+
+        @Override
+        public String toString() {
+            return "streams=" + streamCount + " workers=" + workerCount +
+                    " rendered=" + framesRendered + " dropped=" + framesDropped +
+                    " errors=" + errorCount +
+                    " fps=" + String.format("%.1f", getFramesPerSecond()) +
+                    " util=" + String.format("%.2f", getUtilization()) +
+                    " steps=" + stepCount + " schedLateUs: " + scheduleLatenessUsec;
+        }
+    }
+
+    private static final Comparator<Stream> DUE_ORDER = new Comparator<Stream>() {
+        @Override
+        public int compare(Stream lhs, Stream rhs) {
+            long diff = lhs.mDueNsec - rhs.mDueNsec;
+            return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+        }
+    };
+
+    private final Clock mClock;
+    private final Object mLock = new Object();
+    private final ArrayList<Stream> mStreams = new ArrayList<Stream>();
+    private final PriorityQueue<Stream> mFocusedQueue =
+            new PriorityQueue<Stream>(4, DUE_ORDER);
+    private final PriorityQueue<Stream> mBackgroundQueue =
+            new PriorityQueue<Stream>(16, DUE_ORDER);
+    private final Thread[] mWorkers;
+    private boolean mShutdown;
+
+    // Statistics.  Guarded by mLock.
+    private final LogHistogram mScheduleLateness = new LogHistogram();
+    private long mStatsStartNsec;
+    private long mFramesRendered;
+    private long mFramesDropped;
+    private long mStepCount;
+    private long mErrorCount;
+    private long mBusyNsec;
+
+    /**
+     * Creates the engine and starts the worker threads.
+     */
+    public MultiStreamDecoder(int workerCount) {
+        this(checkWorkerCount(workerCount), SYSTEM_CLOCK);
+    }
+
+    /**
+     * Creates an engine with no worker threads.  Nothing runs until the caller invokes
+     * runDueSteps().
+     */
+    public MultiStreamDecoder(Clock clock) {
+        this(0, clock);
+    }
+
+    private MultiStreamDecoder(int workerCount, Clock clock) {
+        mClock = clock;
+        mStatsStartNsec = clock.nanoTime();
+        mWorkers = new Thread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            mWorkers[i] = new Thread("DecodeWorker" + i) {
+                @Override
+                public void run() {
+                    workerLoop();
+                }
+            };
+            mWorkers[i].start();
+        }
+    }
+
+    /**
+     * Adds a stream.  It starts running right away.
+     */
+    public void addStream(Stream stream, int priority) {
+        synchronized (mLock) {
+            if (mShutdown) {
+                throw new IllegalStateException("engine has been shut down");
+            }
+            if (mStreams.contains(stream)) {
+                throw new IllegalArgumentException("stream already added");
+            }
+            stream.mPriority = priority;
+            stream.mDueNsec = mClock.nanoTime();
+            stream.mRemoveRequested = false;
+            mStreams.add(stream);
+            enqueueLocked(stream);
+        }
+    }
+
+    /**
+     * Asks for a stream to be removed.  Returns without waiting; the stream is released on
+     * a worker thread once any step in progress finishes.
+     */
+    public void removeStream(Stream stream) {
+        synchronized (mLock) {
+            if (!mStreams.contains(stream) || stream.mRemoveRequested) {
+                return;
+            }
+            stream.mRemoveRequested = true;
+            if (stream.mQueued) {
+                // Not running; bump it to the front so a worker takes it and releases it.
+                dequeueLocked(stream);
+                stream.mDueNsec = mClock.nanoTime();
+                enqueueLocked(stream);
+            }
+        }
+    }
+
+    /**
+     * Changes a stream's priority.
+     */
+    public void setPriority(Stream stream, int priority) {
+        synchronized (mLock) {
+            if (stream.mPriority == priority) {
+                return;
+            }
+            boolean queued = stream.mQueued;
+            if (queued) {
+                dequeueLocked(stream);
+            }
+            stream.mPriority = priority;
+            if (queued) {
+                enqueueLocked(stream);
+            }
+        }
+    }
+
+    /**
+     * Gives a stream focus, and takes it away from any other stream.  Pass null to focus
+     * nothing.
+     */
+    public void setFocus(Stream stream) {
+        synchronized (mLock) {
+            for (int i = 0; i < mStreams.size(); i++) {
+                Stream other = mStreams.get(i);
+                setPriority(other, other == stream ? PRIORITY_FOCUSED : PRIORITY_BACKGROUND);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of frames a stream has rendered.
+     */
+    public long getRenderedCount(Stream stream) {
+        synchronized (mLock) {
+            return stream.mTotalRendered;
+        }
+    }
+
+    /**
+     * Returns the exception that stopped a stream, or null if it didn't fail.
+     */
+    public Throwable getError(Stream stream) {
+        synchronized (mLock) {
+            return stream.mError;
+        }
+    }
+
+    /**
+     * Copies the statistics gathered since the engine started, or since the last reset.
+     */
+    public void getStats(Stats stats, boolean reset) {
+        synchronized (mLock) {
+            long nowNsec = mClock.nanoTime();
+            // Without worker threads, the thread calling runDueSteps() does the work.
+            stats.workerCount = Math.max(mWorkers.length, 1);
+            stats.streamCount = mStreams.size();
+            stats.framesRendered = mFramesRendered;
+            stats.framesDropped = mFramesDropped;
+            stats.stepCount = mStepCount;
+            stats.errorCount = mErrorCount;
+            stats.elapsedNsec = nowNsec - mStatsStartNsec;
+            stats.busyNsec = mBusyNsec;
+            stats.scheduleLatenessUsec.set(mScheduleLateness);
+            if (reset) {
+                mStatsStartNsec = nowNsec;
+                mFramesRendered = mFramesDropped = mStepCount = mErrorCount = mBusyNsec = 0;
+                mScheduleLateness.reset();
+            }
+        }
+    }
+
+    /**
+     * Stops the workers and releases all streams.  Waits for everything to finish.
+     */
+    public void shutdown() {
+        synchronized (mLock) {
+            mShutdown = true;
+            mLock.notifyAll();
+        }
+        for (Thread worker : mWorkers) {
+            while (true) {
+                try {
+                    worker.join();
+                    break;
+                } catch (InterruptedException ie) {
+                    // ignore
+                }
+            }
+        }
+        // Workers are gone, so nothing is running.
+        ArrayList<Stream> streams;
+        synchronized (mLock) {
+            streams = new ArrayList<Stream>(mStreams);
+            mStreams.clear();
+            mFocusedQueue.clear();
+            mBackgroundQueue.clear();
+        }
+        for (Stream stream : streams) {
+            stream.release();
+        }
+    }
+
+    /**
+     * Runs every stream that's due, on the calling thread, until none are.  Only for
+     * engines created without worker threads.
+     *
+     * @return The number of steps run.
+     */
+    public int runDueSteps() {
+        if (mWorkers.length != 0) {
+            throw new IllegalStateException("engine has worker threads");
+        }
+        int count = 0;
+        while (true) {
+            Stream stream;
+            long nowNsec;
+            synchronized (mLock) {
+                if (mShutdown) {
+                    break;
+                }
+                nowNsec = mClock.nanoTime();
+                stream = takeDueLocked(nowNsec);
+                if (stream == null) {
+                    break;
+                }
+            }
+            runStep(stream, nowNsec);
+            count++;
+        }
+        return count;
+    }
+
+    private void workerLoop() {
+        while (true) {
+            Stream stream;
+            long nowNsec;
+            synchronized (mLock) {
+                while (true) {
+                    if (mShutdown) {
+                        return;
+                    }
+                    nowNsec = mClock.nanoTime();
+                    stream = takeDueLocked(nowNsec);
+                    if (stream != null) {
+                        break;
+                    }
+                    waitForWorkLocked(nowNsec);
+                }
+            }
+            runStep(stream, nowNsec);
+        }
+    }
+
+    /**
+     * Runs one step of a stream that has been taken off the queue, then puts it back on
+     * the queue or releases it.
+     */
+    private void runStep(Stream stream, long nowNsec) {
+        boolean skip;
+        boolean keyframesOnly;
+        synchronized (mLock) {
+            mScheduleLateness.record((nowNsec - stream.mDueNsec) / 1000);
+            skip = stream.mRemoveRequested;
+            keyframesOnly = stream.mPriority != PRIORITY_FOCUSED;
+        }
+
+        long nextNsec = STREAM_DONE;
+        Throwable error = null;
+        if (!skip) {
+            try {
+                nextNsec = stream.step(nowNsec, keyframesOnly);
+            } catch (RuntimeException re) {
+                error = re;
+            }
+        }
+        long endNsec = mClock.nanoTime();
+
+        boolean release = false;
+        synchronized (mLock) {
+            mStepCount++;
+            mBusyNsec += endNsec - nowNsec;
+            stream.mTotalRendered += stream.mRendered;
+            mFramesRendered += stream.mRendered;
+            mFramesDropped += stream.mDropped;
+            stream.mRendered = stream.mDropped = 0;
+            if (error != null) {
+                stream.mError = error;
+                mErrorCount++;
+            }
+
+            if (nextNsec == STREAM_DONE || stream.mRemoveRequested || mShutdown) {
+                if (!mShutdown) {
+                    mStreams.remove(stream);
+                    release = true;
+                }
+                // else shutdown() releases it
+            } else {
+                stream.mDueNsec = nextNsec;
+                enqueueLocked(stream);
+            }
+        }
+        if (release) {
+            stream.release();
+        }
+    }
+
+    private static int checkWorkerCount(int workerCount) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("need at least one worker");
+        }
+        return workerCount;
+    }
+
+    /**
+     * Removes and returns a stream that's due to run, or null if none are.  Focused
+     * streams go first.
+     */
+    private Stream takeDueLocked(long nowNsec) {
+        Stream stream = mFocusedQueue.peek();
+        if (stream == null || stream.mDueNsec - nowNsec > 0) {
+            stream = mBackgroundQueue.peek();
+            if (stream == null || stream.mDueNsec - nowNsec > 0) {
+                return null;
+            }
+        }
+        dequeueLocked(stream);
+        return stream;
+    }
+
+    /**
+     * Waits until the earliest stream is due, or something changes.
+     */
+    private void waitForWorkLocked(long nowNsec) {
+        long waitNsec = Long.MAX_VALUE;
+        Stream focused = mFocusedQueue.peek();
+        if (focused != null) {
+            waitNsec = focused.mDueNsec - nowNsec;
+        }
+        Stream background = mBackgroundQueue.peek();
+        if (background != null) {
+            waitNsec = Math.min(waitNsec, background.mDueNsec - nowNsec);
+        }
+        try {
+            if (waitNsec == Long.MAX_VALUE) {
+                mLock.wait();
+            } else if (waitNsec > 0) {
+                mLock.wait(waitNsec / 1000000, (int) (waitNsec % 1000000));
+            }
+        } catch (InterruptedException ie) {
+            // ignore
+        }
+    }
+
+    private void enqueueLocked(Stream stream) {
+        if (stream.mPriority == PRIORITY_FOCUSED) {
+            mFocusedQueue.add(stream);
+        } else {
+            mBackgroundQueue.add(stream);
+        }
+        stream.mQueued = true;
+        // The new arrival may be due sooner than whatever the idle workers are waiting for.
+        mLock.notifyAll();
+    }
+
+    private void dequeueLocked(Stream stream) {
+        if (stream.mPriority == PRIORITY_FOCUSED) {
+            mFocusedQueue.remove(stream);
+        } else {
+            mBackgroundQueue.remove(stream);
+        }
+        stream.mQueued = false;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Generates synthetic pixel data for upload tests.
+ * <p>
+ * Some drivers compress textures, or otherwise do less work on data that has a lot of
+ * repetition, so we offer both a regular pattern (compresses well) and noise (doesn't
+ * compress at all).  Output depends only on the seed, so runs are repeatable.
+ * <p>
+ * Works on direct and heap buffers alike, and doesn't use any Android APIs.
+ */
+public class PixelSources {
+    private PixelSources() {}
+
+    /**
+     * Fills the buffer with a regular pattern of 4 colors, each repeated repCount times
+     * horizontally and vertically.  This should compress well.
+     * <p>
+     * Writes width*height*bytesPerPixel bytes starting at the buffer's position, which is
+     * left unchanged.  With 4 bytes per pixel, the 4th byte (alpha, for RGBA) is 0xff.
+     */
+    public static void fillPattern(ByteBuffer buf, int width, int height, int bytesPerPixel,
+            int repCount, long seed) {
+        Random rng = new Random(seed);
+        byte[][] colors = new byte[4][bytesPerPixel];
+        for (int i = 0; i < 4; i++) {
+            rng.nextBytes(colors[i]);
+            if (bytesPerPixel == 4) {
+                colors[i][3] = (byte) 255;
+            }
+        }
+
+        // Rows only differ in which color they start with, so build the 4 possible rows
+        // once and copy them in.
+        int stride = width * bytesPerPixel;
+        byte[][] rows = new byte[4][stride];
+        for (int start = 0; start < 4; start++) {
+            byte[] row = rows[start];
+            int colIndex = start;
+            int off = 0;
+            for (int x = 0; x < width; ) {
+                for (int rep = 0; rep < repCount && x < width; rep++, x++) {
+                    System.arraycopy(colors[colIndex], 0, row, off, bytesPerPixel);
+                    off += bytesPerPixel;
+                }
+                colIndex = (colIndex + 1) % 4;
+            }
+        }
+
+        int base = buf.position();
+        for (int y = 0; y < height; y++) {
+            buf.put(rows[(y / repCount) % 4]);
+        }
+        buf.position(base);
+    }
+
+    /**
+     * Fills the buffer with random data.  This will not compress at all.
+     * <p>
+     * Writes width*height*bytesPerPixel bytes starting at the buffer's position, which is
+     * left unchanged.
+     */
+    public static void fillRandom(ByteBuffer buf, int width, int height, int bytesPerPixel,
+            long seed) {
+        Random rng = new Random(seed);
+        byte[] row = new byte[width * bytesPerPixel];
+        int base = buf.position();
+        for (int y = 0; y < height; y++) {
+            rng.nextBytes(row);
+            buf.put(row);
+        }
+        buf.position(base);
+    }
+}
@@ -180,6 +180,11 @@ public class PlayMovieActivity extends Activity implements OnItemSelectedListene
             }
             adjustAspectRatio(player.getVideoWidth(), player.getVideoHeight());
 
+            player.setPreRoll(MoviePlayer.PRE_ROLL_ALL);
+            player.setAdaptiveInput(true);
+            // Stopping and starting again (or picking another clip of the same size) gets the
+            // previous decoder back, rather than creating a new one.
+            player.setDecoderPool(DecoderPool.getInstance());
             mPlayTask = new MoviePlayer.PlayTask(player, this);
             if (((CheckBox) findViewById(R.id.loopPlayback_checkbox)).isChecked()) {
                 mPlayTask.setLoopMode(true);
@@ -200,6 +205,11 @@ public class PlayMovieActivity extends Activity implements OnItemSelectedListene
         }
     }
 
+    @Override   // MoviePlayer.PlayerFeedback
+    public void firstFrameRendered(long startupUsec) {
+        Log.d(TAG, "first frame after " + startupUsec / 1000 + " ms");
+    }
+
     @Override   // MoviePlayer.PlayerFeedback
     public void playbackStopped() {
         Log.d(TAG, "playback stopped");
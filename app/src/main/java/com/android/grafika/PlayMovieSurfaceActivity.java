@@ -202,6 +202,11 @@ public class PlayMovieSurfaceActivity extends Activity implements OnItemSelected
             layout.setAspectRatio((double) width / height);
             //holder.setFixedSize(width, height);
 
+            player.setPreRoll(MoviePlayer.PRE_ROLL_ALL);
+            player.setAdaptiveInput(true);
+            // Stopping and starting again (or picking another clip of the same size) gets the
+            // previous decoder back, rather than creating a new one.
+            player.setDecoderPool(DecoderPool.getInstance());
             mPlayTask = new MoviePlayer.PlayTask(player, this);
 
             mShowStopLabel = true;
@@ -219,6 +224,11 @@ public class PlayMovieSurfaceActivity extends Activity implements OnItemSelected
         }
     }
 
+    @Override   // MoviePlayer.PlayerFeedback
+    public void firstFrameRendered(long startupUsec) {
+        Log.d(TAG, "first frame after " + startupUsec / 1000 + " ms");
+    }
+
     @Override   // MoviePlayer.PlayerFeedback
     public void playbackStopped() {
         Log.d(TAG, "playback stopped");
@@ -0,0 +1,261 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+/**
+ * Collects timing statistics for movie playback.
+ * <p>
+ * The player calls the on*() methods from its decode thread.  Nothing here allocates
+ * memory or formats strings, so it's cheap enough to leave on all the time.  Another
+ * thread can get a copy of the current values with getSnapshot().
+ * <p>
+ * We record:
+ * <ul>
+ * <li>Time to first frame: from the start of playback until the first frame is rendered.
+ * <li>Decode latency: from when a frame's input is queued until its output arrives.  Frames
+ *     are matched by presentation time stamp.
+ * <li>Decoder queue depth: how many frames were inside the decoder when an output arrived.
+ * <li>Lateness: how far behind the presentation time stamps a frame was rendered.
+ * <li>How many frames were rendered and dropped.
+ * </ul>
+ * Times are all in microseconds.
+ */
+public class PlaybackMetrics {
+    // Most decoders hold a handful of frames; if we run out of slots, the oldest is dropped.
+    private static final int MAX_IN_FLIGHT = 64;
+    // If we fall this far behind, assume the player resynced and start measuring from here.
+    private static final long STALL_THRESHOLD_USEC = 500000;
+
+    private final LogHistogram mDecodeLatency = new LogHistogram();
+    private final LogHistogram mQueueDepth = new LogHistogram();
+    private final LogHistogram mLateness = new LogHistogram();
+
+    // Input times of frames that have been queued to the decoder but haven't come out yet.
+    private final long[] mInFlightPtsUsec = new long[MAX_IN_FLIGHT];
+    private final long[] mInFlightNsec = new long[MAX_IN_FLIGHT];
+    private int mInFlightCount;
+
+    private long mPlayStartNsec;
+    private long mFirstInputNsec;
+    private long mTimeToFirstFrameUsec;
+    private long mStartupLagUsec;
+    private boolean mHaveFirstOutput;
+    private boolean mHaveFirstFrame;
+
+    // Maps presentation time to render time, for the lateness measurement.
+    private boolean mHaveTimeBase;
+    private long mBasePtsUsec;
+    private long mBaseNsec;
+
+    private long mRenderedCount;
+    private long mDroppedCount;
+    private long mStallCount;
+    private long mUnmatchedOutputCount;
+
+    /**
+     * Copy of the metrics at a point in time.  Allocate one and reuse it.
+     */
+    public static class Snapshot {
+        public long timeToFirstFrameUsec;
+        public long startupLagUsec;
+        public long renderedCount;
+        public long droppedCount;
+        public long stallCount;
+        public final Percentiles decodeLatencyUsec = new Percentiles();
+        public final Percentiles queueDepth = new Percentiles();
+        public final Percentiles latenessUsec = new Percentiles();
+
+        @Override
+        public String toString() {
+            return "ttff=" + timeToFirstFrameUsec + "us startupLag=" + startupLagUsec +
+                    "us rendered=" + renderedCount + " dropped=" + droppedCount +
+                    " stalls=" + stallCount +
+                    "\n  decodeLatencyUs: " + decodeLatencyUsec +
+                    "\n  queueDepth: " + queueDepth +
+                    "\n  latenessUs: " + latenessUsec;
+        }
+    }
+
+    /**
+     * Summary of one histogram.
+     */
+    public static class Percentiles {
+        public long count;
+        public long mean;
+        public long p50;
+        public long p90;
+        public long p99;
+        public long max;
+
+        void set(LogHistogram histogram) {
+            count = histogram.getCount();
+            mean = histogram.getMean();
+            p50 = histogram.getPercentile(50);
+            p90 = histogram.getPercentile(90);
+            p99 = histogram.getPercentile(99);
+            max = histogram.getMax();
+        }
+
+        @Override
+        public String toString() {
+            return "n=" + count + " mean=" + mean + " p50=" + p50 + " p90=" + p90 +
+                    " p99=" + p99 + " max=" + max;
+        }
+    }
+
+    /**
+     * Discards everything, and starts a new measurement from the specified time.
+     */
+    public synchronized void onPlayStart(long nowNsec) {
+        mDecodeLatency.reset();
+        mQueueDepth.reset();
+        mLateness.reset();
+        mInFlightCount = 0;
+        mPlayStartNsec = nowNsec;
+        mFirstInputNsec = 0;
+        mTimeToFirstFrameUsec = mStartupLagUsec = 0;
+        mHaveFirstOutput = mHaveFirstFrame = false;
+        mHaveTimeBase = false;
+        mRenderedCount = mDroppedCount = mStallCount = mUnmatchedOutputCount = 0;
+    }
+
+    /**
+     * Records a frame being queued to the decoder.
+     */
+    public synchronized void onInputQueued(long ptsUsec, long nowNsec) {
+        if (mFirstInputNsec == 0) {
+            mFirstInputNsec = nowNsec;
+        }
+        int slot = mInFlightCount;
+        if (slot == MAX_IN_FLIGHT) {
+            // Frames are going in and not coming out (maybe the decoder is discarding them).
+            // Reuse the oldest slot.
+            slot = 0;
+            for (int i = 1; i < MAX_IN_FLIGHT; i++) {
+                if (mInFlightNsec[i] < mInFlightNsec[slot]) {
+                    slot = i;
+                }
+            }
+        } else {
+            mInFlightCount++;
+        }
+        mInFlightPtsUsec[slot] = ptsUsec;
+        mInFlightNsec[slot] = nowNsec;
+    }
+
+    /**
+     * Records a frame coming out of the decoder.
+     */
+    public synchronized void onOutput(long ptsUsec, long nowNsec) {
+        if (!mHaveFirstOutput && mFirstInputNsec != 0) {
+            mHaveFirstOutput = true;
+            mStartupLagUsec = (nowNsec - mFirstInputNsec) / 1000;
+        }
+        mQueueDepth.record(mInFlightCount);
+        for (int i = 0; i < mInFlightCount; i++) {
+            if (mInFlightPtsUsec[i] == ptsUsec) {
+                mDecodeLatency.record((nowNsec - mInFlightNsec[i]) / 1000);
+                mInFlightCount--;
+                mInFlightPtsUsec[i] = mInFlightPtsUsec[mInFlightCount];
+                mInFlightNsec[i] = mInFlightNsec[mInFlightCount];
+                return;
+            }
+        }
+        mUnmatchedOutputCount++;
+    }
+
+    /**
+     * Records that the decoder was flushed.  Anything that was in it is gone.
+     */
+    public synchronized void onDecoderFlushed() {
+        mInFlightCount = 0;
+    }
+
+    /**
+     * Records a frame being sent to the display.
+     *
+     * @param ptsUsec Presentation time, on the timeline playback is being paced against.
+     */
+    public synchronized void onFrameRendered(long ptsUsec, long nowNsec) {
+        mRenderedCount++;
+        if (!mHaveFirstFrame) {
+            mHaveFirstFrame = true;
+            mTimeToFirstFrameUsec = (nowNsec - mPlayStartNsec) / 1000;
+        }
+        if (mHaveTimeBase) {
+            long lateUsec = (nowNsec - mBaseNsec) / 1000 - (ptsUsec - mBasePtsUsec);
+            if (lateUsec <= STALL_THRESHOLD_USEC) {
+                mLateness.record(lateUsec);
+                return;
+            }
+            mStallCount++;
+        }
+        mHaveTimeBase = true;
+        mBasePtsUsec = ptsUsec;
+        mBaseNsec = nowNsec;
+    }
+
+    /**
+     * Records a frame that was decoded but not rendered.
+     */
+    public synchronized void onFrameDropped() {
+        mDroppedCount++;
+    }
+
+    /**
+     * Records a break in the presentation timeline, e.g. a loop or a pause.  Lateness is
+     * measured from the next frame rendered.
+     */
+    public synchronized void onTimelineReset() {
+        mHaveTimeBase = false;
+    }
+
+    /**
+     * Returns the time to first frame, in microseconds, or zero if no frame has been rendered.
+     */
+    public synchronized long getTimeToFirstFrameUsec() {
+        return mTimeToFirstFrameUsec;
+    }
+
+    /**
+     * Returns the time from the first input to the first output, in microseconds.
+     */
+    public synchronized long getStartupLagUsec() {
+        return mStartupLagUsec;
+    }
+
+    /**
+     * Returns the number of outputs that didn't match a queued input.
+     */
+    public synchronized long getUnmatchedOutputCount() {
+        return mUnmatchedOutputCount;
+    }
+
+    /**
+     * Copies the current values into the snapshot.
+     */
+    public synchronized void getSnapshot(Snapshot snapshot) {
+        snapshot.timeToFirstFrameUsec = mTimeToFirstFrameUsec;
+        snapshot.startupLagUsec = mStartupLagUsec;
+        snapshot.renderedCount = mRenderedCount;
+        snapshot.droppedCount = mDroppedCount;
+        snapshot.stallCount = mStallCount;
+        snapshot.decodeLatencyUsec.set(mDecodeLatency);
+        snapshot.queueDepth.set(mQueueDepth);
+        snapshot.latenessUsec.set(mLateness);
+    }
+}
@@ -30,6 +30,7 @@ import android.app.AlertDialog;
 import android.content.DialogInterface;
 import android.content.res.Resources;
 
+import com.android.grafika.gles.AsyncPixelReader;
 import com.android.grafika.gles.EglCore;
 import com.android.grafika.gles.OffscreenSurface;
 
@@ -41,6 +42,12 @@ import java.nio.ByteOrder;
 
 /**
  * Basic glReadPixels() speed test.
+ * <p>
+ * The first result is the time spent in a full-frame glReadPixels() call, after we've
+ * waited for rendering to finish.  The other two measure throughput, rendering and reading
+ * back frames as fast as we can: first with plain glReadPixels(), which stalls until each
+ * frame is rendered, then with AsyncPixelReader, which reads each frame into a PBO and
+ * collects it two frames later.  The PBO test requires GLES 3.
  */
 public class ReadPixelsActivity extends Activity {
     private static final String TAG = MainActivity.TAG;
@@ -48,6 +55,12 @@ public class ReadPixelsActivity extends Activity {
     private static final int WIDTH = 1280;
     private static final int HEIGHT = 720;
     private static final int ITERATIONS = 100;
+    private static final int PBO_COUNT = 3;
+
+    // Indices into the results array.
+    private static final int RESULT_READ_PIXELS = 0;
+    private static final int RESULT_SYNC = 1;
+    private static final int RESULT_PBO = 2;
 
     private volatile boolean mIsCanceled;
 
@@ -94,10 +107,11 @@ public class ReadPixelsActivity extends Activity {
         Resources res = getResources();
         String running = res.getString(R.string.state_running);
         setMessage(R.id.gfxResult_text, running);
+        setMessage(R.id.gfxSyncResult_text, running);
+        setMessage(R.id.gfxPboResult_text, running);
 
         AlertDialog dialog = showProgressDialog();
-        ReadPixelsTask task = new ReadPixelsTask(dialog, R.id.gfxResult_text,
-                WIDTH, HEIGHT, ITERATIONS);
+        ReadPixelsTask task = new ReadPixelsTask(dialog, WIDTH, HEIGHT, ITERATIONS);
         mIsCanceled = false;
         task.execute();
     }
@@ -105,11 +119,10 @@ public class ReadPixelsActivity extends Activity {
     /**
      * AsyncTask class that executes the test.
      */
-    private class ReadPixelsTask extends AsyncTask<Void, Integer, Long> {
+    private class ReadPixelsTask extends AsyncTask<Void, Integer, long[]> {
         private int mWidth;
         private int mHeight;
         private int mIterations;
-        private int mResultTextId;
         private AlertDialog mDialog;
 
         private ProgressBar mProgressBar;
@@ -117,21 +130,24 @@ public class ReadPixelsActivity extends Activity {
         /**
          * Prepare for the glReadPixels test.
          */
-        public ReadPixelsTask(AlertDialog dialog, int resultTextId,
-                int width, int height, int iterations) {
+        public ReadPixelsTask(AlertDialog dialog, int width, int height, int iterations) {
             mDialog = dialog;
-            mResultTextId = resultTextId;
             mWidth = width;
             mHeight = height;
             mIterations = iterations;
 
             mProgressBar = (ProgressBar) dialog.findViewById(R.id.work_progress);
-            mProgressBar.setMax(mIterations);
+            mProgressBar.setMax(mIterations * 3);
         }
 
+        /**
+         * Runs the tests.
+         *
+         * @return Nanoseconds per iteration for each test, or -1 if it didn't run.
+         */
         @Override
-        protected Long doInBackground(Void... params) {
-            long result = -1;
+        protected long[] doInBackground(Void... params) {
+            long[] results = new long[] { -1, -1, -1 };
             EglCore eglCore = null;
             OffscreenSurface surface = null;
 
@@ -142,10 +158,29 @@ public class ReadPixelsActivity extends Activity {
             Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
 
             try {
-                eglCore = new EglCore(null, 0);
+                eglCore = new EglCore(null, EglCore.FLAG_TRY_GLES3);
                 surface = new OffscreenSurface(eglCore, mWidth, mHeight);
                 Log.d(TAG, "Buffer size " + mWidth + "x" + mHeight);
-                result = runGfxTest(surface);
+                long result = runGfxTest(surface);
+                if (result < 0) {
+                    return results;
+                }
+                results[RESULT_READ_PIXELS] = result / mIterations;
+
+                result = runSyncTest();
+                if (result < 0) {
+                    return results;
+                }
+                results[RESULT_SYNC] = result / mIterations;
+
+                if (AsyncPixelReader.isSupported(eglCore)) {
+                    result = runPboTest();
+                    if (result >= 0) {
+                        results[RESULT_PBO] = result / mIterations;
+                    }
+                } else {
+                    Log.i(TAG, "PBO readback not supported");
+                }
             } finally {
                 if (surface != null) {
                     surface.release();
@@ -154,7 +189,7 @@ public class ReadPixelsActivity extends Activity {
                     eglCore.release();
                 }
             }
-            return result < 0 ? result : result / mIterations;
+            return results;
         }
 
         @Override
@@ -163,18 +198,120 @@ public class ReadPixelsActivity extends Activity {
         }
 
         @Override
-        protected void onPostExecute(Long result) {
-            Log.d(TAG, "onPostExecute result=" + result);
+        protected void onPostExecute(long[] results) {
+            Log.d(TAG, "onPostExecute readPixels=" + results[RESULT_READ_PIXELS] +
+                    " sync=" + results[RESULT_SYNC] + " pbo=" + results[RESULT_PBO]);
             mDialog.dismiss();
             mDialog = null;
 
             Resources res = getResources();
-            if (result < 0) {
-                setMessage(mResultTextId, res.getString(R.string.did_not_complete));
+            if (results[RESULT_READ_PIXELS] < 0) {
+                setMessage(R.id.gfxResult_text, res.getString(R.string.did_not_complete));
             } else {
-                setMessage(mResultTextId, (result / 1000) +
+                setMessage(R.id.gfxResult_text, (results[RESULT_READ_PIXELS] / 1000) +
                         res.getString(R.string.usec_per_iteration));
             }
+            setFpsMessage(R.id.gfxSyncResult_text, results[RESULT_SYNC],
+                    res.getString(R.string.did_not_complete));
+            setFpsMessage(R.id.gfxPboResult_text, results[RESULT_PBO],
+                    res.getString(mIsCanceled ? R.string.did_not_complete :
+                            R.string.not_supported));
+        }
+
+        private void setFpsMessage(int id, long nsecPerFrame, String failMsg) {
+            if (nsecPerFrame <= 0) {
+                setMessage(id, failMsg);
+            } else {
+                setMessage(id, String.format("%.1f", 1000000000.0 / nsecPerFrame) +
+                        getResources().getString(R.string.frames_per_second));
+            }
+        }
+
+        /**
+         * Renders something simple.  Changes the colors each time.
+         */
+        private void drawFrame(int i) {
+            // Clear the screen to a solid color, then add a rectangle.
+            float r = (float) (i % mIterations) / mIterations;
+            float g = 1.0f - r;
+            float b = (r + g) / 2.0f;
+            GLES20.glClearColor(r, g, b, 1.0f);
+            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+
+            GLES20.glEnable(GLES20.GL_SCISSOR_TEST);
+            GLES20.glScissor(mWidth / 4, mHeight / 4, mWidth / 2, mHeight / 2);
+            GLES20.glClearColor(b, g, r, 1.0f);
+            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+            GLES20.glDisable(GLES20.GL_SCISSOR_TEST);
+        }
+
+        /**
+         * Renders frames and reads each one back with glReadPixels(), which has to wait
+         * for rendering to finish.
+         *
+         * @return total time, or -2 if canceled
+         */
+        private long runSyncTest() {
+            ByteBuffer pixelBuf = ByteBuffer.allocateDirect(mWidth * mHeight * 4);
+            pixelBuf.order(ByteOrder.LITTLE_ENDIAN);
+
+            Log.d(TAG, "Running sync readback...");
+            long startWhen = System.nanoTime();
+            for (int i = 0; i < mIterations; i++) {
+                if (mIsCanceled) {
+                    Log.d(TAG, "Canceled!");
+                    return -2;
+                }
+                if ((i % (mIterations / 8)) == 0) {
+                    publishProgress(mIterations + i);
+                }
+                drawFrame(i);
+                pixelBuf.rewind();
+                GLES20.glReadPixels(0, 0, mWidth, mHeight,
+                        GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, pixelBuf);
+            }
+            return System.nanoTime() - startWhen;
+        }
+
+        /**
+         * Renders frames and reads them back through a ring of PBOs.  Each frame's pixels
+         * are collected PBO_COUNT-1 frames after it's rendered.
+         *
+         * @return total time, or -2 if canceled
+         */
+        private long runPboTest() {
+            ByteBuffer pixelBuf = ByteBuffer.allocateDirect(mWidth * mHeight * 4);
+            pixelBuf.order(ByteOrder.LITTLE_ENDIAN);
+            AsyncPixelReader reader = new AsyncPixelReader(mWidth, mHeight, PBO_COUNT);
+
+            Log.d(TAG, "Running PBO readback...");
+            try {
+                long startWhen = System.nanoTime();
+                for (int i = 0; i < mIterations; i++) {
+                    if (mIsCanceled) {
+                        Log.d(TAG, "Canceled!");
+                        return -2;
+                    }
+                    if ((i % (mIterations / 8)) == 0) {
+                        publishProgress(mIterations * 2 + i);
+                    }
+                    drawFrame(i);
+                    reader.startRead();
+                    // Start this frame's read before collecting the oldest, so we map the
+                    // buffer from PBO_COUNT-1 frames ago rather than PBO_COUNT.
+                    if (reader.getPendingCount() == reader.getBufferCount()) {
+                        pixelBuf.rewind();
+                        reader.finishRead(pixelBuf);
+                    }
+                }
+                while (reader.getPendingCount() > 0) {
+                    pixelBuf.rewind();
+                    reader.finishRead(pixelBuf);
+                }
+                return System.nanoTime() - startWhen;
+            } finally {
+                reader.release();
+            }
         }
 
         /**
@@ -191,7 +328,6 @@ public class ReadPixelsActivity extends Activity {
             pixelBuf.order(ByteOrder.LITTLE_ENDIAN);
 
             Log.d(TAG, "Running...");
-            float colorMult = 1.0f / mIterations;
             for (int i = 0; i < mIterations; i++) {
                 if (mIsCanceled) {
                     Log.d(TAG, "Canceled!");
@@ -202,19 +338,7 @@ public class ReadPixelsActivity extends Activity {
                     publishProgress(i);
                 }
 
-                // Clear the screen to a solid color, then add a rectangle.  Change the color
-                // each time.
-                float r = i * colorMult;
-                float g = 1.0f - r;
-                float b = (r + g) / 2.0f;
-                GLES20.glClearColor(r, g, b, 1.0f);
-                GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
-
-                GLES20.glEnable(GLES20.GL_SCISSOR_TEST);
-                GLES20.glScissor(mWidth / 4, mHeight / 4, mWidth / 2, mHeight / 2);
-                GLES20.glClearColor(b, g, r, 1.0f);
-                GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
-                GLES20.glDisable(GLES20.GL_SCISSOR_TEST);
+                drawFrame(i);
 
                 // Try to ensure that rendering has finished.
                 GLES20.glFinish();
@@ -37,10 +37,10 @@ import android.graphics.Rect;
 
 import com.android.grafika.gles.Drawable2d;
 import com.android.grafika.gles.EglCore;
-import com.android.grafika.gles.FlatShadedProgram;
 import com.android.grafika.gles.FullFrameRect;
 import com.android.grafika.gles.GlUtil;
 import com.android.grafika.gles.Sprite2d;
+import com.android.grafika.gles.SpriteBatch;
 import com.android.grafika.gles.Texture2dProgram;
 import com.android.grafika.gles.WindowSurface;
 
@@ -415,7 +415,7 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
         private volatile SurfaceHolder mSurfaceHolder;  // may be updated by UI thread
         private EglCore mEglCore;
         private WindowSurface mWindowSurface;
-        private FlatShadedProgram mProgram;
+        private SpriteBatch mSpriteBatch;
 
         // Orthographic projection matrix.
         private float[] mDisplayProjectionMatrix = new float[16];
@@ -563,8 +563,8 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
             mFullScreen = new FullFrameRect(
                     new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_2D));
 
-            // Program used for drawing onto the screen.
-            mProgram = new FlatShadedProgram();
+            // Used for drawing onto the screen.
+            mSpriteBatch = new SpriteBatch(8);
 
             // Set the background color.
             GLES20.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
@@ -721,9 +721,9 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
                 mWindowSurface.release();
                 mWindowSurface = null;
             }
-            if (mProgram != null) {
-                mProgram.release();
-                mProgram = null;
+            if (mSpriteBatch != null) {
+                mSpriteBatch.release();
+                mSpriteBatch = null;
             }
             if (mOffscreenTexture > 0) {
                 values[0] = mOffscreenTexture;
@@ -1078,15 +1078,17 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
             GLES20.glClearColor(0.2f, 0.2f, 0.2f, 1.0f);
             GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
 
-            mTri.draw(mProgram, mDisplayProjectionMatrix);
-            mRect.draw(mProgram, mDisplayProjectionMatrix);
+            // Everything is flat-shaded, so the whole scene is one draw call.
+            mSpriteBatch.begin(mDisplayProjectionMatrix);
+            mSpriteBatch.drawFlat(mTri);
+            mSpriteBatch.drawFlat(mRect);
             for (int i = 0; i < 4; i++) {
                 if (false && mPreviousWasDropped) {
                     mEdges[i].setColor(1.0f, 0.0f, 0.0f);
                 } else {
                     mEdges[i].setColor(0.5f, 0.5f, 0.5f);
                 }
-                mEdges[i].draw(mProgram, mDisplayProjectionMatrix);
+                mSpriteBatch.drawFlat(mEdges[i]);
             }
 
             // Give a visual indication of the recording method.
@@ -1102,7 +1104,8 @@ public class RecordFBOActivity extends Activity implements SurfaceHolder.Callbac
                     break;
                 default:
             }
-            mRecordRect.draw(mProgram, mDisplayProjectionMatrix);
+            mSpriteBatch.drawFlat(mRecordRect);
+            mSpriteBatch.end();
 
             GlUtil.checkGlError("draw done");
         }
@@ -33,8 +33,11 @@ public class ScaledDrawable2d extends Drawable2d {
     private static final int SIZEOF_FLOAT = 4;
 
     private FloatBuffer mTweakedTexCoordArray;
+    private FloatBuffer mTweakedInterleavedArray;
     private float mScale = 1.0f;
     private boolean mRecalculate;
+    private boolean mRecalculateInterleaved;
+    private int mVersion = 1;
 
 
     /**
@@ -42,7 +45,7 @@ public class ScaledDrawable2d extends Drawable2d {
      */
     public ScaledDrawable2d(Prefab shape) {
         super(shape);
-        mRecalculate = true;
+        mRecalculate = mRecalculateInterleaved = true;
     }
 
     /**
@@ -52,8 +55,21 @@ public class ScaledDrawable2d extends Drawable2d {
         if (scale < 0.0f || scale > 1.0f) {
             throw new RuntimeException("invalid scale " + scale);
         }
+        if (scale == mScale) {
+            return;
+        }
         mScale = scale;
-        mRecalculate = true;
+        mRecalculate = mRecalculateInterleaved = true;
+        mVersion++;
+    }
+
+    /**
+     * Returns a number that changes whenever the scale does.  Starts at 1, so that
+     * Drawable2dBuffer knows our data can change.
+     */
+    @Override
+    public int getContentVersion() {
+        return mVersion;
     }
 
     /**
@@ -91,4 +107,36 @@ public class ScaledDrawable2d extends Drawable2d {
 
         return mTweakedTexCoordArray;
     }
+
+    /**
+     * Returns the interleaved vertices, with the texture coordinates scaled.  Like
+     * getTexCoordArray(), the array is only regenerated after the scale changes.
+     */
+    @Override
+    public FloatBuffer getInterleavedArray() {
+        if (mRecalculateInterleaved) {
+            FloatBuffer parentBuf = super.getInterleavedArray();
+            int count = parentBuf.capacity();
+
+            if (mTweakedInterleavedArray == null) {
+                ByteBuffer bb = ByteBuffer.allocateDirect(count * SIZEOF_FLOAT);
+                bb.order(ByteOrder.nativeOrder());
+                mTweakedInterleavedArray = bb.asFloatBuffer();
+            }
+
+            // Each vertex is x, y, s, t.  Copy the position, scale the texture coords.
+            FloatBuffer fb = mTweakedInterleavedArray;
+            float scale = mScale;
+            for (int i = 0; i < count; i += 4) {
+                fb.put(i, parentBuf.get(i));
+                fb.put(i + 1, parentBuf.get(i + 1));
+                fb.put(i + 2, ((parentBuf.get(i + 2) - 0.5f) * scale) + 0.5f);
+                fb.put(i + 3, ((parentBuf.get(i + 3) - 0.5f) * scale) + 0.5f);
+            }
+
+            mRecalculateInterleaved = false;
+        }
+
+        return mTweakedInterleavedArray;
+    }
 }
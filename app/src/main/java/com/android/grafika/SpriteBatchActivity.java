@@ -0,0 +1,318 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.app.Activity;
+import android.app.AlertDialog;
+import android.content.DialogInterface;
+import android.content.res.Resources;
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.os.Process;
+import android.util.Log;
+import android.view.View;
+import android.widget.ProgressBar;
+import android.widget.TextView;
+
+import com.android.grafika.gles.Drawable2d;
+import com.android.grafika.gles.EglCore;
+import com.android.grafika.gles.FlatShadedProgram;
+import com.android.grafika.gles.GeneratedTexture;
+import com.android.grafika.gles.GlState;
+import com.android.grafika.gles.OffscreenSurface;
+import com.android.grafika.gles.Sprite2d;
+import com.android.grafika.gles.SpriteBatch;
+import com.android.grafika.gles.Texture2dProgram;
+
+import java.util.Arrays;
+
+/**
+ * Compares drawing sprites one at a time with drawing them through SpriteBatch.
+ * <p>
+ * For each method, we find the largest number of small spinning sprites we can draw in a
+ * 60fps frame (16.7ms), rendering offscreen at 720p.  The sprites are tiny so that the
+ * GPU's fill rate isn't what limits us.
+ */
+public class SpriteBatchActivity extends Activity {
+    private static final String TAG = MainActivity.TAG;
+
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+    private static final long FRAME_BUDGET_NSEC = 1000000000L / 60;
+    private static final int MAX_SPRITES = 16384;
+    private static final int FRAMES_PER_TRIAL = 5;
+
+    // Tests, in the order run.  Even ones are one-at-a-time, odd ones are batched.
+    private static final int TEST_FLAT = 0;
+    private static final int TEST_FLAT_BATCH = 1;
+    private static final int TEST_TEXTURED = 2;
+    private static final int TEST_TEXTURED_BATCH = 3;
+    private static final int TEST_COUNT = 4;
+
+    private volatile boolean mIsCanceled;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_sprite_batch);
+    }
+
+    /**
+     * Sets the text in the message field.
+     */
+    void setMessage(String msg) {
+        TextView result = (TextView) findViewById(R.id.spriteBatchResult_text);
+        result.setText(msg);
+    }
+
+    /**
+     * Creates and displays the progress dialog.
+     *
+     * @return the dialog
+     */
+    private AlertDialog showProgressDialog() {
+        AlertDialog.Builder builder = WorkDialog.create(this, R.string.running_test);
+        builder.setCancelable(false);   // only by button
+        builder.setNegativeButton(R.string.cancel,
+                new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                mIsCanceled = true;
+                // let the async task handle dismiss the dialog
+            }
+        });
+        return builder.show();
+    }
+
+    public void clickRunTest(@SuppressWarnings("unused") View unused) {
+        setMessage(getResources().getString(R.string.state_running));
+
+        AlertDialog dialog = showProgressDialog();
+        SpriteBatchTask task = new SpriteBatchTask(dialog);
+        mIsCanceled = false;
+        task.execute();
+    }
+
+
+    /**
+     * AsyncTask class that executes the test.
+     */
+    private class SpriteBatchTask extends AsyncTask<Void, Integer, int[]> {
+        private AlertDialog mDialog;
+        private ProgressBar mProgressBar;
+
+        private FlatShadedProgram mFlatProgram;
+        private Texture2dProgram mTexProgram;
+        private SpriteBatch mSpriteBatch;
+        private Sprite2d[] mSprites;
+        private final float[] mProjectionMatrix = new float[16];
+        private int mFrameCount;
+
+        public SpriteBatchTask(AlertDialog dialog) {
+            mDialog = dialog;
+            mProgressBar = (ProgressBar) dialog.findViewById(R.id.work_progress);
+            mProgressBar.setMax(TEST_COUNT);
+        }
+
+        /**
+         * Runs the tests.
+         *
+         * @return Sprites per frame for each test, or null if canceled.
+         */
+        @Override
+        protected int[] doInBackground(Void... params) {
+            // See the comment in TextureUploadActivity.
+            Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
+
+            int[] results = new int[TEST_COUNT];
+            EglCore eglCore = null;
+            OffscreenSurface surface = null;
+            try {
+                eglCore = new EglCore(null, 0);
+                surface = new OffscreenSurface(eglCore, WIDTH, HEIGHT);
+                surface.makeCurrent();
+                prepare();
+
+                for (int test = 0; test < TEST_COUNT; test++) {
+                    publishProgress(test);
+                    results[test] = findMaxSprites(test);
+                    if (results[test] < 0) {
+                        Log.d(TAG, "Canceled!");
+                        return null;
+                    }
+                    Log.d(TAG, "test " + test + ": " + results[test] + " sprites/frame");
+                }
+                GlState state = GlState.get();
+                Log.d(TAG, "GL state changes: issued " + state.getIssuedCount() +
+                        ", skipped " + state.getSkippedCount());
+            } finally {
+                if (mSpriteBatch != null) {
+                    mSpriteBatch.release();
+                }
+                if (mFlatProgram != null) {
+                    mFlatProgram.release();
+                }
+                if (mTexProgram != null) {
+                    mTexProgram.release();
+                }
+                if (surface != null) {
+                    surface.release();
+                }
+                if (eglCore != null) {
+                    eglCore.release();
+                }
+            }
+            return results;
+        }
+
+        @Override
+        protected void onProgressUpdate(Integer... progress) {
+            mProgressBar.setProgress(progress[0]);
+        }
+
+        @Override
+        protected void onPostExecute(int[] results) {
+            Log.d(TAG, "onPostExecute results=" + Arrays.toString(results));
+            mDialog.dismiss();
+            mDialog = null;
+
+            Resources res = getResources();
+            if (results == null) {
+                setMessage(res.getString(R.string.did_not_complete));
+            } else {
+                setMessage(res.getString(R.string.spriteBatchResult_format, "flat",
+                                results[TEST_FLAT], results[TEST_FLAT_BATCH]) + "\n" +
+                        res.getString(R.string.spriteBatchResult_format, "textured",
+                                results[TEST_TEXTURED], results[TEST_TEXTURED_BATCH]));
+            }
+        }
+
+        /**
+         * Creates the programs and sprites.
+         */
+        private void prepare() {
+            mFlatProgram = new FlatShadedProgram();
+            mTexProgram = new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_2D);
+            mSpriteBatch = new SpriteBatch(1024);
+            int texture = GeneratedTexture.createTestTexture(GeneratedTexture.Image.COARSE);
+            Matrix.orthoM(mProjectionMatrix, 0, 0, WIDTH, 0, HEIGHT, -1, 1);
+
+            // Scatter the sprites over the surface.  They all share the drawable.
+            Drawable2d rectDrawable = new Drawable2d(Drawable2d.Prefab.RECTANGLE);
+            mSprites = new Sprite2d[MAX_SPRITES];
+            for (int i = 0; i < MAX_SPRITES; i++) {
+                Sprite2d sprite = new Sprite2d(rectDrawable);
+                sprite.setScale(12f, 12f);
+                sprite.setPosition((i * 37) % WIDTH, (i * 91) % HEIGHT);
+                sprite.setColor((i % 7) / 6.0f, (i % 5) / 4.0f, (i % 3) / 2.0f);
+                sprite.setTexture(texture);
+                mSprites[i] = sprite;
+            }
+        }
+
+        /**
+         * Finds, roughly, the most sprites we can draw within the frame budget.  Doubles the
+         * count until a frame takes too long, then narrows it down.
+         *
+         * @return the sprite count, or -1 if canceled
+         */
+        private int findMaxSprites(int test) {
+            int lo = 0;
+            int hi = -1;
+            for (int count = 16; count <= MAX_SPRITES; count *= 2) {
+                if (mIsCanceled) {
+                    return -1;
+                }
+                if (fitsInFrame(test, count)) {
+                    lo = count;
+                } else {
+                    hi = count;
+                    break;
+                }
+            }
+            if (hi < 0) {
+                return lo;      // hit MAX_SPRITES
+            }
+            // Narrow it down to within about 5%.
+            while (hi - lo > lo / 20 + 1) {
+                if (mIsCanceled) {
+                    return -1;
+                }
+                int mid = (lo + hi) / 2;
+                if (fitsInFrame(test, mid)) {
+                    lo = mid;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        /**
+         * Returns true if the median frame time with this many sprites is within budget.
+         */
+        private boolean fitsInFrame(int test, int count) {
+            long[] frameNsec = new long[FRAMES_PER_TRIAL];
+            drawFrame(test, count);     // warm up
+            for (int i = 0; i < FRAMES_PER_TRIAL; i++) {
+                long startNsec = System.nanoTime();
+                drawFrame(test, count);
+                frameNsec[i] = System.nanoTime() - startNsec;
+            }
+            Arrays.sort(frameNsec);
+            return frameNsec[FRAMES_PER_TRIAL / 2] <= FRAME_BUDGET_NSEC;
+        }
+
+        /**
+         * Draws one frame, spinning the sprites a bit, and waits for it to finish.
+         */
+        private void drawFrame(int test, int count) {
+            GLES20.glClearColor(0f, 0f, 0f, 1f);
+            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+
+            float angle = (mFrameCount++ * 3) % 360;
+            boolean batched = (test & 1) != 0;
+            boolean textured = test >= TEST_TEXTURED;
+            if (batched) {
+                mSpriteBatch.begin(mProjectionMatrix);
+            }
+            for (int i = 0; i < count; i++) {
+                Sprite2d sprite = mSprites[i];
+                sprite.setRotation(angle + (i % 360));
+                if (batched) {
+                    if (textured) {
+                        mSpriteBatch.drawTextured(sprite);
+                    } else {
+                        mSpriteBatch.drawFlat(sprite);
+                    }
+                } else {
+                    if (textured) {
+                        sprite.draw(mTexProgram, mProjectionMatrix);
+                    } else {
+                        sprite.draw(mFlatProgram, mProjectionMatrix);
+                    }
+                }
+            }
+            if (batched) {
+                mSpriteBatch.end();
+            }
+            GLES20.glFinish();
+        }
+    }
+}
@@ -34,6 +34,7 @@ import android.widget.TextView;
 import android.app.Activity;
 
 import com.android.grafika.gles.Drawable2d;
+import com.android.grafika.gles.Drawable2dBuffer;
 import com.android.grafika.gles.EglCore;
 import com.android.grafika.gles.GlUtil;
 import com.android.grafika.gles.Sprite2d;
@@ -452,6 +453,7 @@ public class TextureFromCameraActivity extends Activity implements SurfaceHolder
         private final ScaledDrawable2d mRectDrawable =
                 new ScaledDrawable2d(Drawable2d.Prefab.RECTANGLE);
         private final Sprite2d mRect = new Sprite2d(mRectDrawable);
+        private Drawable2dBuffer mRectBuffer;
 
         private int mZoomPercent = DEFAULT_ZOOM_PERCENT;
         private int mSizePercent = DEFAULT_SIZE_PERCENT;
@@ -541,6 +543,8 @@ public class TextureFromCameraActivity extends Activity implements SurfaceHolder
             int textureId = mTexProgram.createTextureObject();
             mCameraTexture = new SurfaceTexture(textureId);
             mRect.setTexture(textureId);
+            mRectBuffer = new Drawable2dBuffer(mRectDrawable);
+            mRect.setBuffer(mRectBuffer);
 
             if (!newSurface) {
                 // This Surface was established on a previous run, so no surfaceChanged()
@@ -573,6 +577,11 @@ public class TextureFromCameraActivity extends Activity implements SurfaceHolder
                 mTexProgram.release();
                 mTexProgram = null;
             }
+            if (mRectBuffer != null) {
+                mRect.setBuffer(null);
+                mRectBuffer.release();
+                mRectBuffer = null;
+            }
             GlUtil.checkGlError("releaseGl done");
 
             mEglCore.makeNothingCurrent();
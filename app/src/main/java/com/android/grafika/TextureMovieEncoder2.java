@@ -40,6 +40,10 @@ import java.lang.ref.WeakReference;
  * but it doesn't matter -- either it runs early and prevents blockage, or it runs late
  * and un-blocks the encoder.
  * <p>
+ * The encoder output is actually pulled by VideoEncoderCore's drain thread, so drainEncoder()
+ * only has to pass the queued packets to the muxer.  If a muxer write is slow, the packets
+ * pile up in the queue rather than in the encoder, and the producer doesn't stall.
+ * <p>
  * TODO: reconcile this with TextureMovieEncoder.
  */
 public class TextureMovieEncoder2 implements Runnable {
@@ -49,6 +53,8 @@ public class TextureMovieEncoder2 implements Runnable {
     private static final int MSG_STOP_RECORDING = 1;
     private static final int MSG_FRAME_AVAILABLE = 2;
 
+    private static final int MAX_QUEUED_PACKETS = 60;   // about 2 sec at 30fps
+
     // ----- accessed exclusively by encoder thread -----
     private VideoEncoderCore mVideoEncoder;
 
@@ -72,6 +78,7 @@ public class TextureMovieEncoder2 implements Runnable {
         Log.d(TAG, "Encoder: startRecording()");
 
         mVideoEncoder = encoderCore;
+        mVideoEncoder.startDrainThread(MAX_QUEUED_PACKETS);
 
         synchronized (mReadyFence) {
             if (mRunning) {
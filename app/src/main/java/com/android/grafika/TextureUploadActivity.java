@@ -36,6 +36,7 @@ import com.android.grafika.gles.EglCore;
 import com.android.grafika.gles.GlUtil;
 import com.android.grafika.gles.OffscreenSurface;
 import com.android.grafika.gles.Sprite2d;
+import com.android.grafika.gles.StreamingTexture;
 import com.android.grafika.gles.Texture2dProgram;
 
 import java.io.BufferedOutputStream;
@@ -43,9 +44,17 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
- * An unscientific test of texture upload speed.
+ * An unscientific test of texture upload speed, plus a more thorough benchmark suite.
+ * <p>
+ * After the upload test, the same pixel data is streamed through a StreamingTexture, with a
+ * producer thread standing in for a software decoder.  Those results go to the log.
+ * <p>
+ * The suite (see TextureUploadBenchmark) sweeps sizes, formats, and upload methods, and
+ * writes the results to a CSV file in the app's external files directory.
  */
 public class TextureUploadActivity extends Activity {
     private static final String TAG = MainActivity.TAG;
@@ -55,6 +64,13 @@ public class TextureUploadActivity extends Activity {
     private static final int HEIGHT = 512;
     private static final int ITERATIONS = 10;   // 10 iterations...
     private static final int TEX_PER_ITER = 8;  // ...uploading 8 textures per iteration
+    private static final int STREAM_FRAMES = 120;   // frames to show in the streaming test
+
+    // Full benchmark suite parameters.
+    private static final int[] SUITE_SIZES = { 256, 512, 1024, 2048 };
+    private static final int SUITE_SAMPLES = 20;
+    private static final int SUITE_WARMUP = 5;
+    private static final String SUITE_FILENAME = "texture-upload.csv";
 
     private volatile boolean mIsCanceled;
 
@@ -68,7 +84,14 @@ public class TextureUploadActivity extends Activity {
      * Sets the text in the message field.
      */
     void setMessage(String msg) {
-        TextView result = (TextView) findViewById(R.id.textureResult_text);
+        setMessage(R.id.textureResult_text, msg);
+    }
+
+    /**
+     * Sets the text in a message field.
+     */
+    void setMessage(int id, String msg) {
+        TextView result = (TextView) findViewById(id);
         result.setText(msg);
     }
 
@@ -104,6 +127,115 @@ public class TextureUploadActivity extends Activity {
         task.execute();
     }
 
+    public void clickRunSuite(@SuppressWarnings("unused") View unused) {
+        Resources res = getResources();
+        setMessage(R.id.textureSuiteResult_text, res.getString(R.string.state_running));
+
+        AlertDialog dialog = showProgressDialog();
+        File outputFile = new File(getExternalFilesDir(null), SUITE_FILENAME);
+        BenchmarkSuiteTask task = new BenchmarkSuiteTask(dialog, outputFile);
+        mIsCanceled = false;
+        task.execute();
+    }
+
+    /**
+     * AsyncTask class that runs the full benchmark suite.
+     */
+    private class BenchmarkSuiteTask extends AsyncTask<Void, Integer, Integer> {
+        private static final int OUTPUT_WIDTH = 64;
+        private static final int OUTPUT_HEIGHT = 64;
+
+        private AlertDialog mDialog;
+        private File mOutputFile;
+        private ProgressBar mProgressBar;
+        private TextureUploadBenchmark.Result mBest;
+
+        public BenchmarkSuiteTask(AlertDialog dialog, File outputFile) {
+            mDialog = dialog;
+            mOutputFile = outputFile;
+            mProgressBar = (ProgressBar) dialog.findViewById(R.id.work_progress);
+        }
+
+        /**
+         * Runs the suite and writes the results.
+         *
+         * @return Number of cases run, or -1 on cancellation.
+         */
+        @Override
+        protected Integer doInBackground(Void... params) {
+            // See the comment in TextureUploadTask.
+            Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
+
+            ArrayList<TextureUploadBenchmark.Result> results =
+                    new ArrayList<TextureUploadBenchmark.Result>();
+            EglCore eglCore = null;
+            OffscreenSurface surface = null;
+            TextureUploadBenchmark benchmark = null;
+            try {
+                eglCore = new EglCore(null, EglCore.FLAG_TRY_GLES3);
+                surface = new OffscreenSurface(eglCore, OUTPUT_WIDTH, OUTPUT_HEIGHT);
+                surface.makeCurrent();
+                benchmark = new TextureUploadBenchmark(SUITE_SAMPLES, SUITE_WARMUP);
+                List<TextureUploadBenchmark.Case> suite = TextureUploadBenchmark.buildSuite(
+                        SUITE_SIZES, TextureUploadBenchmark.isPboSupported(eglCore));
+
+                for (int i = 0; i < suite.size(); i++) {
+                    if (mIsCanceled) {
+                        Log.d(TAG, "Canceled!");
+                        return -1;
+                    }
+                    publishProgress(i, suite.size());
+                    TextureUploadBenchmark.Result result = benchmark.run(suite.get(i));
+                    if (result != null) {
+                        results.add(result);
+                        if (mBest == null || result.getMedianMBps() > mBest.getMedianMBps()) {
+                            mBest = result;
+                        }
+                    }
+                }
+            } finally {
+                if (benchmark != null) {
+                    benchmark.release();
+                }
+                if (surface != null) {
+                    surface.release();
+                }
+                if (eglCore != null) {
+                    eglCore.release();
+                }
+            }
+
+            try {
+                TextureUploadBenchmark.writeCsv(results, mOutputFile);
+                Log.d(TAG, "Wrote " + results.size() + " results to " + mOutputFile);
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
+            }
+            return results.size();
+        }
+
+        @Override
+        protected void onProgressUpdate(Integer... progress) {
+            mProgressBar.setMax(progress[1]);
+            mProgressBar.setProgress(progress[0]);
+        }
+
+        @Override
+        protected void onPostExecute(Integer result) {
+            Log.d(TAG, "onPostExecute result=" + result);
+            mDialog.dismiss();
+            mDialog = null;
+
+            Resources res = getResources();
+            if (result < 0) {
+                setMessage(R.id.textureSuiteResult_text, res.getString(R.string.did_not_complete));
+            } else {
+                String best = mBest == null ? "" : "\n" + mBest;
+                setMessage(R.id.textureSuiteResult_text, res.getString(
+                        R.string.textureSuiteResult_format, result, mOutputFile) + best);
+            }
+        }
+    }
 
     /**
      * AsyncTask class that executes the test.
@@ -155,6 +287,9 @@ public class TextureUploadActivity extends Activity {
                 eglCore = new EglCore(null, 0);
                 surface = new OffscreenSurface(eglCore, OUTPUT_WIDTH, OUTPUT_HEIGHT);
                 result = runTextureTest(surface);
+                if (result >= 0) {
+                    runStreamingTest(surface);
+                }
             } finally {
                 if (surface != null) {
                     surface.release();
@@ -186,76 +321,26 @@ public class TextureUploadActivity extends Activity {
         }
 
         /**
-         * Create the bitmaps we create the textures from.
+         * Create the bitmaps we create the textures from.  The first four have a regular
+         * pattern, which should compress well; the rest are random, which won't compress.
          */
         private void createPixelSources() {
             Log.d(TAG, "Creating pixel data...");
             mPixelSource = new ByteBuffer[TEX_PER_ITER];
             for (int i = 0; i < TEX_PER_ITER; i++) {
                 mPixelSource[i] = ByteBuffer.allocateDirect(mWidth * mHeight * RGBA_BPP);
+                long seed = System.nanoTime();
                 if (i < 4) {
-                    patternPixelSource(mPixelSource[i], i);
+                    PixelSources.fillPattern(mPixelSource[i], mWidth, mHeight, RGBA_BPP,
+                            (i % 4) + 1, seed);
                 } else {
-                    randomPixelSource(mPixelSource[i], i);
+                    PixelSources.fillRandom(mPixelSource[i], mWidth, mHeight, RGBA_BPP, seed);
                 }
+                if (false) saveTestBitmap(mPixelSource[i], i);
             }
             Log.d(TAG, "done");
         }
 
-        /**
-         * Fill the buffer with a regular pattern.  This should compress well.
-         */
-        private void patternPixelSource(ByteBuffer buf, int index) {
-            byte[] array = buf.array();     // works in recent Android
-
-            // generate 4 random RGBA colors
-            byte[][] colors = new byte[4][4];
-            for (int i = 0; i < 4; i++) {
-                colors[i][0] = (byte) (256 * Math.random() - 128);
-                colors[i][1] = (byte) (256 * Math.random() - 128);
-                colors[i][2] = (byte) (256 * Math.random() - 128);
-                colors[i][3] = (byte) 255; //(byte) (256 * Math.random() - 128);
-            }
-
-            final int repCount = (index % 4) + 1;
-            int off = 0;
-            for (int y = 0; y < mHeight; y++) {
-                int colIndex = (y / repCount) % 4;
-                for (int x = 0; x < mWidth; ) {
-                    // repeat the color N times (if possible)
-                    for (int rep = 0; rep < repCount && x < mWidth; rep++, x++) {
-                        // copy the Nth color to the current pixel
-                        array[off++] = colors[colIndex][0];
-                        array[off++] = colors[colIndex][1];
-                        array[off++] = colors[colIndex][2];
-                        array[off++] = colors[colIndex][3];
-                    }
-                    colIndex = (colIndex + 1) % 4;
-                }
-            }
-
-            if (false) saveTestBitmap(buf, index);
-        }
-
-
-        /**
-         * Fill the buffer with random data.  This will not compress at all.
-         */
-        private void randomPixelSource(ByteBuffer buf, int index) {
-            byte[] array = buf.array();     // works in recent Android
-
-            int off = 0;
-            for (int y = 0; y < mHeight; y++) {
-                for (int x = 0; x < mWidth; x++) {
-                    for (int b = 0; b < 4; b++) {
-                        array[off++] = (byte) (256 * Math.random() - 128);
-                    }
-                }
-            }
-
-            if (false) saveTestBitmap(buf, index);
-        }
-
         /**
          * Save generated data to a PNG file for debugging.
          */
@@ -381,5 +466,89 @@ public class TextureUploadActivity extends Activity {
 
             return totalTime;
         }
+
+        /**
+         * Shows STREAM_FRAMES frames from a StreamingTexture, while another thread feeds it
+         * our pixel data as fast as it can.  Logs the frame rate, and how many frames the
+         * producer queued that never made it to the screen.
+         */
+        private void runStreamingTest(OffscreenSurface eglSurface) {
+            eglSurface.makeCurrent();
+            Texture2dProgram texProgram =
+                    new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_2D);
+            Sprite2d rect = new Sprite2d(new Drawable2d(Drawable2d.Prefab.RECTANGLE));
+            rect.setScale(2f, 2f);
+            rect.setPosition(0f, 0f);
+            StreamingTexture streamTex = new StreamingTexture(mWidth, mHeight, GLES20.GL_RGBA,
+                    GLES20.GL_UNSIGNED_BYTE, 3, StreamingTexture.FLAG_ORPHAN);
+            StreamProducer producer = new StreamProducer(streamTex, mPixelSource);
+            producer.start();
+
+            long startNanos = System.nanoTime();
+            int shown = 0;
+            try {
+                while (shown < STREAM_FRAMES && !mIsCanceled) {
+                    int texture = streamTex.updateTexImage();
+                    if (texture == 0) {
+                        continue;       // producer hasn't queued anything yet
+                    }
+                    rect.setTexture(texture);
+                    rect.draw(texProgram, GlUtil.IDENTITY_MATRIX);
+                    eglSurface.swapBuffers();
+                    shown++;
+                }
+                GLES20.glFinish();
+            } finally {
+                producer.halt();
+                streamTex.release();
+                texProgram.release();
+            }
+            long elapsedNanos = System.nanoTime() - startNanos;
+
+            Log.d(TAG, "streaming: " + shown + " frames in " + (elapsedNanos / 1000000) +
+                    "ms, uploaded=" + streamTex.getUploadedCount() +
+                    " queued=" + streamTex.getQueuedCount() +
+                    " dropped=" + streamTex.getDroppedCount());
+        }
+    }
+
+    /**
+     * Copies frames into a StreamingTexture until halted, standing in for a decoder.
+     */
+    private static class StreamProducer extends Thread {
+        private final StreamingTexture mStreamTex;
+        private final ByteBuffer[] mFrames;
+        private volatile boolean mHalted;
+
+        StreamProducer(StreamingTexture streamTex, ByteBuffer[] frames) {
+            super("StreamProducer");
+            mStreamTex = streamTex;
+            mFrames = frames;
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; !mHalted; i++) {
+                ByteBuffer src = mFrames[i % mFrames.length];
+                src.rewind();
+                mStreamTex.dequeueBuffer().put(src);
+                mStreamTex.queueBuffer();
+            }
+        }
+
+        /**
+         * Stops the thread, and waits for it to finish.
+         */
+        public void halt() {
+            mHalted = true;
+            while (true) {
+                try {
+                    join();
+                    break;
+                } catch (InterruptedException ie) {
+                    // ignore
+                }
+            }
+        }
     }
 }
@@ -0,0 +1,387 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+
+import com.android.grafika.gles.Drawable2d;
+import com.android.grafika.gles.EglCore;
+import com.android.grafika.gles.GlUtil;
+import com.android.grafika.gles.Sprite2d;
+import com.android.grafika.gles.Texture2dProgram;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures texture upload throughput across sizes, pixel formats, and upload methods.
+ * <p>
+ * Each case uploads the same size and format repeatedly, and reports the median and 95th
+ * percentile upload time.  As in TextureUploadActivity's quick test, we draw with the texture
+ * after uploading it, so a lazy driver can't skip the work, and subtract the time for a
+ * second draw that doesn't involve an upload.
+ * <p>
+ * A "cold" case creates a new texture for every upload, so it pays for storage allocation.
+ * A "warm" case uploads into the same texture each time, after a few unrecorded warm-up
+ * uploads.
+ * <p>
+ * The PBO method copies the pixels into a pixel unpack buffer, and has the driver upload
+ * from there.  It requires GLES 3, and the offset version of glTexSubImage2D(), which wasn't
+ * in the Java bindings until API 24, so we look it up by reflection.
+ * <p>
+ * All methods must be called on a thread with a current EGL context.
+ */
+public class TextureUploadBenchmark {
+    private static final String TAG = MainActivity.TAG;
+
+    public static final int FORMAT_RGBA = 0;
+    public static final int FORMAT_RGB565 = 1;
+    public static final int FORMAT_LUMINANCE = 2;
+    private static final String[] FORMAT_NAMES = { "RGBA", "RGB565", "LUMINANCE" };
+    private static final int[] GL_FORMATS =
+            { GLES20.GL_RGBA, GLES20.GL_RGB, GLES20.GL_LUMINANCE };
+    private static final int[] GL_TYPES = { GLES20.GL_UNSIGNED_BYTE,
+            GLES20.GL_UNSIGNED_SHORT_5_6_5, GLES20.GL_UNSIGNED_BYTE };
+    private static final int[] BYTES_PER_PIXEL = { 4, 2, 1 };
+
+    public static final int METHOD_TEX_IMAGE = 0;
+    public static final int METHOD_TEX_SUB_IMAGE = 1;
+    public static final int METHOD_PBO = 2;
+    private static final String[] METHOD_NAMES = { "texImage2D", "texSubImage2D", "pbo" };
+
+    /**
+     * One configuration to measure.
+     */
+    public static class Case {
+        public final int size;          // width and height
+        public final int format;        // FORMAT_*
+        public final int method;        // METHOD_*
+        public final boolean warm;
+
+        public Case(int size, int format, int method, boolean warm) {
+            this.size = size;
+            this.format = format;
+            this.method = method;
+            this.warm = warm;
+        }
+
+        /** Bytes uploaded each time. */
+        public int getByteCount() {
+            return size * size * BYTES_PER_PIXEL[format];
+        }
+
+        @Override
+        public String toString() {
+            return size + "x" + size + " " + FORMAT_NAMES[format] + " " +
+                    METHOD_NAMES[method] + (warm ? " warm" : " cold");
+        }
+    }
+
+    /**
+     * Measurements for one Case.
+     */
+    public static class Result {
+        public final Case testCase;
+        public final int sampleCount;
+        public final long medianNsec;
+        public final long p95Nsec;
+
+        Result(Case testCase, long[] samples) {
+            this.testCase = testCase;
+            sampleCount = samples.length;
+            Arrays.sort(samples);
+            medianNsec = samples[samples.length / 2];
+            p95Nsec = samples[(samples.length * 95 + 99) / 100 - 1];
+        }
+
+        /** Throughput at the median upload time, in MB/s. */
+        public double getMedianMBps() {
+            return toMBps(medianNsec);
+        }
+
+        /** Throughput at the 95th percentile upload time -- i.e. the slow end -- in MB/s. */
+        public double getP95MBps() {
+            return toMBps(p95Nsec);
+        }
+
+        private double toMBps(long nsec) {
+            return testCase.getByteCount() / (nsec / 1000000000.0) / (1024 * 1024);
+        }
+
+        @Override
+        public String toString() {
+            return testCase + ": median " + String.format("%.1f", getMedianMBps()) +
+                    " MB/s, p95 " + String.format("%.1f", getP95MBps()) + " MB/s";
+        }
+    }
+
+    private final int mSampleCount;
+    private final int mWarmupCount;
+
+    private final Texture2dProgram mTexProgram;
+    private final Sprite2d mRect;
+    private final int[] mMaxTextureSize = new int[1];
+
+    // Pixel data for the current size and format: one patterned, one random.
+    private ByteBuffer[] mSources = new ByteBuffer[2];
+    private int mSourceSize;
+    private int mSourceFormat = -1;
+    private final int[] mPbo = new int[1];
+
+    /**
+     * Prepares the benchmark.  Expects a current EGL context.
+     *
+     * @param sampleCount Uploads to measure in each case.
+     * @param warmupCount Uploads to do, without measuring, before starting a warm case.
+     */
+    public TextureUploadBenchmark(int sampleCount, int warmupCount) {
+        mSampleCount = sampleCount;
+        mWarmupCount = warmupCount;
+
+        // We use an identity projection matrix, so the rect fills the surface.
+        mTexProgram = new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_2D);
+        mRect = new Sprite2d(new Drawable2d(Drawable2d.Prefab.RECTANGLE));
+        mRect.setScale(2f, 2f);
+        mRect.setPosition(0f, 0f);
+        GLES20.glGetIntegerv(GLES20.GL_MAX_TEXTURE_SIZE, mMaxTextureSize, 0);
+    }
+
+    /**
+     * Returns true if the PBO method is available with the current context.
+     */
+    public static boolean isPboSupported(EglCore eglCore) {
+        return eglCore.getGlVersion() >= 3 && GlUtil.hasTexSubImage2DOffset();
+    }
+
+    /**
+     * Builds the full suite: every size, format, and method, warm and cold.  Cases are
+     * ordered by size and format, so pixel data can be generated once for each.
+     */
+    public static List<Case> buildSuite(int[] sizes, boolean includePbo) {
+        ArrayList<Case> suite = new ArrayList<Case>();
+        int methodCount = includePbo ? 3 : 2;
+        for (int size : sizes) {
+            for (int format = 0; format < FORMAT_NAMES.length; format++) {
+                for (int method = 0; method < methodCount; method++) {
+                    suite.add(new Case(size, format, method, false));
+                    suite.add(new Case(size, format, method, true));
+                }
+            }
+        }
+        return suite;
+    }
+
+    /**
+     * Runs one case.
+     *
+     * @return The result, or null if the device can't do textures that big.
+     */
+    public Result run(Case testCase) {
+        if (testCase.size > mMaxTextureSize[0]) {
+            Log.i(TAG, "Skipping " + testCase + ": max texture size is " + mMaxTextureSize[0]);
+            return null;
+        }
+        prepareSources(testCase.size, testCase.format);
+
+        long[] samples = new long[mSampleCount];
+        int texture = 0;
+        if (testCase.warm) {
+            texture = createTexture();
+            for (int i = 0; i < mWarmupCount; i++) {
+                upload(testCase, texture, mSources[i % 2], i == 0);
+                draw(texture);
+            }
+            GLES20.glFinish();
+        }
+
+        for (int i = 0; i < mSampleCount; i++) {
+            long startNsec = System.nanoTime();
+            if (!testCase.warm) {
+                texture = createTexture();
+            }
+            upload(testCase, texture, mSources[i % 2],
+                    !testCase.warm || (i == 0 && mWarmupCount == 0));
+            draw(texture);
+            GLES20.glFinish();
+            long uploadEndNsec = System.nanoTime();
+
+            draw(texture);
+            GLES20.glFinish();
+            long redrawEndNsec = System.nanoTime();
+
+            long trimmed = (uploadEndNsec - startNsec) - (redrawEndNsec - uploadEndNsec);
+            samples[i] = Math.max(trimmed, 1);
+            if (!testCase.warm) {
+                deleteTexture(texture);
+            }
+        }
+        if (testCase.warm) {
+            deleteTexture(texture);
+        }
+        GlUtil.checkGlError("upload test");
+
+        Result result = new Result(testCase, samples);
+        Log.d(TAG, result.toString());
+        return result;
+    }
+
+    /**
+     * Writes results as CSV, one line per case, with a header line.
+     */
+    public static void writeCsv(List<Result> results, File file) throws IOException {
+        PrintWriter out = null;
+        try {
+            out = new PrintWriter(new FileWriter(file));
+            out.println("size,format,method,mode,bytes,samples,median_usec,p95_usec," +
+                    "median_mbps,p95_mbps");
+            for (Result result : results) {
+                Case c = result.testCase;
+                out.println(c.size + "," + FORMAT_NAMES[c.format] + "," +
+                        METHOD_NAMES[c.method] + "," + (c.warm ? "warm" : "cold") + "," +
+                        c.getByteCount() + "," + result.sampleCount + "," +
+                        result.medianNsec / 1000 + "," + result.p95Nsec / 1000 + "," +
+                        String.format("%.2f", result.getMedianMBps()) + "," +
+                        String.format("%.2f", result.getP95MBps()));
+            }
+            if (out.checkError()) {
+                throw new IOException("failed writing " + file);
+            }
+        } finally {
+            if (out != null) out.close();
+        }
+    }
+
+    /**
+     * Releases GL resources and pixel data.
+     */
+    public void release() {
+        if (mPbo[0] != 0) {
+            GLES20.glDeleteBuffers(1, mPbo, 0);
+            mPbo[0] = 0;
+        }
+        mTexProgram.release();
+        mSources[0] = mSources[1] = null;
+        mSourceFormat = -1;
+    }
+
+    /**
+     * Generates pixel data, and sizes the PBO, if the size or format has changed.
+     */
+    private void prepareSources(int size, int format) {
+        if (size == mSourceSize && format == mSourceFormat) {
+            return;
+        }
+        // Drop the old data first, so we don't briefly hold both.
+        mSources[0] = mSources[1] = null;
+        int bpp = BYTES_PER_PIXEL[format];
+        int byteCount = size * size * bpp;
+        mSources[0] = ByteBuffer.allocateDirect(byteCount);
+        PixelSources.fillPattern(mSources[0], size, size, bpp, 2, size + format);
+        mSources[1] = ByteBuffer.allocateDirect(byteCount);
+        PixelSources.fillRandom(mSources[1], size, size, bpp, size + format);
+        mSourceSize = size;
+        mSourceFormat = format;
+
+        if (mPbo[0] != 0) {
+            GLES20.glDeleteBuffers(1, mPbo, 0);
+            mPbo[0] = 0;
+        }
+    }
+
+    private int createTexture() {
+        int[] handles = new int[1];
+        GLES20.glGenTextures(1, handles, 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, handles[0]);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
+                GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
+                GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S,
+                GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T,
+                GLES20.GL_CLAMP_TO_EDGE);
+        return handles[0];
+    }
+
+    private void deleteTexture(int texture) {
+        int[] handles = new int[] { texture };
+        GLES20.glDeleteTextures(1, handles, 0);
+    }
+
+    /**
+     * Uploads the pixels into the texture.
+     *
+     * @param allocate If set, the texture has no storage yet.
+     */
+    private void upload(Case testCase, int texture, ByteBuffer pixels, boolean allocate) {
+        int size = testCase.size;
+        int glFormat = GL_FORMATS[testCase.format];
+        int glType = GL_TYPES[testCase.format];
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+        pixels.rewind();
+
+        if (testCase.method == METHOD_TEX_IMAGE) {
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, glFormat, size, size, 0,
+                    glFormat, glType, pixels);
+            return;
+        }
+
+        if (allocate) {
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, glFormat, size, size, 0,
+                    glFormat, glType, null);
+        }
+        if (testCase.method == METHOD_TEX_SUB_IMAGE) {
+            GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, size, size,
+                    glFormat, glType, pixels);
+            return;
+        }
+
+        // PBO.  Orphan the old storage so we don't wait for the previous upload to finish
+        // reading it, then copy the pixels in.
+        int byteCount = testCase.getByteCount();
+        if (mPbo[0] == 0) {
+            GLES20.glGenBuffers(1, mPbo, 0);
+        }
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, mPbo[0]);
+        GLES20.glBufferData(GLES30.GL_PIXEL_UNPACK_BUFFER, byteCount, null,
+                GLES20.GL_STREAM_DRAW);
+        ByteBuffer mapped = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_PIXEL_UNPACK_BUFFER,
+                0, byteCount, GLES30.GL_MAP_WRITE_BIT | GLES30.GL_MAP_INVALIDATE_BUFFER_BIT);
+        if (mapped == null) {
+            GlUtil.checkGlError("glMapBufferRange");
+            throw new RuntimeException("glMapBufferRange failed");
+        }
+        mapped.put(pixels);
+        GLES30.glUnmapBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER);
+        GlUtil.texSubImage2DOffset(GLES20.GL_TEXTURE_2D, 0, 0, 0, size, size, glFormat,
+                glType, 0);
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, 0);
+    }
+
+    private void draw(int texture) {
+        mRect.setTexture(texture);
+        mRect.draw(mTexProgram, GlUtil.IDENTITY_MATRIX);
+    }
+}
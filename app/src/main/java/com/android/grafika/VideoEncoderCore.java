@@ -19,13 +19,13 @@ package com.android.grafika;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
 import android.util.Log;
 import android.view.Surface;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 
 /**
  * This class wraps up the core components used for surface-input video encoding.
@@ -36,6 +36,11 @@ import java.nio.ByteBuffer;
  * <p>
  * This class is not thread-safe, with one exception: it is valid to use the input surface
  * on one thread, and drain the output on a different thread.
+ * <p>
+ * If startDrainThread() is called, the encoder output is pulled by a dedicated thread as soon
+ * as it's ready, and parked in a bounded queue.  drainEncoder() then just hands the queued
+ * packets to the muxer.  A slow disk write stalls the queue instead of the encoder, so the
+ * producer can keep submitting frames until the queue fills.
  */
 public class VideoEncoderCore {
     private static final String TAG = MainActivity.TAG;
@@ -45,13 +50,21 @@ public class VideoEncoderCore {
     private static final String MIME_TYPE = "video/avc";    // H.264 Advanced Video Coding
     private static final int FRAME_RATE = 30;               // 30fps
     private static final int IFRAME_INTERVAL = 5;           // 5 seconds between I-frames
+    private static final int TIMEOUT_USEC = 10000;
 
     private Surface mInputSurface;
-    private MediaMuxer mMuxer;
+    private MovieMuxer mMuxer;
     private MediaCodec mEncoder;
     private MediaCodec.BufferInfo mBufferInfo;
+    private ByteBuffer[] mEncoderOutputBuffers;
     private int mTrackIndex;
     private boolean mMuxerStarted;
+    private int mBitRate;
+
+    // Used in asynchronous drain mode.
+    private DrainThread mDrainThread;
+    private EncodedPacketPool mPacketPool;
+    private PacketQueue mPacketQueue;
 
 
     /**
@@ -59,7 +72,17 @@ public class VideoEncoderCore {
      */
     public VideoEncoderCore(int width, int height, int bitRate, File outputFile)
             throws IOException {
+        this(width, height, bitRate, outputFile, MediaMuxerWrapper.FACTORY);
+    }
+
+    /**
+     * Configures encoder and muxer state, and prepares the input Surface.  The output file
+     * is written by a muxer from muxerFactory.
+     */
+    public VideoEncoderCore(int width, int height, int bitRate, File outputFile,
+            MovieMuxer.Factory muxerFactory) throws IOException {
         mBufferInfo = new MediaCodec.BufferInfo();
+        mBitRate = bitRate;
 
         MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
 
@@ -78,15 +101,15 @@ public class VideoEncoderCore {
         mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         mInputSurface = mEncoder.createInputSurface();
         mEncoder.start();
+        mEncoderOutputBuffers = mEncoder.getOutputBuffers();
 
-        // Create a MediaMuxer.  We can't add the video track and start() the muxer here,
+        // Create a muxer.  We can't add the video track and start() the muxer here,
         // because our MediaFormat doesn't have the Magic Goodies.  These can only be
         // obtained from the encoder after it has started processing data.
         //
         // We're not actually interested in multiplexing audio.  We just want to convert
         // the raw H.264 elementary stream we get from MediaCodec into a .mp4 file.
-        mMuxer = new MediaMuxer(outputFile.toString(),
-                MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        mMuxer = muxerFactory.create(outputFile);
 
         mTrackIndex = -1;
         mMuxerStarted = false;
@@ -99,11 +122,44 @@ public class VideoEncoderCore {
         return mInputSurface;
     }
 
+    /**
+     * Starts a thread that drains the encoder as soon as output is available.  After this
+     * is called, drainEncoder() writes the packets the thread has collected to the muxer,
+     * and never waits on the encoder unless endOfStream is set.
+     * <p>
+     * If the queue fills, because drainEncoder() isn't being called often enough or the
+     * muxer is falling behind, the drain thread waits for space and the encoder backs up.
+     *
+     * @param maxQueuedPackets Number of packets the queue can hold.  A couple of seconds'
+     *     worth is enough to ride out a slow write.
+     */
+    public void startDrainThread(int maxQueuedPackets) {
+        if (mDrainThread != null) {
+            throw new IllegalStateException("drain thread already running");
+        }
+        // Start each buffer at twice the average frame size.  Sync frames are bigger, but
+        // packets grow as needed.
+        mPacketPool = new EncodedPacketPool(maxQueuedPackets, mBitRate / 8 / FRAME_RATE * 2);
+        mPacketQueue = new PacketQueue();
+        mDrainThread = new DrainThread();
+        mDrainThread.start();
+    }
+
     /**
      * Releases encoder resources.
      */
     public void release() {
         if (VERBOSE) Log.d(TAG, "releasing encoder objects");
+        if (mDrainThread != null) {
+            mDrainThread.requestStop();
+            mPacketPool.abort();
+            try {
+                mDrainThread.join();
+            } catch (InterruptedException ie) {
+                Log.w(TAG, "Drain thread join() was interrupted", ie);
+            }
+            mDrainThread = null;
+        }
         if (mEncoder != null) {
             mEncoder.stop();
             mEncoder.release();
@@ -129,7 +185,6 @@ public class VideoEncoderCore {
      * not recording audio.
      */
     public void drainEncoder(boolean endOfStream) {
-        final int TIMEOUT_USEC = 10000;
         if (VERBOSE) Log.d(TAG, "drainEncoder(" + endOfStream + ")");
 
         if (endOfStream) {
@@ -137,7 +192,11 @@ public class VideoEncoderCore {
             mEncoder.signalEndOfInputStream();
         }
 
-        ByteBuffer[] encoderOutputBuffers = mEncoder.getOutputBuffers();
+        if (mDrainThread != null) {
+            drainPacketQueue(endOfStream);
+            return;
+        }
+
         while (true) {
             int encoderStatus = mEncoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
             if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
@@ -149,25 +208,15 @@ public class VideoEncoderCore {
                 }
             } else if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
                 // not expected for an encoder
-                encoderOutputBuffers = mEncoder.getOutputBuffers();
+                mEncoderOutputBuffers = mEncoder.getOutputBuffers();
             } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                // should happen before receiving buffers, and should only happen once
-                if (mMuxerStarted) {
-                    throw new RuntimeException("format changed twice");
-                }
-                MediaFormat newFormat = mEncoder.getOutputFormat();
-                Log.d(TAG, "encoder output format changed: " + newFormat);
-
-                // now that we have the Magic Goodies, start the muxer
-                mTrackIndex = mMuxer.addTrack(newFormat);
-                mMuxer.start();
-                mMuxerStarted = true;
+                startMuxer(mEncoder.getOutputFormat());
             } else if (encoderStatus < 0) {
                 Log.w(TAG, "unexpected result from encoder.dequeueOutputBuffer: " +
                         encoderStatus);
                 // let's ignore it
             } else {
-                ByteBuffer encodedData = encoderOutputBuffers[encoderStatus];
+                ByteBuffer encodedData = mEncoderOutputBuffers[encoderStatus];
                 if (encodedData == null) {
                     throw new RuntimeException("encoderOutputBuffer " + encoderStatus +
                             " was null");
@@ -181,19 +230,7 @@ public class VideoEncoderCore {
                 }
 
                 if (mBufferInfo.size != 0) {
-                    if (!mMuxerStarted) {
-                        throw new RuntimeException("muxer hasn't started");
-                    }
-
-                    // adjust the ByteBuffer values to match BufferInfo (not needed?)
-                    encodedData.position(mBufferInfo.offset);
-                    encodedData.limit(mBufferInfo.offset + mBufferInfo.size);
-
-                    mMuxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
-                    if (VERBOSE) {
-                        Log.d(TAG, "sent " + mBufferInfo.size + " bytes to muxer, ts=" +
-                                mBufferInfo.presentationTimeUs);
-                    }
+                    writeToMuxer(encodedData, mBufferInfo);
                 }
 
                 mEncoder.releaseOutputBuffer(encoderStatus, false);
@@ -209,4 +246,199 @@ public class VideoEncoderCore {
             }
         }
     }
+
+    /**
+     * Hands the packets collected by the drain thread to the muxer.  If endOfStream is set,
+     * waits for the drain thread to deliver the end-of-stream packet.
+     */
+    private void drainPacketQueue(boolean endOfStream) {
+        EncodedPacket packet;
+        while ((packet = mPacketQueue.take(endOfStream)) != null) {
+            if (packet.getFormat() != null) {
+                startMuxer(packet.getFormat());
+            } else if (packet.getInfo().size != 0) {
+                writeToMuxer(packet.getData(), packet.getInfo());
+            }
+            boolean eos = packet.isEndOfStream();
+            packet.recycle();
+            if (eos) {
+                if (!endOfStream) {
+                    Log.w(TAG, "reached end of stream unexpectedly");
+                } else {
+                    if (VERBOSE) Log.d(TAG, "end of stream reached");
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Adds the video track and starts the muxer.  Called when the encoder reports its
+     * output format.
+     */
+    private void startMuxer(MediaFormat newFormat) {
+        // should happen before receiving buffers, and should only happen once
+        if (mMuxerStarted) {
+            throw new RuntimeException("format changed twice");
+        }
+        Log.d(TAG, "encoder output format changed: " + newFormat);
+
+        // now that we have the Magic Goodies, start the muxer
+        mTrackIndex = mMuxer.addTrack(newFormat);
+        mMuxer.start();
+        mMuxerStarted = true;
+    }
+
+    /**
+     * Writes an encoded packet to the muxer.
+     */
+    private void writeToMuxer(ByteBuffer encodedData, MediaCodec.BufferInfo info) {
+        if (!mMuxerStarted) {
+            throw new RuntimeException("muxer hasn't started");
+        }
+
+        // adjust the ByteBuffer values to match BufferInfo (not needed?)
+        encodedData.position(info.offset);
+        encodedData.limit(info.offset + info.size);
+
+        mMuxer.writeSampleData(mTrackIndex, encodedData, info);
+        if (VERBOSE) {
+            Log.d(TAG, "sent " + info.size + " bytes to muxer, ts=" +
+                    info.presentationTimeUs);
+        }
+    }
+
+    /**
+     * Queue of packets, from the drain thread to the thread that owns the muxer.  The
+     * number of packets is bounded by the pool they come from.
+     */
+    private static class PacketQueue {
+        private ArrayDeque<EncodedPacket> mFull = new ArrayDeque<EncodedPacket>();
+        private boolean mClosed;        // drain thread has exited
+
+        /**
+         * Adds a filled packet to the queue.
+         */
+        public synchronized void put(EncodedPacket packet) {
+            mFull.add(packet);
+            notifyAll();
+        }
+
+        /**
+         * Removes the oldest packet from the queue.  If the queue is empty, returns null,
+         * or if wait is set, waits until a packet arrives or the drain thread exits.
+         */
+        public synchronized EncodedPacket take(boolean wait) {
+            while (mFull.isEmpty()) {
+                if (!wait || mClosed) {
+                    return null;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException ie) {
+                    // ignore
+                }
+            }
+            return mFull.poll();
+        }
+
+        public synchronized void close() {
+            mClosed = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Pulls output from the encoder as soon as it's available and copies it into the packet
+     * queue.  Exits after the end-of-stream packet, or when asked to stop.
+     */
+    private class DrainThread extends Thread {
+        private volatile boolean mStopRequested;
+
+        public DrainThread() {
+            super("VideoEncoderCore drain");
+        }
+
+        public void requestStop() {
+            mStopRequested = true;
+        }
+
+        @Override
+        public void run() {
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            ByteBuffer[] encoderOutputBuffers = mEncoderOutputBuffers;
+            try {
+                while (!mStopRequested) {
+                    int encoderStatus = mEncoder.dequeueOutputBuffer(info, TIMEOUT_USEC);
+                    if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                        // no output available yet
+                    } else if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                        // not expected for an encoder
+                        encoderOutputBuffers = mEncoder.getOutputBuffers();
+                    } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                        EncodedPacket packet = obtainPacket();
+                        if (packet == null) {
+                            break;
+                        }
+                        packet.setFormat(mEncoder.getOutputFormat());
+                        mPacketQueue.put(packet);
+                    } else if (encoderStatus < 0) {
+                        Log.w(TAG, "unexpected result from encoder.dequeueOutputBuffer: " +
+                                encoderStatus);
+                        // let's ignore it
+                    } else {
+                        boolean eos = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                        if (!queuePacket(encoderOutputBuffers[encoderStatus], info)) {
+                            mEncoder.releaseOutputBuffer(encoderStatus, false);
+                            break;
+                        }
+                        mEncoder.releaseOutputBuffer(encoderStatus, false);
+                        if (eos) {
+                            break;
+                        }
+                    }
+                }
+            } finally {
+                mPacketQueue.close();
+            }
+            if (VERBOSE) Log.d(TAG, "drain thread exiting");
+        }
+
+        /**
+         * Copies an encoder output buffer into the queue.  Returns false if the queue was
+         * aborted while we waited for space.
+         */
+        private boolean queuePacket(ByteBuffer encodedData, MediaCodec.BufferInfo info) {
+            if (encodedData == null) {
+                throw new RuntimeException("encoderOutputBuffer was null");
+            }
+            EncodedPacket packet = obtainPacket();
+            if (packet == null) {
+                return false;
+            }
+
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                // The codec config data was pulled out and fed to the muxer when we got
+                // the INFO_OUTPUT_FORMAT_CHANGED status.  Ignore it.
+                if (VERBOSE) Log.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
+                info.size = 0;
+            }
+            packet.set(encodedData, info);
+            mPacketQueue.put(packet);
+            return true;
+        }
+
+        /**
+         * Gets an empty packet from the queue, logging if we had to wait for one.
+         */
+        private EncodedPacket obtainPacket() {
+            long startNsec = System.nanoTime();
+            EncodedPacket packet = mPacketPool.obtain();
+            long waitMsec = (System.nanoTime() - startNsec) / 1000000;
+            if (waitMsec > 0) {
+                Log.w(TAG, "packet queue full, drain thread waited " + waitMsec + "ms");
+            }
+            return packet;
+        }
+    }
 }
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.gles;
+
+/**
+ * Matrix math for 2D sprites, without the overhead of android.opengl.Matrix.
+ * <p>
+ * Building a sprite's model/view matrix with setIdentityM(), translateM(), rotateM(), and
+ * scaleM() means three 4x4 multiplies (rotateM() also allocates a temporary array on older
+ * releases) to produce a matrix that only has six interesting values.  Here we write those
+ * values directly.
+ * <p>
+ * Matrices use the same layout as android.opengl.Matrix: 16 floats, column-major.
+ * A "2D affine" matrix is one where only elements 0, 1, 4, 5, 12, and 13 differ from the
+ * identity, i.e. a translation, rotation about Z, and scale in X/Y.
+ */
+public class AffineMatrix {
+    private AffineMatrix() {}       // do not instantiate
+
+    /**
+     * Sets m to translate * rotate * scale, the same matrix as:
+     * <pre>
+     *   Matrix.setIdentityM(m, offset);
+     *   Matrix.translateM(m, offset, tx, ty, 0);
+     *   Matrix.rotateM(m, offset, angle, 0, 0, 1);
+     *   Matrix.scaleM(m, offset, sx, sy, 1);
+     * </pre>
+     *
+     * @param angle Counter-clockwise rotation about Z, in degrees.
+     */
+    public static void setTranslateRotateScale(float[] m, int offset, float tx, float ty,
+            float angle, float sx, float sy) {
+        // Same conversion as Matrix.setRotateM(), so the results match.
+        float rad = angle * (float) (Math.PI / 180.0f);
+        float sin = (float) Math.sin(rad);
+        float cos = (float) Math.cos(rad);
+
+        m[offset] = cos * sx;
+        m[offset + 1] = sin * sx;
+        m[offset + 2] = 0;
+        m[offset + 3] = 0;
+
+        m[offset + 4] = -sin * sy;
+        m[offset + 5] = cos * sy;
+        m[offset + 6] = 0;
+        m[offset + 7] = 0;
+
+        m[offset + 8] = 0;
+        m[offset + 9] = 0;
+        m[offset + 10] = 1;
+        m[offset + 11] = 0;
+
+        m[offset + 12] = tx;
+        m[offset + 13] = ty;
+        m[offset + 14] = 0;
+        m[offset + 15] = 1;
+    }
+
+    /**
+     * Computes result = lhs * rhs, where rhs is a 2D affine matrix (see class comment) and
+     * lhs is any 4x4 matrix, e.g. a projection.  Equivalent to Matrix.multiplyMM() for those
+     * inputs, but takes 24 multiplies instead of 64.
+     * <p>
+     * The result must not overlap either input.
+     */
+    public static void multiplyByAffine(float[] result, int resultOffset,
+            float[] lhs, int lhsOffset, float[] rhs, int rhsOffset) {
+        float r0 = rhs[rhsOffset];
+        float r1 = rhs[rhsOffset + 1];
+        float r4 = rhs[rhsOffset + 4];
+        float r5 = rhs[rhsOffset + 5];
+        float r12 = rhs[rhsOffset + 12];
+        float r13 = rhs[rhsOffset + 13];
+
+        for (int i = 0; i < 4; i++) {
+            float l0 = lhs[lhsOffset + i];          // row i of lhs, column 0
+            float l1 = lhs[lhsOffset + 4 + i];      // ...column 1
+            result[resultOffset + i] = l0 * r0 + l1 * r1;
+            result[resultOffset + 4 + i] = l0 * r4 + l1 * r5;
+            result[resultOffset + 8 + i] = lhs[lhsOffset + 8 + i];
+            result[resultOffset + 12 + i] = l0 * r12 + l1 * r13 + lhs[lhsOffset + 12 + i];
+        }
+    }
+}
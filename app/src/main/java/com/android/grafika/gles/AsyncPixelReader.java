@@ -0,0 +1,162 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.gles;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads pixels from the framebuffer without stalling the GPU pipeline, using a ring of
+ * pixel buffer objects.
+ * <p>
+ * A plain glReadPixels() into client memory has to wait for all pending rendering to finish,
+ * then copy the pixels, before it returns.  If a PBO is bound to GL_PIXEL_PACK_BUFFER,
+ * glReadPixels() just queues up a copy into the PBO, and returns right away.  We map the PBO
+ * later, by which time the copy has (hopefully) finished.  With three buffers, we start the
+ * read for frame N and map the one from frame N-2.
+ * <p>
+ * Requires GLES 3.0.  The version of glReadPixels() that takes a buffer offset rather than a
+ * Buffer wasn't in the Java bindings until API 24, so we look it up by reflection; use
+ * isSupported() to check.
+ * <p>
+ * The pixels are RGBA, bottom row first, as with glReadPixels().  All methods must be called
+ * on the thread with the EGL context current.
+ */
+public class AsyncPixelReader {
+    private final int mWidth;
+    private final int mHeight;
+    private final int mBufferSize;
+    private final int[] mBuffers;
+    private int mHead;          // next buffer to read into
+    private int mPendingCount;
+
+    /**
+     * Returns true if PBO readback is available with the current context.
+     */
+    public static boolean isSupported(EglCore eglCore) {
+        return eglCore.getGlVersion() >= 3 && GlUtil.hasReadPixelsOffset();
+    }
+
+    /**
+     * Creates the buffers.  Reads cover the area from (0,0) to (width,height) of the
+     * current read surface.
+     *
+     * @param bufferCount Number of PBOs.  Results are available bufferCount-1 reads later.
+     */
+    public AsyncPixelReader(int width, int height, int bufferCount) {
+        if (!GlUtil.hasReadPixelsOffset()) {
+            throw new RuntimeException("PBO readback not supported");
+        }
+        mWidth = width;
+        mHeight = height;
+        mBufferSize = width * height * 4;
+        mBuffers = new int[bufferCount];
+
+        GLES20.glGenBuffers(bufferCount, mBuffers, 0);
+        for (int i = 0; i < bufferCount; i++) {
+            GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mBuffers[i]);
+            GLES20.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, mBufferSize, null,
+                    GLES30.GL_STREAM_READ);
+        }
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        GlUtil.checkGlError("PBO setup");
+    }
+
+    /**
+     * Returns the width of the area read.
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * Returns the height of the area read.
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Returns the number of reads that have been started, but not finished.
+     */
+    public int getPendingCount() {
+        return mPendingCount;
+    }
+
+    /**
+     * Returns the number of reads that can be pending at once.
+     */
+    public int getBufferCount() {
+        return mBuffers.length;
+    }
+
+    /**
+     * Starts copying the current read surface into the next buffer.  Returns without waiting
+     * for rendering to finish.
+     * <p>
+     * If every buffer has a read pending, call finishRead() first.  To get the results
+     * bufferCount-1 frames after they're rendered, start each frame's read, then finish the
+     * oldest once all buffers are pending.
+     */
+    public void startRead() {
+        if (mPendingCount == mBuffers.length) {
+            throw new RuntimeException("all buffers busy");
+        }
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mBuffers[mHead]);
+        GlUtil.readPixelsOffset(0, 0, mWidth, mHeight, GLES20.GL_RGBA,
+                GLES20.GL_UNSIGNED_BYTE, 0);
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        GlUtil.checkGlError("glReadPixels to PBO");
+
+        mHead = (mHead + 1) % mBuffers.length;
+        mPendingCount++;
+    }
+
+    /**
+     * Waits for the oldest pending read to finish, and copies the pixels into "dst", starting
+     * at its current position.  The position is advanced past the data.
+     */
+    public void finishRead(ByteBuffer dst) {
+        if (mPendingCount == 0) {
+            throw new RuntimeException("no read pending");
+        }
+        int tail = (mHead - mPendingCount + mBuffers.length) % mBuffers.length;
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mBuffers[tail]);
+        ByteBuffer mapped = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_PIXEL_PACK_BUFFER,
+                0, mBufferSize, GLES30.GL_MAP_READ_BIT);
+        if (mapped == null) {
+            GlUtil.checkGlError("glMapBufferRange");
+            throw new RuntimeException("glMapBufferRange failed");
+        }
+        dst.put(mapped);
+        GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        GlUtil.checkGlError("PBO map");
+
+        mPendingCount--;
+    }
+
+    /**
+     * Deletes the buffers.  Any pending reads are discarded.
+     */
+    public void release() {
+        GLES20.glDeleteBuffers(mBuffers.length, mBuffers, 0);
+        mPendingCount = 0;
+    }
+}
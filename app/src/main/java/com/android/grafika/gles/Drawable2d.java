@@ -24,6 +24,16 @@ import java.nio.FloatBuffer;
 public class Drawable2d {
     private static final int SIZEOF_FLOAT = 4;
 
+    /**
+     * Width, in bytes, of each vertex in the interleaved array: x, y, s, t.
+     */
+    public static final int INTERLEAVED_STRIDE = 4 * SIZEOF_FLOAT;
+
+    /**
+     * Offset, in bytes, of the texture coordinates within each interleaved vertex.
+     */
+    public static final int INTERLEAVED_TEX_COORD_OFFSET = 2 * SIZEOF_FLOAT;
+
     /**
      * Simple equilateral triangle (1.0 per side).  Centered on (0,0).
      */
@@ -41,6 +51,8 @@ public class Drawable2d {
             GlUtil.createFloatBuffer(TRIANGLE_COORDS);
     private static final FloatBuffer TRIANGLE_TEX_BUF =
             GlUtil.createFloatBuffer(TRIANGLE_TEX_COORDS);
+    private static final FloatBuffer TRIANGLE_INTERLEAVED_BUF =
+            GlUtil.createFloatBuffer(interleave(TRIANGLE_COORDS, TRIANGLE_TEX_COORDS));
 
     /**
      * Simple square, specified as a triangle strip.  The square is centered on (0,0) and has
@@ -64,6 +76,8 @@ public class Drawable2d {
             GlUtil.createFloatBuffer(RECTANGLE_COORDS);
     private static final FloatBuffer RECTANGLE_TEX_BUF =
             GlUtil.createFloatBuffer(RECTANGLE_TEX_COORDS);
+    private static final FloatBuffer RECTANGLE_INTERLEAVED_BUF =
+            GlUtil.createFloatBuffer(interleave(RECTANGLE_COORDS, RECTANGLE_TEX_COORDS));
 
     /**
      * A "full" square, extending from -1 to +1 in both dimensions.  When the model/view/projection
@@ -88,10 +102,14 @@ public class Drawable2d {
             GlUtil.createFloatBuffer(FULL_RECTANGLE_COORDS);
     private static final FloatBuffer FULL_RECTANGLE_TEX_BUF =
             GlUtil.createFloatBuffer(FULL_RECTANGLE_TEX_COORDS);
+    private static final FloatBuffer FULL_RECTANGLE_INTERLEAVED_BUF =
+            GlUtil.createFloatBuffer(interleave(FULL_RECTANGLE_COORDS,
+                    FULL_RECTANGLE_TEX_COORDS));
 
 
     private FloatBuffer mVertexArray;
     private FloatBuffer mTexCoordArray;
+    private FloatBuffer mInterleavedArray;
     private int mVertexCount;
     private int mCoordsPerVertex;
     private int mVertexStride;
@@ -115,6 +133,7 @@ public class Drawable2d {
             case TRIANGLE:
                 mVertexArray = TRIANGLE_BUF;
                 mTexCoordArray = TRIANGLE_TEX_BUF;
+                mInterleavedArray = TRIANGLE_INTERLEAVED_BUF;
                 mCoordsPerVertex = 2;
                 mVertexStride = mCoordsPerVertex * SIZEOF_FLOAT;
                 mVertexCount = TRIANGLE_COORDS.length / mCoordsPerVertex;
@@ -122,6 +141,7 @@ public class Drawable2d {
             case RECTANGLE:
                 mVertexArray = RECTANGLE_BUF;
                 mTexCoordArray = RECTANGLE_TEX_BUF;
+                mInterleavedArray = RECTANGLE_INTERLEAVED_BUF;
                 mCoordsPerVertex = 2;
                 mVertexStride = mCoordsPerVertex * SIZEOF_FLOAT;
                 mVertexCount = RECTANGLE_COORDS.length / mCoordsPerVertex;
@@ -129,6 +149,7 @@ public class Drawable2d {
             case FULL_RECTANGLE:
                 mVertexArray = FULL_RECTANGLE_BUF;
                 mTexCoordArray = FULL_RECTANGLE_TEX_BUF;
+                mInterleavedArray = FULL_RECTANGLE_INTERLEAVED_BUF;
                 mCoordsPerVertex = 2;
                 mVertexStride = mCoordsPerVertex * SIZEOF_FLOAT;
                 mVertexCount = FULL_RECTANGLE_COORDS.length / mCoordsPerVertex;
@@ -158,6 +179,25 @@ public class Drawable2d {
         return mTexCoordArray;
     }
 
+    /**
+     * Returns the vertices and texture coordinates, interleaved (x, y, s, t).  This is the
+     * layout Drawable2dBuffer copies into a GL buffer object.
+     * <p>
+     * To avoid allocations, this returns internal state.  The caller must not modify it.
+     */
+    public FloatBuffer getInterleavedArray() {
+        return mInterleavedArray;
+    }
+
+    /**
+     * Returns a number that changes whenever the vertex or texture coordinate data changes.
+     * Prefab shapes never change, so this is always zero; subclasses that modify their
+     * data must override it.
+     */
+    public int getContentVersion() {
+        return 0;
+    }
+
     /**
      * Returns the number of vertices stored in the vertex array.
      */
@@ -186,6 +226,21 @@ public class Drawable2d {
         return mCoordsPerVertex;
     }
 
+    /**
+     * Merges 2D positions and texture coordinates into a single (x, y, s, t) array.
+     */
+    private static float[] interleave(float[] coords, float[] texCoords) {
+        int count = coords.length / 2;
+        float[] result = new float[count * 4];
+        for (int i = 0; i < count; i++) {
+            result[i * 4] = coords[i * 2];
+            result[i * 4 + 1] = coords[i * 2 + 1];
+            result[i * 4 + 2] = texCoords[i * 2];
+            result[i * 4 + 3] = texCoords[i * 2 + 1];
+        }
+        return result;
+    }
+
     @Override
     public String toString() {
         if (mPrefab != null) {
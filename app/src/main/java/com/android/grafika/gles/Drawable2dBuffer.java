@@ -0,0 +1,103 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.gles;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Keeps a copy of a Drawable2d's geometry in a GL buffer object.
+ * <p>
+ * Drawing from client-side FloatBuffers means the driver copies the vertex data on every
+ * draw call.  With a buffer object the data lives with the driver, and we only send it
+ * again when the drawable's content version changes (e.g. ScaledDrawable2d after a zoom).
+ * <p>
+ * The positions and texture coordinates are interleaved (see
+ * {@link Drawable2d#getInterleavedArray()}), so one buffer serves both attributes.
+ * <p>
+ * Buffer objects belong to the EGL context (or share group) that was current when this
+ * was constructed.  The drawable itself has no GL state, and may be shared.
+ */
+public class Drawable2dBuffer {
+    private static final String TAG = GlUtil.TAG;
+    private static final int SIZEOF_FLOAT = 4;
+
+    private final Drawable2d mDrawable;
+    private final int[] mBuffer = new int[1];
+    private int mUploadedVersion;
+
+
+    /**
+     * Creates the buffer object and fills it.  Must be called with an EGL context current.
+     */
+    public Drawable2dBuffer(Drawable2d drawable) {
+        mDrawable = drawable;
+
+        GLES20.glGenBuffers(1, mBuffer, 0);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mBuffer[0]);
+        FloatBuffer data = drawable.getInterleavedArray();
+        // Prefab shapes never change.  Anything with a content version may.
+        int usage = (drawable.getContentVersion() == 0) ?
+                GLES20.GL_STATIC_DRAW : GLES20.GL_DYNAMIC_DRAW;
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, data.capacity() * SIZEOF_FLOAT, data,
+                usage);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        GlUtil.checkGlError("Drawable2dBuffer setup");
+        mUploadedVersion = drawable.getContentVersion();
+        Log.d(TAG, "Created buffer " + mBuffer[0] + " for " + drawable);
+    }
+
+    /**
+     * Deletes the buffer object.  The EGL context it was created in must be current.
+     */
+    public void release() {
+        if (mBuffer[0] != 0) {
+            GLES20.glDeleteBuffers(1, mBuffer, 0);
+            mBuffer[0] = 0;
+        }
+    }
+
+    /**
+     * Returns the drawable whose geometry we hold.
+     */
+    public Drawable2d getDrawable() {
+        return mDrawable;
+    }
+
+    /**
+     * Binds the buffer to GL_ARRAY_BUFFER, updating its contents first if the drawable has
+     * changed since the last upload.
+     * <p>
+     * Attribute pointers set while the buffer is bound are byte offsets into it; see
+     * {@link Drawable2d#INTERLEAVED_STRIDE} and
+     * {@link Drawable2d#INTERLEAVED_TEX_COORD_OFFSET}.  Bind 0 to GL_ARRAY_BUFFER afterward,
+     * so that code drawing from client-side arrays still works.
+     */
+    public void bind() {
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mBuffer[0]);
+        int version = mDrawable.getContentVersion();
+        if (version != mUploadedVersion) {
+            // Same size, so replace the contents rather than reallocate.
+            FloatBuffer data = mDrawable.getInterleavedArray();
+            GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, 0, data.capacity() * SIZEOF_FLOAT,
+                    data);
+            mUploadedVersion = version;
+        }
+    }
+}
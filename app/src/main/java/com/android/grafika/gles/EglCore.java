@@ -133,6 +133,9 @@ public final class EglCore {
         EGL14.eglQueryContext(mEGLDisplay, mEGLContext, EGL14.EGL_CONTEXT_CLIENT_VERSION,
                 values, 0);
         Log.d(TAG, "EGLContext created, client version " + values[0]);
+
+        // We'll say when the context goes away, so programs can be kept around for reuse.
+        ProgramCache.getInstance().registerContext(mEGLContext);
     }
 
     /**
@@ -182,6 +185,9 @@ public final class EglCore {
      * On completion, no context will be current.
      */
     public void release() {
+        if (mEGLContext != EGL14.EGL_NO_CONTEXT) {
+            ProgramCache.getInstance().unregisterContext(mEGLContext);
+        }
         if (mEGLDisplay != EGL14.EGL_NO_DISPLAY) {
             // Android is unusual in that it uses a reference-counted EGLDisplay.  So for
             // every eglInitialize() we need an eglTerminate().
@@ -195,6 +201,8 @@ public final class EglCore {
         mEGLDisplay = EGL14.EGL_NO_DISPLAY;
         mEGLContext = EGL14.EGL_NO_CONTEXT;
         mEGLConfig = null;
+        // The next context may get the same handle; don't let GlState mistake it for this one.
+        GlState.invalidateAll();
     }
 
     @Override
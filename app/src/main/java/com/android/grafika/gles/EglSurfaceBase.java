@@ -27,7 +27,10 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Common base class for EGL surfaces.
@@ -37,6 +40,9 @@ import java.nio.ByteOrder;
 public class EglSurfaceBase {
     protected static final String TAG = GlUtil.TAG;
 
+    // Compresses and writes frames for saveFrameAsync().  Created on first use.
+    private static ExecutorService sSaveExecutor;
+
     // EglCore object we're associated with.  It may be associated with multiple surfaces.
     protected EglCore mEglCore;
 
@@ -164,33 +170,95 @@ public class EglSurfaceBase {
         // constructor that takes an int[] wants little-endian ARGB (blue/red swapped), the
         // Bitmap "copy pixels" method wants the same format GL provides.
         //
-        // Ideally we'd have some way to re-use the ByteBuffer, especially if we're calling
-        // here often.
+        // The buffer and Bitmap come from a pool, since at 1080p they're 8MB apiece, and
+        // allocating them every time we're called makes for a lot of GC.
         //
         // Making this even more interesting is the upside-down nature of GL, which means
         // our output will look upside down relative to what appears on screen if the
         // typical GL conventions are used.
 
-        String filename = file.toString();
-
         int width = getWidth();
         int height = getHeight();
-        ByteBuffer buf = ByteBuffer.allocateDirect(width * height * 4);
-        buf.order(ByteOrder.LITTLE_ENDIAN);
-        GLES20.glReadPixels(0, 0, width, height,
-                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, buf);
-        GlUtil.checkGlError("glReadPixels");
+        ByteBuffer buf = readPixels(width, height);
+        writeFrame(buf, width, height, file);
+    }
+
+    /**
+     * Saves the EGL surface to a file, like saveFrame(), but does the compression and file
+     * I/O on a background thread.  The pixels are read before this returns, so the caller
+     * is free to render the next frame.
+     * <p>
+     * Expects that this object's EGL surface is current.
+     *
+     * @return A Future that yields the file once it has been written.
+     */
+    public Future<File> saveFrameAsync(final File file) {
+        if (!mEglCore.isCurrent(mEGLSurface)) {
+            throw new RuntimeException("Expected EGL context/surface is not current");
+        }
+
+        final int width = getWidth();
+        final int height = getHeight();
+        final ByteBuffer buf = readPixels(width, height);
+        try {
+            return getSaveExecutor().submit(new Callable<File>() {
+                @Override
+                public File call() throws IOException {
+                    writeFrame(buf, width, height, file);
+                    return file;
+                }
+            });
+        } catch (RuntimeException re) {
+            PixelBufferPool.getInstance().releaseBuffer(buf);
+            throw re;
+        }
+    }
+
+    private static synchronized ExecutorService getSaveExecutor() {
+        if (sSaveExecutor == null) {
+            sSaveExecutor = Executors.newSingleThreadExecutor();
+        }
+        return sSaveExecutor;
+    }
+
+    /**
+     * Reads the current surface into a buffer from the pool.
+     */
+    private static ByteBuffer readPixels(int width, int height) {
+        ByteBuffer buf = PixelBufferPool.getInstance().acquireBuffer(width, height);
+        try {
+            GLES20.glReadPixels(0, 0, width, height,
+                    GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, buf);
+            GlUtil.checkGlError("glReadPixels");
+        } catch (RuntimeException re) {
+            PixelBufferPool.getInstance().releaseBuffer(buf);
+            throw re;
+        }
         buf.rewind();
+        return buf;
+    }
 
-        BufferedOutputStream bos = null;
+    /**
+     * Writes pixels from readPixels() to a PNG file, and returns the buffer to the pool.
+     */
+    private static void writeFrame(ByteBuffer buf, int width, int height, File file)
+            throws IOException {
+        PixelBufferPool pool = PixelBufferPool.getInstance();
+        String filename = file.toString();
+        Bitmap bmp = null;
         try {
-            bos = new BufferedOutputStream(new FileOutputStream(filename));
-            Bitmap bmp = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-            bmp.copyPixelsFromBuffer(buf);
-            bmp.compress(Bitmap.CompressFormat.PNG, 90, bos);
-            bmp.recycle();
+            BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(filename));
+            try {
+                bmp = pool.acquireBitmap(width, height);
+                bmp.copyPixelsFromBuffer(buf);
+                bmp.compress(Bitmap.CompressFormat.PNG, 90, bos);
+            } finally {
+                bos.close();
+            }
         } finally {
-            if (bos != null) bos.close();
+            // Return these even if the file couldn't be opened, written, or closed.
+            if (bmp != null) pool.releaseBitmap(bmp);
+            pool.releaseBuffer(buf);
         }
         Log.d(TAG, "Saved " + width + "x" + height + " frame as '" + filename + "'");
     }
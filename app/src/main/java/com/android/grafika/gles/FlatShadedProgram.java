@@ -20,6 +20,7 @@ import android.opengl.GLES20;
 import android.util.Log;
 
 import java.nio.FloatBuffer;
+import java.util.Arrays;
 
 /**
  * GL program and supporting functions for flat-shaded rendering.
@@ -42,21 +43,25 @@ public class FlatShadedProgram {
             "}";
 
     // Handles to the GL program and various components of it.
+    private ProgramCache.CachedProgram mProgram;
     private int mProgramHandle = -1;
     private int muColorLoc = -1;
     private int muMVPMatrixLoc = -1;
     private int maPositionLoc = -1;
 
+    // Last values uploaded to the uniforms.  NaN never compares equal, so the first draw
+    // uploads them.
+    private final float[] mLastMVPMatrix = new float[16];
+    private final float[] mLastColor = new float[4];
+
 
     /**
      * Prepares the program in the current EGL context.
      */
     public FlatShadedProgram() {
-        mProgramHandle = GlUtil.createProgram(VERTEX_SHADER, FRAGMENT_SHADER);
-        if (mProgramHandle == 0) {
-            throw new RuntimeException("Unable to create program");
-        }
-        Log.d(TAG, "Created program " + mProgramHandle);
+        mProgram = ProgramCache.getInstance().acquire(VERTEX_SHADER, FRAGMENT_SHADER);
+        mProgramHandle = mProgram.getHandle();
+        Log.d(TAG, "Using program " + mProgramHandle);
 
         // get locations of attributes and uniforms
 
@@ -66,18 +71,24 @@ public class FlatShadedProgram {
         GlUtil.checkLocation(muMVPMatrixLoc, "uMVPMatrix");
         muColorLoc = GLES20.glGetUniformLocation(mProgramHandle, "uColor");
         GlUtil.checkLocation(muColorLoc, "uColor");
+
+        Arrays.fill(mLastMVPMatrix, Float.NaN);
+        Arrays.fill(mLastColor, Float.NaN);
     }
 
     /**
      * Releases the program.
      */
     public void release() {
-        GLES20.glDeleteProgram(mProgramHandle);
+        if (mProgram != null) {
+            ProgramCache.getInstance().release(mProgram);
+            mProgram = null;
+        }
         mProgramHandle = -1;
     }
 
     /**
-     * Issues the draw call.  Does the full setup on every call.
+     * Issues the draw call, taking the geometry from client memory.
      *
      * @param mvpMatrix The 4x4 projection matrix.
      * @param color A 4-element color vector.
@@ -90,35 +101,78 @@ public class FlatShadedProgram {
      */
     public void draw(float[] mvpMatrix, float[] color, FloatBuffer vertexBuffer,
             int firstVertex, int vertexCount, int coordsPerVertex, int vertexStride) {
-        GlUtil.checkGlError("draw start");
+        prepareDraw(mvpMatrix, color);
 
-        // Select the program.
-        GLES20.glUseProgram(mProgramHandle);
-        GlUtil.checkGlError("glUseProgram");
+        // Connect vertexBuffer to "aPosition".
+        GLES20.glVertexAttribPointer(maPositionLoc, coordsPerVertex,
+            GLES20.GL_FLOAT, false, vertexStride, vertexBuffer);
 
-        // Copy the model / view / projection matrix over.
-        GLES20.glUniformMatrix4fv(muMVPMatrixLoc, 1, false, mvpMatrix, 0);
-        GlUtil.checkGlError("glUniformMatrix4fv");
+        finishDraw(firstVertex, vertexCount);
+    }
 
-        // Copy the color vector in.
-        GLES20.glUniform4fv(muColorLoc, 1, color, 0);
-        GlUtil.checkGlError("glUniform4fv ");
+    /**
+     * Issues the draw call, taking the geometry from a GL buffer object rather than
+     * client memory.
+     *
+     * @param mvpMatrix The 4x4 projection matrix.
+     * @param color A 4-element color vector.
+     * @param buffer Buffer object holding the drawable's interleaved vertices.
+     */
+    public void draw(float[] mvpMatrix, float[] color, Drawable2dBuffer buffer) {
+        prepareDraw(mvpMatrix, color);
 
-        // Enable the "aPosition" vertex attribute.
-        GLES20.glEnableVertexAttribArray(maPositionLoc);
-        GlUtil.checkGlError("glEnableVertexAttribArray");
+        // Point "aPosition" into the buffer object.  We skip the texture coordinates.
+        buffer.bind();
+        GLES20.glVertexAttribPointer(maPositionLoc, 2, GLES20.GL_FLOAT, false,
+                Drawable2d.INTERLEAVED_STRIDE, 0);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
 
-        // Connect vertexBuffer to "aPosition".
-        GLES20.glVertexAttribPointer(maPositionLoc, coordsPerVertex,
-            GLES20.GL_FLOAT, false, vertexStride, vertexBuffer);
-        GlUtil.checkGlError("glVertexAttribPointer");
+        finishDraw(0, buffer.getDrawable().getVertexCount());
+    }
 
-        // Draw the rect.
-        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, firstVertex, vertexCount);
-        GlUtil.checkGlError("glDrawArrays");
+    /**
+     * Selects the program and uploads whatever uniforms have changed.
+     * <p>
+     * The program and vertex array are left set up after the draw, and uniforms are
+     * only uploaded when their values change.  See {@link GlState}.
+     */
+    private void prepareDraw(float[] mvpMatrix, float[] color) {
+        if (GlUtil.DEBUG_CHECKS) {
+            GlUtil.checkGlError("draw start");
+        }
+
+        // If another FlatShadedProgram drew with our (shared) program since we did, the
+        // uniforms hold its values rather than ours.
+        if (!mProgram.claimUniforms(this)) {
+            Arrays.fill(mLastMVPMatrix, Float.NaN);
+            Arrays.fill(mLastColor, Float.NaN);
+        }
+
+        // Select the program, and enable the "aPosition" vertex attribute.
+        GlState state = GlState.get();
+        state.useProgram(mProgramHandle);
+        state.setVertexAttribArrays(GlState.attribBit(maPositionLoc));
+
+        // Copy the model / view / projection matrix over.
+        if (GlUtil.copyIfChanged(mvpMatrix, mLastMVPMatrix)) {
+            GLES20.glUniformMatrix4fv(muMVPMatrixLoc, 1, false, mvpMatrix, 0);
+        }
+
+        // Copy the color vector in.
+        if (color[0] != mLastColor[0] || color[1] != mLastColor[1] ||
+                color[2] != mLastColor[2] || color[3] != mLastColor[3]) {
+            GLES20.glUniform4fv(muColorLoc, 1, color, 0);
+            System.arraycopy(color, 0, mLastColor, 0, 4);
+        }
+    }
 
-        // Done -- disable vertex array and program.
-        GLES20.glDisableVertexAttribArray(maPositionLoc);
-        GLES20.glUseProgram(0);
+    /**
+     * Draws the strip.
+     */
+    private void finishDraw(int firstVertex, int vertexCount) {
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, firstVertex, vertexCount);
+        if (GlUtil.DEBUG_CHECKS) {
+            GlUtil.checkGlError("glDrawArrays");
+        }
     }
 }
@@ -24,6 +24,7 @@ import android.opengl.Matrix;
  */
 public class FullFrameRect {
     private final Drawable2d mRectDrawable = new Drawable2d(Drawable2d.Prefab.FULL_RECTANGLE);
+    private Drawable2dBuffer mRectBuffer;
     private Texture2dProgram mProgram;
 
     /**
@@ -34,6 +35,7 @@ public class FullFrameRect {
      */
     public FullFrameRect(Texture2dProgram program) {
         mProgram = program;
+        mRectBuffer = new Drawable2dBuffer(mRectDrawable);
     }
 
     /**
@@ -51,6 +53,12 @@ public class FullFrameRect {
             }
             mProgram = null;
         }
+        if (mRectBuffer != null) {
+            if (doEglCleanup) {
+                mRectBuffer.release();
+            }
+            mRectBuffer = null;
+        }
     }
 
     /**
@@ -82,10 +90,6 @@ public class FullFrameRect {
      */
     public void drawFrame(int textureId, float[] texMatrix) {
         // Use the identity matrix for MVP so our 2x2 FULL_RECTANGLE covers the viewport.
-        mProgram.draw(GlUtil.IDENTITY_MATRIX, mRectDrawable.getVertexArray(), 0,
-                mRectDrawable.getVertexCount(), mRectDrawable.getCoordsPerVertex(),
-                mRectDrawable.getVertexStride(),
-                texMatrix, mRectDrawable.getTexCoordArray(), textureId,
-                mRectDrawable.getTexCoordStride());
+        mProgram.draw(GlUtil.IDENTITY_MATRIX, mRectBuffer, texMatrix, textureId);
     }
 }
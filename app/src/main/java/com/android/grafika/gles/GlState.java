@@ -0,0 +1,218 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.gles;
+
+import android.opengl.EGL14;
+import android.opengl.EGLContext;
+import android.opengl.GLES20;
+
+/**
+ * Tracks a little bit of GL state -- the current program and the enabled vertex attribute
+ * arrays -- so that draw code can skip calls that wouldn't change anything.
+ * <p>
+ * The draw() methods in Texture2dProgram and FlatShadedProgram used to bind their program,
+ * enable their attributes, draw, and then undo all of it.  Drawing a few hundred sprites
+ * meant a few thousand redundant calls.  Now they leave their state in place, and ask
+ * GlState to change only what differs from the previous draw.
+ * <p>
+ * GL state belongs to the context, so there's one GlState per thread, and it forgets
+ * everything when it notices a different EGL context is current.  EGL can give a new context
+ * the handle of one that was destroyed, so contexts being created or destroyed must also be
+ * reported with {@link #invalidateAll()}; EglCore and ProgramCache.registerContext() do this.
+ * Code that shares a context with the gles classes and calls glUseProgram() or
+ * gl{En,Dis}ableVertexAttribArray() directly must call {@link #invalidate()} afterward.
+ * <p>
+ * Texture bindings aren't tracked; too many places in the app bind textures directly.
+ */
+public final class GlState {
+    private static final String TAG = GlUtil.TAG;
+
+    /**
+     * The GL calls we make.  Tests substitute a version that records them.
+     */
+    interface Calls {
+        void useProgram(int program);
+        void enableVertexAttribArray(int location);
+        void disableVertexAttribArray(int location);
+    }
+
+    private static final Calls GLES20_CALLS = new Calls() {
+        @Override
+        public void useProgram(int program) {
+            GLES20.glUseProgram(program);
+        }
+
+        @Override
+        public void enableVertexAttribArray(int location) {
+            GLES20.glEnableVertexAttribArray(location);
+        }
+
+        @Override
+        public void disableVertexAttribArray(int location) {
+            GLES20.glDisableVertexAttribArray(location);
+        }
+    };
+
+    // Bumped by invalidateAll().  Each GlState remembers the value it last saw.
+    private static volatile int sGeneration;
+
+    private static final ThreadLocal<GlState> sState = new ThreadLocal<GlState>() {
+        @Override
+        protected GlState initialValue() {
+            return new GlState();
+        }
+    };
+
+    private final Calls mCalls;
+    private EGLContext mContext;
+    private int mGeneration;
+    private boolean mProgramKnown;
+    private int mProgram;
+    private boolean mAttribsKnown;
+    private int mEnabledAttribs;        // arrays we enabled and haven't disabled
+    private int mTouchedAttribs;        // every array we've ever enabled on this thread
+
+    private long mIssuedCount;
+    private long mSkippedCount;
+
+
+    private GlState() {
+        this(GLES20_CALLS);
+    }
+
+    /**
+     * Creates a tracker that isn't tied to a thread.  For tests.
+     */
+    GlState(Calls calls) {
+        mCalls = calls;
+        mGeneration = sGeneration;
+    }
+
+    /**
+     * Returns the state tracker for the context that is current on this thread.
+     */
+    public static GlState get() {
+        GlState state = sState.get();
+        EGLContext context = EGL14.eglGetCurrentContext();
+        int generation = sGeneration;
+        boolean sameContext = (context == null) ?
+                state.mContext == null : context.equals(state.mContext);
+        if (!sameContext || generation != state.mGeneration) {
+            state.mContext = context;
+            state.mGeneration = generation;
+            state.invalidate();
+        }
+        return state;
+    }
+
+    /**
+     * Makes every thread's tracker forget what it knows, the next time it's fetched with
+     * get().  Call when an EGL context is created or destroyed.
+     */
+    public static synchronized void invalidateAll() {
+        sGeneration++;
+    }
+
+    /**
+     * Forgets everything we know about the current state.  The next calls will be issued
+     * unconditionally.
+     */
+    public void invalidate() {
+        mProgramKnown = false;
+        mAttribsKnown = false;
+    }
+
+    /**
+     * Makes the program current, if it isn't already.
+     */
+    public void useProgram(int program) {
+        if (mProgramKnown && mProgram == program) {
+            mSkippedCount++;
+            return;
+        }
+        mCalls.useProgram(program);
+        mIssuedCount++;
+        mProgram = program;
+        mProgramKnown = true;
+    }
+
+    /**
+     * Call before glDeleteProgram().  If the program is current, we unbind it, so that
+     * GL actually frees it rather than waiting for it to stop being current.
+     */
+    public void onDeleteProgram(int program) {
+        if (mProgramKnown && mProgram == program) {
+            useProgram(0);
+        }
+    }
+
+    /**
+     * Returns the bit that represents the attribute location in a mask passed to
+     * {@link #setVertexAttribArrays(int)}.
+     */
+    public static int attribBit(int location) {
+        if (location < 0 || location >= 32) {
+            throw new IllegalArgumentException("Can't track attribute location " + location);
+        }
+        return 1 << location;
+    }
+
+    /**
+     * Enables the vertex attribute arrays in the mask, and disables any others that were
+     * enabled through here.  (Arrays enabled behind our back are left alone.)
+     *
+     * @param mask Bitwise OR of {@link #attribBit(int)} values.
+     */
+    public void setVertexAttribArrays(int mask) {
+        // If we've lost track, any array we've ever enabled might still be on.
+        int enabled = mAttribsKnown ? mEnabledAttribs : mTouchedAttribs;
+        int toEnable = mAttribsKnown ? (mask & ~enabled) : mask;
+        int toDisable = enabled & ~mask;
+        mSkippedCount += Integer.bitCount(mask & ~toEnable);
+
+        while (toEnable != 0) {
+            int loc = Integer.numberOfTrailingZeros(toEnable);
+            mCalls.enableVertexAttribArray(loc);
+            mIssuedCount++;
+            toEnable &= ~(1 << loc);
+        }
+        while (toDisable != 0) {
+            int loc = Integer.numberOfTrailingZeros(toDisable);
+            mCalls.disableVertexAttribArray(loc);
+            mIssuedCount++;
+            toDisable &= ~(1 << loc);
+        }
+        mEnabledAttribs = mask;
+        mTouchedAttribs |= mask;
+        mAttribsKnown = true;
+    }
+
+    /**
+     * Returns the number of state-change calls issued to GL.
+     */
+    public long getIssuedCount() {
+        return mIssuedCount;
+    }
+
+    /**
+     * Returns the number of state-change calls we skipped because they wouldn't have
+     * changed anything.
+     */
+    public long getSkippedCount() {
+        return mSkippedCount;
+    }
+}
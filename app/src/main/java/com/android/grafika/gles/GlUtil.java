@@ -22,6 +22,8 @@ import android.opengl.GLES30;
 import android.opengl.Matrix;
 import android.util.Log;
 
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
@@ -39,8 +41,22 @@ public class GlUtil {
         Matrix.setIdentityM(IDENTITY_MATRIX, 0);
     }
 
+    /**
+     * Enables the glGetError() checks in per-draw code paths.  Each check is a round trip
+     * into the driver, and some drivers stall the pipeline to answer, so release builds
+     * should set this to false.  Since it's a constant, the checks are compiled out.
+     * <p>
+     * One-time setup code calls checkGlError() unconditionally.
+     */
+    public static final boolean DEBUG_CHECKS = true;
+
     private static final int SIZEOF_FLOAT = 4;
 
+    // GLES30 calls that take an offset into a bound pixel buffer, rather than a Buffer.
+    // They weren't in the Java bindings until API 24, so we look them up by reflection.
+    private static Method sTexSubImage2DOffset;
+    private static Method sReadPixelsOffset;
+    private static boolean sOffsetMethodsLookedUp;
 
     private GlUtil() {}     // do not instantiate
 
@@ -50,6 +66,18 @@ public class GlUtil {
      * @return A handle to the program, or 0 on failure.
      */
     public static int createProgram(String vertexSource, String fragmentSource) {
+        return createProgram(vertexSource, fragmentSource, false);
+    }
+
+    /**
+     * Creates a new program from the supplied vertex and fragment shaders.
+     *
+     * @param retrievable If set, hint to the driver that we'll want the linked binary from
+     *        glGetProgramBinary().  Requires GLES 3.
+     * @return A handle to the program, or 0 on failure.
+     */
+    public static int createProgram(String vertexSource, String fragmentSource,
+            boolean retrievable) {
         int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, vertexSource);
         if (vertexShader == 0) {
             return 0;
@@ -68,6 +96,10 @@ public class GlUtil {
         checkGlError("glAttachShader");
         GLES20.glAttachShader(program, pixelShader);
         checkGlError("glAttachShader");
+        if (retrievable) {
+            GLES30.glProgramParameteri(program, GLES30.GL_PROGRAM_BINARY_RETRIEVABLE_HINT,
+                    GLES20.GL_TRUE);
+        }
         GLES20.glLinkProgram(program);
         int[] linkStatus = new int[1];
         GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
@@ -101,6 +133,22 @@ public class GlUtil {
         return shader;
     }
 
+    /**
+     * Copies a 4x4 matrix into "last", if it differs.  Used to skip redundant uniform
+     * uploads; comparing 16 floats is much cheaper than a trip through JNI and the driver.
+     *
+     * @return true if the matrix changed.
+     */
+    public static boolean copyIfChanged(float[] matrix, float[] last) {
+        for (int i = 0; i < 16; i++) {
+            if (matrix[i] != last[i]) {
+                System.arraycopy(matrix, i, last, i, 16 - i);
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Checks to see if a GLES error has been raised.
      */
@@ -215,4 +263,74 @@ public class GlUtil {
             }
         }
     }
+
+    /**
+     * Returns true if {@link #texSubImage2DOffset} can be used.  The caller must also check
+     * that the context is GLES 3.
+     */
+    public static boolean hasTexSubImage2DOffset() {
+        lookUpOffsetMethods();
+        return sTexSubImage2DOffset != null;
+    }
+
+    /**
+     * Calls the GLES30 glTexSubImage2D() that reads from the bound GL_PIXEL_UNPACK_BUFFER.
+     */
+    public static void texSubImage2DOffset(int target, int level, int xoffset, int yoffset,
+            int width, int height, int format, int type, int offset) {
+        lookUpOffsetMethods();
+        invoke(sTexSubImage2DOffset, target, level, xoffset, yoffset, width, height, format,
+                type, offset);
+    }
+
+    /**
+     * Returns true if {@link #readPixelsOffset} can be used.  The caller must also check
+     * that the context is GLES 3.
+     */
+    public static boolean hasReadPixelsOffset() {
+        lookUpOffsetMethods();
+        return sReadPixelsOffset != null;
+    }
+
+    /**
+     * Calls the GLES30 glReadPixels() that writes to the bound GL_PIXEL_PACK_BUFFER.
+     */
+    public static void readPixelsOffset(int x, int y, int width, int height, int format,
+            int type, int offset) {
+        lookUpOffsetMethods();
+        invoke(sReadPixelsOffset, x, y, width, height, format, type, offset);
+    }
+
+    private static synchronized void lookUpOffsetMethods() {
+        if (sOffsetMethodsLookedUp) {
+            return;
+        }
+        sOffsetMethodsLookedUp = true;
+        try {
+            sTexSubImage2DOffset = GLES30.class.getMethod("glTexSubImage2D", int.class,
+                    int.class, int.class, int.class, int.class, int.class, int.class,
+                    int.class, int.class);
+        } catch (NoSuchMethodException nsme) {
+            Log.i(TAG, "glTexSubImage2D with offset not available");
+        }
+        try {
+            sReadPixelsOffset = GLES30.class.getMethod("glReadPixels", int.class, int.class,
+                    int.class, int.class, int.class, int.class, int.class);
+        } catch (NoSuchMethodException nsme) {
+            Log.i(TAG, "glReadPixels with offset not available");
+        }
+    }
+
+    private static void invoke(Method method, Object... args) {
+        if (method == null) {
+            throw new UnsupportedOperationException("not in this release's GLES30 bindings");
+        }
+        try {
+            method.invoke(null, args);
+        } catch (IllegalAccessException iae) {
+            throw new RuntimeException(iae);
+        } catch (InvocationTargetException ite) {
+            throw new RuntimeException(ite.getCause());
+        }
+    }
 }
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.gles;
+
+import android.graphics.Bitmap;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reusable direct ByteBuffers and ARGB_8888 Bitmaps for frame readback.
+ * <p>
+ * Buffers and bitmaps are pooled separately, each with half of the byte budget.
+ */
+public class PixelBufferPool {
+    // Enough for a 1080p buffer and bitmap, twice over.
+    private static final long DEFAULT_MAX_IDLE_BYTES = 32 * 1024 * 1024;
+
+    private static final Object sLock = new Object();
+    private static PixelBufferPool sInstance = null;
+
+    private final SizeKeyedPool<ByteBuffer> mBuffers;
+    private final SizeKeyedPool<Bitmap> mBitmaps;
+
+    /**
+     * Direct buffers, keyed by capacity.
+     */
+    private static class BufferPool extends SizeKeyedPool<ByteBuffer> {
+        BufferPool(long maxIdleBytes) {
+            super(maxIdleBytes);
+        }
+
+        @Override
+        protected ByteBuffer create(long key) {
+            ByteBuffer buf = ByteBuffer.allocateDirect((int) key);
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            return buf;
+        }
+
+        @Override
+        protected long getKey(ByteBuffer item) {
+            return item.capacity();
+        }
+
+        @Override
+        protected long getSize(ByteBuffer item) {
+            return item.capacity();
+        }
+    }
+
+    /**
+     * ARGB_8888 bitmaps, keyed by width and height.
+     */
+    private static class BitmapPool extends SizeKeyedPool<Bitmap> {
+        BitmapPool(long maxIdleBytes) {
+            super(maxIdleBytes);
+        }
+
+        @Override
+        protected Bitmap create(long key) {
+            return Bitmap.createBitmap((int) (key >>> 32), (int) key, Bitmap.Config.ARGB_8888);
+        }
+
+        @Override
+        protected long getKey(Bitmap item) {
+            return bitmapKey(item.getWidth(), item.getHeight());
+        }
+
+        @Override
+        protected long getSize(Bitmap item) {
+            return item.getByteCount();
+        }
+
+        @Override
+        protected void onEvict(Bitmap item) {
+            item.recycle();
+        }
+    }
+
+    /**
+     * Returns the shared pool.
+     */
+    public static PixelBufferPool getInstance() {
+        synchronized (sLock) {
+            if (sInstance == null) {
+                sInstance = new PixelBufferPool(DEFAULT_MAX_IDLE_BYTES);
+            }
+            return sInstance;
+        }
+    }
+
+    /**
+     * @param maxIdleBytes Most bytes of idle buffers and bitmaps to keep, combined.
+     */
+    public PixelBufferPool(long maxIdleBytes) {
+        mBuffers = new BufferPool(maxIdleBytes / 2);
+        mBitmaps = new BitmapPool(maxIdleBytes / 2);
+    }
+
+    /**
+     * Returns a little-endian direct buffer big enough for width x height RGBA pixels, with
+     * its position at zero and its limit at the end of the pixel data.
+     */
+    public ByteBuffer acquireBuffer(int width, int height) {
+        ByteBuffer buf = mBuffers.acquire((long) width * height * 4);
+        buf.clear();
+        return buf;
+    }
+
+    /**
+     * Returns a buffer from acquireBuffer() to the pool.
+     */
+    public void releaseBuffer(ByteBuffer buf) {
+        mBuffers.release(buf);
+    }
+
+    /**
+     * Returns a mutable ARGB_8888 Bitmap.  The contents are undefined.
+     */
+    public Bitmap acquireBitmap(int width, int height) {
+        return mBitmaps.acquire(bitmapKey(width, height));
+    }
+
+    /**
+     * Returns a Bitmap from acquireBitmap() to the pool.
+     */
+    public void releaseBitmap(Bitmap bitmap) {
+        mBitmaps.release(bitmap);
+    }
+
+    /**
+     * Drops everything that isn't in use.
+     */
+    public void trim() {
+        mBuffers.trim();
+        mBitmaps.trim();
+    }
+
+    @Override
+    public String toString() {
+        return "PixelBufferPool[" + mBuffers + " " + mBitmaps + "]";
+    }
+
+    private static long bitmapKey(int width, int height) {
+        return ((long) width << 32) | (height & 0xffffffffL);
+    }
+}
@@ -0,0 +1,430 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.gles;
+
+import android.opengl.EGL14;
+import android.opengl.EGLContext;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+
+/**
+ * Process-wide cache of linked GL programs, keyed by a hash of the shader source.
+ * <p>
+ * Compiling and linking a program can take tens of milliseconds, and we do it every time
+ * a Texture2dProgram is created -- on every surface re-creation, and every filter change
+ * in CameraCaptureActivity.  Two levels of caching help:
+ * <ul>
+ * <li>In memory.  Programs are reference-counted; when the last user releases one, we
+ *     keep it around until its EGL context goes away, so the next acquire() is a lookup.
+ *     We can only do this for contexts whose lifetime we're told about, through
+ *     {@link #registerContext(EGLContext)} and {@link #unregisterContext(EGLContext)}.
+ *     EglCore does this for its contexts.  For any other context, programs are deleted
+ *     as soon as they're released.
+ * <li>On disk, for GLES 3 contexts.  After compiling a program we save the result of
+ *     glGetProgramBinary() to the directory set with {@link #setBinaryDirectory(File)},
+ *     and the next time (even in a new process) we hand it to glProgramBinary() instead
+ *     of compiling.  The file name includes the GL renderer and version strings, so a
+ *     driver update doesn't pick up stale binaries; if the driver rejects one anyway, we
+ *     delete it and compile from source.
+ * </ul>
+ * Times for compiles, binary loads, and in-memory hits are logged, and totals are
+ * available from {@link #getStats()}.
+ */
+public class ProgramCache {
+    private static final String TAG = GlUtil.TAG;
+    private static final boolean VERBOSE = false;
+
+    private static final int BINARY_MAGIC = 0x47726166;     // "Graf"
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final ProgramCache sInstance = new ProgramCache();
+
+    /**
+     * A linked program, shared by everything that asked for the same shaders in the same
+     * EGL context.
+     */
+    public static class CachedProgram {
+        private final EGLContext mContext;
+        private final String mKey;
+        private final int mHandle;
+        private int mRefCount;
+        private Object mUniformOwner;
+
+        private CachedProgram(EGLContext context, String key, int handle) {
+            mContext = context;
+            mKey = key;
+            mHandle = handle;
+        }
+
+        /**
+         * Returns the GL program handle.
+         */
+        public int getHandle() {
+            return mHandle;
+        }
+
+        /**
+         * Uniform values are program state, so if two objects share a program, each one's
+         * idea of "what I uploaded last time" can be wrong.  Callers that skip redundant
+         * uniform uploads should call this before drawing.
+         *
+         * @return true if the caller was the last to claim the uniforms, so whatever it
+         *         uploaded is still there.  If false, the caller must upload them all.
+         */
+        public boolean claimUniforms(Object owner) {
+            if (mUniformOwner == owner) {
+                return true;
+            }
+            mUniformOwner = owner;
+            return false;
+        }
+    }
+
+    private final Object mLock = new Object();
+
+    // Programs for registered contexts, by context and then source hash.
+    private final HashMap<EGLContext, HashMap<String, CachedProgram>> mPrograms =
+            new HashMap<EGLContext, HashMap<String, CachedProgram>>();
+
+    private File mBinaryDir;
+
+    private int mCompileCount;
+    private long mCompileNsec;
+    private int mBinaryLoadCount;
+    private long mBinaryLoadNsec;
+    private int mHitCount;
+    private long mHitNsec;
+
+
+    private ProgramCache() {}
+
+    /**
+     * Returns the process-wide instance.
+     */
+    public static ProgramCache getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Sets the directory for program binaries.  Pass null to disable saving and loading
+     * them.
+     */
+    public void setBinaryDirectory(File dir) {
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            Log.w(TAG, "Unable to create " + dir + ", not caching program binaries");
+            dir = null;
+        }
+        synchronized (mLock) {
+            mBinaryDir = dir;
+        }
+    }
+
+    /**
+     * Tells the cache that a new EGL context has been created, and that it will be told
+     * when the context is destroyed.  Programs released in this context will be kept for
+     * reuse until then.
+     * <p>
+     * Anything cached under the same handle is forgotten, since handles can be reused after
+     * a context is destroyed.  (GLSurfaceView users can call this from onSurfaceCreated(),
+     * which always means a new context.  They should still unregister the old context, when
+     * pausing or at the latest when the new one arrives, or its programs are never freed.)
+     */
+    public void registerContext(EGLContext context) {
+        synchronized (mLock) {
+            mPrograms.put(context, new HashMap<String, CachedProgram>());
+        }
+        // A reused handle would fool the GL state trackers the same way.
+        GlState.invalidateAll();
+    }
+
+    /**
+     * Tells the cache that an EGL context is about to be destroyed.  Its programs will go
+     * away with it, so we just forget about them.
+     */
+    public void unregisterContext(EGLContext context) {
+        synchronized (mLock) {
+            mPrograms.remove(context);
+        }
+    }
+
+    /**
+     * Returns a linked program for the shaders, compiling them if necessary.  The current
+     * EGL context must be the one the program will be used in.
+     * <p>
+     * Call {@link #release(CachedProgram)} when done with it.
+     */
+    public CachedProgram acquire(String vertexSource, String fragmentSource) {
+        long startNsec = System.nanoTime();
+        EGLContext context = EGL14.eglGetCurrentContext();
+        String key = hash(vertexSource, "\0", fragmentSource);
+
+        File binaryDir;
+        synchronized (mLock) {
+            HashMap<String, CachedProgram> programs = mPrograms.get(context);
+            if (programs != null) {
+                CachedProgram program = programs.get(key);
+                if (program != null) {
+                    program.mRefCount++;
+                    long elapsed = System.nanoTime() - startNsec;
+                    mHitCount++;
+                    mHitNsec += elapsed;
+                    Log.d(TAG, "Program " + program.mHandle + ": cache hit in " +
+                            formatMsec(elapsed));
+                    return program;
+                }
+            }
+            binaryDir = mBinaryDir;
+        }
+
+        // Not in memory.  Try for a saved binary, then fall back to compiling.  We don't
+        // need the lock for this; nobody else can be using this context.
+        File binaryFile = (binaryDir != null) ? getBinaryFile(binaryDir, key) : null;
+        int handle = 0;
+        if (binaryFile != null && binaryFile.exists()) {
+            handle = loadBinary(binaryFile);
+            if (handle != 0) {
+                long elapsed = System.nanoTime() - startNsec;
+                synchronized (mLock) {
+                    mBinaryLoadCount++;
+                    mBinaryLoadNsec += elapsed;
+                }
+                Log.d(TAG, "Program " + handle + ": loaded binary in " + formatMsec(elapsed));
+            }
+        }
+        if (handle == 0) {
+            handle = GlUtil.createProgram(vertexSource, fragmentSource, binaryFile != null);
+            if (handle == 0) {
+                throw new RuntimeException("Unable to create program");
+            }
+            long elapsed = System.nanoTime() - startNsec;
+            synchronized (mLock) {
+                mCompileCount++;
+                mCompileNsec += elapsed;
+            }
+            Log.d(TAG, "Program " + handle + ": compiled in " + formatMsec(elapsed));
+            if (binaryFile != null) {
+                saveBinary(handle, binaryFile);
+            }
+        }
+
+        CachedProgram program = new CachedProgram(context, key, handle);
+        program.mRefCount = 1;
+        synchronized (mLock) {
+            HashMap<String, CachedProgram> programs = mPrograms.get(context);
+            if (programs != null) {
+                programs.put(key, program);
+            }
+        }
+        return program;
+    }
+
+    /**
+     * Releases a program obtained from {@link #acquire(String, String)}.  The EGL context it
+     * was acquired in must be current.
+     */
+    public void release(CachedProgram program) {
+        synchronized (mLock) {
+            if (program.mRefCount <= 0) {
+                throw new IllegalStateException("Program " + program.mHandle +
+                        " released too many times");
+            }
+            if (--program.mRefCount > 0) {
+                return;
+            }
+            HashMap<String, CachedProgram> programs = mPrograms.get(program.mContext);
+            if (programs != null && programs.get(program.mKey) == program) {
+                // Keep it for the next acquire().
+                if (VERBOSE) Log.d(TAG, "Program " + program.mHandle + " idle");
+                return;
+            }
+        }
+        Log.d(TAG, "deleting program " + program.mHandle);
+        GlState.get().onDeleteProgram(program.mHandle);
+        GLES20.glDeleteProgram(program.mHandle);
+    }
+
+    /**
+     * Returns a summary of compile, binary load, and cache hit times.
+     */
+    public String getStats() {
+        synchronized (mLock) {
+            return "compiled " + mCompileCount + " (avg " +
+                    formatMsec(mCompileCount == 0 ? 0 : mCompileNsec / mCompileCount) +
+                    "), loaded " + mBinaryLoadCount + " binaries (avg " +
+                    formatMsec(mBinaryLoadCount == 0 ? 0 : mBinaryLoadNsec / mBinaryLoadCount) +
+                    "), " + mHitCount + " hits (avg " +
+                    formatMsec(mHitCount == 0 ? 0 : mHitNsec / mHitCount) + ")";
+        }
+    }
+
+    /**
+     * Returns the file for the program's binary, or null if the current context can't
+     * give us binaries.
+     */
+    private static File getBinaryFile(File dir, String key) {
+        String version = GLES20.glGetString(GLES20.GL_VERSION);
+        if (version == null || !version.startsWith("OpenGL ES 3")) {
+            return null;
+        }
+        int[] values = new int[1];
+        GLES20.glGetIntegerv(GLES30.GL_NUM_PROGRAM_BINARY_FORMATS, values, 0);
+        if (values[0] <= 0) {
+            return null;
+        }
+        String renderer = GLES20.glGetString(GLES20.GL_RENDERER);
+        return new File(dir, hash(key, renderer, version) + ".bin");
+    }
+
+    /**
+     * Creates a program from a saved binary.
+     *
+     * @return The program handle, or 0 if the binary couldn't be used.
+     */
+    private static int loadBinary(File file) {
+        int format;
+        ByteBuffer binary;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            if (in.readInt() != BINARY_MAGIC) {
+                throw new IOException("bad magic");
+            }
+            format = in.readInt();
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            binary = ByteBuffer.allocateDirect(data.length).order(ByteOrder.nativeOrder());
+            binary.put(data).position(0);
+        } catch (IOException ioe) {
+            Log.w(TAG, "Unable to read " + file + ": " + ioe);
+            file.delete();
+            return 0;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ioe) {
+                    // ignore
+                }
+            }
+        }
+
+        int program = GLES20.glCreateProgram();
+        GLES30.glProgramBinary(program, format, binary, binary.capacity());
+        int[] linkStatus = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+        if (linkStatus[0] != GLES20.GL_TRUE) {
+            // Usually means the driver changed under us.
+            Log.w(TAG, "Driver rejected program binary " + file.getName());
+            GLES20.glDeleteProgram(program);
+            file.delete();
+            // glProgramBinary() is allowed to raise an error on failure; clear it.
+            GLES20.glGetError();
+            return 0;
+        }
+        return program;
+    }
+
+    /**
+     * Saves the program's binary.  Failures are logged and otherwise ignored; we'll just
+     * compile it again next time.
+     */
+    private static void saveBinary(int program, File file) {
+        int[] values = new int[1];
+        GLES20.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, values, 0);
+        int length = values[0];
+        if (length <= 0) {
+            Log.w(TAG, "Program " + program + " has no binary");
+            return;
+        }
+        ByteBuffer binary = ByteBuffer.allocateDirect(length).order(ByteOrder.nativeOrder());
+        int[] format = new int[1];
+        GLES30.glGetProgramBinary(program, length, values, 0, format, 0, binary);
+        GlUtil.checkGlError("glGetProgramBinary");
+        length = values[0];
+        byte[] data = new byte[length];
+        binary.get(data);
+
+        // Write to a temp file and rename, so a crash can't leave a truncated binary.
+        File tmpFile = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new FileOutputStream(tmpFile));
+            out.writeInt(BINARY_MAGIC);
+            out.writeInt(format[0]);
+            out.writeInt(length);
+            out.write(data);
+            out.close();
+            out = null;
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("rename failed");
+            }
+            if (VERBOSE) Log.d(TAG, "Saved " + length + " bytes to " + file);
+        } catch (IOException ioe) {
+            Log.w(TAG, "Unable to save program binary: " + ioe);
+            tmpFile.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ioe) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the hex SHA-1 of the concatenated strings.
+     */
+    private static String hash(String... parts) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new RuntimeException(nsae);
+        }
+        for (String part : parts) {
+            if (part != null) {
+                digest.update(part.getBytes(UTF_8));
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private static String formatMsec(long nsec) {
+        return String.format("%.3fms", nsec / 1000000.0);
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.gles;
+
+import java.util.ArrayList;
+
+/**
+ * Pool of large objects -- pixel buffers, bitmaps -- that are reused by size.
+ * <p>
+ * A full-frame buffer at 1080p is 8MB.  Allocating one for every snapshot churns the heap and
+ * brings on GC pauses, so we hang on to released objects and hand them out again when
+ * somebody asks for the same size.  Idle objects are capped by total bytes; when we go over,
+ * the least-recently-released ones are dropped.
+ * <p>
+ * Subclasses say how to create, measure, and dispose of objects.  This class doesn't touch
+ * any Android APIs, so it can be exercised on a desktop JVM.
+ * <p>
+ * Thread-safe.
+ */
+public abstract class SizeKeyedPool<T> {
+    private final long mMaxIdleBytes;
+
+    // Idle objects, least recently released first.
+    private final ArrayList<T> mIdle = new ArrayList<T>();
+    private long mIdleBytes;
+
+    private long mHitCount;
+    private long mMissCount;
+    private long mEvictCount;
+
+    /**
+     * @param maxIdleBytes Most bytes of idle objects to keep.
+     */
+    protected SizeKeyedPool(long maxIdleBytes) {
+        mMaxIdleBytes = maxIdleBytes;
+    }
+
+    /**
+     * Creates a new object for the key.
+     */
+    protected abstract T create(long key);
+
+    /**
+     * Returns the key for an object.  Objects with the same key are interchangeable.
+     */
+    protected abstract long getKey(T item);
+
+    /**
+     * Returns the memory used by an object.
+     */
+    protected abstract long getSize(T item);
+
+    /**
+     * Called when an object is dropped from the pool.  The default implementation does
+     * nothing.
+     */
+    protected void onEvict(T item) {}
+
+    /**
+     * Returns an object for the key, from the pool if there's one there.
+     */
+    public T acquire(long key) {
+        synchronized (this) {
+            // Most recently released first; it's the most likely to still be in cache.
+            for (int i = mIdle.size() - 1; i >= 0; i--) {
+                T item = mIdle.get(i);
+                if (getKey(item) == key) {
+                    mIdle.remove(i);
+                    mIdleBytes -= getSize(item);
+                    mHitCount++;
+                    return item;
+                }
+            }
+            mMissCount++;
+        }
+        return create(key);
+    }
+
+    /**
+     * Puts an object back in the pool.  The caller must not use it afterward.
+     */
+    public void release(T item) {
+        long size = getSize(item);
+        if (size > mMaxIdleBytes) {
+            onEvict(item);
+            synchronized (this) {
+                mEvictCount++;
+            }
+            return;
+        }
+        synchronized (this) {
+            // Compare by identity: ByteBuffer.equals() compares contents, so two different
+            // blank buffers would look like the same one.
+            for (int i = 0; i < mIdle.size(); i++) {
+                if (mIdle.get(i) == item) {
+                    throw new IllegalArgumentException("released twice");
+                }
+            }
+            mIdle.add(item);
+            mIdleBytes += size;
+            while (mIdleBytes > mMaxIdleBytes) {
+                evictOldestLocked();
+            }
+        }
+    }
+
+    /**
+     * Drops all idle objects.
+     */
+    public synchronized void trim() {
+        while (!mIdle.isEmpty()) {
+            evictOldestLocked();
+        }
+    }
+
+    /**
+     * Returns the total size of the idle objects.
+     */
+    public synchronized long getIdleBytes() {
+        return mIdleBytes;
+    }
+
+    /**
+     * Returns the number of idle objects.
+     */
+    public synchronized int getIdleCount() {
+        return mIdle.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return getClass().getSimpleName() + "[idle=" + mIdle.size() + " idleBytes=" +
+                mIdleBytes + " hits=" + mHitCount + " misses=" + mMissCount +
+                " evicted=" + mEvictCount + "]";
+    }
+
+    private void evictOldestLocked() {
+        T item = mIdle.remove(0);
+        mIdleBytes -= getSize(item);
+        mEvictCount++;
+        onEvict(item);
+    }
+}
@@ -16,7 +16,6 @@
 
 package com.android.grafika.gles;
 
-import android.opengl.Matrix;
 import android.util.Log;
 
 /**
@@ -26,6 +25,7 @@ public class Sprite2d {
     private static final String TAG = GlUtil.TAG;
 
     private Drawable2d mDrawable;
+    private Drawable2dBuffer mBuffer;
     private float mColor[];
     private int mTextureId;
     private float mAngle;
@@ -52,14 +52,8 @@ public class Sprite2d {
      * translation.
      */
     private void recomputeMatrix() {
-        float[] modelView = mModelViewMatrix;
-
-        Matrix.setIdentityM(modelView, 0);
-        Matrix.translateM(modelView, 0, mPosX, mPosY, 0.0f);
-        if (mAngle != 0.0f) {
-            Matrix.rotateM(modelView, 0, mAngle, 0.0f, 0.0f, 1.0f);
-        }
-        Matrix.scaleM(modelView, 0, mScaleX, mScaleY, 1.0f);
+        AffineMatrix.setTranslateRotateScale(mModelViewMatrix, 0, mPosX, mPosY, mAngle,
+                mScaleX, mScaleY);
         mMatrixReady = true;
     }
 
@@ -159,6 +153,33 @@ public class Sprite2d {
         mTextureId = textureId;
     }
 
+    /**
+     * Returns the texture set by setTexture(), or -1 if none.
+     */
+    public int getTexture() {
+        return mTextureId;
+    }
+
+    /**
+     * Returns the drawable.
+     */
+    public Drawable2d getDrawable() {
+        return mDrawable;
+    }
+
+    /**
+     * Draws from a GL buffer object holding the drawable's geometry, rather than from
+     * client memory.  Pass null to go back to client memory.
+     * <p>
+     * The buffer is not owned by the sprite; many sprites may share one.
+     */
+    public void setBuffer(Drawable2dBuffer buffer) {
+        if (buffer != null && buffer.getDrawable() != mDrawable) {
+            throw new IllegalArgumentException("buffer holds a different drawable");
+        }
+        mBuffer = buffer;
+    }
+
     /**
      * Returns the color.
      * <p>
@@ -173,11 +194,16 @@ public class Sprite2d {
      */
     public void draw(FlatShadedProgram program, float[] projectionMatrix) {
         // Compute model/view/projection matrix.
-        Matrix.multiplyMM(mScratchMatrix, 0, projectionMatrix, 0, getModelViewMatrix(), 0);
-
-        program.draw(mScratchMatrix, mColor, mDrawable.getVertexArray(), 0,
-                mDrawable.getVertexCount(), mDrawable.getCoordsPerVertex(),
-                mDrawable.getVertexStride());
+        AffineMatrix.multiplyByAffine(mScratchMatrix, 0, projectionMatrix, 0,
+                getModelViewMatrix(), 0);
+
+        if (mBuffer != null) {
+            program.draw(mScratchMatrix, mColor, mBuffer);
+        } else {
+            program.draw(mScratchMatrix, mColor, mDrawable.getVertexArray(), 0,
+                    mDrawable.getVertexCount(), mDrawable.getCoordsPerVertex(),
+                    mDrawable.getVertexStride());
+        }
     }
 
     /**
@@ -185,12 +211,17 @@ public class Sprite2d {
      */
     public void draw(Texture2dProgram program, float[] projectionMatrix) {
         // Compute model/view/projection matrix.
-        Matrix.multiplyMM(mScratchMatrix, 0, projectionMatrix, 0, getModelViewMatrix(), 0);
-
-        program.draw(mScratchMatrix, mDrawable.getVertexArray(), 0,
-                mDrawable.getVertexCount(), mDrawable.getCoordsPerVertex(),
-                mDrawable.getVertexStride(), GlUtil.IDENTITY_MATRIX, mDrawable.getTexCoordArray(),
-                mTextureId, mDrawable.getTexCoordStride());
+        AffineMatrix.multiplyByAffine(mScratchMatrix, 0, projectionMatrix, 0,
+                getModelViewMatrix(), 0);
+
+        if (mBuffer != null) {
+            program.draw(mScratchMatrix, mBuffer, GlUtil.IDENTITY_MATRIX, mTextureId);
+        } else {
+            program.draw(mScratchMatrix, mDrawable.getVertexArray(), 0,
+                    mDrawable.getVertexCount(), mDrawable.getCoordsPerVertex(),
+                    mDrawable.getVertexStride(), GlUtil.IDENTITY_MATRIX,
+                    mDrawable.getTexCoordArray(), mTextureId, mDrawable.getTexCoordStride());
+        }
     }
 
     @Override
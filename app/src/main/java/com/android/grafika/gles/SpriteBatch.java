@@ -0,0 +1,330 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.gles;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Draws many Sprite2d objects with a handful of draw calls.
+ * <p>
+ * Sprite2d.draw() does a full program setup, uniform upload, and glDrawArrays() for every
+ * sprite.  With more than a few dozen sprites, that per-call overhead is what limits the
+ * frame rate.  Instead, we transform each sprite's vertices on the CPU, append them to one
+ * interleaved vertex array (position, texture coordinates, color), and draw the lot at once.
+ * Only the projection matrix goes in a uniform.
+ * <p>
+ * A batch is flushed when it fills up, when we switch between flat-shaded and textured
+ * sprites, or when the texture changes.  So sprites sharing a texture should be drawn
+ * together.  Textured sprites must use GL_TEXTURE_2D textures.
+ * <p>
+ * Usage: begin(), any number of draw() calls, end().  GL state used by the batch
+ * (program, array buffer, texture binding) is not restored until end().
+ */
+public class SpriteBatch {
+    private static final String TAG = GlUtil.TAG;
+
+    private static final String VERTEX_SHADER =
+            "uniform mat4 uMVPMatrix;\n" +
+            "attribute vec4 aPosition;\n" +
+            "attribute vec2 aTextureCoord;\n" +
+            "attribute vec4 aColor;\n" +
+            "varying vec2 vTextureCoord;\n" +
+            "varying vec4 vColor;\n" +
+            "void main() {\n" +
+            "    gl_Position = uMVPMatrix * aPosition;\n" +
+            "    vTextureCoord = aTextureCoord;\n" +
+            "    vColor = aColor;\n" +
+            "}\n";
+
+    private static final String FRAGMENT_SHADER_FLAT =
+            "precision mediump float;\n" +
+            "varying vec4 vColor;\n" +
+            "void main() {\n" +
+            "    gl_FragColor = vColor;\n" +
+            "}\n";
+
+    private static final String FRAGMENT_SHADER_2D =
+            "precision mediump float;\n" +
+            "varying vec2 vTextureCoord;\n" +
+            "uniform sampler2D sTexture;\n" +
+            "void main() {\n" +
+            "    gl_FragColor = texture2D(sTexture, vTextureCoord);\n" +
+            "}\n";
+
+    private static final int SIZEOF_FLOAT = 4;
+    // x, y, s, t, r, g, b, a
+    private static final int FLOATS_PER_VERTEX = 8;
+    private static final int VERTEX_STRIDE = FLOATS_PER_VERTEX * SIZEOF_FLOAT;
+    private static final int TEXCOORD_OFFSET = 2 * SIZEOF_FLOAT;
+    private static final int COLOR_OFFSET = 4 * SIZEOF_FLOAT;
+
+    private static final int MODE_NONE = 0;
+    private static final int MODE_FLAT = 1;
+    private static final int MODE_TEXTURED = 2;
+
+    /**
+     * One of the two programs, with its locations.
+     */
+    private static class Program {
+        final int handle;
+        final int uMVPMatrixLoc;
+        final int aPositionLoc;
+        final int aTextureCoordLoc;     // -1 if the shader doesn't use it
+        final int aColorLoc;            // -1 if the shader doesn't use it
+        final int attribMask;           // for GlState
+
+        Program(String fragmentShader) {
+            handle = GlUtil.createProgram(VERTEX_SHADER, fragmentShader);
+            if (handle == 0) {
+                throw new RuntimeException("Unable to create program");
+            }
+            Log.d(TAG, "Created program " + handle);
+            uMVPMatrixLoc = GLES20.glGetUniformLocation(handle, "uMVPMatrix");
+            GlUtil.checkLocation(uMVPMatrixLoc, "uMVPMatrix");
+            aPositionLoc = GLES20.glGetAttribLocation(handle, "aPosition");
+            GlUtil.checkLocation(aPositionLoc, "aPosition");
+            // Unused attributes get optimized out.
+            aTextureCoordLoc = GLES20.glGetAttribLocation(handle, "aTextureCoord");
+            aColorLoc = GLES20.glGetAttribLocation(handle, "aColor");
+            int mask = GlState.attribBit(aPositionLoc);
+            if (aTextureCoordLoc >= 0) {
+                mask |= GlState.attribBit(aTextureCoordLoc);
+            }
+            if (aColorLoc >= 0) {
+                mask |= GlState.attribBit(aColorLoc);
+            }
+            attribMask = mask;
+        }
+    }
+
+    private final int mMaxVertices;
+    private final float[] mVertices;
+    private final FloatBuffer mVertexBuffer;
+    private final int[] mVbo = new int[1];
+    private Program mFlatProgram;
+    private Program mTexProgram;
+
+    private float[] mProjectionMatrix;
+    private Program mBoundProgram;
+    private int mMode;
+    private int mTextureId;
+    private int mVertexCount;
+    private int mDrawCallCount;
+
+    // Transformed drawable vertices, before expanding the strip.
+    private float[] mScratch = new float[8 * 4];
+
+    /**
+     * Prepares the programs and vertex buffer in the current EGL context.
+     *
+     * @param maxSprites Number of rectangles that fit in one batch.
+     */
+    public SpriteBatch(int maxSprites) {
+        // A rectangle is a 4-vertex strip, which becomes 2 triangles.
+        mMaxVertices = maxSprites * 6;
+        mVertices = new float[mMaxVertices * FLOATS_PER_VERTEX];
+        mVertexBuffer = ByteBuffer.allocateDirect(mVertices.length * SIZEOF_FLOAT)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+
+        mFlatProgram = new Program(FRAGMENT_SHADER_FLAT);
+        mTexProgram = new Program(FRAGMENT_SHADER_2D);
+        GLES20.glGenBuffers(1, mVbo, 0);
+        GlUtil.checkGlError("SpriteBatch setup");
+    }
+
+    /**
+     * Releases GL resources.
+     */
+    public void release() {
+        GlState state = GlState.get();
+        state.onDeleteProgram(mFlatProgram.handle);
+        state.onDeleteProgram(mTexProgram.handle);
+        GLES20.glDeleteProgram(mFlatProgram.handle);
+        GLES20.glDeleteProgram(mTexProgram.handle);
+        GLES20.glDeleteBuffers(1, mVbo, 0);
+        mFlatProgram = mTexProgram = null;
+    }
+
+    /**
+     * Starts a batch.
+     *
+     * @param projectionMatrix The projection matrix, applied to every sprite.  Not copied;
+     *        don't change it before end().
+     */
+    public void begin(float[] projectionMatrix) {
+        if (mProjectionMatrix != null) {
+            throw new IllegalStateException("begin() without end()");
+        }
+        mProjectionMatrix = projectionMatrix;
+        mMode = MODE_NONE;
+        mDrawCallCount = 0;
+    }
+
+    /**
+     * Adds a flat-shaded sprite, in the sprite's color.
+     */
+    public void drawFlat(Sprite2d sprite) {
+        add(sprite, MODE_FLAT, 0);
+    }
+
+    /**
+     * Adds a textured sprite, using the sprite's texture.
+     */
+    public void drawTextured(Sprite2d sprite) {
+        add(sprite, MODE_TEXTURED, sprite.getTexture());
+    }
+
+    /**
+     * Draws anything pending, and unbinds the vertex buffer and texture.  The program and
+     * vertex arrays are left for {@link GlState} to sort out.
+     */
+    public void end() {
+        flush();
+        mBoundProgram = null;
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        mProjectionMatrix = null;
+    }
+
+    /**
+     * Returns the number of draw calls issued since begin().
+     */
+    public int getDrawCallCount() {
+        return mDrawCallCount;
+    }
+
+    private void add(Sprite2d sprite, int mode, int textureId) {
+        if (mProjectionMatrix == null) {
+            throw new IllegalStateException("draw outside begin()/end()");
+        }
+        Drawable2d drawable = sprite.getDrawable();
+        int stripCount = drawable.getVertexCount();
+        int triVertexCount = (stripCount - 2) * 3;
+        if (mode != mMode || (mode == MODE_TEXTURED && textureId != mTextureId) ||
+                mVertexCount + triVertexCount > mMaxVertices) {
+            flush();
+            mMode = mode;
+            mTextureId = textureId;
+        }
+        if (triVertexCount > mMaxVertices) {
+            throw new IllegalArgumentException("drawable too big for batch");
+        }
+
+        // Transform the strip's vertices by the model/view matrix.  Sprites are flat, so
+        // only the 2D part of the matrix matters.
+        float[] mv = sprite.getModelViewMatrix();
+        FloatBuffer pos = drawable.getVertexArray();
+        FloatBuffer tex = drawable.getTexCoordArray();
+        int posStride = drawable.getVertexStride() / SIZEOF_FLOAT;
+        int texStride = drawable.getTexCoordStride() / SIZEOF_FLOAT;
+        if (mScratch.length < stripCount * 4) {
+            mScratch = new float[stripCount * 4];
+        }
+        float[] scratch = mScratch;
+        for (int i = 0; i < stripCount; i++) {
+            float x = pos.get(i * posStride);
+            float y = pos.get(i * posStride + 1);
+            scratch[i * 4] = mv[0] * x + mv[4] * y + mv[12];
+            scratch[i * 4 + 1] = mv[1] * x + mv[5] * y + mv[13];
+            scratch[i * 4 + 2] = tex.get(i * texStride);
+            scratch[i * 4 + 3] = tex.get(i * texStride + 1);
+        }
+
+        // Expand the strip into separate triangles, keeping the winding consistent.
+        float[] color = sprite.getColor();
+        for (int i = 0; i < stripCount - 2; i++) {
+            if ((i & 1) == 0) {
+                putVertex(scratch, i, color);
+                putVertex(scratch, i + 1, color);
+            } else {
+                putVertex(scratch, i + 1, color);
+                putVertex(scratch, i, color);
+            }
+            putVertex(scratch, i + 2, color);
+        }
+    }
+
+    private void putVertex(float[] scratch, int index, float[] color) {
+        float[] verts = mVertices;
+        int off = mVertexCount * FLOATS_PER_VERTEX;
+        int src = index * 4;
+        verts[off] = scratch[src];
+        verts[off + 1] = scratch[src + 1];
+        verts[off + 2] = scratch[src + 2];
+        verts[off + 3] = scratch[src + 3];
+        verts[off + 4] = color[0];
+        verts[off + 5] = color[1];
+        verts[off + 6] = color[2];
+        verts[off + 7] = color[3];
+        mVertexCount++;
+    }
+
+    /**
+     * Issues a draw call for the pending vertices.
+     */
+    private void flush() {
+        if (mVertexCount == 0) {
+            return;
+        }
+
+        Program program = (mMode == MODE_TEXTURED) ? mTexProgram : mFlatProgram;
+        if (program != mBoundProgram) {
+            GlState state = GlState.get();
+            state.useProgram(program.handle);
+            state.setVertexAttribArrays(program.attribMask);
+            GLES20.glUniformMatrix4fv(program.uMVPMatrixLoc, 1, false, mProjectionMatrix, 0);
+            mBoundProgram = program;
+        }
+        if (mMode == MODE_TEXTURED) {
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureId);
+        }
+
+        // Replace the buffer contents.  Passing the data to glBufferData() lets the driver
+        // allocate fresh storage rather than wait for the previous batch to finish drawing.
+        int floatCount = mVertexCount * FLOATS_PER_VERTEX;
+        mVertexBuffer.clear();
+        mVertexBuffer.put(mVertices, 0, floatCount);
+        mVertexBuffer.position(0);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVbo[0]);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, floatCount * SIZEOF_FLOAT, mVertexBuffer,
+                GLES20.GL_STREAM_DRAW);
+
+        GLES20.glVertexAttribPointer(program.aPositionLoc, 2, GLES20.GL_FLOAT, false,
+                VERTEX_STRIDE, 0);
+        if (program.aTextureCoordLoc >= 0) {
+            GLES20.glVertexAttribPointer(program.aTextureCoordLoc, 2, GLES20.GL_FLOAT, false,
+                    VERTEX_STRIDE, TEXCOORD_OFFSET);
+        }
+        if (program.aColorLoc >= 0) {
+            GLES20.glVertexAttribPointer(program.aColorLoc, 4, GLES20.GL_FLOAT, false,
+                    VERTEX_STRIDE, COLOR_OFFSET);
+        }
+
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, mVertexCount);
+        if (GlUtil.DEBUG_CHECKS) {
+            GlUtil.checkGlError("SpriteBatch flush");
+        }
+        mDrawCallCount++;
+        mVertexCount = 0;
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.gles;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Streams CPU-generated frames (e.g. from a software decoder) into GL textures.
+ * <p>
+ * This works a bit like SurfaceTexture, but for pixels in a ByteBuffer.  A producer thread
+ * gets a buffer from dequeueBuffer(), fills it, and hands it back with queueBuffer().  The
+ * GL thread calls updateTexImage() to upload the most recent frame, and draws with the
+ * texture it returns.
+ * <p>
+ * Neither side waits for the other.  There are three pixel buffers: one for the producer to
+ * fill, one holding the latest complete frame, and one being uploaded.  If the producer
+ * queues a frame before the previous one was picked up, the previous one is dropped.
+ * <p>
+ * On the GL side, uploading into a texture that the previous frame's draw calls are still
+ * reading makes the driver either stall or make a copy.  So we rotate through a ring of
+ * textures, uploading each frame into one that hasn't been used for a frame or two.  Two
+ * further options:
+ * <ul>
+ * <li>FLAG_ORPHAN re-specifies the texture storage with glTexImage2D() for each frame,
+ *     which lets the driver hand us fresh memory rather than waiting on the old.
+ * <li>FLAG_PBO copies the pixels into a pixel unpack buffer first.  The upload itself then
+ *     happens asynchronously in the driver.  Requires GLES 3, and the offset version of
+ *     glTexSubImage2D(), which wasn't in the Java bindings until API 24; see
+ *     isPboSupported().
+ * </ul>
+ */
+public class StreamingTexture {
+    /** Re-specify texture storage for every upload. */
+    public static final int FLAG_ORPHAN = 0x01;
+    /** Stage uploads through a pixel buffer object. */
+    public static final int FLAG_PBO = 0x02;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFormat;
+    private final int mType;
+    private final int mFrameSize;
+    private final int mFlags;
+
+    // Pixel buffers.  Guarded by mLock.
+    private final Object mLock = new Object();
+    private ByteBuffer mProducerBuffer;
+    private ByteBuffer mPendingBuffer;      // null if no new frame
+    private ByteBuffer mUploadBuffer;
+    private ByteBuffer mSpareBuffer;        // the free one, when nothing is pending
+    private long mQueuedCount;
+    private long mDroppedCount;
+
+    // GL state.  Only touched on the GL thread.
+    private final int[] mTextures;
+    private final int[] mPbo = new int[1];
+    private int mCurrent = -1;              // index of texture with the latest frame
+    private long mUploadedCount;
+
+    /**
+     * Returns true if FLAG_PBO is available with the current context.
+     */
+    public static boolean isPboSupported(EglCore eglCore) {
+        return eglCore.getGlVersion() >= 3 && GlUtil.hasTexSubImage2DOffset();
+    }
+
+    /**
+     * Creates the textures and buffers.  Must be called on the GL thread.
+     *
+     * @param format GL_RGBA, GL_RGB, or GL_LUMINANCE.
+     * @param type GL_UNSIGNED_BYTE, or GL_UNSIGNED_SHORT_5_6_5 with GL_RGB.
+     * @param textureCount Textures in the ring; at least 2.
+     * @param flags Zero or more of FLAG_ORPHAN and FLAG_PBO.
+     */
+    public StreamingTexture(int width, int height, int format, int type, int textureCount,
+            int flags) {
+        if (textureCount < 2) {
+            throw new IllegalArgumentException("need at least two textures");
+        }
+        if ((flags & FLAG_PBO) != 0 && !GlUtil.hasTexSubImage2DOffset()) {
+            throw new RuntimeException("PBO upload not supported");
+        }
+        mWidth = width;
+        mHeight = height;
+        mFormat = format;
+        mType = type;
+        mFlags = flags;
+        mFrameSize = width * height * getBytesPerPixel(format, type);
+
+        mProducerBuffer = allocateBuffer();
+        mUploadBuffer = allocateBuffer();
+        mSpareBuffer = allocateBuffer();
+
+        mTextures = new int[textureCount];
+        GLES20.glGenTextures(textureCount, mTextures, 0);
+        for (int i = 0; i < textureCount; i++) {
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextures[i]);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
+                    GLES20.GL_LINEAR);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
+                    GLES20.GL_LINEAR);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S,
+                    GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T,
+                    GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, format, width, height, 0,
+                    format, type, null);
+        }
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+
+        if ((flags & FLAG_PBO) != 0) {
+            GLES20.glGenBuffers(1, mPbo, 0);
+        }
+        GlUtil.checkGlError("StreamingTexture setup");
+    }
+
+    private ByteBuffer allocateBuffer() {
+        ByteBuffer buf = ByteBuffer.allocateDirect(mFrameSize);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        return buf;
+    }
+
+    private static int getBytesPerPixel(int format, int type) {
+        if (type == GLES20.GL_UNSIGNED_SHORT_5_6_5) {
+            return 2;
+        }
+        switch (format) {
+            case GLES20.GL_RGBA:
+                return 4;
+            case GLES20.GL_RGB:
+                return 3;
+            case GLES20.GL_LUMINANCE:
+                return 1;
+            default:
+                throw new IllegalArgumentException("unsupported format " + format);
+        }
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Returns the buffer for the next frame, rewound.  Fill it with tightly-packed pixels,
+     * bottom row first, then call queueBuffer().  Only one thread should be producing.
+     */
+    public ByteBuffer dequeueBuffer() {
+        synchronized (mLock) {
+            mProducerBuffer.clear();
+            return mProducerBuffer;
+        }
+    }
+
+    /**
+     * Publishes the buffer from dequeueBuffer().  Never blocks.  If the GL thread hasn't
+     * picked up the previous frame, it's dropped.
+     */
+    public void queueBuffer() {
+        synchronized (mLock) {
+            ByteBuffer filled = mProducerBuffer;
+            if (mPendingBuffer != null) {
+                // Recycle the unconsumed frame.
+                mProducerBuffer = mPendingBuffer;
+                mDroppedCount++;
+            } else {
+                mProducerBuffer = mSpareBuffer;
+                mSpareBuffer = null;
+            }
+            mPendingBuffer = filled;
+            mQueuedCount++;
+        }
+    }
+
+    /**
+     * Uploads the latest queued frame, if there's a new one.  Call on the GL thread.
+     *
+     * @return The texture holding the latest frame, or 0 if nothing has been queued yet.
+     */
+    public int updateTexImage() {
+        ByteBuffer pixels;
+        synchronized (mLock) {
+            if (mPendingBuffer == null) {
+                return mCurrent < 0 ? 0 : mTextures[mCurrent];
+            }
+            pixels = mPendingBuffer;
+            mPendingBuffer = null;
+            mSpareBuffer = mUploadBuffer;
+            mUploadBuffer = pixels;
+        }
+
+        // Pixels are read outside the lock; the producer won't get this buffer back until
+        // the next time we swap.
+        int next = (mCurrent + 1) % mTextures.length;
+        upload(mTextures[next], pixels);
+        mCurrent = next;
+        mUploadedCount++;
+        return mTextures[mCurrent];
+    }
+
+    /**
+     * Returns the texture holding the latest uploaded frame, or 0 if none.
+     */
+    public int getTextureId() {
+        return mCurrent < 0 ? 0 : mTextures[mCurrent];
+    }
+
+    /**
+     * Returns the number of frames queued by the producer.
+     */
+    public long getQueuedCount() {
+        synchronized (mLock) {
+            return mQueuedCount;
+        }
+    }
+
+    /**
+     * Returns the number of frames replaced before they could be uploaded.
+     */
+    public long getDroppedCount() {
+        synchronized (mLock) {
+            return mDroppedCount;
+        }
+    }
+
+    /**
+     * Returns the number of frames uploaded.  Call on the GL thread.
+     */
+    public long getUploadedCount() {
+        return mUploadedCount;
+    }
+
+    /**
+     * Deletes the textures and buffers.  Call on the GL thread.
+     */
+    public void release() {
+        GLES20.glDeleteTextures(mTextures.length, mTextures, 0);
+        if (mPbo[0] != 0) {
+            GLES20.glDeleteBuffers(1, mPbo, 0);
+            mPbo[0] = 0;
+        }
+        mCurrent = -1;
+    }
+
+    private void upload(int texture, ByteBuffer pixels) {
+        pixels.rewind();
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+        if ((mFlags & FLAG_ORPHAN) != 0) {
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, mFormat, mWidth, mHeight, 0,
+                    mFormat, mType, null);
+        }
+
+        if ((mFlags & FLAG_PBO) == 0) {
+            GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, mWidth, mHeight,
+                    mFormat, mType, pixels);
+        } else {
+            // Orphan the PBO's storage, so we don't wait for the last upload to finish
+            // reading it.
+            GLES20.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, mPbo[0]);
+            GLES20.glBufferData(GLES30.GL_PIXEL_UNPACK_BUFFER, mFrameSize, null,
+                    GLES20.GL_STREAM_DRAW);
+            ByteBuffer mapped = (ByteBuffer) GLES30.glMapBufferRange(
+                    GLES30.GL_PIXEL_UNPACK_BUFFER, 0, mFrameSize,
+                    GLES30.GL_MAP_WRITE_BIT | GLES30.GL_MAP_INVALIDATE_BUFFER_BIT);
+            if (mapped == null) {
+                GlUtil.checkGlError("glMapBufferRange");
+                throw new RuntimeException("glMapBufferRange failed");
+            }
+            mapped.put(pixels);
+            GLES30.glUnmapBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER);
+            GlUtil.texSubImage2DOffset(GLES20.GL_TEXTURE_2D, 0, 0, 0, mWidth, mHeight,
+                    mFormat, mType, 0);
+            GLES20.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, 0);
+        }
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 4);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GlUtil.checkGlError("StreamingTexture upload");
+    }
+}
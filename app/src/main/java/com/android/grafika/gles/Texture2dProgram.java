@@ -21,6 +21,7 @@ import android.opengl.GLES20;
 import android.util.Log;
 
 import java.nio.FloatBuffer;
+import java.util.Arrays;
 
 /**
  * GL program and supporting functions for textured 2D shapes.
@@ -116,6 +117,7 @@ public class Texture2dProgram {
     private ProgramType mProgramType;
 
     // Handles to the GL program and various components of it.
+    private ProgramCache.CachedProgram mProgram;
     private int mProgramHandle;
     private int muMVPMatrixLoc;
     private int muTexMatrixLoc;
@@ -130,6 +132,13 @@ public class Texture2dProgram {
     private float[] mKernel = new float[KERNEL_SIZE];
     private float[] mTexOffset;
     private float mColorAdjust;
+    private boolean mKernelDirty;
+
+    // Last values uploaded to the uniforms, so we can skip uploading them again.  These
+    // start out as NaN, which doesn't compare equal to anything.
+    private final float[] mLastMVPMatrix = new float[16];
+    private final float[] mLastTexMatrix = new float[16];
+    private int mAttribMask;
 
 
     /**
@@ -138,30 +147,30 @@ public class Texture2dProgram {
     public Texture2dProgram(ProgramType programType) {
         mProgramType = programType;
 
+        String fragmentShader;
         switch (programType) {
             case TEXTURE_2D:
                 mTextureTarget = GLES20.GL_TEXTURE_2D;
-                mProgramHandle = GlUtil.createProgram(VERTEX_SHADER, FRAGMENT_SHADER_2D);
+                fragmentShader = FRAGMENT_SHADER_2D;
                 break;
             case TEXTURE_EXT:
                 mTextureTarget = GLES11Ext.GL_TEXTURE_EXTERNAL_OES;
-                mProgramHandle = GlUtil.createProgram(VERTEX_SHADER, FRAGMENT_SHADER_EXT);
+                fragmentShader = FRAGMENT_SHADER_EXT;
                 break;
             case TEXTURE_EXT_BW:
                 mTextureTarget = GLES11Ext.GL_TEXTURE_EXTERNAL_OES;
-                mProgramHandle = GlUtil.createProgram(VERTEX_SHADER, FRAGMENT_SHADER_EXT_BW);
+                fragmentShader = FRAGMENT_SHADER_EXT_BW;
                 break;
             case TEXTURE_EXT_FILT:
                 mTextureTarget = GLES11Ext.GL_TEXTURE_EXTERNAL_OES;
-                mProgramHandle = GlUtil.createProgram(VERTEX_SHADER, FRAGMENT_SHADER_EXT_FILT);
+                fragmentShader = FRAGMENT_SHADER_EXT_FILT;
                 break;
             default:
                 throw new RuntimeException("Unhandled type " + programType);
         }
-        if (mProgramHandle == 0) {
-            throw new RuntimeException("Unable to create program");
-        }
-        Log.d(TAG, "Created program " + mProgramHandle + " (" + programType + ")");
+        mProgram = ProgramCache.getInstance().acquire(VERTEX_SHADER, fragmentShader);
+        mProgramHandle = mProgram.getHandle();
+        Log.d(TAG, "Using program " + mProgramHandle + " (" + programType + ")");
 
         // get locations of attributes and uniforms
 
@@ -190,6 +199,9 @@ public class Texture2dProgram {
             setKernel(new float[] {0f, 0f, 0f,  0f, 1f, 0f,  0f, 0f, 0f}, 0f);
             setTexSize(256, 256);
         }
+        mAttribMask = GlState.attribBit(maPositionLoc) | GlState.attribBit(maTextureCoordLoc);
+        Arrays.fill(mLastMVPMatrix, Float.NaN);
+        Arrays.fill(mLastTexMatrix, Float.NaN);
     }
 
     /**
@@ -199,8 +211,10 @@ public class Texture2dProgram {
      * the program).
      */
     public void release() {
-        Log.d(TAG, "deleting program " + mProgramHandle);
-        GLES20.glDeleteProgram(mProgramHandle);
+        if (mProgram != null) {
+            ProgramCache.getInstance().release(mProgram);
+            mProgram = null;
+        }
         mProgramHandle = -1;
     }
 
@@ -250,6 +264,7 @@ public class Texture2dProgram {
         }
         System.arraycopy(values, 0, mKernel, 0, KERNEL_SIZE);
         mColorAdjust = colorAdj;
+        mKernelDirty = true;
         //Log.d(TAG, "filt kernel: " + Arrays.toString(mKernel) + ", adj=" + colorAdj);
     }
 
@@ -266,11 +281,12 @@ public class Texture2dProgram {
             -rw, 0f,    0f, 0f,     rw, 0f,
             -rw, rh,    0f, rh,     rw, rh
         };
+        mKernelDirty = true;
         //Log.d(TAG, "filt size: " + width + "x" + height + ": " + Arrays.toString(mTexOffset));
     }
 
     /**
-     * Issues the draw call.  Does the full setup on every call.
+     * Issues the draw call, taking the geometry from client memory.
      *
      * @param mvpMatrix The 4x4 projection matrix.
      * @param vertexBuffer Buffer with vertex position data.
@@ -287,57 +303,97 @@ public class Texture2dProgram {
     public void draw(float[] mvpMatrix, FloatBuffer vertexBuffer, int firstVertex,
             int vertexCount, int coordsPerVertex, int vertexStride,
             float[] texMatrix, FloatBuffer texBuffer, int textureId, int texStride) {
-        GlUtil.checkGlError("draw start");
+        prepareDraw(mvpMatrix, texMatrix, textureId);
 
-        // Select the program.
-        GLES20.glUseProgram(mProgramHandle);
-        GlUtil.checkGlError("glUseProgram");
+        // Connect vertexBuffer to "aPosition", and texBuffer to "aTextureCoord".
+        GLES20.glVertexAttribPointer(maPositionLoc, coordsPerVertex,
+            GLES20.GL_FLOAT, false, vertexStride, vertexBuffer);
+        GLES20.glVertexAttribPointer(maTextureCoordLoc, 2,
+                GLES20.GL_FLOAT, false, texStride, texBuffer);
 
-        // Set the texture.
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glBindTexture(mTextureTarget, textureId);
+        finishDraw(firstVertex, vertexCount);
+    }
 
-        // Copy the model / view / projection matrix over.
-        GLES20.glUniformMatrix4fv(muMVPMatrixLoc, 1, false, mvpMatrix, 0);
-        GlUtil.checkGlError("glUniformMatrix4fv");
+    /**
+     * Issues the draw call, taking the geometry from a GL buffer object rather than
+     * client memory.
+     *
+     * @param mvpMatrix The 4x4 projection matrix.
+     * @param buffer Buffer object holding the drawable's interleaved vertices.
+     * @param texMatrix A 4x4 transformation matrix for texture coords.
+     * @param textureId The texture to draw with.
+     */
+    public void draw(float[] mvpMatrix, Drawable2dBuffer buffer, float[] texMatrix,
+            int textureId) {
+        prepareDraw(mvpMatrix, texMatrix, textureId);
+
+        // Point "aPosition" and "aTextureCoord" into the buffer object.
+        Drawable2d drawable = buffer.getDrawable();
+        buffer.bind();
+        GLES20.glVertexAttribPointer(maPositionLoc, 2, GLES20.GL_FLOAT, false,
+                Drawable2d.INTERLEAVED_STRIDE, 0);
+        GLES20.glVertexAttribPointer(maTextureCoordLoc, 2, GLES20.GL_FLOAT, false,
+                Drawable2d.INTERLEAVED_STRIDE, Drawable2d.INTERLEAVED_TEX_COORD_OFFSET);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+
+        finishDraw(0, drawable.getVertexCount());
+    }
 
-        // Copy the texture transformation matrix over.
-        GLES20.glUniformMatrix4fv(muTexMatrixLoc, 1, false, texMatrix, 0);
-        GlUtil.checkGlError("glUniformMatrix4fv");
+    /**
+     * Selects the program, binds the texture, and uploads whatever uniforms have changed.
+     * <p>
+     * The program and vertex arrays are left set up after the draw, and uniforms are
+     * only uploaded when their values change.  See {@link GlState}.
+     */
+    private void prepareDraw(float[] mvpMatrix, float[] texMatrix, int textureId) {
+        if (GlUtil.DEBUG_CHECKS) {
+            GlUtil.checkGlError("draw start");
+        }
 
-        // Enable the "aPosition" vertex attribute.
-        GLES20.glEnableVertexAttribArray(maPositionLoc);
-        GlUtil.checkGlError("glEnableVertexAttribArray");
+        // If another Texture2dProgram drew with our (shared) program since we did, the
+        // uniforms hold its values rather than ours.
+        if (!mProgram.claimUniforms(this)) {
+            Arrays.fill(mLastMVPMatrix, Float.NaN);
+            Arrays.fill(mLastTexMatrix, Float.NaN);
+            mKernelDirty = true;
+        }
 
-        // Connect vertexBuffer to "aPosition".
-        GLES20.glVertexAttribPointer(maPositionLoc, coordsPerVertex,
-            GLES20.GL_FLOAT, false, vertexStride, vertexBuffer);
-        GlUtil.checkGlError("glVertexAttribPointer");
+        // Select the program, and enable the "aPosition" and "aTextureCoord" arrays.
+        GlState state = GlState.get();
+        state.useProgram(mProgramHandle);
+        state.setVertexAttribArrays(mAttribMask);
 
-        // Enable the "aTextureCoord" vertex attribute.
-        GLES20.glEnableVertexAttribArray(maTextureCoordLoc);
-        GlUtil.checkGlError("glEnableVertexAttribArray");
+        // Set the texture.
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(mTextureTarget, textureId);
 
-        // Connect texBuffer to "aTextureCoord".
-        GLES20.glVertexAttribPointer(maTextureCoordLoc, 2,
-                GLES20.GL_FLOAT, false, texStride, texBuffer);
-            GlUtil.checkGlError("glVertexAttribPointer");
+        // Copy the model / view / projection and texture transformation matrices over.
+        if (GlUtil.copyIfChanged(mvpMatrix, mLastMVPMatrix)) {
+            GLES20.glUniformMatrix4fv(muMVPMatrixLoc, 1, false, mvpMatrix, 0);
+        }
+        if (GlUtil.copyIfChanged(texMatrix, mLastTexMatrix)) {
+            GLES20.glUniformMatrix4fv(muTexMatrixLoc, 1, false, texMatrix, 0);
+        }
 
-        // Populate the convolution kernel, if present.
-        if (muKernelLoc >= 0) {
+        // Populate the convolution kernel, if present and changed.
+        if (muKernelLoc >= 0 && mKernelDirty) {
             GLES20.glUniform1fv(muKernelLoc, KERNEL_SIZE, mKernel, 0);
             GLES20.glUniform2fv(muTexOffsetLoc, KERNEL_SIZE, mTexOffset, 0);
             GLES20.glUniform1f(muColorAdjustLoc, mColorAdjust);
+            mKernelDirty = false;
         }
+    }
 
-        // Draw the rect.
+    /**
+     * Draws the strip and unbinds the texture.
+     */
+    private void finishDraw(int firstVertex, int vertexCount) {
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, firstVertex, vertexCount);
-        GlUtil.checkGlError("glDrawArrays");
+        if (GlUtil.DEBUG_CHECKS) {
+            GlUtil.checkGlError("glDrawArrays");
+        }
 
-        // Done -- disable vertex array, texture, and program.
-        GLES20.glDisableVertexAttribArray(maPositionLoc);
-        GLES20.glDisableVertexAttribArray(maTextureCoordLoc);
+        // Done -- unbind the texture.  The program and arrays stay set up.
         GLES20.glBindTexture(mTextureTarget, 0);
-        GLES20.glUseProgram(0);
     }
 }
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import java.lang.reflect.Method;
+
+/**
+ * Counts the bytes allocated by the current thread, using the HotSpot extension to
+ * ThreadMXBean.
+ * <p>
+ * Unit tests compile against android.jar, which has neither java.lang.management nor
+ * com.sun.management, so we get at them through reflection.  The reflective call boxes its
+ * result, so we measure that cost up front and subtract it.
+ */
+class AllocationCounter {
+    private final Object mBean;
+    private final Method mGetAllocatedBytes;
+    private final Long mThreadId;
+    private long mOverhead;
+    private long mStart;
+
+    private AllocationCounter(Object bean, Method getAllocatedBytes) {
+        mBean = bean;
+        mGetAllocatedBytes = getAllocatedBytes;
+        mThreadId = Thread.currentThread().getId();
+    }
+
+    /**
+     * Returns a counter for the current thread, or null if the VM can't count allocations.
+     */
+    public static AllocationCounter create() {
+        try {
+            Class<?> factory = Class.forName("java.lang.management.ManagementFactory");
+            Object bean = factory.getMethod("getThreadMXBean").invoke(null);
+            Class<?> beanClass = Class.forName("com.sun.management.ThreadMXBean");
+            if (!beanClass.isInstance(bean)) {
+                return null;
+            }
+            Method supported = beanClass.getMethod("isThreadAllocatedMemorySupported");
+            Method enabled = beanClass.getMethod("isThreadAllocatedMemoryEnabled");
+            if (!(Boolean) supported.invoke(bean) || !(Boolean) enabled.invoke(bean)) {
+                return null;
+            }
+            AllocationCounter counter = new AllocationCounter(bean,
+                    beanClass.getMethod("getThreadAllocatedBytes", long.class));
+            counter.calibrate();
+            return counter;
+        } catch (ReflectiveOperationException roe) {
+            return null;
+        }
+    }
+
+    /**
+     * Starts a measurement.  Must be called on the thread that created the counter.
+     */
+    public void start() {
+        mStart = read();
+    }
+
+    /**
+     * Returns the number of bytes allocated since start(), not counting our own.
+     */
+    public long stop() {
+        long end = read();
+        return Math.max(0, end - mStart - mOverhead);
+    }
+
+    /**
+     * Finds out what a start()/stop() pair allocates by itself.  The first calls through
+     * reflection set up accessors, so we take the smallest of many tries.
+     */
+    private void calibrate() {
+        long overhead = Long.MAX_VALUE;
+        for (int i = 0; i < 1000; i++) {
+            long start = read();
+            long end = read();
+            overhead = Math.min(overhead, end - start);
+        }
+        mOverhead = overhead;
+    }
+
+    private long read() {
+        try {
+            return (Long) mGetAllocatedBytes.invoke(mBean, mThreadId);
+        } catch (ReflectiveOperationException roe) {
+            throw new RuntimeException(roe);
+        }
+    }
+}
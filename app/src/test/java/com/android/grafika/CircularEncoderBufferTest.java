@@ -0,0 +1,380 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaCodec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Fills a CircularEncoderBuffer with numbered packets and reads them back, through
+ * getChunk() and through snapshots.
+ * <p>
+ * Each packet's contents are derived from its presentation time, so any packet we read
+ * can be checked without remembering what we wrote.
+ */
+public class CircularEncoderBufferTest {
+    private static final int SYNC = MediaCodec.BUFFER_FLAG_SYNC_FRAME;
+
+    // 80kbps for one second is a 10000-byte ring; 30fps gives room for 60 packets.
+    private static final int BIT_RATE = 80000;
+    private static final int FRAME_RATE = 30;
+    private static final long FRAME_USEC = 33333;
+
+    private File mSpillFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mSpillFile = File.createTempFile("cebtest", ".spill");
+    }
+
+    @After
+    public void tearDown() {
+        mSpillFile.delete();
+    }
+
+    @Test
+    public void heapAndDirectWrapAroundRing() {
+        wrapAroundRing(false);
+        wrapAroundRing(true);
+    }
+
+    private void wrapAroundRing(boolean direct) {
+        CircularEncoderBuffer encBuf = new CircularEncoderBuffer(BIT_RATE, FRAME_RATE, 1,
+                direct);
+        // 700 doesn't divide 10000, so packets keep landing across the end of the ring.
+        // Every packet is a sync frame, so a walk from getFirstIndex() covers the lot.
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        ByteBuffer backing = null;
+        ByteBuffer scratch = null;
+        int wrapped = 0;
+        int count = 0;
+        for (int i = 0; i < 100; i++) {
+            assertTrue(encBuf.add(packet(i, 700), SYNC, pts(i)));
+
+            count = 0;
+            long expectedPts = -1;
+            for (int index = encBuf.getFirstIndex(); index >= 0;
+                    index = encBuf.getNextIndex(index)) {
+                ByteBuffer buf = encBuf.getChunk(index, info);
+                checkPacket(buf, info, 700);
+                if (expectedPts >= 0) {
+                    assertEquals(expectedPts, info.presentationTimeUs);
+                }
+                expectedPts = info.presentationTimeUs + FRAME_USEC;
+
+                if (buf.capacity() < BIT_RATE / 8) {
+                    // Straddled the end: copied out, always into the same scratch buffer.
+                    if (scratch == null) {
+                        scratch = buf;
+                    }
+                    assertSame(scratch, buf);
+                    assertTrue(scratch.isDirect());
+                    assertEquals(0, info.offset);
+                    wrapped++;
+                } else {
+                    if (backing == null) {
+                        backing = buf;
+                    }
+                    assertSame(backing, buf);
+                    assertEquals(direct, buf.isDirect());
+                }
+                count++;
+            }
+            assertEquals(pts(i), expectedPts - FRAME_USEC);
+        }
+        assertTrue("wrapped " + wrapped, wrapped > 10);
+        // 14 packets of 700 bytes fit in 10000.
+        assertEquals(14, count);
+        assertNotSame(backing, scratch);
+    }
+
+    @Test
+    public void syncIndexLookups() {
+        CircularEncoderBuffer encBuf = new CircularEncoderBuffer(BIT_RATE, FRAME_RATE, 1);
+        assertEquals(-1, encBuf.getFirstIndex());
+        assertEquals(-1, encBuf.getSyncIndexForPts(0));
+        assertNull(encBuf.createSnapshot());
+
+        // 50 small packets, sync frames at 0, 10, 20, 30, 40.
+        for (int i = 0; i < 50; i++) {
+            encBuf.add(packet(i, 100), i % 10 == 0 ? SYNC : 0, pts(i));
+        }
+        assertEquals(pts(49), encBuf.computeTimeSpanUsec());
+
+        assertEquals(pts(0), ptsAt(encBuf, encBuf.getFirstIndex()));
+        assertEquals(pts(20), ptsAt(encBuf, encBuf.getSyncIndexForPts(pts(25))));
+        assertEquals(pts(30), ptsAt(encBuf, encBuf.getSyncIndexForPts(pts(30))));
+        assertEquals(pts(20), ptsAt(encBuf, encBuf.getSyncIndexForPts(pts(30) - 1)));
+        assertEquals(pts(40), ptsAt(encBuf, encBuf.getSyncIndexForPts(Long.MAX_VALUE)));
+        assertEquals(pts(0), ptsAt(encBuf, encBuf.getSyncIndexForPts(-1)));
+
+        CircularEncoderBuffer.Snapshot snapshot = encBuf.createSnapshot(pts(15), pts(32));
+        assertEquals(pts(10), snapshot.getStartPtsUsec());
+        assertEquals(pts(32), snapshot.getEndPtsUsec());
+        assertEquals(23, snapshot.getPacketCount());
+        assertEquals(23, readAll(snapshot, 100));
+
+        snapshot = encBuf.createRecentSnapshot(pts(12));
+        assertEquals(pts(30), snapshot.getStartPtsUsec());
+        assertEquals(pts(49), snapshot.getEndPtsUsec());
+        assertEquals(20, readAll(snapshot, 100));
+
+        // Ends before the first sync frame.
+        assertNull(encBuf.createSnapshot(-10, -1));
+
+        // Push the first three GOPs out; 60 metadata slots hold 59 packets.
+        for (int i = 50; i < 80; i++) {
+            encBuf.add(packet(i, 100), i % 10 == 0 ? SYNC : 0, pts(i));
+        }
+        assertEquals(pts(30), ptsAt(encBuf, encBuf.getFirstIndex()));
+        assertEquals(pts(30), ptsAt(encBuf, encBuf.getSyncIndexForPts(pts(5))));
+        assertEquals(pts(70), ptsAt(encBuf, encBuf.getSyncIndexForPts(pts(79))));
+    }
+
+    @Test
+    public void snapshotPinsPackets() {
+        CircularEncoderBuffer encBuf = new CircularEncoderBuffer(BIT_RATE, FRAME_RATE, 1);
+        int next = 0;
+        while (next < 30) {
+            assertTrue(encBuf.add(packet(next, 500), next % 10 == 0 ? SYNC : 0, pts(next)));
+            next++;
+        }
+        // 19 packets fit; the oldest sync frame is packet 20.
+        CircularEncoderBuffer.Snapshot snapshot = encBuf.createSnapshot();
+        assertEquals(pts(20), snapshot.getStartPtsUsec());
+        assertEquals(pts(29), snapshot.getEndPtsUsec());
+
+        // Packets 11-19 can go, after that we hit the pin.
+        int added = 0;
+        while (encBuf.add(packet(next, 500), next % 10 == 0 ? SYNC : 0, pts(next))) {
+            next++;
+            added++;
+        }
+        assertEquals(9, added);
+        next++;
+
+        // Reading moves the pin forward, but dropping continues until a sync frame.
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        ByteBuffer buf = snapshot.getNextChunk(info);
+        checkPacket(buf, info, 500);
+        assertEquals(pts(20), info.presentationTimeUs);
+        buf = snapshot.getNextChunk(info);
+        checkPacket(buf, info, 500);
+        assertFalse(encBuf.add(packet(next, 500), 0, pts(next)));
+        next++;
+
+        // The pinned data survived, and the snapshot stops where it was taken.
+        assertEquals(8, readAll(snapshot, 500));
+        assertNull(snapshot.getNextChunk(info));
+        snapshot.release();
+
+        while (next % 10 != 0) {
+            assertFalse(encBuf.add(packet(next, 500), 0, pts(next)));
+            next++;
+        }
+        assertTrue(encBuf.add(packet(next, 500), SYNC, pts(next)));
+        assertEquals(pts(next), ptsAt(encBuf, encBuf.getSyncIndexForPts(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void releasedSnapshotUnpins() {
+        CircularEncoderBuffer encBuf = new CircularEncoderBuffer(BIT_RATE, FRAME_RATE, 1);
+        for (int i = 0; i < 30; i++) {
+            encBuf.add(packet(i, 500), i % 10 == 0 ? SYNC : 0, pts(i));
+        }
+        CircularEncoderBuffer.Snapshot first = encBuf.createSnapshot();
+        CircularEncoderBuffer.Snapshot second = encBuf.createSnapshot();
+        first.release();
+        first.release();            // harmless
+        // Still pinned by the second one.
+        for (int i = 30; i < 39; i++) {
+            assertTrue(encBuf.add(packet(i, 500), i % 10 == 0 ? SYNC : 0, pts(i)));
+        }
+        assertFalse(encBuf.add(packet(39, 500), 0, pts(39)));
+        second.release();
+        assertTrue(encBuf.add(packet(40, 500), SYNC, pts(40)));
+    }
+
+    @Test
+    public void spillTierExtendsSpan() throws IOException {
+        spillTier(false);
+        spillTier(true);
+    }
+
+    private void spillTier(boolean direct) throws IOException {
+        // One second in memory, two more in the file.
+        CircularEncoderBuffer encBuf = new CircularEncoderBuffer(BIT_RATE, FRAME_RATE, 1,
+                direct, mSpillFile, 2);
+        for (int i = 0; i < 150; i++) {
+            assertTrue(encBuf.add(packet(i, 300), i % 10 == 0 ? SYNC : 0, pts(i)));
+        }
+        // About 30000 bytes are held, three times what fits in memory.
+        long span = encBuf.computeTimeSpanUsec();
+        assertTrue("span " + span, span > pts(80));
+
+        CircularEncoderBuffer.Snapshot snapshot = encBuf.createSnapshot();
+        assertTrue(snapshot.getPacketCount() * 300 > 2 * BIT_RATE / 8);
+        assertEquals(pts(149), snapshot.getEndPtsUsec());
+        // A new packet while the snapshot is being read pushes older ones into the file.
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        checkPacket(snapshot.getNextChunk(info), info, 300);
+        assertTrue(encBuf.add(packet(150, 300), 0, pts(150)));
+        assertEquals(snapshot.getPacketCount() - 1, readAll(snapshot, 300));
+        snapshot.release();
+
+        encBuf.release();
+        assertFalse(mSpillFile.exists());
+        mSpillFile = File.createTempFile("cebtest", ".spill");
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void spillSmallerThanMemory() throws IOException {
+        new CircularEncoderBuffer(BIT_RATE, FRAME_RATE, 2, false, mSpillFile, 1);
+    }
+
+    /**
+     * Simulates a 4-second ring at 2Mbps, saving the whole thing after every second of
+     * encoding, and measures how much the encoder and save loops allocate once warmed up.
+     * The snapshot object itself is a fixed cost per save, so it's left out.
+     */
+    @Test
+    public void steadyStateAllocatesNothing() {
+        AllocationCounter counter = AllocationCounter.create();
+        if (counter == null) {
+            return;         // not a HotSpot VM; nothing to measure with
+        }
+
+        final int bitRate = 2000000;
+        final int spanSec = 4;
+        CircularEncoderBuffer encBuf = new CircularEncoderBuffer(bitRate, FRAME_RATE,
+                spanSec, true);
+        // 8333 bytes doesn't divide the ring, so the packets keep wrapping at different
+        // points.  Encoder output is direct, so the input is too.
+        ByteBuffer packet = ByteBuffer.allocateDirect(bitRate / 8 / FRAME_RATE);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+
+        long allocated = 0;
+        long packetsSaved = 0;
+        int frame = 0;
+        for (int second = 0; second < 40; second++) {
+            boolean measure = second >= 20;
+            if (measure) {
+                counter.start();
+            }
+            for (int i = 0; i < FRAME_RATE; i++, frame++) {
+                packet.clear();
+                assertTrue(encBuf.add(packet, frame % FRAME_RATE == 0 ? SYNC : 0,
+                        pts(frame)));
+            }
+            if (measure) {
+                allocated += counter.stop();
+            }
+
+            CircularEncoderBuffer.Snapshot snapshot = encBuf.createSnapshot();
+            int count = 0;
+            if (measure) {
+                counter.start();
+            }
+            while (snapshot.getNextChunk(info) != null) {
+                count++;
+            }
+            if (measure) {
+                allocated += counter.stop();
+                packetsSaved += count;
+            }
+            snapshot.release();
+        }
+
+        double savedSec = (double) packetsSaved / FRAME_RATE;
+        assertTrue("saved " + savedSec, savedSec > 20 * (spanSec - 2));
+        assertEquals("bytes allocated per saved second", 0.0, allocated / savedSec, 0.0);
+    }
+
+    /**
+     * Returns a packet whose contents are a function of its index.
+     */
+    private static ByteBuffer packet(int index, int size) {
+        ByteBuffer buf = ByteBuffer.allocate(size + 16);
+        buf.position(16);           // make sure the position is honored
+        for (int i = 0; i < size; i++) {
+            buf.put(fill(index, i));
+        }
+        buf.position(16);
+        return buf;
+    }
+
+    private static byte fill(int index, int offset) {
+        return (byte) (index * 31 + offset);
+    }
+
+    private static long pts(int index) {
+        return index * FRAME_USEC;
+    }
+
+    /**
+     * Checks that buf holds the packet described by info.
+     */
+    private static void checkPacket(ByteBuffer buf, MediaCodec.BufferInfo info, int size) {
+        assertNotNull(buf);
+        assertEquals(size, info.size);
+        int index = (int) (info.presentationTimeUs / FRAME_USEC);
+        for (int i = 0; i < size; i++) {
+            assertEquals("packet " + index + " byte " + i, fill(index, i),
+                    buf.get(info.offset + i));
+        }
+    }
+
+    /**
+     * Reads the rest of a snapshot, checking each packet.  Returns the number read.
+     */
+    private static int readAll(CircularEncoderBuffer.Snapshot snapshot, int size) {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        int count = 0;
+        long expectedPts = -1;
+        ByteBuffer buf;
+        while ((buf = snapshot.getNextChunk(info)) != null) {
+            checkPacket(buf, info, size);
+            if (expectedPts >= 0) {
+                assertEquals(expectedPts, info.presentationTimeUs);
+            }
+            expectedPts = info.presentationTimeUs + FRAME_USEC;
+            count++;
+        }
+        return count;
+    }
+
+    private static long ptsAt(CircularEncoderBuffer encBuf, int index) {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        encBuf.getChunk(index, info);
+        return info.presentationTimeUs;
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs a fake encoder drain loop through EncodedPacketPool, handing packets to a second
+ * thread the way VideoEncoderCore hands them to its muxer thread.
+ */
+public class EncodedPacketPoolTest {
+    private static final int WARMUP_PACKETS = 500;
+    private static final int MEASURED_PACKETS = 2000;
+    private static final int KEYFRAME_INTERVAL = 30;
+
+    /**
+     * Stands in for MediaCodec's output side.  Each "dequeued" buffer holds a numbered
+     * packet at an offset, like a real codec's output buffers.
+     */
+    private static class FakeCodec {
+        final ByteBuffer output = ByteBuffer.allocateDirect(64 * 1024);
+        final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+
+        void dequeueOutputBuffer(int frame, boolean last) {
+            boolean key = frame % KEYFRAME_INTERVAL == 0;
+            info.offset = frame % 7;
+            info.size = packetSize(frame);
+            info.presentationTimeUs = frame * 33333L;
+            info.flags = (key ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0) |
+                    (last ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0);
+            output.clear();
+            for (int i = 0; i < info.size; i++) {
+                output.put(info.offset + i, fill(frame, i));
+            }
+        }
+    }
+
+    /**
+     * Bounded hand-off between the two threads.  Deliberately simple: monitors don't
+     * allocate, where java.util.concurrent queues create nodes when threads block.
+     */
+    private static class PacketQueue {
+        private final EncodedPacket[] mPackets;
+        private int mHead;
+        private int mCount;
+
+        PacketQueue(int capacity) {
+            mPackets = new EncodedPacket[capacity];
+        }
+
+        synchronized void put(EncodedPacket packet) {
+            // The pool is no bigger than the queue, so this never has to wait.
+            mPackets[(mHead + mCount) % mPackets.length] = packet;
+            mCount++;
+            notifyAll();
+        }
+
+        synchronized EncodedPacket take() throws InterruptedException {
+            while (mCount == 0) {
+                wait();
+            }
+            EncodedPacket packet = mPackets[mHead];
+            mPackets[mHead] = null;
+            mHead = (mHead + 1) % mPackets.length;
+            mCount--;
+            return packet;
+        }
+    }
+
+    /**
+     * Drains packets from the queue, checks them, and recycles them.
+     */
+    private static class Consumer extends Thread {
+        private final PacketQueue mQueue;
+        volatile long allocated = -1;
+        volatile int received;
+        volatile int mismatches;
+        volatile Throwable failure;
+
+        Consumer(PacketQueue queue) {
+            mQueue = queue;
+        }
+
+        @Override
+        public void run() {
+            try {
+                AllocationCounter counter = AllocationCounter.create();
+                int frame = 0;
+                int bad = 0;
+                while (true) {
+                    if (frame == WARMUP_PACKETS && counter != null) {
+                        counter.start();
+                    }
+                    EncodedPacket packet = mQueue.take();
+                    if (!checkPacket(packet, frame)) {
+                        bad++;
+                    }
+                    boolean done = packet.isEndOfStream();
+                    packet.recycle();
+                    frame++;
+                    if (done) {
+                        break;
+                    }
+                }
+                if (counter != null) {
+                    allocated = counter.stop();
+                }
+                received = frame;
+                mismatches = bad;
+            } catch (Throwable th) {
+                failure = th;
+            }
+        }
+    }
+
+    @Test
+    public void steadyStateAllocatesNothing() throws Throwable {
+        // A small pool, so the encoder regularly has to wait for the consumer.
+        EncodedPacketPool pool = new EncodedPacketPool(4, 1024);
+        PacketQueue queue = new PacketQueue(pool.getPacketCount());
+        Consumer consumer = new Consumer(queue);
+        consumer.start();
+
+        FakeCodec codec = new FakeCodec();
+        AllocationCounter counter = AllocationCounter.create();
+        int total = WARMUP_PACKETS + MEASURED_PACKETS;
+        int growCount = -1;
+        for (int frame = 0; frame < total; frame++) {
+            if (frame == WARMUP_PACKETS) {
+                growCount = pool.getGrowCount();
+                if (counter != null) {
+                    counter.start();
+                }
+            }
+            // The drain loop: dequeue, copy into a packet, release the codec buffer.
+            codec.dequeueOutputBuffer(frame, frame == total - 1);
+            EncodedPacket packet = pool.obtain();
+            packet.set(codec.output, codec.info);
+            queue.put(packet);
+        }
+        long allocated = counter != null ? counter.stop() : 0;
+        consumer.join();
+
+        if (consumer.failure != null) {
+            throw consumer.failure;
+        }
+        assertEquals(total, consumer.received);
+        assertEquals(0, consumer.mismatches);
+        assertEquals(pool.getPacketCount(), pool.getFreeCount());
+        // Buffers only grow during warm-up, when the first key frames come through.
+        assertTrue(growCount > 0);
+        assertEquals(growCount, pool.getGrowCount());
+        if (counter != null) {
+            assertEquals("encoder thread bytes", 0, allocated);
+            assertEquals("consumer thread bytes", 0, consumer.allocated);
+        }
+    }
+
+    @Test
+    public void formatPacket() {
+        EncodedPacketPool pool = new EncodedPacketPool(1, 1024);
+        EncodedPacket packet = pool.obtain();
+        FakeCodec codec = new FakeCodec();
+        codec.dequeueOutputBuffer(1, false);
+        packet.set(codec.output, codec.info);
+        assertNull(packet.getFormat());
+        assertEquals(packetSize(1), packet.getData().remaining());
+
+        // Any non-null MediaFormat will do; the stub constructor does nothing.
+        MediaFormat format = new MediaFormat();
+        packet.setFormat(format);
+        assertSame(format, packet.getFormat());
+        assertEquals(0, packet.getData().remaining());
+        assertEquals(0, packet.getInfo().size);
+        assertFalse(packet.isEndOfStream());
+        packet.recycle();
+        assertEquals(1, pool.getFreeCount());
+    }
+
+    @Test
+    public void obtainWaitsForRecycle() throws InterruptedException {
+        EncodedPacketPool pool = new EncodedPacketPool(2, 1024);
+        EncodedPacket first = pool.obtain();
+        EncodedPacket second = pool.obtain();
+        assertNotNull(first);
+        assertNotNull(second);
+        assertEquals(0, pool.getFreeCount());
+
+        Obtainer obtainer = new Obtainer(pool);
+        obtainer.start();
+        waitUntilBlocked(obtainer);
+        assertFalse(obtainer.done);
+
+        second.recycle();
+        obtainer.join(5000);
+        assertTrue(obtainer.done);
+        assertSame(second, obtainer.packet);
+        assertEquals(0, pool.getFreeCount());
+    }
+
+    @Test
+    public void abortWakesObtain() throws InterruptedException {
+        EncodedPacketPool pool = new EncodedPacketPool(1, 1024);
+        assertNotNull(pool.obtain());
+
+        Obtainer obtainer = new Obtainer(pool);
+        obtainer.start();
+        waitUntilBlocked(obtainer);
+        assertFalse(obtainer.done);
+
+        pool.abort();
+        obtainer.join(5000);
+        assertTrue(obtainer.done);
+        assertNull(obtainer.packet);
+        // Stays aborted.
+        assertNull(pool.obtain());
+    }
+
+    /**
+     * Calls obtain() once on its own thread.
+     */
+    private static class Obtainer extends Thread {
+        private final EncodedPacketPool mPool;
+        volatile boolean done;
+        volatile EncodedPacket packet;
+
+        Obtainer(EncodedPacketPool pool) {
+            mPool = pool;
+        }
+
+        @Override
+        public void run() {
+            packet = mPool.obtain();
+            done = true;
+        }
+    }
+
+    /**
+     * Waits for the thread to park in Object.wait().  Fails rather than hanging if it
+     * never does.
+     */
+    private static void waitUntilBlocked(Thread thread) throws InterruptedException {
+        for (int i = 0; i < 500; i++) {
+            if (thread.getState() == Thread.State.WAITING) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        throw new AssertionError("thread never blocked, state " + thread.getState());
+    }
+
+    private static int packetSize(int frame) {
+        // Key frames are much bigger, and force the packet buffers to grow.
+        return frame % KEYFRAME_INTERVAL == 0 ? 20000 : 1500 + frame % 500;
+    }
+
+    private static byte fill(int frame, int offset) {
+        return (byte) (frame * 7 + offset);
+    }
+
+    /**
+     * Returns true if the packet holds what FakeCodec produced for this frame.
+     */
+    private static boolean checkPacket(EncodedPacket packet, int frame) {
+        ByteBuffer data = packet.getData();
+        MediaCodec.BufferInfo info = packet.getInfo();
+        int size = packetSize(frame);
+        if (info.size != size || info.offset != 0 || data.position() != 0 ||
+                data.limit() != size || info.presentationTimeUs != frame * 33333L ||
+                ((info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) !=
+                        (frame % KEYFRAME_INTERVAL == 0)) {
+            return false;
+        }
+        for (int i = 0; i < size; i++) {
+            if (data.get(i) != fill(frame, i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+/**
+ * Stream for MultiStreamDecoder that pretends to decode video.
+ * <p>
+ * Each "decoded" frame costs a fixed amount of time, spent spinning on the engine's clock,
+ * with keyframes costing more.  Frames are released on the same schedule a real stream
+ * would use, so the engine sees a realistic load, and frames that can't be released on time
+ * are dropped.  With a fake clock that moves forward on every read, the whole thing is
+ * deterministic.
+ */
+public class FakeDecodeStream extends MultiStreamDecoder.Stream {
+    private static final long DROP_THRESHOLD_NSEC = 20000000L;
+    private static final long RESYNC_THRESHOLD_NSEC = 500000000L;
+
+    private final MultiStreamDecoder.Clock mClock;
+    private final long mFrameDurationNsec;
+    private final int mKeyframeInterval;
+    private final long mDecodeCostNsec;
+    private final long mKeyframeCostNsec;
+    private final int mFrameCount;
+
+    private boolean mStarted;
+    private long mBaseNsec;
+    private int mFrameIndex;        // next frame to decode
+    private boolean mHaveFrame;     // frame mFrameIndex is decoded, waiting to be shown
+
+    /**
+     * @param clock The clock the engine uses.
+     * @param fps Frame rate.
+     * @param keyframeInterval Frames from one keyframe to the next.
+     * @param decodeCostNsec CPU time to decode a non-key frame.
+     * @param keyframeCostNsec CPU time to decode a keyframe.
+     * @param frameCount Frames in the stream, or zero to run until removed.
+     */
+    public FakeDecodeStream(MultiStreamDecoder.Clock clock, int fps, int keyframeInterval,
+            long decodeCostNsec, long keyframeCostNsec, int frameCount) {
+        mClock = clock;
+        mFrameDurationNsec = 1000000000L / fps;
+        mKeyframeInterval = keyframeInterval;
+        mDecodeCostNsec = decodeCostNsec;
+        mKeyframeCostNsec = keyframeCostNsec;
+        mFrameCount = frameCount;
+    }
+
+    @Override
+    protected long step(long nowNsec, boolean keyframesOnly) {
+        if (!mStarted) {
+            mStarted = true;
+            mBaseNsec = nowNsec;
+        }
+
+        if (!mHaveFrame) {
+            if (keyframesOnly) {
+                // Skip to the next keyframe.  We don't need to do this when switching back
+                // to full rate, because we always decode the keyframe before skipping.
+                int offset = mFrameIndex % mKeyframeInterval;
+                if (offset != 0) {
+                    mFrameIndex += mKeyframeInterval - offset;
+                }
+            }
+            if (mFrameCount > 0 && mFrameIndex >= mFrameCount) {
+                return MultiStreamDecoder.STREAM_DONE;
+            }
+            boolean keyframe = (mFrameIndex % mKeyframeInterval) == 0;
+            spin(keyframe ? mKeyframeCostNsec : mDecodeCostNsec);
+            mHaveFrame = true;
+            nowNsec = mClock.nanoTime();
+        }
+
+        long dueNsec = mBaseNsec + mFrameIndex * mFrameDurationNsec;
+        long lateNsec = nowNsec - dueNsec;
+        if (lateNsec < 0) {
+            return dueNsec;
+        }
+        if (lateNsec > RESYNC_THRESHOLD_NSEC) {
+            mBaseNsec = nowNsec - mFrameIndex * mFrameDurationNsec;
+            frameRendered();
+        } else if (lateNsec > DROP_THRESHOLD_NSEC) {
+            frameDropped();
+        } else {
+            frameRendered();
+        }
+        mHaveFrame = false;
+        mFrameIndex++;
+        return nowNsec;
+    }
+
+    @Override
+    protected void release() {}
+
+    private void spin(long nsec) {
+        long endNsec = mClock.nanoTime() + nsec;
+        while (mClock.nanoTime() - endNsec < 0) {
+            // burn
+        }
+    }
+}
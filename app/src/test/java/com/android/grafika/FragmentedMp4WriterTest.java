@@ -0,0 +1,353 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds H.264 and AAC packets to FragmentedMp4Writer, and checks the box structure of the
+ * file it produces.
+ */
+public class FragmentedMp4WriterTest {
+    private static final byte[] SPS = { 0, 0, 0, 1, 0x67, 0x42, 0x00, 0x1e, 0x11, 0x22 };
+    private static final byte[] PPS = { 0, 0, 0, 1, 0x68, (byte) 0xce, 0x3c, (byte) 0x80 };
+    private static final byte[] AUDIO_CONFIG = { 0x12, 0x10 };
+
+    private static final int VIDEO_FRAMES = 12;
+    private static final int GOP_FRAMES = 4;            // every 4th frame is a sync frame
+    private static final long VIDEO_FRAME_USEC = 33333;
+    private static final long AUDIO_FRAME_USEC = 23220; // 1024 samples at 44.1kHz
+
+    private File mFile;
+
+    /**
+     * One parsed box: its type, and where it sits in the file.
+     */
+    private static class Box {
+        String type;
+        int start;      // offset of the size field
+        int size;       // including the header
+        List<Box> children = new ArrayList<Box>();
+
+        int payloadStart() {
+            return start + 8;
+        }
+
+        Box child(String childType) {
+            for (Box box : children) {
+                if (box.type.equals(childType)) {
+                    return box;
+                }
+            }
+            throw new AssertionError("no " + childType + " in " + type);
+        }
+
+        List<Box> all(String childType) {
+            List<Box> result = new ArrayList<Box>();
+            for (Box box : children) {
+                if (box.type.equals(childType)) {
+                    result.add(box);
+                }
+            }
+            return result;
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("fmp4test", ".mp4");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void videoAndAudioFragments() throws IOException {
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(mFile);
+        int videoTrack = writer.addVideoTrack(320, 240, ByteBuffer.wrap(SPS),
+                ByteBuffer.wrap(PPS));
+        int audioTrack = writer.addAudioTrack(44100, 2, ByteBuffer.wrap(AUDIO_CONFIG));
+        writer.start();
+
+        // Interleave the tracks by PTS, the way an encoder pair would produce them.
+        long audioPts = 0;
+        int audioCount = 0;
+        for (int i = 0; i < VIDEO_FRAMES; i++) {
+            long videoPts = i * VIDEO_FRAME_USEC;
+            while (audioPts < videoPts) {
+                writer.writeSample(audioTrack, ByteBuffer.wrap(audioPacket(audioCount)),
+                        audioPts, true);
+                audioCount++;
+                audioPts += AUDIO_FRAME_USEC;
+            }
+            writer.writeSample(videoTrack, ByteBuffer.wrap(videoPacket(i)), videoPts,
+                    i % GOP_FRAMES == 0);
+        }
+        writer.stop();
+
+        byte[] file = readFile(mFile);
+        List<Box> top = parseBoxes(file, 0, file.length);
+
+        // ftyp, moov, then a moof/mdat pair per GOP.
+        int fragments = VIDEO_FRAMES / GOP_FRAMES;
+        assertEquals(2 + 2 * fragments, top.size());
+        assertEquals("ftyp", top.get(0).type);
+        assertEquals("moov", top.get(1).type);
+        assertEquals(0, top.get(0).start);
+        assertEquals(top.get(0).size, top.get(1).start);
+
+        Box moov = top.get(1);
+        moov.child("mvhd");
+        assertEquals(2, moov.all("trak").size());
+        assertEquals(2, moov.child("mvex").all("trex").size());
+
+        int totalVideoSamples = 0;
+        int totalAudioSamples = 0;
+        for (int f = 0; f < fragments; f++) {
+            Box moof = top.get(2 + f * 2);
+            Box mdat = top.get(3 + f * 2);
+            assertEquals("moof", moof.type);
+            assertEquals("mdat", mdat.type);
+            assertEquals(moof.start + moof.size, mdat.start);
+
+            // mfhd sequence numbers count up from 1.
+            Box mfhd = moof.child("mfhd");
+            assertEquals(f + 1, readInt(file, mfhd.payloadStart() + 4));
+
+            // Each traf's samples must land, back to back, inside the mdat.
+            int expectedOffset = mdat.payloadStart() - moof.start;
+            int payloadBytes = 0;
+            for (Box traf : moof.all("traf")) {
+                int trackId = readInt(file, traf.child("tfhd").payloadStart() + 4);
+                Box tfdt = traf.child("tfdt");
+                assertEquals(1, file[tfdt.payloadStart()]);     // version 1, 64-bit time
+
+                Box trun = traf.child("trun");
+                int p = trun.payloadStart();
+                assertEquals(0x000701, readInt(file, p) & 0xffffff);
+                int sampleCount = readInt(file, p + 4);
+                int dataOffset = readInt(file, p + 8);
+                assertEquals(expectedOffset, dataOffset);
+                assertEquals(8 + 12 + 12 * sampleCount, trun.size);
+
+                int sampleStart = moof.start + dataOffset;
+                for (int s = 0; s < sampleCount; s++) {
+                    int entry = p + 12 + s * 12;
+                    int sampleSize = readInt(file, entry + 4);
+                    int sampleFlags = readInt(file, entry + 8);
+                    if (trackId == 1) {
+                        // First video sample of each fragment is the sync frame.
+                        assertEquals(s == 0 ? 0x02000000 : 0x01010000, sampleFlags);
+                        checkVideoSample(file, sampleStart, sampleSize,
+                                totalVideoSamples + s);
+                    } else {
+                        assertEquals(2, trackId);
+                        assertEquals(audioPacket(totalAudioSamples + s).length, sampleSize);
+                    }
+                    sampleStart += sampleSize;
+                    payloadBytes += sampleSize;
+                }
+                expectedOffset += sampleStart - (moof.start + dataOffset);
+                if (trackId == 1) {
+                    totalVideoSamples += sampleCount;
+                } else {
+                    totalAudioSamples += sampleCount;
+                }
+            }
+            assertEquals(mdat.size - 8, payloadBytes);
+        }
+        assertEquals(VIDEO_FRAMES, totalVideoSamples);
+        assertEquals(audioCount, totalAudioSamples);
+    }
+
+    @Test
+    public void audioOnlyFragmentsByDuration() throws IOException {
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(mFile);
+        int audioTrack = writer.addAudioTrack(44100, 1, ByteBuffer.wrap(AUDIO_CONFIG));
+        writer.start();
+        // Five seconds of audio; with no video, fragments are cut every two seconds.
+        int count = (int) (5000000 / AUDIO_FRAME_USEC);
+        for (int i = 0; i < count; i++) {
+            writer.writeSample(audioTrack, ByteBuffer.wrap(audioPacket(i)),
+                    i * AUDIO_FRAME_USEC, true);
+        }
+        writer.stop();
+
+        byte[] file = readFile(mFile);
+        List<Box> top = parseBoxes(file, 0, file.length);
+        assertEquals(2 + 2 * 3, top.size());
+        int samples = 0;
+        for (int i = 2; i < top.size(); i += 2) {
+            Box trun = top.get(i).child("traf").child("trun");
+            samples += readInt(file, trun.payloadStart() + 4);
+        }
+        assertEquals(count, samples);
+    }
+
+    @Test
+    public void lengthPrefixedSamplesCopiedAsIs() throws IOException {
+        // No start code on the SPS, so the samples are taken to be length-prefixed.
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(mFile);
+        int videoTrack = writer.addVideoTrack(320, 240,
+                ByteBuffer.wrap(SPS, 4, SPS.length - 4), ByteBuffer.wrap(PPS, 4, PPS.length - 4));
+        writer.start();
+        // A NAL unit of 256-511 bytes has a length that starts 00 00 01, like a start code.
+        int[] nalSizes = { 300, 256, 511, 40 };
+        for (int i = 0; i < nalSizes.length; i++) {
+            writer.writeSample(videoTrack, ByteBuffer.wrap(lengthPrefixedPacket(nalSizes[i])),
+                    i * VIDEO_FRAME_USEC, i == 0);
+        }
+        writer.stop();
+
+        byte[] file = readFile(mFile);
+        List<Box> top = parseBoxes(file, 0, file.length);
+        assertEquals(4, top.size());
+        Box moof = top.get(2);
+        int p = moof.child("traf").child("trun").payloadStart();
+        assertEquals(nalSizes.length, readInt(file, p + 4));
+        int sampleStart = moof.start + readInt(file, p + 8);
+        for (int s = 0; s < nalSizes.length; s++) {
+            byte[] packet = lengthPrefixedPacket(nalSizes[s]);
+            assertEquals(packet.length, readInt(file, p + 12 + s * 12 + 4));
+            for (int i = 0; i < packet.length; i++) {
+                assertEquals(packet[i], file[sampleStart + i]);
+            }
+            sampleStart += packet.length;
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void annexBSampleWithoutStartCode() throws IOException {
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(mFile);
+        int videoTrack = writer.addVideoTrack(320, 240, ByteBuffer.wrap(SPS),
+                ByteBuffer.wrap(PPS), true);
+        writer.start();
+        writer.writeSample(videoTrack, ByteBuffer.wrap(lengthPrefixedPacket(40)), 0, true);
+    }
+
+    /**
+     * Returns an Annex B access unit: a 3-byte start code, then a NAL unit with no zero
+     * bytes, so we know exactly what the length-prefixed version looks like.
+     */
+    private static byte[] videoPacket(int index) {
+        int nalSize = 20 + index * 3;
+        byte[] packet = new byte[3 + nalSize];
+        packet[2] = 1;
+        packet[3] = (byte) (index % GOP_FRAMES == 0 ? 0x65 : 0x41);
+        for (int i = 4; i < packet.length; i++) {
+            packet[i] = (byte) (1 + (index + i) % 200);
+        }
+        return packet;
+    }
+
+    /**
+     * Returns a single NAL unit with a 4-byte length in front.
+     */
+    private static byte[] lengthPrefixedPacket(int nalSize) {
+        byte[] packet = new byte[4 + nalSize];
+        ByteBuffer.wrap(packet).putInt(nalSize);
+        packet[4] = 0x41;
+        for (int i = 5; i < packet.length; i++) {
+            packet[i] = (byte) i;
+        }
+        return packet;
+    }
+
+    private static byte[] audioPacket(int index) {
+        byte[] packet = new byte[100 + index % 50];
+        for (int i = 0; i < packet.length; i++) {
+            packet[i] = (byte) (index + i);
+        }
+        return packet;
+    }
+
+    /**
+     * Checks that the sample is the video packet with its start code replaced by a 4-byte
+     * length.
+     */
+    private static void checkVideoSample(byte[] file, int start, int size, int index) {
+        byte[] packet = videoPacket(index);
+        int nalSize = packet.length - 3;
+        assertEquals(4 + nalSize, size);
+        assertEquals(nalSize, readInt(file, start));
+        for (int i = 0; i < nalSize; i++) {
+            assertEquals(packet[3 + i], file[start + 4 + i]);
+        }
+    }
+
+    private static final String[] CONTAINERS = { "moov", "trak", "mdia", "minf", "stbl",
+            "mvex", "moof", "traf" };
+
+    private static List<Box> parseBoxes(byte[] file, int start, int end) {
+        List<Box> boxes = new ArrayList<Box>();
+        int offset = start;
+        while (offset < end) {
+            Box box = new Box();
+            box.start = offset;
+            box.size = readInt(file, offset);
+            box.type = new String(file, offset + 4, 4);
+            assertTrue("bad size for " + box.type + " at " + offset,
+                    box.size >= 8 && offset + box.size <= end);
+            for (String container : CONTAINERS) {
+                if (container.equals(box.type)) {
+                    box.children = parseBoxes(file, offset + 8, offset + box.size);
+                }
+            }
+            boxes.add(box);
+            offset += box.size;
+        }
+        assertEquals(end, offset);
+        return boxes;
+    }
+
+    private static int readInt(byte[] buf, int offset) {
+        return ((buf[offset] & 0xff) << 24) | ((buf[offset + 1] & 0xff) << 16) |
+                ((buf[offset + 2] & 0xff) << 8) | (buf[offset + 3] & 0xff);
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                int count = in.read(data, offset, data.length - offset);
+                if (count < 0) {
+                    throw new IOException("short read");
+                }
+                offset += count;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+}
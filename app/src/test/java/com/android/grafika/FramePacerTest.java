@@ -0,0 +1,218 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives FramePacer with a fake clock, so the timing is exactly repeatable.
+ */
+public class FramePacerTest {
+    private static final long FRAME_USEC = 33333;
+    private static final long START_NSEC = 1000000000L;
+
+    /**
+     * Time only moves when asked.  Each nanoTime() call costs a fixed "tick", which is what
+     * lets a spin loop make progress; each sleep() runs over by a fixed amount.
+     */
+    private static class FakeClock implements FramePacer.Clock {
+        long now = START_NSEC;
+        long tickNsec = 1000;
+        long overshootNsec;
+        int nanoTimeCalls;
+        int sleepCalls;
+        long lastSleepEndNsec;          // when the most recent sleep was asked to end
+
+        @Override
+        public long nanoTime() {
+            nanoTimeCalls++;
+            now += tickNsec;
+            return now;
+        }
+
+        @Override
+        public void sleep(long nanos) {
+            sleepCalls++;
+            lastSleepEndNsec = now + nanos;
+            now += nanos + overshootNsec;
+        }
+    }
+
+    private FakeClock mClock;
+    private FramePacer mPacer;
+
+    @Before
+    public void setUp() {
+        mClock = new FakeClock();
+        mPacer = new FramePacer(mClock);
+    }
+
+    /**
+     * Returns the clock time at which frame "index" is due, given that frame 0 was
+     * released on the first nanoTime() tick.
+     */
+    private long targetNsec(int index) {
+        return START_NSEC + mClock.tickNsec + index * FRAME_USEC * 1000;
+    }
+
+    @Test
+    public void overshootEstimateConverges() {
+        mClock.overshootNsec = 2000000;         // sleeps run 2ms long
+        for (int i = 0; i < 100; i++) {
+            assertTrue(mPacer.waitForFrame(i * FRAME_USEC));
+        }
+        // Each measured sleep also includes the nanoTime() tick that ends it.
+        long overshootUsec = mPacer.getSleepOvershootUsec();
+        assertTrue("overshoot " + overshootUsec, overshootUsec >= 1990 && overshootUsec <= 2010);
+
+        // The first sleeps woke up late; once the estimate settled, frames went out on time.
+        assertTrue(mPacer.getJitterPercentileUsec(100) > 1000);
+        assertTrue(mPacer.getJitterPercentileUsec(50) <= 1);
+        assertEquals(100, mPacer.getFrameCount());
+        assertEquals(0, mPacer.getDropCount());
+    }
+
+    @Test
+    public void spinsForFinalSubMillisecond() {
+        assertTrue(mPacer.waitForFrame(0));
+        mClock.nanoTimeCalls = 0;
+        mClock.sleepCalls = 0;
+
+        assertTrue(mPacer.waitForFrame(FRAME_USEC));
+        long target = targetNsec(1);
+        // One sleep, ending half a millisecond early...
+        assertEquals(1, mClock.sleepCalls);
+        assertEquals(target - 500000, mClock.lastSleepEndNsec);
+        // ...then a spin on the clock, one tick per call, up to the target.  The read that
+        // ended the sleep covers the first tick.
+        int spinCalls = mClock.nanoTimeCalls - 2;
+        assertEquals(500000 / mClock.tickNsec - 1, spinCalls);
+        assertTrue(mClock.now >= target && mClock.now < target + mClock.tickNsec);
+        assertEquals(0, mPacer.getJitterPercentileUsec(100));
+    }
+
+    @Test
+    public void longWaitsAreBrokenUp() {
+        // A 2-second frame interval is slept in chunks of at most half a second.
+        assertTrue(mPacer.waitForFrame(0));
+        mClock.sleepCalls = 0;
+        assertTrue(mPacer.waitForFrame(2000000));
+        assertEquals(4, mClock.sleepCalls);
+        assertEquals(0, mPacer.getTimestampAnomalyCount());
+    }
+
+    @Test
+    public void dropsLateFrames() {
+        assertTrue(mPacer.waitForFrame(0));
+        // The decoder stalls for 100ms.  Frames 1 and 2 are more than 20ms late.
+        mClock.now += 100000000;
+        assertFalse(mPacer.waitForFrame(FRAME_USEC));
+        assertFalse(mPacer.waitForFrame(2 * FRAME_USEC));
+        assertTrue(mPacer.waitForFrame(3 * FRAME_USEC));
+        assertEquals(2, mPacer.getDropCount());
+
+        // Back on schedule.
+        assertTrue(mPacer.waitForFrame(4 * FRAME_USEC));
+        assertEquals(0, (mClock.now - targetNsec(4)) / 1000);
+        assertEquals(3, mPacer.getFrameCount());
+        assertEquals(0, mPacer.getResyncCount());
+    }
+
+    @Test
+    public void consecutiveDropsAreLimited() {
+        mPacer.setMaxConsecutiveDrops(3);
+        assertTrue(mPacer.waitForFrame(0));
+        // 300ms behind: frames 1-8 are all late, but only three in a row are dropped.
+        mClock.now += 300000000;
+        boolean[] expected = { false, false, false, true, false, false, false, true };
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("frame " + (i + 1), expected[i],
+                    mPacer.waitForFrame((i + 1) * FRAME_USEC));
+        }
+        assertEquals(6, mPacer.getDropCount());
+    }
+
+    @Test
+    public void resyncsAfterLongStall() {
+        assertTrue(mPacer.waitForFrame(0));
+        assertTrue(mPacer.waitForFrame(FRAME_USEC));
+
+        // Two seconds behind, well past the half-second resync threshold.  The frame is
+        // shown right away and becomes the start of a new schedule.
+        mClock.now += 2000000000L;
+        long resumeNsec = mClock.now + mClock.tickNsec;
+        assertTrue(mPacer.waitForFrame(2 * FRAME_USEC));
+        assertEquals(1, mPacer.getResyncCount());
+        assertEquals(0, mPacer.getDropCount());
+
+        // The next frame is due one frame after the resync, and nothing gets dropped.
+        assertTrue(mPacer.waitForFrame(3 * FRAME_USEC));
+        long expectedNsec = resumeNsec + FRAME_USEC * 1000;
+        assertTrue(mClock.now >= expectedNsec && mClock.now < expectedNsec + mClock.tickNsec);
+        assertEquals(0, mPacer.getDropCount());
+        assertEquals(4, mPacer.getFrameCount());
+    }
+
+    @Test
+    public void jitterPercentiles() {
+        mClock.tickNsec = 1;
+        assertTrue(mPacer.waitForFrame(0));
+        // Frames 1-100 arrive 0, 100, 200 ... 9900 usec late: too late to sleep, not late
+        // enough to drop.
+        for (int i = 1; i <= 100; i++) {
+            mClock.now = targetNsec(i) + (i - 1) * 100000L - mClock.tickNsec;
+            assertTrue(mPacer.waitForFrame(i * FRAME_USEC));
+        }
+        assertEquals(0, mPacer.getDropCount());
+
+        // 101 samples: 0 for the first frame, then 0 to 9900 in steps of 100.
+        assertEquals(0, mPacer.getJitterPercentileUsec(0));
+        assertEquals(4900, mPacer.getJitterPercentileUsec(50));
+        assertEquals(8900, mPacer.getJitterPercentileUsec(90));
+        assertEquals(9800, mPacer.getJitterPercentileUsec(99));
+        assertEquals(9900, mPacer.getJitterPercentileUsec(100));
+
+        mPacer.resetStats();
+        assertEquals(0, mPacer.getJitterPercentileUsec(50));
+        assertEquals(0, mPacer.getFrameCount());
+    }
+
+    @Test
+    public void fixedRateIgnoresTimestamps() {
+        mPacer.setFixedPlaybackRate(50);
+        assertTrue(mPacer.waitForFrame(0));
+        // Garbage time stamps don't matter; frames go out every 20ms.
+        assertTrue(mPacer.waitForFrame(-5));
+        assertTrue(mPacer.waitForFrame(999999999));
+        long expectedNsec = START_NSEC + mClock.tickNsec + 2 * 20000000L;
+        assertTrue(mClock.now >= expectedNsec && mClock.now < expectedNsec + mClock.tickNsec);
+        assertEquals(0, mPacer.getTimestampAnomalyCount());
+    }
+
+    @Test
+    public void timestampAnomalies() {
+        assertTrue(mPacer.waitForFrame(FRAME_USEC));
+        assertTrue(mPacer.waitForFrame(0));                 // backward: no wait
+        assertTrue(mPacer.waitForFrame(60 * 1000000L));     // a minute later: capped
+        assertEquals(2, mPacer.getTimestampAnomalyCount());
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs FakeDecodeStreams through MultiStreamDecoder, and checks that the focused stream
+ * plays at full rate while the others fall back to keyframes.
+ * <p>
+ * Most of these drive an engine with no worker threads from a fake clock, so they don't
+ * depend on how fast the machine is.  One runs the real worker threads, and only checks
+ * things that timing can't affect.
+ */
+public class MultiStreamDecoderTest {
+    private static final int STREAM_COUNT = 9;
+    private static final int FPS = 30;
+    private static final int KEYFRAME_INTERVAL = 10;
+    private static final long DECODE_COST_NSEC = 200000L;       // 0.2ms
+    private static final long KEYFRAME_COST_NSEC = 500000L;     // 0.5ms
+    private static final long ONE_SECOND_NSEC = 1000000000L;
+
+    /**
+     * Moves forward 10us every time it's read, so FakeDecodeStream's spinning takes a
+     * predictable number of reads.
+     */
+    private static class FakeClock implements MultiStreamDecoder.Clock {
+        long now = ONE_SECOND_NSEC;
+
+        @Override
+        public long nanoTime() {
+            now += 10000;
+            return now;
+        }
+    }
+
+    private FakeClock mClock;
+
+    @Before
+    public void setUp() {
+        mClock = new FakeClock();
+    }
+
+    private FakeDecodeStream newStream(int frameCount) {
+        return new FakeDecodeStream(mClock, FPS, KEYFRAME_INTERVAL, DECODE_COST_NSEC,
+                KEYFRAME_COST_NSEC, frameCount);
+    }
+
+    /**
+     * Plays the part of the worker threads for a while: moves the clock forward in 1ms
+     * steps, running whatever is due.
+     */
+    private void run(MultiStreamDecoder decoder, long durationNsec) {
+        long endNsec = mClock.now + durationNsec;
+        while (mClock.now < endNsec) {
+            decoder.runDueSteps();
+            mClock.now += 1000000;
+        }
+    }
+
+    @Test
+    public void focusedFullRateOthersKeyframes() {
+        MultiStreamDecoder decoder = new MultiStreamDecoder(mClock);
+        FakeDecodeStream[] streams = new FakeDecodeStream[STREAM_COUNT];
+        for (int i = 0; i < STREAM_COUNT; i++) {
+            streams[i] = newStream(0);
+            decoder.addStream(streams[i], i == 0 ?
+                    MultiStreamDecoder.PRIORITY_FOCUSED : MultiStreamDecoder.PRIORITY_BACKGROUND);
+        }
+        run(decoder, ONE_SECOND_NSEC);
+
+        // One second at 30fps is 30 frames for the focused stream.  The background streams
+        // show frames 0, 10 and 20, and 30 if it comes due right at the end.
+        long focused = decoder.getRenderedCount(streams[0]);
+        assertTrue("focused rendered " + focused, focused >= FPS - 1 && focused <= FPS + 1);
+        long total = focused;
+        for (int i = 1; i < STREAM_COUNT; i++) {
+            long background = decoder.getRenderedCount(streams[i]);
+            assertTrue("background " + i + " rendered " + background,
+                    background >= FPS / KEYFRAME_INTERVAL &&
+                    background <= FPS / KEYFRAME_INTERVAL + 1);
+            total += background;
+            assertNull(decoder.getError(streams[i]));
+        }
+
+        MultiStreamDecoder.Stats stats = new MultiStreamDecoder.Stats();
+        decoder.getStats(stats, false);
+        assertEquals(1, stats.workerCount);
+        assertEquals(STREAM_COUNT, stats.streamCount);
+        assertEquals(total, stats.framesRendered);
+        assertEquals(0, stats.framesDropped);
+        assertEquals(0, stats.errorCount);
+        assertTrue(stats.stepCount >= stats.framesRendered);
+        assertTrue(stats.elapsedNsec >= ONE_SECOND_NSEC);
+        // Streams never wait more than the 1ms between runs, plus the work ahead of them.
+        assertTrue("lateness " + stats.scheduleLatenessUsec,
+                stats.scheduleLatenessUsec.max < 10000);
+        double fps = stats.getFramesPerSecond();
+        assertTrue("fps " + fps, fps > FPS && fps <= (FPS + 1) + (STREAM_COUNT - 1) * 4);
+        // About 6ms of decoding for the focused stream, 16ms for the rest.
+        double util = stats.getUtilization();
+        assertTrue("util " + util, util > 0.01 && util < 0.1);
+
+        decoder.shutdown();
+        decoder.getStats(stats, false);
+        assertEquals(0, stats.streamCount);             // shutdown released them
+    }
+
+    @Test
+    public void focusChangeSwitchesRates() {
+        MultiStreamDecoder decoder = new MultiStreamDecoder(mClock);
+        FakeDecodeStream first = newStream(0);
+        FakeDecodeStream second = newStream(0);
+        decoder.addStream(first, MultiStreamDecoder.PRIORITY_BACKGROUND);
+        decoder.addStream(second, MultiStreamDecoder.PRIORITY_BACKGROUND);
+
+        decoder.setFocus(second);
+        run(decoder, ONE_SECOND_NSEC);
+        long firstBefore = decoder.getRenderedCount(first);
+        long secondBefore = decoder.getRenderedCount(second);
+        assertTrue("first " + firstBefore, firstBefore <= FPS / KEYFRAME_INTERVAL + 1);
+        assertTrue("second " + secondBefore, secondBefore >= FPS - 1);
+
+        // The newly focused stream picks up at its next keyframe, and the other one drops
+        // back to keyframes right away.
+        decoder.setFocus(first);
+        run(decoder, ONE_SECOND_NSEC);
+        long firstGain = decoder.getRenderedCount(first) - firstBefore;
+        long secondGain = decoder.getRenderedCount(second) - secondBefore;
+        decoder.shutdown();
+        assertTrue("first " + firstGain, firstGain >= FPS - KEYFRAME_INTERVAL - 1);
+        assertTrue("second " + secondGain, secondGain <= FPS / KEYFRAME_INTERVAL + 1);
+    }
+
+    @Test
+    public void finishedAndFailingStreams() {
+        MultiStreamDecoder decoder = new MultiStreamDecoder(mClock);
+        FakeDecodeStream finite = newStream(5);
+        MultiStreamDecoder.Stream failing = new MultiStreamDecoder.Stream() {
+            @Override
+            protected long step(long nowNsec, boolean keyframesOnly) {
+                throw new RuntimeException("decoder exploded");
+            }
+
+            @Override
+            protected void release() {}
+        };
+        decoder.addStream(finite, MultiStreamDecoder.PRIORITY_FOCUSED);
+        decoder.addStream(failing, MultiStreamDecoder.PRIORITY_BACKGROUND);
+        run(decoder, ONE_SECOND_NSEC / 2);
+
+        MultiStreamDecoder.Stats stats = new MultiStreamDecoder.Stats();
+        decoder.getStats(stats, true);
+        assertEquals(0, stats.streamCount);             // both gone on their own
+        assertEquals(1, stats.errorCount);
+        assertEquals(5, stats.framesRendered);
+        assertEquals(0, stats.framesDropped);
+        assertNotNull(decoder.getError(failing));
+        assertNull(decoder.getError(finite));
+
+        // Reset cleared the counts.
+        decoder.getStats(stats, false);
+        assertEquals(0, stats.errorCount);
+        assertEquals(0, stats.framesRendered);
+        decoder.shutdown();
+    }
+
+    @Test
+    public void removedStreamIsReleased() {
+        MultiStreamDecoder decoder = new MultiStreamDecoder(mClock);
+        final int[] releaseCount = new int[1];
+        FakeDecodeStream stream = new FakeDecodeStream(mClock, FPS, KEYFRAME_INTERVAL,
+                DECODE_COST_NSEC, KEYFRAME_COST_NSEC, 0) {
+            @Override
+            protected void release() {
+                releaseCount[0]++;
+            }
+        };
+        decoder.addStream(stream, MultiStreamDecoder.PRIORITY_FOCUSED);
+        run(decoder, ONE_SECOND_NSEC / 10);
+        long rendered = decoder.getRenderedCount(stream);
+        assertTrue(rendered > 0);
+
+        decoder.removeStream(stream);
+        assertEquals(0, releaseCount[0]);           // happens on the next run
+        assertEquals(1, decoder.runDueSteps());
+        assertEquals(1, releaseCount[0]);
+        assertEquals(rendered, decoder.getRenderedCount(stream));
+
+        decoder.shutdown();
+        assertEquals(1, releaseCount[0]);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void runDueStepsNeedsManualEngine() {
+        MultiStreamDecoder decoder = new MultiStreamDecoder(1);
+        try {
+            decoder.runDueSteps();
+        } finally {
+            decoder.shutdown();
+        }
+    }
+
+    /**
+     * Runs the real worker threads on the real clock.  How much gets done depends on the
+     * machine, so this waits for some progress and then checks that the books balance.
+     */
+    @Test
+    public void workerThreads() throws InterruptedException {
+        MultiStreamDecoder decoder = new MultiStreamDecoder(2);
+        FakeDecodeStream[] streams = new FakeDecodeStream[4];
+        for (int i = 0; i < streams.length; i++) {
+            streams[i] = new FakeDecodeStream(MultiStreamDecoder.SYSTEM_CLOCK, FPS,
+                    KEYFRAME_INTERVAL, DECODE_COST_NSEC, KEYFRAME_COST_NSEC, 0);
+            decoder.addStream(streams[i], i == 0 ?
+                    MultiStreamDecoder.PRIORITY_FOCUSED : MultiStreamDecoder.PRIORITY_BACKGROUND);
+        }
+        FakeDecodeStream finite = new FakeDecodeStream(MultiStreamDecoder.SYSTEM_CLOCK, FPS,
+                KEYFRAME_INTERVAL, DECODE_COST_NSEC, KEYFRAME_COST_NSEC, 3);
+        decoder.addStream(finite, MultiStreamDecoder.PRIORITY_BACKGROUND);
+
+        MultiStreamDecoder.Stats stats = new MultiStreamDecoder.Stats();
+        long deadlineMsec = System.currentTimeMillis() + 30000;
+        while (decoder.getRenderedCount(streams[0]) < 5 || stats.streamCount != streams.length) {
+            assertTrue("no progress", System.currentTimeMillis() < deadlineMsec);
+            Thread.sleep(10);
+            decoder.getStats(stats, false);
+        }
+        decoder.shutdown();
+
+        decoder.getStats(stats, false);
+        assertEquals(2, stats.workerCount);
+        assertEquals(0, stats.streamCount);
+        long total = decoder.getRenderedCount(finite);
+        for (FakeDecodeStream stream : streams) {
+            total += decoder.getRenderedCount(stream);
+            assertNull(decoder.getError(stream));
+        }
+        assertEquals(total, stats.framesRendered);
+        assertEquals(0, stats.errorCount);
+        assertTrue(stats.stepCount >= stats.framesRendered + stats.framesDropped);
+        double util = stats.getUtilization();
+        assertTrue("util " + util, util > 0 && util <= 1);
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Measures how fast PixelSources fills buffers, so we know the generators aren't what
+ * limits the texture upload benchmark.
+ * <p>
+ * This isn't a unit test, and isn't run by the test task: there's nothing to assert, and
+ * desktop numbers say little about a phone.  Run main() by hand.  Results go to stdout,
+ * one tab-separated line per case.
+ */
+public class PixelSourcesBenchmark {
+    private static final int[] SIZES = { 256, 512, 1024, 2048 };
+    private static final int[] BYTES_PER_PIXEL = { 1, 2, 4 };
+    private static final int ROUNDS = 15;
+
+    public static void main(String[] args) {
+        System.out.println("generator\tbuffer\tsize\tbpp\tmedianMBps\tbestMBps");
+        for (int size : SIZES) {
+            for (int bpp : BYTES_PER_PIXEL) {
+                for (int mode = 0; mode < 4; mode++) {
+                    boolean random = (mode & 2) != 0;
+                    boolean direct = (mode & 1) != 0;
+                    run(random, direct, size, bpp);
+                }
+            }
+        }
+    }
+
+    private static void run(boolean random, boolean direct, int size, int bpp) {
+        int bytes = size * size * bpp;
+        ByteBuffer buf = direct ? ByteBuffer.allocateDirect(bytes) : ByteBuffer.allocate(bytes);
+        long[] nsec = new long[ROUNDS];
+        // The first rounds warm up the JIT; they're sorted to the slow end and ignored by
+        // the median.
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            if (random) {
+                PixelSources.fillRandom(buf, size, size, bpp, i);
+            } else {
+                PixelSources.fillPattern(buf, size, size, bpp, 8, i);
+            }
+            nsec[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(nsec);
+        System.out.println((random ? "random" : "pattern") + "\t" +
+                (direct ? "direct" : "heap") + "\t" + size + "\t" + bpp + "\t" +
+                toMBps(bytes, nsec[ROUNDS / 2]) + "\t" + toMBps(bytes, nsec[0]));
+    }
+
+    private static long toMBps(int bytes, long nsec) {
+        return nsec == 0 ? 0 : bytes * 1000L / nsec;    // bytes/nsec * 1000 = MB/s
+    }
+}
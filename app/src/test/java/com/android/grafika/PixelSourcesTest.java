@@ -0,0 +1,138 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the pixel generators used by the texture upload benchmark.
+ */
+public class PixelSourcesTest {
+    private static final int WIDTH = 37;        // odd sizes, so reps don't line up
+    private static final int HEIGHT = 29;
+    private static final int REP_COUNT = 4;
+    private static final int[] BYTES_PER_PIXEL = { 1, 2, 4 };
+
+    // Written before and after the pixel data, to catch stray writes.
+    private static final int GUARD = 16;
+    private static final byte GUARD_BYTE = (byte) 0xa5;
+
+    @Test
+    public void sameSeedSameOutput() {
+        for (int bpp : BYTES_PER_PIXEL) {
+            assertEquals(pattern(false, bpp, 1), pattern(false, bpp, 1));
+            assertEquals(random(false, bpp, 1), random(false, bpp, 1));
+            assertFalse(pattern(false, bpp, 1).equals(pattern(false, bpp, 2)));
+            assertFalse(random(false, bpp, 1).equals(random(false, bpp, 2)));
+        }
+    }
+
+    @Test
+    public void heapAndDirectMatch() {
+        for (int bpp : BYTES_PER_PIXEL) {
+            ByteBuffer heap = pattern(false, bpp, 3);
+            ByteBuffer direct = pattern(true, bpp, 3);
+            assertFalse(heap.isDirect());
+            assertTrue(direct.isDirect());
+            assertEquals(heap, direct);
+            assertEquals(random(false, bpp, 3), random(true, bpp, 3));
+        }
+    }
+
+    @Test
+    public void writesOnlyTheImage() {
+        for (int bpp : BYTES_PER_PIXEL) {
+            for (int mode = 0; mode < 4; mode++) {
+                boolean direct = (mode & 1) != 0;
+                ByteBuffer buf = guardedBuffer(direct, bpp);
+                if ((mode & 2) != 0) {
+                    PixelSources.fillRandom(buf, WIDTH, HEIGHT, bpp, 5);
+                } else {
+                    PixelSources.fillPattern(buf, WIDTH, HEIGHT, bpp, REP_COUNT, 5);
+                }
+                // Position and limit are where we left them, and the guards are intact.
+                assertEquals(GUARD, buf.position());
+                assertEquals(buf.capacity(), buf.limit());
+                int end = GUARD + WIDTH * HEIGHT * bpp;
+                for (int i = 0; i < GUARD; i++) {
+                    assertEquals(GUARD_BYTE, buf.get(i));
+                    assertEquals(GUARD_BYTE, buf.get(end + i));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void patternRepeats() {
+        for (int bpp : BYTES_PER_PIXEL) {
+            ByteBuffer buf = pattern(false, bpp, 7);
+            for (int y = 0; y < HEIGHT; y++) {
+                for (int x = 0; x < WIDTH; x++) {
+                    // Each color covers a REP_COUNT square, and the 4 colors cycle along
+                    // both axes, so every pixel matches one in the first row.
+                    int refX = (x / REP_COUNT + y / REP_COUNT) % 4 * REP_COUNT;
+                    for (int b = 0; b < bpp; b++) {
+                        assertEquals("pixel " + x + "," + y,
+                                buf.get(offset(refX, 0, bpp) + b),
+                                buf.get(offset(x, y, bpp) + b));
+                    }
+                    if (bpp == 4) {
+                        assertEquals((byte) 0xff, buf.get(offset(x, y, bpp) + 3));
+                    }
+                }
+            }
+        }
+    }
+
+    private static int offset(int x, int y, int bpp) {
+        return GUARD + (y * WIDTH + x) * bpp;
+    }
+
+    /**
+     * Returns a buffer with room for the image plus a guard region on each side, with the
+     * position at the start of the image.
+     */
+    private static ByteBuffer guardedBuffer(boolean direct, int bpp) {
+        int size = WIDTH * HEIGHT * bpp + 2 * GUARD;
+        ByteBuffer buf = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        for (int i = 0; i < size; i++) {
+            buf.put(i, GUARD_BYTE);
+        }
+        buf.position(GUARD);
+        return buf;
+    }
+
+    private static ByteBuffer pattern(boolean direct, int bpp, long seed) {
+        ByteBuffer buf = guardedBuffer(direct, bpp);
+        PixelSources.fillPattern(buf, WIDTH, HEIGHT, bpp, REP_COUNT, seed);
+        buf.clear();
+        return buf;
+    }
+
+    private static ByteBuffer random(boolean direct, int bpp, long seed) {
+        ByteBuffer buf = guardedBuffer(direct, bpp);
+        PixelSources.fillRandom(buf, WIDTH, HEIGHT, bpp, seed);
+        buf.clear();
+        return buf;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.gles;
+
+/**
+ * Times the Matrix sequence Sprite2d used to run against AffineMatrix, for a batch of
+ * sprites.
+ * <p>
+ * This isn't a unit test, and isn't run by the test task: a JIT on a desktop says little
+ * about a phone, so there's nothing worth asserting.  Run main() by hand.  Results go to
+ * stdout as tab-separated nanoseconds per sprite.
+ */
+public class AffineMatrixBenchmark {
+    private static final int SPRITES = 500;
+    private static final int FRAMES = 400;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) {
+        float[] projection = new float[16];
+        ReferenceMatrix.orthoM(projection, 0, 1080, 1920);
+        float[] model = new float[16];
+        float[] mvp = new float[16];
+        float[] temp = new float[32];
+
+        long refNsec = Long.MAX_VALUE;
+        long fastNsec = Long.MAX_VALUE;
+        float sink = 0;
+        // Alternate, and keep the best of several rounds, to let the JIT settle.
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int f = 0; f < FRAMES; f++) {
+                for (int s = 0; s < SPRITES; s++) {
+                    ReferenceMatrix.setIdentityM(model, 0);
+                    ReferenceMatrix.translateM(model, 0, s, f, 0);
+                    ReferenceMatrix.rotateM(model, 0, temp, s + f, 0, 0, 1);
+                    ReferenceMatrix.scaleM(model, 0, 32, 32, 1);
+                    ReferenceMatrix.multiplyMM(mvp, 0, projection, 0, model, 0);
+                    sink += mvp[12];
+                }
+            }
+            refNsec = Math.min(refNsec, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int f = 0; f < FRAMES; f++) {
+                for (int s = 0; s < SPRITES; s++) {
+                    AffineMatrix.setTranslateRotateScale(model, 0, s, f, s + f, 32, 32);
+                    AffineMatrix.multiplyByAffine(mvp, 0, projection, 0, model, 0);
+                    sink += mvp[12];
+                }
+            }
+            fastNsec = Math.min(fastNsec, System.nanoTime() - start);
+        }
+
+        // The sink is printed so the JIT can't discard the work.
+        int count = SPRITES * FRAMES;
+        System.out.println("matrixNsPerSprite\taffineNsPerSprite\tsink");
+        System.out.println((refNsec / count) + "\t" + (fastNsec / count) + "\t" + sink);
+    }
+}
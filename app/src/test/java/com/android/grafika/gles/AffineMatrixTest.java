@@ -0,0 +1,108 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.gles;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares AffineMatrix against the android.opengl.Matrix sequence it replaces, using the
+ * ports in ReferenceMatrix.  The results should match exactly, apart from the sign of zero.
+ * AffineMatrixBenchmark compares the speed.
+ */
+public class AffineMatrixTest {
+    private static final int ITERATIONS = 1000;
+
+    @Test
+    public void translateRotateScaleMatchesMatrix() {
+        Random rnd = new Random(1);
+        float[] expected = new float[16];
+        float[] actual = new float[20];     // non-zero offset
+        for (int i = 0; i < ITERATIONS; i++) {
+            float tx = rnd.nextFloat() * 2000 - 1000;
+            float ty = rnd.nextFloat() * 2000 - 1000;
+            float angle = rnd.nextFloat() * 720 - 360;
+            float sx = rnd.nextFloat() * 500 - 250;
+            float sy = rnd.nextFloat() * 500 - 250;
+
+            referenceTrs(expected, tx, ty, angle, sx, sy);
+            AffineMatrix.setTranslateRotateScale(actual, 4, tx, ty, angle, sx, sy);
+            assertMatrixEquals(expected, 0, actual, 4);
+        }
+    }
+
+    @Test
+    public void specialAngles() {
+        float[] expected = new float[16];
+        float[] actual = new float[16];
+        float[] angles = { 0, 90, 180, 270, -90, 360, 45 };
+        for (float angle : angles) {
+            referenceTrs(expected, 10, -20, angle, 1, 1);
+            AffineMatrix.setTranslateRotateScale(actual, 0, 10, -20, angle, 1, 1);
+            assertMatrixEquals(expected, 0, actual, 0);
+        }
+    }
+
+    @Test
+    public void multiplyByAffineMatchesMultiplyMM() {
+        Random rnd = new Random(2);
+        float[] projection = new float[16];
+        float[] model = new float[16];
+        float[] expected = new float[16];
+        float[] actual = new float[24];
+        for (int i = 0; i < ITERATIONS; i++) {
+            if (i % 2 == 0) {
+                // What Sprite2d actually sees: an ortho projection.
+                ReferenceMatrix.orthoM(projection, 0, rnd.nextFloat() * 1080,
+                        rnd.nextFloat() * 1920);
+            } else {
+                for (int j = 0; j < 16; j++) {
+                    projection[j] = rnd.nextFloat() * 4 - 2;
+                }
+            }
+            referenceTrs(model, rnd.nextFloat() * 1000, rnd.nextFloat() * 1000,
+                    rnd.nextFloat() * 360, rnd.nextFloat() * 100, rnd.nextFloat() * 100);
+
+            ReferenceMatrix.multiplyMM(expected, 0, projection, 0, model, 0);
+            AffineMatrix.multiplyByAffine(actual, 8, projection, 0, model, 0);
+            assertMatrixEquals(expected, 0, actual, 8);
+        }
+    }
+
+    private static void assertMatrixEquals(float[] expected, int expectedOffset,
+            float[] actual, int actualOffset) {
+        for (int i = 0; i < 16; i++) {
+            // Delta of zero: only +0 and -0 are allowed to differ.
+            assertEquals("element " + i, expected[expectedOffset + i],
+                    actual[actualOffset + i], 0f);
+        }
+    }
+
+    /**
+     * The sequence Sprite2d used before AffineMatrix.
+     */
+    private static void referenceTrs(float[] m, float tx, float ty, float angle, float sx,
+            float sy) {
+        ReferenceMatrix.setIdentityM(m, 0);
+        ReferenceMatrix.translateM(m, 0, tx, ty, 0);
+        ReferenceMatrix.rotateM(m, 0, new float[32], angle, 0, 0, 1);
+        ReferenceMatrix.scaleM(m, 0, sx, sy, 1);
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.gles;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks which GL calls GlState lets through, using a recording stand-in for GLES20.
+ */
+public class GlStateTest {
+    /**
+     * Records each call as a string, e.g. "use 3" or "enable 0".
+     */
+    private static class RecordingCalls implements GlState.Calls {
+        final List<String> calls = new ArrayList<String>();
+
+        @Override
+        public void useProgram(int program) {
+            calls.add("use " + program);
+        }
+
+        @Override
+        public void enableVertexAttribArray(int location) {
+            calls.add("enable " + location);
+        }
+
+        @Override
+        public void disableVertexAttribArray(int location) {
+            calls.add("disable " + location);
+        }
+    }
+
+    private static final int POS = GlState.attribBit(0);
+    private static final int TEX = GlState.attribBit(1);
+    private static final int COLOR = GlState.attribBit(2);
+
+    private RecordingCalls mGl;
+    private GlState mState;
+
+    @Before
+    public void setUp() {
+        mGl = new RecordingCalls();
+        mState = new GlState(mGl);
+    }
+
+    /**
+     * What a sprite draw does: bind the program, set up the arrays.
+     */
+    private void draw(int program, int mask) {
+        mState.useProgram(program);
+        mState.setVertexAttribArrays(mask);
+    }
+
+    @Test
+    public void repeatedDrawsIssueOnce() {
+        final int sprites = 200;
+        for (int i = 0; i < sprites; i++) {
+            draw(3, POS | TEX);
+        }
+        // The old code did use/enable/enable/disable/disable/use(0) for every sprite.
+        assertEquals(Arrays.asList("use 3", "enable 0", "enable 1"), mGl.calls);
+        assertEquals(3, mState.getIssuedCount());
+        assertEquals(sprites * 3 - 3, mState.getSkippedCount());
+    }
+
+    @Test
+    public void switchingProgramsChangesOnlyDifferences() {
+        draw(3, POS | TEX);
+        mGl.calls.clear();
+
+        draw(4, POS | COLOR);
+        assertEquals(Arrays.asList("use 4", "enable 2", "disable 1"), mGl.calls);
+        mGl.calls.clear();
+
+        draw(4, POS | COLOR);
+        draw(3, POS | TEX);
+        assertEquals(Arrays.asList("use 3", "enable 1", "disable 2"), mGl.calls);
+    }
+
+    @Test
+    public void invalidateReissues() {
+        draw(3, POS | TEX);
+        draw(5, POS);
+        mGl.calls.clear();
+
+        mState.invalidate();
+        draw(5, POS);
+        // Program and requested array are reissued.  TEX was enabled at some point, so it
+        // might still be on; disable it to be safe.
+        assertEquals(Arrays.asList("use 5", "enable 0", "disable 1"), mGl.calls);
+        mGl.calls.clear();
+
+        draw(5, POS);
+        assertEquals(0, mGl.calls.size());
+    }
+
+    @Test
+    public void deleteCurrentProgramUnbinds() {
+        draw(3, POS);
+        mGl.calls.clear();
+
+        mState.onDeleteProgram(4);
+        assertEquals(0, mGl.calls.size());
+        mState.onDeleteProgram(3);
+        assertEquals(Arrays.asList("use 0"), mGl.calls);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void untrackableLocation() {
+        GlState.attribBit(32);
+    }
+
+    @Test
+    public void invalidateAllResetsThreadState() {
+        // There's no EGL context here, so get() sees the same (null) context each time.
+        GlState state = GlState.get();
+        assertSame(state, GlState.get());
+        state.useProgram(7);
+        long issued = state.getIssuedCount();
+        GlState.get().useProgram(7);
+        assertEquals(issued, state.getIssuedCount());
+
+        // A context was created or destroyed somewhere, so the handle may be stale.
+        GlState.invalidateAll();
+        GlState.get().useProgram(7);
+        assertEquals(issued + 1, state.getIssuedCount());
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.gles;
+
+/**
+ * Ports of the android.opengl.Matrix routines that Sprite2d used before AffineMatrix, with
+ * the same arithmetic in the same order.  android.opengl.Matrix isn't available on the JVM.
+ * multiplyMM() is native there; this follows the C implementation's summation order.
+ */
+final class ReferenceMatrix {
+    private ReferenceMatrix() {}
+
+    static void setIdentityM(float[] sm, int smOffset) {
+        for (int i = 0; i < 16; i++) {
+            sm[smOffset + i] = 0;
+        }
+        for (int i = 0; i < 16; i += 5) {
+            sm[smOffset + i] = 1.0f;
+        }
+    }
+
+    static void translateM(float[] m, int mOffset, float x, float y, float z) {
+        for (int i = 0; i < 4; i++) {
+            int mi = mOffset + i;
+            m[12 + mi] += m[mi] * x + m[4 + mi] * y + m[8 + mi] * z;
+        }
+    }
+
+    static void rotateM(float[] m, int mOffset, float[] temp, float a, float x,
+            float y, float z) {
+        setRotateM(temp, 0, a, x, y, z);
+        multiplyMM(temp, 16, m, mOffset, temp, 0);
+        System.arraycopy(temp, 16, m, mOffset, 16);
+    }
+
+    static void setRotateM(float[] rm, int rmOffset, float a, float x, float y,
+            float z) {
+        if (x != 0 || y != 0 || z != 1) {
+            throw new IllegalArgumentException("only rotation about Z is ported");
+        }
+        rm[rmOffset + 3] = 0;
+        rm[rmOffset + 7] = 0;
+        rm[rmOffset + 11] = 0;
+        rm[rmOffset + 12] = 0;
+        rm[rmOffset + 13] = 0;
+        rm[rmOffset + 14] = 0;
+        rm[rmOffset + 15] = 1;
+        a *= (float) (Math.PI / 180.0f);
+        float s = (float) Math.sin(a);
+        float c = (float) Math.cos(a);
+        rm[rmOffset + 0] = c;
+        rm[rmOffset + 5] = c;
+        rm[rmOffset + 1] = s;
+        rm[rmOffset + 4] = -s;
+        rm[rmOffset + 2] = 0;
+        rm[rmOffset + 6] = 0;
+        rm[rmOffset + 8] = 0;
+        rm[rmOffset + 9] = 0;
+        rm[rmOffset + 10] = 1;
+    }
+
+    static void scaleM(float[] m, int mOffset, float x, float y, float z) {
+        for (int i = 0; i < 4; i++) {
+            int mi = mOffset + i;
+            m[mi] *= x;
+            m[4 + mi] *= y;
+            m[8 + mi] *= z;
+        }
+    }
+
+    static void multiplyMM(float[] result, int resultOffset, float[] lhs,
+            int lhsOffset, float[] rhs, int rhsOffset) {
+        for (int i = 0; i < 4; i++) {
+            float rhs_i0 = rhs[rhsOffset + 4 * i];
+            float ri0 = lhs[lhsOffset] * rhs_i0;
+            float ri1 = lhs[lhsOffset + 1] * rhs_i0;
+            float ri2 = lhs[lhsOffset + 2] * rhs_i0;
+            float ri3 = lhs[lhsOffset + 3] * rhs_i0;
+            for (int j = 1; j < 4; j++) {
+                float rhs_ij = rhs[rhsOffset + 4 * i + j];
+                ri0 += lhs[lhsOffset + 4 * j] * rhs_ij;
+                ri1 += lhs[lhsOffset + 4 * j + 1] * rhs_ij;
+                ri2 += lhs[lhsOffset + 4 * j + 2] * rhs_ij;
+                ri3 += lhs[lhsOffset + 4 * j + 3] * rhs_ij;
+            }
+            result[resultOffset + 4 * i] = ri0;
+            result[resultOffset + 4 * i + 1] = ri1;
+            result[resultOffset + 4 * i + 2] = ri2;
+            result[resultOffset + 4 * i + 3] = ri3;
+        }
+    }
+
+    /**
+     * Matrix.orthoM(m, offset, 0, width, 0, height, -1, 1).
+     */
+    static void orthoM(float[] m, int mOffset, float width, float height) {
+        float rWidth = 1.0f / width;
+        float rHeight = 1.0f / height;
+        float rDepth = 1.0f / 2.0f;
+        setIdentityM(m, mOffset);
+        m[mOffset] = 2.0f * rWidth;
+        m[mOffset + 5] = 2.0f * rHeight;
+        m[mOffset + 10] = -2.0f * rDepth;
+        m[mOffset + 12] = -width * rWidth;
+        m[mOffset + 13] = -height * rHeight;
+        m[mOffset + 14] = 0;
+    }
+}
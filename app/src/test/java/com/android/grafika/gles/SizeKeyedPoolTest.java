@@ -0,0 +1,124 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.gles;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Exercises SizeKeyedPool with ByteBuffers, whose equals() compares contents.
+ */
+public class SizeKeyedPoolTest {
+    /**
+     * Pool of heap ByteBuffers, keyed by capacity.  Remembers what it evicted.
+     */
+    private static class TestPool extends SizeKeyedPool<ByteBuffer> {
+        final ArrayList<ByteBuffer> evicted = new ArrayList<ByteBuffer>();
+
+        TestPool(long maxIdleBytes) {
+            super(maxIdleBytes);
+        }
+
+        @Override
+        protected ByteBuffer create(long key) {
+            return ByteBuffer.allocate((int) key);
+        }
+
+        @Override
+        protected long getKey(ByteBuffer item) {
+            return item.capacity();
+        }
+
+        @Override
+        protected long getSize(ByteBuffer item) {
+            return item.capacity();
+        }
+
+        @Override
+        protected void onEvict(ByteBuffer item) {
+            evicted.add(item);
+        }
+    }
+
+    @Test
+    public void equalContentsAreDistinct() {
+        TestPool pool = new TestPool(1000);
+        ByteBuffer first = pool.acquire(100);
+        ByteBuffer second = pool.acquire(100);
+        // Both are all zeroes, so equals() says they're the same buffer.
+        assertEquals(first, second);
+        assertNotSame(first, second);
+
+        pool.release(first);
+        pool.release(second);
+        assertEquals(2, pool.getIdleCount());
+        assertEquals(200, pool.getIdleBytes());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void doubleReleaseThrows() {
+        TestPool pool = new TestPool(1000);
+        ByteBuffer buf = pool.acquire(100);
+        pool.release(buf);
+        pool.release(buf);
+    }
+
+    @Test
+    public void reusesBySize() {
+        TestPool pool = new TestPool(1000);
+        ByteBuffer small = pool.acquire(100);
+        ByteBuffer large = pool.acquire(200);
+        pool.release(small);
+        pool.release(large);
+
+        assertSame(small, pool.acquire(100));
+        assertSame(large, pool.acquire(200));
+        assertNotSame(small, pool.acquire(100));
+        assertEquals(0, pool.getIdleCount());
+    }
+
+    @Test
+    public void evictsOldestOverLimit() {
+        TestPool pool = new TestPool(250);
+        ByteBuffer a = pool.acquire(100);
+        ByteBuffer b = pool.acquire(100);
+        ByteBuffer c = pool.acquire(100);
+        pool.release(a);
+        pool.release(b);
+        pool.release(c);
+
+        assertEquals(1, pool.evicted.size());
+        assertSame(a, pool.evicted.get(0));
+        assertEquals(200, pool.getIdleBytes());
+
+        // Bigger than the whole pool: dropped right away.
+        ByteBuffer huge = pool.acquire(300);
+        pool.release(huge);
+        assertSame(huge, pool.evicted.get(1));
+
+        pool.trim();
+        assertEquals(0, pool.getIdleCount());
+        assertEquals(0, pool.getIdleBytes());
+        assertEquals(4, pool.evicted.size());
+    }
+}